@@ -4,25 +4,50 @@ import com.platypus.crw.data.SensorData;
 import com.platypus.crw.data.Twist;
 import com.platypus.crw.data.UtmPose;
 import java.awt.image.RenderedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javax.imageio.ImageIO;
 
-public abstract class AbstractVehicleServer implements VehicleServer {
+public abstract class AbstractVehicleServer implements VehicleServer, AdaptiveImageSource {
+    private static final Logger logger = Logger.getLogger(AbstractVehicleServer.class.getName());
+
+    // Default JPEG quality used by ImageIO
+    public static final float DEFAULT_IMAGE_QUALITY = 0.75f;
 
     protected double[][] _gains = new double[6][3];
-    protected final List<SensorListener> _sensorListeners = new ArrayList<SensorListener>();
-    protected final List<ImageListener> _imageListeners = new ArrayList<ImageListener>();
-    protected final List<VelocityListener> _velocityListeners = new ArrayList<VelocityListener>();
-    protected final List<PoseListener> _stateListeners = new ArrayList<PoseListener>();
-    protected final List<CameraListener> _cameraListeners = new ArrayList<CameraListener>();
-    protected final List<WaypointListener> _waypointListeners = new ArrayList<WaypointListener>();
-    protected final List<CrumbListener> _crumbListeners = new ArrayList<CrumbListener>();
-    protected final List<RCOverrideListener> _rcListeners = new ArrayList<RCOverrideListener>();
-    protected final List<KeyValueListener> _keyValueListeners = new ArrayList<KeyValueListener>();
+    
+    // Listeners are copied on every addition or removal, so that events can 
+    // be sent without locking, even while listeners are being changed
+    protected final List<SensorListener> _sensorListeners = new CopyOnWriteArrayList<SensorListener>();
+    protected final List<ImageListener> _imageListeners = new CopyOnWriteArrayList<ImageListener>();
+    protected final List<VelocityListener> _velocityListeners = new CopyOnWriteArrayList<VelocityListener>();
+    protected final List<PoseListener> _stateListeners = new CopyOnWriteArrayList<PoseListener>();
+    protected final List<CameraListener> _cameraListeners = new CopyOnWriteArrayList<CameraListener>();
+    protected final List<WaypointListener> _waypointListeners = new CopyOnWriteArrayList<WaypointListener>();
+    protected final List<CrumbListener> _crumbListeners = new CopyOnWriteArrayList<CrumbListener>();
+    protected final List<RCOverrideListener> _rcListeners = new CopyOnWriteArrayList<RCOverrideListener>();
+    protected final List<KeyValueListener> _keyValueListeners = new CopyOnWriteArrayList<KeyValueListener>();
+    
+    // Optional ring buffers that decouple event producers from listeners,
+    // which are only created by enableEventBus()
+    protected final Object _eventBusLock = new Object();
+    protected volatile EventRing<SensorListener, SensorData> _sensorRing = null;
+    protected volatile EventRing<ImageListener, byte[]> _imageRing = null;
+    protected volatile EventRing<VelocityListener, Twist> _velocityRing = null;
+    protected volatile EventRing<PoseListener, UtmPose> _poseRing = null;
+    protected volatile EventRing<CameraListener, CameraState> _cameraRing = null;
+    protected volatile EventRing<WaypointListener, WaypointState> _waypointRing = null;
+    protected volatile EventRing<CrumbListener, double[]> _crumbRing = null;
+    protected volatile EventRing<RCOverrideListener, Boolean> _rcRing = null;
+    protected volatile EventRing<KeyValueListener, String> _keyValueRing = null;
+    
+    // Limits on streamed camera frames, set according to the link health
+    protected volatile float _imageQuality = DEFAULT_IMAGE_QUALITY;
+    protected volatile double _imageScale = 1.0;
+    protected volatile double _imageMinInterval = 0.0;
 
     @Override
     public double[] getGains(int axis) {
@@ -48,125 +73,373 @@ public abstract class AbstractVehicleServer implements VehicleServer {
 
     @Override
     public void addPoseListener(PoseListener l) {
-        synchronized (_stateListeners) {
+        synchronized (_eventBusLock) {
             _stateListeners.add(l);
+            if (_poseRing != null) _poseRing.add(l);
         }
     }
 
     @Override
     public void removePoseListener(PoseListener l) {
-        synchronized (_stateListeners) {
+        synchronized (_eventBusLock) {
             _stateListeners.remove(l);
+            if (_poseRing != null) _poseRing.remove(l);
         }
     }
 
     @Override
     public void addCrumbListener(CrumbListener l) {
-        synchronized (_crumbListeners) {
+        synchronized (_eventBusLock) {
             _crumbListeners.add(l);
+            if (_crumbRing != null) _crumbRing.add(l);
         }
     }
 
     @Override
     public void removeCrumbListener(CrumbListener l) {
-        synchronized (_crumbListeners) {
+        synchronized (_eventBusLock) {
             _crumbListeners.remove(l);
+            if (_crumbRing != null) _crumbRing.remove(l);
         }
     }
     
     @Override
     public void addRCOverrideListener(RCOverrideListener l) {
-        synchronized (_rcListeners) {
+        synchronized (_eventBusLock) {
             _rcListeners.add(l);
+            if (_rcRing != null) _rcRing.add(l);
         }
     }
     
     @Override
     public void removeRCOverrideListener(RCOverrideListener l) {
-        synchronized (_rcListeners) {
+        synchronized (_eventBusLock) {
             _rcListeners.remove(l);
+            if (_rcRing != null) _rcRing.remove(l);
         }
     }
     
     @Override
     public void addKeyValueListener(KeyValueListener l) {
-        synchronized (_keyValueListeners) {
+        synchronized (_eventBusLock) {
             _keyValueListeners.add(l);
+            if (_keyValueRing != null) _keyValueRing.add(l);
         }
     }
     
     @Override 
     public void removeKeyValueListener(KeyValueListener l) {
-        synchronized (_keyValueListeners) {
+        synchronized (_eventBusLock) {
             _keyValueListeners.remove(l);
+            if (_keyValueRing != null) _keyValueRing.remove(l);
+        }
+    }
+
+    /**
+     * Delivers events to listeners through ring buffers instead of calling
+     * them directly, so that the threads that produce events, such as sensor
+     * drivers, never wait for listeners.  Each listener is then called from
+     * its own thread, and a listener that falls more than a full ring behind
+     * skips the events it missed.
+     * 
+     * @param capacity the number of events buffered for each event type
+     */
+    public void enableEventBus(int capacity) {
+        synchronized (_eventBusLock) {
+            if (_poseRing != null) return;
+            
+            _sensorRing = newEventRing("Sensor", capacity, _sensorListeners, SENSOR_DELIVERY);
+            _imageRing = newEventRing("Image", capacity, _imageListeners, IMAGE_DELIVERY);
+            _velocityRing = newEventRing("Velocity", capacity, _velocityListeners, VELOCITY_DELIVERY);
+            _poseRing = newEventRing("Pose", capacity, _stateListeners, POSE_DELIVERY);
+            _cameraRing = newEventRing("Camera", capacity, _cameraListeners, CAMERA_DELIVERY);
+            _waypointRing = newEventRing("Waypoint", capacity, _waypointListeners, WAYPOINT_DELIVERY);
+            _crumbRing = newEventRing("Crumb", capacity, _crumbListeners, CRUMB_DELIVERY);
+            _rcRing = newEventRing("RCOverride", capacity, _rcListeners, RC_DELIVERY);
+            _keyValueRing = newEventRing("KeyValue", capacity, _keyValueListeners, KEYVALUE_DELIVERY);
+        }
+    }
+    
+    /**
+     * Returns to calling listeners directly from the threads that produce 
+     * events.  Events still buffered in the rings are discarded.
+     */
+    public void disableEventBus() {
+        synchronized (_eventBusLock) {
+            if (_poseRing == null) return;
+            
+            for (EventRing<?, ?> ring : getEventRings()) {
+                ring.shutdown();
+            }
+            _sensorRing = null;
+            _imageRing = null;
+            _velocityRing = null;
+            _poseRing = null;
+            _cameraRing = null;
+            _waypointRing = null;
+            _crumbRing = null;
+            _rcRing = null;
+            _keyValueRing = null;
+        }
+    }
+    
+    public boolean isEventBusEnabled() {
+        return _poseRing != null;
+    }
+    
+    /**
+     * Returns the largest number of events that any listener has yet to
+     * receive through the event bus.
+     * 
+     * @return the number of pending events, or zero if the event bus is not
+     * enabled
+     */
+    public long getEventBusLag() {
+        long lag = 0;
+        synchronized (_eventBusLock) {
+            for (EventRing<?, ?> ring : getEventRings()) {
+                lag = Math.max(lag, ring.getMaxLag());
+            }
+        }
+        return lag;
+    }
+    
+    private List<EventRing<?, ?>> getEventRings() {
+        List<EventRing<?, ?>> rings = new ArrayList<EventRing<?, ?>>();
+        if (_poseRing == null) return rings;
+        
+        rings.add(_sensorRing);
+        rings.add(_imageRing);
+        rings.add(_velocityRing);
+        rings.add(_poseRing);
+        rings.add(_cameraRing);
+        rings.add(_waypointRing);
+        rings.add(_crumbRing);
+        rings.add(_rcRing);
+        rings.add(_keyValueRing);
+        return rings;
+    }
+    
+    private <L, V> EventRing<L, V> newEventRing(String name, int capacity, List<L> listeners, 
+            EventRing.Delivery<L, V> delivery) {
+        EventRing<L, V> ring = new EventRing<L, V>(name, capacity, delivery, _ringFailureHandler);
+        for (L l : listeners) {
+            ring.add(l);
+        }
+        return ring;
+    }
+    
+    // Listeners that fail on the event bus are reported like any other
+    private final EventRing.FailureHandler<Object> _ringFailureHandler = new EventRing.FailureHandler<Object>() {
+        @Override
+        public void failed(Object listener, RuntimeException e) {
+            listenerFailed(listener, e);
+        }
+    };
+    
+    // Calls each type of listener with the contents of a slot of its ring
+    private static final EventRing.Delivery<SensorListener, SensorData> SENSOR_DELIVERY = 
+            new EventRing.Delivery<SensorListener, SensorData>() {
+        @Override
+        public void deliver(SensorListener l, SensorData reading, long index) {
+            l.receivedSensor(reading, index);
+        }
+    };
+    
+    private static final EventRing.Delivery<ImageListener, byte[]> IMAGE_DELIVERY = 
+            new EventRing.Delivery<ImageListener, byte[]>() {
+        @Override
+        public void deliver(ImageListener l, byte[] image, long unused) {
+            l.receivedImage(image);
+        }
+    };
+    
+    private static final EventRing.Delivery<VelocityListener, Twist> VELOCITY_DELIVERY = 
+            new EventRing.Delivery<VelocityListener, Twist>() {
+        @Override
+        public void deliver(VelocityListener l, Twist velocity, long unused) {
+            l.receivedVelocity(velocity);
+        }
+    };
+    
+    private static final EventRing.Delivery<PoseListener, UtmPose> POSE_DELIVERY = 
+            new EventRing.Delivery<PoseListener, UtmPose>() {
+        @Override
+        public void deliver(PoseListener l, UtmPose pose, long unused) {
+            l.receivedPose(pose);
+        }
+    };
+    
+    private static final EventRing.Delivery<CameraListener, CameraState> CAMERA_DELIVERY = 
+            new EventRing.Delivery<CameraListener, CameraState>() {
+        @Override
+        public void deliver(CameraListener l, CameraState status, long unused) {
+            l.imagingUpdate(status);
+        }
+    };
+    
+    private static final EventRing.Delivery<WaypointListener, WaypointState> WAYPOINT_DELIVERY = 
+            new EventRing.Delivery<WaypointListener, WaypointState>() {
+        @Override
+        public void deliver(WaypointListener l, WaypointState status, long unused) {
+            l.waypointUpdate(status);
+        }
+    };
+    
+    private static final EventRing.Delivery<CrumbListener, double[]> CRUMB_DELIVERY = 
+            new EventRing.Delivery<CrumbListener, double[]>() {
+        @Override
+        public void deliver(CrumbListener l, double[] crumb, long index) {
+            l.receivedCrumb(crumb, index);
+        }
+    };
+    
+    private static final EventRing.Delivery<RCOverrideListener, Boolean> RC_DELIVERY = 
+            new EventRing.Delivery<RCOverrideListener, Boolean>() {
+        @Override
+        public void deliver(RCOverrideListener l, Boolean isRCOverrideOn, long unused) {
+            l.rcOverrideUpdate(isRCOverrideOn);
+        }
+    };
+    
+    // Key-value pairs carry the bits of their float value as the number
+    private static final EventRing.Delivery<KeyValueListener, String> KEYVALUE_DELIVERY = 
+            new EventRing.Delivery<KeyValueListener, String>() {
+        @Override
+        public void deliver(KeyValueListener l, String key, long valueBits) {
+            l.keyValueUpdate(key, Float.intBitsToFloat((int)valueBits));
         }
+    };
+
+    /**
+     * Reports a listener that threw an exception while handling an event.
+     * The exception is not propagated, so that the remaining listeners and
+     * the thread sending the event are unaffected.
+     * 
+     * @param listener the listener that failed
+     * @param e the exception that it threw
+     */
+    protected void listenerFailed(Object listener, RuntimeException e) {
+        logger.log(Level.WARNING, "Listener " + listener + " failed to handle event", e);
     }
 
-    protected void sendState(UtmPose pose) {
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        synchronized (_stateListeners) {
-            for (PoseListener l : _stateListeners) {
+    protected void sendState(final UtmPose pose) {
+        EventRing<PoseListener, UtmPose> ring = _poseRing;
+        if (ring != null) {
+            ring.publish(pose, 0);
+            return;
+        }
+        
+        for (PoseListener l : _stateListeners) {
+            try {
                 l.receivedPose(pose);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
 
-    protected void sendCrumb(double[] crumb, long index) {
-        synchronized (_crumbListeners) {
-            for (CrumbListener l : _crumbListeners) {
+    protected void sendCrumb(final double[] crumb, final long index) {
+        EventRing<CrumbListener, double[]> ring = _crumbRing;
+        if (ring != null) {
+            ring.publish(crumb, index);
+            return;
+        }
+        
+        for (CrumbListener l : _crumbListeners) {
+            try {
                 l.receivedCrumb(crumb, index);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
     
-    protected void sendRCOverride(boolean isRCOverrideOn) {
-        synchronized(_rcListeners) {
-            for (RCOverrideListener l: _rcListeners) {
+    protected void sendRCOverride(final boolean isRCOverrideOn) {
+        EventRing<RCOverrideListener, Boolean> ring = _rcRing;
+        if (ring != null) {
+            ring.publish(Boolean.valueOf(isRCOverrideOn), 0);
+            return;
+        }
+        
+        for (RCOverrideListener l : _rcListeners) {
+            try {
                 l.rcOverrideUpdate(isRCOverrideOn);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
     
-    protected void sendKeyValue(String key, float value)
+    protected void sendKeyValue(final String key, final float value)
     {
-        synchronized (_keyValueListeners) {
-            for (KeyValueListener l : _keyValueListeners) {
+        EventRing<KeyValueListener, String> ring = _keyValueRing;
+        if (ring != null) {
+            ring.publish(key, Float.floatToIntBits(value));
+            return;
+        }
+        
+        for (KeyValueListener l : _keyValueListeners) {
+            try {
                 l.keyValueUpdate(key, value);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
 
     @Override
     public void addImageListener(ImageListener l) {
-        synchronized (_imageListeners) {
+        synchronized (_eventBusLock) {
             _imageListeners.add(l);
+            if (_imageRing != null) _imageRing.add(l);
         }
     }
 
     @Override
     public void removeImageListener(ImageListener l) {
-        synchronized (_imageListeners) {
+        synchronized (_eventBusLock) {
             _imageListeners.remove(l);
+            if (_imageRing != null) _imageRing.remove(l);
         }
     }
 
     protected static byte[] toCompressedImage(RenderedImage image) {
         // This might be inefficient, but it is far more inefficient to
         // uncompress hardware-compressed JPEG images on Android.
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        try {
-            ImageIO.write(image, "jpeg", buffer);
-            return buffer.toByteArray();
-        } catch (IOException ex) {
-            return null;
-        }
+        return toCompressedImage(image, DEFAULT_IMAGE_QUALITY);
     }
 
-    protected void sendImage(byte[] image) {
-        synchronized (_imageListeners) {
-            for (ImageListener l : _imageListeners) {
+    /**
+     * Compresses an image to a JPEG with the specified quality.
+     * 
+     * @param image the image to compress
+     * @param quality the JPEG quality, between 0 and 1
+     * @return the compressed image, or null if it could not be compressed
+     */
+    protected static byte[] toCompressedImage(RenderedImage image, float quality) {
+        return JpegEncoderPool.getDefault().encode(image, quality);
+    }
+
+    @Override
+    public void setImageQuality(float quality, double scale, double minInterval) {
+        _imageQuality = quality;
+        _imageScale = scale;
+        _imageMinInterval = minInterval;
+    }
+
+    protected void sendImage(final byte[] image) {
+        EventRing<ImageListener, byte[]> ring = _imageRing;
+        if (ring != null) {
+            ring.publish(image, 0);
+            return;
+        }
+        
+        for (ImageListener l : _imageListeners) {
+            try {
                 l.receivedImage(image);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
@@ -174,92 +447,128 @@ public abstract class AbstractVehicleServer implements VehicleServer {
     @Override
     //public void addSensorListener(int channel, SensorListener l) {
     public void addSensorListener(SensorListener l) {
-        synchronized (_sensorListeners) {
+        synchronized (_eventBusLock) {
             _sensorListeners.add(l);
+            if (_sensorRing != null) _sensorRing.add(l);
         }
     }
 
     @Override
     public void removeSensorListener(SensorListener l) {
-        synchronized (_sensorListeners) {
+        synchronized (_eventBusLock) {
             _sensorListeners.remove(l);
+            if (_sensorRing != null) _sensorRing.remove(l);
         }
     }
 
-    protected void sendSensor(SensorData reading, long index) {
-        synchronized (_sensorListeners) {
-            for (SensorListener l : _sensorListeners) {
+    protected void sendSensor(final SensorData reading, final long index) {
+        EventRing<SensorListener, SensorData> ring = _sensorRing;
+        if (ring != null) {
+            ring.publish(reading, index);
+            return;
+        }
+        
+        for (SensorListener l : _sensorListeners) {
+            try {
                 l.receivedSensor(reading, index);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
 
     @Override
     public void addVelocityListener(VelocityListener l) {
-        synchronized (_velocityListeners) {
+        synchronized (_eventBusLock) {
             _velocityListeners.add(l);
+            if (_velocityRing != null) _velocityRing.add(l);
         }
     }
 
     @Override
     public void removeVelocityListener(VelocityListener l) {
-        synchronized (_velocityListeners) {
+        synchronized (_eventBusLock) {
             _velocityListeners.remove(l);
+            if (_velocityRing != null) _velocityRing.remove(l);
         }
     }
 
-    protected void sendVelocity(Twist velocity) {
-        synchronized (_velocityListeners) {
-            for (VelocityListener l : _velocityListeners) {
+    protected void sendVelocity(final Twist velocity) {
+        EventRing<VelocityListener, Twist> ring = _velocityRing;
+        if (ring != null) {
+            ring.publish(velocity, 0);
+            return;
+        }
+        
+        for (VelocityListener l : _velocityListeners) {
+            try {
                 l.receivedVelocity(velocity);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
 
     @Override
     public void addCameraListener(CameraListener l) {
-        synchronized (_cameraListeners) {
+        synchronized (_eventBusLock) {
             _cameraListeners.add(l);
+            if (_cameraRing != null) _cameraRing.add(l);
         }
     }
 
     @Override
     public void removeCameraListener(CameraListener l) {
-        synchronized (_cameraListeners) {
+        synchronized (_eventBusLock) {
             _cameraListeners.remove(l);
+            if (_cameraRing != null) _cameraRing.remove(l);
         }
     }
     
-    protected void sendCameraUpdate(CameraState status) {
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        synchronized (_cameraListeners) {
-            for (CameraListener l : _cameraListeners) {
+    protected void sendCameraUpdate(final CameraState status) {
+        EventRing<CameraListener, CameraState> ring = _cameraRing;
+        if (ring != null) {
+            ring.publish(status, 0);
+            return;
+        }
+        
+        for (CameraListener l : _cameraListeners) {
+            try {
                 l.imagingUpdate(status);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
 
     @Override
     public void addWaypointListener(WaypointListener l) {
-        synchronized (_waypointListeners) {
+        synchronized (_eventBusLock) {
             _waypointListeners.add(l);
+            if (_waypointRing != null) _waypointRing.add(l);
         }
     }
 
     @Override
     public void removeWaypointListener(WaypointListener l) {
-        synchronized (_waypointListeners) {
+        synchronized (_eventBusLock) {
             _waypointListeners.remove(l);
+            if (_waypointRing != null) _waypointRing.remove(l);
         }
     }
     
-    protected void sendWaypointUpdate(WaypointState status) {
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        synchronized (_waypointListeners) {
-            for (WaypointListener l : _waypointListeners) {
+    protected void sendWaypointUpdate(final WaypointState status) {
+        EventRing<WaypointListener, WaypointState> ring = _waypointRing;
+        if (ring != null) {
+            ring.publish(status, 0);
+            return;
+        }
+        
+        for (WaypointListener l : _waypointListeners) {
+            try {
                 l.waypointUpdate(status);
+            } catch (RuntimeException e) {
+                listenerFailed(l, e);
             }
         }
     }
@@ -0,0 +1,21 @@
+package com.platypus.crw;
+
+/**
+ * Implemented by vehicle servers whose camera stream can be degraded to fit
+ * the bandwidth of the link over which it is sent.  Transports call this
+ * whenever their estimate of the link health changes, and the camera applies
+ * the limits to the frames it streams after startCamera().
+ */
+public interface AdaptiveImageSource {
+
+    /**
+     * Limits the size and rate of streamed camera frames.
+     *
+     * @param quality the JPEG quality of each frame, between 0 and 1
+     * @param scale the fraction of the requested width and height at which
+     * frames are captured, between 0 and 1
+     * @param minInterval the minimum time between frames in seconds, which
+     * overrides the interval passed to startCamera() if it is longer
+     */
+    public void setImageQuality(float quality, double scale, double minInterval);
+}
@@ -0,0 +1,290 @@
+package com.platypus.crw;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pre-allocated ring buffer that carries events of one type from the threads
+ * that produce them to a set of listeners.
+ *
+ * Producers claim a sequence number and write the event into the slot for
+ * that sequence, without locking and without waiting for any listener.  Each
+ * listener is served by its own thread, which follows the ring with its own
+ * cursor, so a slow listener only falls behind itself.  A listener that falls
+ * more than a full ring behind skips ahead to the oldest event that is still
+ * in the ring, and the events it skipped are counted as dropped.
+ *
+ * The slots are allocated once and reused.  Each event is written into its
+ * slot as a value and a number, which a delivery shared by the whole ring
+ * passes to the listeners, so that publishing an event allocates nothing.
+ * Each slot also holds the sequence number of the event it contains, which
+ * is cleared while a producer overwrites the slot, so that listeners can
+ * tell whether the event they read was replaced by a newer one.
+ *
+ * @param <L> the type of listener that receives events
+ * @param <V> the type of value that each event carries
+ */
+public class EventRing<L, V> {
+    private static final Logger logger = Logger.getLogger(EventRing.class.getName());
+
+    // Sequence of a slot that has never been written, or is being written
+    private static final long EMPTY = -1;
+    private static final long WRITING = -2;
+
+    // Longest time that an idle listener thread sleeps between checks
+    private static final long IDLE_PARK_NS = TimeUnit.NANOSECONDS.convert(100, TimeUnit.MILLISECONDS);
+
+    /**
+     * Delivers the contents of a slot to a listener.
+     *
+     * @param <L> the type of listener that receives events
+     * @param <V> the type of value that each event carries
+     */
+    public interface Delivery<L, V> {
+        void deliver(L listener, V value, long number);
+    }
+
+    /**
+     * Handles a listener that threw an exception while handling an event.
+     *
+     * @param <L> the type of listener that receives events
+     */
+    public interface FailureHandler<L> {
+        void failed(L listener, RuntimeException e);
+    }
+
+    private final String _name;
+    private final int _mask;
+    private final Delivery<L, V> _delivery;
+    private final FailureHandler<? super L> _failureHandler;
+    private final AtomicLongArray _sequences;
+    private final AtomicReferenceArray<V> _values;
+    private final AtomicLongArray _numbers;
+    private final AtomicLong _next = new AtomicLong();
+    private final CopyOnWriteArrayList<Consumer> _consumers = new CopyOnWriteArrayList<Consumer>();
+
+    /**
+     * Creates a ring with room for the specified number of events, which
+     * logs the failures of its listeners.
+     *
+     * @param name the name of the ring, used to name the listener threads
+     * @param capacity the number of events the ring holds, which is rounded
+     * up to a power of two
+     * @param delivery calls a listener with the contents of a slot
+     */
+    public EventRing(String name, int capacity, Delivery<L, V> delivery) {
+        this(name, capacity, delivery, null);
+    }
+
+    /**
+     * Creates a ring with room for the specified number of events.
+     *
+     * @param name the name of the ring, used to name the listener threads
+     * @param capacity the number of events the ring holds, which is rounded
+     * up to a power of two
+     * @param delivery calls a listener with the contents of a slot
+     * @param failureHandler handles listeners that throw, or null to log
+     * their failures
+     */
+    public EventRing(String name, int capacity, Delivery<L, V> delivery, FailureHandler<? super L> failureHandler) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        _name = name;
+        _mask = size - 1;
+        _delivery = delivery;
+        _failureHandler = failureHandler;
+        _sequences = new AtomicLongArray(size);
+        _values = new AtomicReferenceArray<V>(size);
+        _numbers = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            _sequences.set(i, EMPTY);
+        }
+    }
+
+    public int getCapacity() {
+        return _mask + 1;
+    }
+
+    /**
+     * Adds a listener, which receives the events published from now on.
+     *
+     * @param listener the listener to add
+     */
+    public void add(L listener) {
+        Consumer consumer = new Consumer(listener, _next.get());
+        _consumers.add(consumer);
+        consumer._thread.start();
+    }
+
+    public void remove(L listener) {
+        for (Consumer consumer : _consumers) {
+            if (consumer.listener.equals(listener)) {
+                _consumers.remove(consumer);
+                consumer.stop();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the threads of every listener.  Events that were not yet
+     * delivered are discarded.
+     */
+    public void shutdown() {
+        for (Consumer consumer : _consumers) {
+            consumer.stop();
+        }
+        _consumers.clear();
+    }
+
+    /**
+     * Publishes an event to every listener.  This never blocks, regardless
+     * of how far behind the listeners are.
+     *
+     * @param value the value carried by the event
+     * @param number the number carried by the event
+     */
+    public void publish(V value, long number) {
+        long sequence = _next.getAndIncrement();
+        int index = (int)(sequence & _mask);
+
+        // Only a producer that wrapped around the whole ring while another
+        // was still writing to the same slot can find the slot busy
+        long previous;
+        do {
+            previous = _sequences.get(index);
+        } while (previous == WRITING || !_sequences.compareAndSet(index, previous, WRITING));
+
+        // If a newer event already took the slot, this one is simply lost
+        if (previous > sequence) {
+            _sequences.set(index, previous);
+        } else {
+            _values.set(index, value);
+            _numbers.set(index, number);
+            _sequences.set(index, sequence);
+        }
+
+        for (Consumer consumer : _consumers) {
+            if (consumer._isWaiting) LockSupport.unpark(consumer._thread);
+        }
+    }
+
+    /**
+     * Returns the number of published events that a listener has not yet
+     * received.
+     *
+     * @param listener the listener to check
+     * @return the number of pending events, or -1 if the listener was not
+     * added to this ring
+     */
+    public long getLag(L listener) {
+        for (Consumer consumer : _consumers) {
+            if (consumer.listener.equals(listener))
+                return _next.get() - consumer._cursor;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the largest number of pending events of any listener.
+     */
+    public long getMaxLag() {
+        long next = _next.get();
+        long lag = 0;
+        for (Consumer consumer : _consumers) {
+            lag = Math.max(lag, next - consumer._cursor);
+        }
+        return lag;
+    }
+
+    /**
+     * Returns the number of events that a listener skipped because it fell
+     * more than a full ring behind.
+     *
+     * @param listener the listener to check
+     * @return the number of dropped events, or -1 if the listener was not
+     * added to this ring
+     */
+    public long getDropped(L listener) {
+        for (Consumer consumer : _consumers) {
+            if (consumer.listener.equals(listener))
+                return consumer._dropped.get();
+        }
+        return -1;
+    }
+
+    /**
+     * Follows the ring on behalf of a single listener.
+     */
+    private class Consumer implements Runnable {
+        final L listener;
+        final Thread _thread;
+        final AtomicLong _dropped = new AtomicLong();
+        volatile long _cursor;
+        volatile boolean _isWaiting = false;
+        volatile boolean _isStopped = false;
+
+        Consumer(L l, long cursor) {
+            listener = l;
+            _cursor = cursor;
+            _thread = new Thread(this, "EventRing-" + _name);
+            _thread.setDaemon(true);
+        }
+
+        void stop() {
+            _isStopped = true;
+            LockSupport.unpark(_thread);
+        }
+
+        @Override
+        public void run() {
+            while (!_isStopped) {
+                long cursor = _cursor;
+                int index = (int)(cursor & _mask);
+
+                // Read the event, and check that it was not overwritten
+                if (_sequences.get(index) == cursor) {
+                    V value = _values.get(index);
+                    long number = _numbers.get(index);
+                    if (_sequences.get(index) == cursor) {
+                        deliver(value, number);
+                        _cursor = cursor + 1;
+                        continue;
+                    }
+                }
+
+                // If the producers lapped this listener, skip to the oldest
+                // event that can still be in the ring
+                long oldest = _next.get() - (_mask + 1);
+                if (oldest > cursor) {
+                    _dropped.addAndGet(oldest - cursor);
+                    _cursor = oldest;
+                    continue;
+                }
+
+                // Otherwise, wait for the next event to be published
+                _isWaiting = true;
+                if (_sequences.get(index) != cursor && !_isStopped)
+                    LockSupport.parkNanos(this, IDLE_PARK_NS);
+                _isWaiting = false;
+            }
+        }
+
+        void deliver(V value, long number) {
+            try {
+                _delivery.deliver(listener, value, number);
+            } catch (RuntimeException e) {
+                if (_failureHandler != null) {
+                    _failureHandler.failed(listener, e);
+                } else {
+                    logger.log(Level.WARNING, "Listener " + listener + " failed to handle event", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.platypus.crw;
+
+import com.platypus.crw.FlightRecorder.RecordType;
+import com.platypus.crw.VehicleServer.CameraState;
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.VehicleServer.WaypointState;
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads back the records of a FlightRecorder, in the order in which they
+ * were recorded, across every segment in its directory.  Records that are
+ * appended to the latest segment while it is being read are also returned.
+ */
+public class FlightLogReader implements Closeable {
+
+    /**
+     * A single recorded event.  The value is a UtmPose, Twist, SensorData,
+     * double[] crumb, WaypointState, CameraState, Boolean RC override, Float
+     * key-value, or byte[] image, according to the type of the record.
+     */
+    public static class Record {
+        public final RecordType type;
+        public final long time;
+        public final long index;
+        public final String key;
+        public final Object value;
+
+        Record(RecordType type, long time, long index, String key, Object value) {
+            this.type = type;
+            this.time = time;
+            this.index = index;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File[] _segments;
+    private int _segment = -1;
+    private RandomAccessFile _file;
+    private MappedByteBuffer _buffer;
+    private int _position;
+
+    /**
+     * Opens the segments in a recording directory, positioned at the oldest
+     * record.
+     *
+     * @param directory the directory in which the segments are stored
+     * @throws IOException if the oldest segment could not be opened
+     */
+    public FlightLogReader(File directory) throws IOException {
+        _segments = FlightRecorder.listSegments(directory);
+        if (_segments.length > 0) openSegment(0);
+    }
+
+    private void openSegment(int segment) throws IOException {
+        closeSegment();
+        _segment = segment;
+        _file = new RandomAccessFile(_segments[segment], "r");
+        _buffer = _file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, _file.length());
+        if (_file.length() < FlightRecorder.DATA_OFFSET || _buffer.getInt(0) != FlightRecorder.MAGIC)
+            throw new IOException("Not a flight recorder segment: " + _segments[segment]);
+        _position = FlightRecorder.DATA_OFFSET;
+    }
+
+    private void closeSegment() throws IOException {
+        if (_file != null) _file.close();
+        _file = null;
+        _buffer = null;
+    }
+
+    /**
+     * Returns the time at which the oldest segment was started.
+     *
+     * @return the time in milliseconds since the epoch, or -1 if there are
+     * no segments
+     */
+    public long getStartTime() throws IOException {
+        return (_segments.length > 0) ? readStartTime(_segments[0]) : -1;
+    }
+
+    private static long readStartTime(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            file.seek(FlightRecorder.START_TIME_OFFSET);
+            return file.readLong();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Positions the reader at the first record at or after a time, using the
+     * time index of the segment that contains it.
+     *
+     * @param time the time in milliseconds since the epoch
+     * @throws IOException if a segment could not be read
+     */
+    public void seek(long time) throws IOException {
+        if (_segments.length == 0) return;
+
+        int first = 0;
+        for (int i = 1; i < _segments.length && readStartTime(_segments[i]) <= time; ++i) {
+            first = i;
+        }
+        openSegment(first);
+
+        int count = Math.min(_buffer.getInt(FlightRecorder.INDEX_COUNT_OFFSET), FlightRecorder.INDEX_CAPACITY);
+        for (int i = 0; i < count; ++i) {
+            int entry = FlightRecorder.INDEX_OFFSET + i * FlightRecorder.INDEX_ENTRY_SIZE;
+            if (_buffer.getLong(entry) > time) break;
+            _position = _buffer.getInt(entry + 8);
+        }
+
+        // Skip the records between the index entry and the time, and step
+        // back to the first record that is not skipped, which is the first
+        // record of its segment if next() moved to a later segment
+        while (true) {
+            int segment = _segment;
+            int position = _position;
+            Record record = next();
+            if (record == null) return;
+            if (record.time >= time) {
+                _position = (_segment == segment) ? position : FlightRecorder.DATA_OFFSET;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return the record, or null if there are no more records
+     * @throws IOException if a segment could not be read
+     */
+    public Record next() throws IOException {
+        while (_buffer != null) {
+            int end = Math.min(_buffer.getInt(FlightRecorder.END_OFFSET), _buffer.capacity());
+            if (_position + FlightRecorder.RECORD_HEADER_SIZE <= end) {
+                _buffer.position(_position);
+                RecordType type = RecordType.values()[_buffer.get()];
+                long time = _buffer.getLong();
+                int length = _buffer.getInt();
+                _position = _buffer.position() + length;
+                return decode(type, time);
+            }
+
+            // Move on to the next segment, if there is one
+            if (_segment + 1 >= _segments.length) return null;
+            openSegment(_segment + 1);
+        }
+        return null;
+    }
+
+    private Record decode(RecordType type, long time) {
+        switch (type) {
+            case POSE:
+            {
+                Pose3D pose = new Pose3D(_buffer.getDouble(), _buffer.getDouble(), _buffer.getDouble(),
+                        _buffer.getDouble(), _buffer.getDouble(), _buffer.getDouble(), _buffer.getDouble());
+                Utm origin = new Utm(_buffer.get(), _buffer.get() != 0);
+                return new Record(type, time, 0, null, new UtmPose(pose, origin));
+            }
+            case VELOCITY:
+                return new Record(type, time, 0, null, new Twist(_buffer.getDouble(), _buffer.getDouble(),
+                        _buffer.getDouble(), _buffer.getDouble(), _buffer.getDouble(), _buffer.getDouble()));
+            case SENSOR:
+            {
+                long index = _buffer.getLong();
+                SensorData sensor = new SensorData();
+                sensor.channel = _buffer.getInt();
+                sensor.type = DataType.values()[_buffer.get() & 0xFF];
+                sensor.value = _buffer.getDouble();
+                sensor.latlng = new double[] { _buffer.getDouble(), _buffer.getDouble() };
+                return new Record(type, time, index, null, sensor);
+            }
+            case CRUMB:
+            {
+                long index = _buffer.getLong();
+                double[] crumb = new double[_buffer.getInt()];
+                for (int i = 0; i < crumb.length; ++i) {
+                    crumb[i] = _buffer.getDouble();
+                }
+                return new Record(type, time, index, null, crumb);
+            }
+            case WAYPOINT:
+                return new Record(type, time, 0, null, WaypointState.values()[_buffer.get()]);
+            case CAMERA:
+                return new Record(type, time, 0, null, CameraState.values()[_buffer.get()]);
+            case RC_OVERRIDE:
+                return new Record(type, time, 0, null, _buffer.get() != 0);
+            case KEYVALUE:
+            {
+                byte[] key = new byte[_buffer.getInt()];
+                _buffer.get(key);
+                return new Record(type, time, 0, new String(key, UTF_8), _buffer.getFloat());
+            }
+            case IMAGE:
+            {
+                byte[] image = new byte[_position - _buffer.position()];
+                _buffer.get(image);
+                return new Record(type, time, 0, null, image);
+            }
+            default:
+                throw new IllegalStateException("Unknown record type: " + type);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
@@ -0,0 +1,401 @@
+package com.platypus.crw;
+
+import com.platypus.crw.VehicleServer.CameraState;
+import com.platypus.crw.VehicleServer.WaypointState;
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.UtmPose;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records every event of a vehicle server into a rotating set of
+ * memory-mapped segment files, so that the behavior of a vehicle can be
+ * reconstructed after the fact.
+ *
+ * Each segment starts with a header containing a magic number, the time of
+ * its first record, the offset of the end of the last record, and the number
+ * of entries in its time index.  The header is followed by a fixed-size time
+ * index, with an entry holding the long time and int offset of the first
+ * record after every INDEX_INTERVAL_MS, and then by the records.  Each record
+ * is written as a byte RecordType, a long time in milliseconds since the
+ * epoch, an int payload length, and the payload.
+ *
+ * Records are written straight into the mapped segment, and the operating
+ * system writes them out to storage, so recording an event only costs a few
+ * memory writes.  When a segment fills up, a new one is started, and the
+ * oldest segments are deleted to stay within the maximum number of segments.
+ * Segments are read back with FlightLogReader.
+ */
+public class FlightRecorder implements Closeable, PoseListener, SensorListener,
+        VelocityListener, ImageListener, CameraListener, WaypointListener,
+        CrumbListener, RCOverrideListener, KeyValueListener {
+    private static final Logger logger = Logger.getLogger(FlightRecorder.class.getName());
+
+    static final int MAGIC = 0x50464C54;
+    static final int START_TIME_OFFSET = 4;
+    static final int END_OFFSET = 12;
+    static final int INDEX_COUNT_OFFSET = 16;
+    static final int INDEX_OFFSET = 20;
+    static final int INDEX_ENTRY_SIZE = 12;
+    static final int INDEX_CAPACITY = 4096;
+    static final int DATA_OFFSET = INDEX_OFFSET + INDEX_CAPACITY * INDEX_ENTRY_SIZE;
+    static final int RECORD_HEADER_SIZE = 13;
+
+    static final long INDEX_INTERVAL_MS = 1000;
+    static final String SEGMENT_PREFIX = "flight-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    /**
+     * Kinds of recorded events.  The ordinal of each kind is stored in its
+     * records, so kinds may only be added at the end.
+     */
+    public enum RecordType {
+        POSE, VELOCITY, SENSOR, CRUMB, WAYPOINT, CAMERA, RC_OVERRIDE, KEYVALUE, IMAGE
+    }
+
+    private final File _directory;
+    private final int _segmentSize;
+    private final int _maxSegments;
+    private final Deque<File> _segments = new ArrayDeque<File>();
+    private volatile boolean _isRecordingImages = false;
+
+    private long _segmentNumber;
+    private RandomAccessFile _file;
+    private MappedByteBuffer _buffer;
+    private int _end;
+    private int _indexCount;
+    private long _lastIndexTime;
+
+    public FlightRecorder(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Starts recording into a new segment in the specified directory.
+     * Segments of previous recordings in the directory are kept, but count
+     * towards the maximum number of segments.
+     *
+     * @param directory the directory in which segments are stored
+     * @param segmentSize the size of each segment file in bytes
+     * @param maxSegments the number of segments to keep
+     * @throws IOException if the first segment could not be created
+     */
+    public FlightRecorder(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize <= DATA_OFFSET)
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+
+        _directory = directory;
+        _segmentSize = segmentSize;
+        _maxSegments = Math.max(1, maxSegments);
+
+        if (!_directory.isDirectory() && !_directory.mkdirs())
+            throw new IOException("Unable to create directory: " + _directory);
+
+        File[] existing = listSegments(_directory);
+        _segments.addAll(Arrays.asList(existing));
+        _segmentNumber = (existing.length > 0) ? segmentNumber(existing[existing.length - 1]) : 0;
+        startSegment(now());
+    }
+
+    /**
+     * Lists the segment files in a directory, oldest first.
+     *
+     * @param directory the directory in which segments are stored
+     * @return the segment files
+     */
+    public static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) return new File[0];
+
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long segmentNumber(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Registers this recorder as a listener for every event of a vehicle.
+     *
+     * @param server the vehicle server to record
+     */
+    public void attach(VehicleServer server) {
+        server.addPoseListener(this);
+        server.addSensorListener(this);
+        server.addVelocityListener(this);
+        server.addImageListener(this);
+        server.addCameraListener(this);
+        server.addWaypointListener(this);
+        server.addCrumbListener(this);
+        server.addRCOverrideListener(this);
+        server.addKeyValueListener(this);
+    }
+
+    public void detach(VehicleServer server) {
+        server.removePoseListener(this);
+        server.removeSensorListener(this);
+        server.removeVelocityListener(this);
+        server.removeImageListener(this);
+        server.removeCameraListener(this);
+        server.removeWaypointListener(this);
+        server.removeCrumbListener(this);
+        server.removeRCOverrideListener(this);
+        server.removeKeyValueListener(this);
+    }
+
+    /**
+     * Enables or disables the recording of camera frames, which are not
+     * recorded by default since they are much larger than other events.
+     *
+     * @param isRecordingImages true to record camera frames
+     */
+    public void setRecordingImages(boolean isRecordingImages) {
+        _isRecordingImages = isRecordingImages;
+    }
+
+    public boolean isRecordingImages() {
+        return _isRecordingImages;
+    }
+
+    /**
+     * Returns the current time in milliseconds, with which records are
+     * stamped.
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private void startSegment(long time) throws IOException {
+        File segment = new File(_directory, String.format("%s%012d%s", SEGMENT_PREFIX, ++_segmentNumber, SEGMENT_SUFFIX));
+        _file = new RandomAccessFile(segment, "rw");
+        _file.setLength(_segmentSize);
+        _buffer = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentSize);
+
+        _end = DATA_OFFSET;
+        _indexCount = 0;
+        _lastIndexTime = Long.MIN_VALUE;
+        _buffer.putInt(0, MAGIC);
+        _buffer.putLong(START_TIME_OFFSET, time);
+        _buffer.putInt(END_OFFSET, _end);
+        _buffer.putInt(INDEX_COUNT_OFFSET, _indexCount);
+
+        _segments.add(segment);
+        while (_segments.size() > _maxSegments) {
+            File oldest = _segments.poll();
+            if (!oldest.delete())
+                logger.log(Level.WARNING, "Failed to delete old segment: {0}", oldest);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (_file == null) return;
+
+        // Segments keep their full size, since the file cannot be truncated
+        // while it is still mapped, and readers stop at END_OFFSET anyway
+        _buffer = null;
+        _file.close();
+        _file = null;
+    }
+
+    /**
+     * Starts a record, rotating to a new segment if it does not fit in the
+     * current one, and leaves the buffer positioned at the start of its
+     * payload.  This must be called while holding the lock of the recorder.
+     *
+     * @return false if the record could not be written
+     */
+    private boolean beginRecord(RecordType type, long time, int payloadSize) {
+        int size = RECORD_HEADER_SIZE + payloadSize;
+        if (_buffer == null || size > _segmentSize - DATA_OFFSET)
+            return false;
+
+        if (_end + size > _segmentSize) {
+            try {
+                closeSegment();
+                startSegment(time);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to start new segment, recording stopped", e);
+                _buffer = null;
+                return false;
+            }
+        }
+
+        // Index the first record after every interval
+        if (_indexCount < INDEX_CAPACITY && time - _lastIndexTime >= INDEX_INTERVAL_MS) {
+            int entry = INDEX_OFFSET + _indexCount * INDEX_ENTRY_SIZE;
+            _buffer.putLong(entry, time);
+            _buffer.putInt(entry + 8, _end);
+            _buffer.putInt(INDEX_COUNT_OFFSET, ++_indexCount);
+            _lastIndexTime = time;
+        }
+
+        _buffer.position(_end);
+        _buffer.put((byte)type.ordinal());
+        _buffer.putLong(time);
+        _buffer.putInt(payloadSize);
+        return true;
+    }
+
+    /**
+     * Completes the record started by beginRecord(), making it visible to
+     * readers.
+     */
+    private void endRecord() {
+        _end = _buffer.position();
+        _buffer.putInt(END_OFFSET, _end);
+    }
+
+    @Override
+    public void receivedPose(UtmPose pose) {
+        synchronized (this) {
+            if (!beginRecord(RecordType.POSE, now(), 58)) return;
+            _buffer.putDouble(pose.pose.getX());
+            _buffer.putDouble(pose.pose.getY());
+            _buffer.putDouble(pose.pose.getZ());
+            _buffer.putDouble(pose.pose.getRotation().getW());
+            _buffer.putDouble(pose.pose.getRotation().getX());
+            _buffer.putDouble(pose.pose.getRotation().getY());
+            _buffer.putDouble(pose.pose.getRotation().getZ());
+            _buffer.put((byte)pose.origin.zone);
+            _buffer.put((byte)(pose.origin.isNorth ? 1 : 0));
+            endRecord();
+        }
+    }
+
+    @Override
+    public void receivedVelocity(Twist velocity) {
+        synchronized (this) {
+            if (!beginRecord(RecordType.VELOCITY, now(), 48)) return;
+            _buffer.putDouble(velocity.dx());
+            _buffer.putDouble(velocity.dy());
+            _buffer.putDouble(velocity.dz());
+            _buffer.putDouble(velocity.drx());
+            _buffer.putDouble(velocity.dry());
+            _buffer.putDouble(velocity.drz());
+            endRecord();
+        }
+    }
+
+    @Override
+    public void receivedSensor(SensorData sensor, long index) {
+        synchronized (this) {
+            if (!beginRecord(RecordType.SENSOR, now(), 37)) return;
+            _buffer.putLong(index);
+            _buffer.putInt(sensor.channel);
+            _buffer.put((byte)sensor.type.ordinal());
+            _buffer.putDouble(sensor.value);
+            _buffer.putDouble(sensor.latlng[0]);
+            _buffer.putDouble(sensor.latlng[1]);
+            endRecord();
+        }
+    }
+
+    @Override
+    public void receivedCrumb(double[] crumb, long index) {
+        synchronized (this) {
+            if (!beginRecord(RecordType.CRUMB, now(), 12 + 8 * crumb.length)) return;
+            _buffer.putLong(index);
+            _buffer.putInt(crumb.length);
+            for (double value : crumb) {
+                _buffer.putDouble(value);
+            }
+            endRecord();
+        }
+    }
+
+    @Override
+    public void waypointUpdate(WaypointState status) {
+        synchronized (this) {
+            if (!beginRecord(RecordType.WAYPOINT, now(), 1)) return;
+            _buffer.put((byte)status.ordinal());
+            endRecord();
+        }
+    }
+
+    @Override
+    public void imagingUpdate(CameraState status) {
+        synchronized (this) {
+            if (!beginRecord(RecordType.CAMERA, now(), 1)) return;
+            _buffer.put((byte)status.ordinal());
+            endRecord();
+        }
+    }
+
+    @Override
+    public void rcOverrideUpdate(boolean isRCOverrideOn) {
+        synchronized (this) {
+            if (!beginRecord(RecordType.RC_OVERRIDE, now(), 1)) return;
+            _buffer.put((byte)(isRCOverrideOn ? 1 : 0));
+            endRecord();
+        }
+    }
+
+    @Override
+    public void keyValueUpdate(String key, float value) {
+        byte[] keyBytes;
+        try {
+            keyBytes = key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+
+        synchronized (this) {
+            if (!beginRecord(RecordType.KEYVALUE, now(), 4 + keyBytes.length + 4)) return;
+            _buffer.putInt(keyBytes.length);
+            _buffer.put(keyBytes);
+            _buffer.putFloat(value);
+            endRecord();
+        }
+    }
+
+    @Override
+    public void receivedImage(byte[] image) {
+        if (!_isRecordingImages) return;
+
+        synchronized (this) {
+            if (!beginRecord(RecordType.IMAGE, now(), image.length)) return;
+            _buffer.put(image);
+            endRecord();
+        }
+    }
+
+    /**
+     * Writes the records of the current segment out to the storage device.
+     */
+    public synchronized void sync() {
+        if (_buffer != null) _buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (_buffer != null) _buffer.force();
+        closeSegment();
+        _buffer = null;
+    }
+}
@@ -0,0 +1,184 @@
+package com.platypus.crw;
+
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Pool of reusable JPEG encoders, so that streaming camera frames does not
+ * look up a writer, allocate a stream and grow an output buffer per frame.
+ *
+ * Each encoder keeps its ImageWriter, its write parameters, the metadata for
+ * the last type of image it encoded, and an output buffer that only grows.
+ * Encoders are taken from the pool for the duration of a single encode, so
+ * the pool only ever holds as many encoders as there are threads encoding
+ * at the same time.  Each frame costs a single copy of the compressed bytes
+ * out of the buffer of the encoder.
+ */
+public class JpegEncoderPool {
+    private static final Logger logger = Logger.getLogger(JpegEncoderPool.class.getName());
+
+    static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Chroma subsampling of encoded frames.  Stronger subsampling produces
+     * smaller frames, at the cost of color detail.
+     */
+    public enum Subsampling {
+        /** Full resolution color. */
+        YUV444(1, 1),
+        /** Half horizontal color resolution. */
+        YUV422(2, 1),
+        /** Half horizontal and vertical color resolution. */
+        YUV420(2, 2);
+
+        final int horizontal;
+        final int vertical;
+
+        Subsampling(int h, int v) {
+            horizontal = h;
+            vertical = v;
+        }
+    }
+
+    private static final JpegEncoderPool DEFAULT = new JpegEncoderPool(Subsampling.YUV420);
+
+    /**
+     * Returns a shared pool that encodes with 4:2:0 subsampling, which is
+     * what most cameras produce.
+     */
+    public static JpegEncoderPool getDefault() {
+        return DEFAULT;
+    }
+
+    private final Subsampling _subsampling;
+    private final Queue<Encoder> _encoders = new ConcurrentLinkedQueue<Encoder>();
+
+    public JpegEncoderPool(Subsampling subsampling) {
+        _subsampling = subsampling;
+    }
+
+    public Subsampling getSubsampling() {
+        return _subsampling;
+    }
+
+    /**
+     * Compresses an image to a JPEG.
+     *
+     * @param image the image to compress
+     * @param quality the JPEG quality, between 0 and 1
+     * @return the compressed image, or null if it could not be compressed
+     */
+    public byte[] encode(RenderedImage image, float quality) {
+        Encoder encoder = _encoders.poll();
+        if (encoder == null) {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+            if (!writers.hasNext())
+                return null;
+            encoder = new Encoder(writers.next());
+        }
+
+        try {
+            byte[] result = encoder.encode(image, quality);
+            _encoders.add(encoder);
+            return result;
+        } catch (IOException e) {
+            // The writer may be in an unknown state, so do not reuse it
+            logger.log(Level.WARNING, "Failed to encode image", e);
+            encoder.dispose();
+            return null;
+        }
+    }
+
+    private class Encoder {
+        final ImageWriter _writer;
+        final ImageWriteParam _param;
+        final ByteArrayOutputStream _buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+
+        ImageTypeSpecifier _type = null;
+        IIOMetadata _metadata = null;
+
+        Encoder(ImageWriter writer) {
+            _writer = writer;
+            _param = writer.getDefaultWriteParam();
+            _param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        }
+
+        byte[] encode(RenderedImage image, float quality) throws IOException {
+            _param.setCompressionQuality(Math.max(0.0f, Math.min(1.0f, quality)));
+
+            // Metadata depends on the layout of the image, which rarely changes
+            ImageTypeSpecifier type = ImageTypeSpecifier.createFromRenderedImage(image);
+            if (!type.equals(_type)) {
+                _metadata = createMetadata(type);
+                _type = type;
+            }
+
+            _buffer.reset();
+            ImageOutputStream output = new MemoryCacheImageOutputStream(_buffer);
+            try {
+                _writer.setOutput(output);
+                _writer.write(null, new IIOImage(image, null, _metadata), _param);
+            } finally {
+                _writer.setOutput(null);
+                output.close();
+            }
+            return _buffer.toByteArray();
+        }
+
+        /**
+         * Creates the default metadata for a type of image, with the sampling
+         * factors of the luma component set to the chroma subsampling.
+         */
+        IIOMetadata createMetadata(ImageTypeSpecifier type) {
+            IIOMetadata metadata = _writer.getDefaultImageMetadata(type, _param);
+            if (metadata == null) return null;
+
+            try {
+                Node tree = metadata.getAsTree(JPEG_METADATA_FORMAT);
+                NodeList components = ((Element)tree).getElementsByTagName("componentSpec");
+
+                // Grayscale images have no chroma to subsample
+                if (components.getLength() < 3)
+                    return metadata;
+
+                Element luma = (Element)components.item(0);
+                luma.setAttribute("HsamplingFactor", Integer.toString(_subsampling.horizontal));
+                luma.setAttribute("VsamplingFactor", Integer.toString(_subsampling.vertical));
+                for (int i = 1; i < components.getLength(); ++i) {
+                    Element chroma = (Element)components.item(i);
+                    chroma.setAttribute("HsamplingFactor", "1");
+                    chroma.setAttribute("VsamplingFactor", "1");
+                }
+                metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+            } catch (IIOInvalidTreeException e) {
+                logger.log(Level.WARNING, "Unable to set JPEG subsampling", e);
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.WARNING, "Unable to set JPEG subsampling", e);
+            }
+            return metadata;
+        }
+
+        void dispose() {
+            _writer.dispose();
+        }
+    }
+}
@@ -11,6 +11,8 @@ import java.util.Arrays;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,10 +48,17 @@ public class SimpleBoatSimulator extends AbstractVehicleServer {
     protected final Object _captureLock = new Object();
     protected TimerTask _captureTask = null;
     
+    // Frame and noise buffers reused across captures of the same size
+    protected final Object _renderLock = new Object();
+    protected final Random _random = new Random();
+    protected BufferedImage _frame = null;
+    protected int[] _noise = null;
+    
     protected final Object _navigationLock = new Object();
     protected TimerTask _navigationTask = null;
     
     protected final AtomicBoolean _isAutonomous = new AtomicBoolean(true);
+    protected final ConcurrentMap<String, Float> _keyValues = new ConcurrentHashMap<String, Float>();
     protected final Timer _timer = new Timer();
     
     protected final TimerTask _updateTask = new TimerTask() {
@@ -104,25 +113,46 @@ public class SimpleBoatSimulator extends AbstractVehicleServer {
 
     @Override
     public byte[] captureImage(int width, int height) {
+        return captureFrame(width, height, DEFAULT_IMAGE_QUALITY);
+    }
+
+    /**
+     * Renders and compresses a simulated camera frame.  The frame buffer is
+     * only valid until the next render, so it is held while compressing.
+     */
+    protected byte[] captureFrame(int width, int height, float quality) {
+        synchronized (_renderLock) {
+            return toCompressedImage(renderImage(width, height), quality);
+        }
+    }
 
-        // Create an image of the correct size
-        BufferedImage image = new BufferedImage(width, height,
-                BufferedImage.TYPE_3BYTE_BGR);
-        Graphics2D graphics = (Graphics2D) image.getGraphics();
-        graphics.setPaint(new Color((float) Math.random(), (float) Math.random(), (float) Math.random()));
-        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+    /**
+     * Generates a simulated camera frame.  The returned image is reused by
+     * the next call of the same size, so callers must hold _renderLock until
+     * they are done with it.
+     */
+    protected BufferedImage renderImage(int width, int height) {
+
+        // Create an image of the correct size, if the last one was not
+        if (_frame == null || _frame.getWidth() != width || _frame.getHeight() != height) {
+            _frame = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            _noise = new int[width * height * 3];
+        }
+        
+        Graphics2D graphics = (Graphics2D) _frame.getGraphics();
+        graphics.setPaint(new Color(_random.nextFloat(), _random.nextFloat(), _random.nextFloat()));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
 
         // Fill it with random noise!
-        Random rand = new Random();
-        int[] data = new int[width * height * 3];
-        for (int i = 0; i < data.length; ++i) {
-            data[i] = rand.nextInt();
+        for (int i = 0; i < _noise.length; ++i) {
+            _noise[i] = _random.nextInt();
         }
         
         // Copy raw data to the image's raster
-        image.getRaster().setPixels(0, 0, width, height, data);
+        _frame.getRaster().setPixels(0, 0, width, height, _noise);
         
-        return toCompressedImage(image);
+        return _frame;
     }
 
     /*
@@ -238,12 +268,23 @@ public class SimpleBoatSimulator extends AbstractVehicleServer {
         // Create a camera capture task
         TimerTask newCaptureTask = new TimerTask() {
             int iFrame = 0;
+            long lastFrameTime = 0;
 
             @Override
             public void run() {
                 synchronized (_captureLock) {
-                    // Take a new image and send it out
-                    sendImage(captureImage(width, height));
+                    // Skip frames while the link cannot keep up with this rate
+                    long now = System.nanoTime();
+                    if (iFrame > 0 && (now - lastFrameTime) / 1.0e9 < _imageMinInterval)
+                        return;
+                    lastFrameTime = now;
+                    
+                    // Take a new image, at reduced size and quality if the
+                    // link is degraded, and send it out
+                    double scale = _imageScale;
+                    int w = Math.max(1, (int)(width * scale));
+                    int h = Math.max(1, (int)(height * scale));
+                    sendImage(captureFrame(w, h, _imageQuality));
                     iFrame++;
 
                     // If we exceed numFrames, we finished
@@ -353,13 +394,16 @@ public class SimpleBoatSimulator extends AbstractVehicleServer {
     @Override
     public void setKeyValue(String key, float value)
     {
-        
+        _keyValues.put(key, value);
+        sendKeyValue(key, value);
     }
     
     @Override
     public void getKeyValue(String key)
     {
-        
+        Float value = _keyValues.get(key);
+        if (value != null)
+            sendKeyValue(key, value);
     }
     
     @Override
@@ -386,5 +430,6 @@ public class SimpleBoatSimulator extends AbstractVehicleServer {
     public void shutdown() {
         _timer.cancel();
         _timer.purge();
+        disableEventBus();
     }
 }
@@ -0,0 +1,115 @@
+package com.platypus.crw.data;
+
+import com.platypus.crw.VehicleServer.DataType;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Implements an immutable filter that selects sensor readings by channel and
+ * by data type.  An empty set of channels or types matches any channel or
+ * type respectively, so the default filter accepts every reading.
+ */
+public class SensorFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A filter that accepts every sensor reading.
+     */
+    public static final SensorFilter ALL = new SensorFilter(new int[0]);
+
+    final int[] channels;
+    final EnumSet<DataType> types;
+
+    /**
+     * Creates a filter that accepts readings that are on one of the specified
+     * channels and of one of the specified types.
+     *
+     * @param channels the accepted channels, or an empty array for any channel
+     * @param types the accepted types, or none for any type
+     */
+    public SensorFilter(int[] channels, DataType... types) {
+        this.channels = channels.clone();
+        Arrays.sort(this.channels);
+
+        this.types = EnumSet.noneOf(DataType.class);
+        this.types.addAll(Arrays.asList(types));
+    }
+
+    public static SensorFilter forChannels(int... channels) {
+        return new SensorFilter(channels);
+    }
+
+    public static SensorFilter forTypes(DataType... types) {
+        return new SensorFilter(new int[0], types);
+    }
+
+    public int[] getChannels() {
+        return channels.clone();
+    }
+
+    public Set<DataType> getTypes() {
+        return Collections.unmodifiableSet(types);
+    }
+
+    public boolean isAll() {
+        return channels.length == 0 && types.isEmpty();
+    }
+
+    public boolean accepts(SensorData sensor) {
+        if (channels.length > 0 && Arrays.binarySearch(channels, sensor.channel) < 0)
+            return false;
+        if (!types.isEmpty() && !types.contains(sensor.type))
+            return false;
+        return true;
+    }
+
+    /**
+     * Combines this filter with another.  The resulting filter accepts every
+     * reading that either filter accepts, but may also accept readings that
+     * neither does, since channels and types are combined independently.
+     *
+     * @param other the filter to combine with this one
+     * @return a filter that accepts at least the readings of both filters
+     */
+    public SensorFilter union(SensorFilter other) {
+        int[] unionChannels = new int[0];
+        if (channels.length > 0 && other.channels.length > 0) {
+            unionChannels = Arrays.copyOf(channels, channels.length + other.channels.length);
+            System.arraycopy(other.channels, 0, unionChannels, channels.length, other.channels.length);
+        }
+
+        DataType[] unionTypes = new DataType[0];
+        if (!types.isEmpty() && !other.types.isEmpty()) {
+            EnumSet<DataType> set = EnumSet.copyOf(types);
+            set.addAll(other.types);
+            unionTypes = set.toArray(unionTypes);
+        }
+
+        return new SensorFilter(unionChannels, unionTypes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 97 * Arrays.hashCode(channels) + types.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final SensorFilter other = (SensorFilter) obj;
+        return Arrays.equals(channels, other.channels) && types.equals(other.types);
+    }
+
+    @Override
+    public String toString() {
+        return "SensorFilter" + Arrays.toString(channels) + types;
+    }
+}
@@ -0,0 +1,75 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.AbstractVehicleServer;
+
+/**
+ * Chooses the quality, resolution and frame interval of a camera stream from
+ * the health of the links over which it is sent, so that video backs off
+ * before it starves the other streams of a degraded link.
+ *
+ * The controller keeps a single level between MIN_LEVEL and 1, which is
+ * halved whenever the worst link is lossy or slow, and raised by a fixed step
+ * whenever every link is healthy.  At full level, frames are sent at the
+ * default quality and the rate requested by startCamera(), and as the level
+ * drops, the quality, resolution and frame rate are reduced together.
+ */
+class ImageRateController {
+
+    static final double MIN_LEVEL = 1.0 / 16;
+    static final double INCREASE_STEP = 0.1;
+    static final double DECREASE_FACTOR = 0.5;
+
+    static final float MIN_QUALITY = 0.2f;
+    static final double MIN_SCALE = 0.25;
+
+    private double _level = 1.0;
+
+    /**
+     * Updates the level from the health of the worst link.
+     *
+     * @param loss the highest loss rate of the links, between 0 and 1
+     * @param rtt the highest round-trip time of the links in nanoseconds, or
+     * a negative value if it is not known
+     * @return true if the level changed
+     */
+    public synchronized boolean update(double loss, long rtt) {
+        double level;
+        if (loss > UdpConstants.IMAGE_LOSS_THRESHOLD || rtt > UdpConstants.IMAGE_RTT_THRESHOLD_NS) {
+            level = Math.max(MIN_LEVEL, _level * DECREASE_FACTOR);
+        } else {
+            level = Math.min(1.0, _level + INCREASE_STEP);
+        }
+
+        boolean isChanged = (level != _level);
+        _level = level;
+        return isChanged;
+    }
+
+    public synchronized double getLevel() {
+        return _level;
+    }
+
+    /**
+     * Returns the JPEG quality at the current level.
+     */
+    public synchronized float getQuality() {
+        return (float)(MIN_QUALITY + (AbstractVehicleServer.DEFAULT_IMAGE_QUALITY - MIN_QUALITY) * _level);
+    }
+
+    /**
+     * Returns the fraction of the requested resolution at the current level.
+     * Since the size of a frame is roughly proportional to its area, the
+     * width and height are scaled by the square root of the level.
+     */
+    public synchronized double getScale() {
+        return Math.max(MIN_SCALE, Math.sqrt(_level));
+    }
+
+    /**
+     * Returns the minimum interval between frames at the current level, in
+     * seconds.
+     */
+    public synchronized double getMinInterval() {
+        return (_level >= 1.0) ? 0.0 : UdpConstants.IMAGE_MAX_INTERVAL_MS / 1000.0 * (1.0 - _level);
+    }
+}
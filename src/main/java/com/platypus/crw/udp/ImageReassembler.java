@@ -0,0 +1,357 @@
+package com.platypus.crw.udp;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reassembles images that are streamed as a sequence of fragments.
+ *
+ * Several images can be in flight at once, so fragments that arrive out of
+ * order or interleaved with fragments of a newer image do not discard a
+ * partially received frame.  Each image is written directly into a single
+ * buffer at the offset of each fragment, and images that are not completed
+ * within a timeout are dropped to free their slot.
+ *
+ * Fragments are assumed to be MAX_PAYLOAD_SIZE bytes long, except for the last
+ * fragment of each image, which may be shorter.  Senders transmit the last
+ * fragment first, so the length of the image is usually known as soon as it
+ * starts, and it is received into a buffer of exactly that length, which is
+ * handed out when it completes.  Images that start with any other fragment
+ * are received into a full-size buffer from a small pool until their last
+ * fragment arrives, and are then moved into an exact buffer.  Parity buffers
+ * are pooled as well.
+ *
+ * If the sender also transmits XOR parity fragments, each covering a group of
+ * IMAGE_FEC_GROUP_SIZE consecutive fragments, a single lost fragment in each
+ * group is rebuilt from the parity and the rest of its group.
+ */
+public class ImageReassembler {
+
+    // Largest number of fragments in an image, which also keeps the size of
+    // its buffer from overflowing
+    static final int MAX_FRAGMENTS = UdpConstants.IMAGE_MAX_SIZE / UdpConstants.MAX_PAYLOAD_SIZE;
+
+    /**
+     * Reassembly state of a single in-flight image.
+     */
+    private static class Slot {
+        int imageSeq;
+        int totalIdx;
+        byte[] buffer;
+        byte[] parity;
+        boolean[] received;
+        boolean[] hasParity;
+        int[] parityLengths;
+        int numReceived;
+        int length;
+        long startTime;
+
+        boolean isActive() {
+            return buffer != null;
+        }
+    }
+
+    private final Slot[] _slots;
+    private final long _timeoutNs;
+    private final List<byte[]> _bufferPool = new ArrayList<byte[]>();
+
+    // Recently completed or abandoned images, to ignore late retransmissions
+    private final int[] _finishedSeqs;
+    private int _finishedIdx = 0;
+
+    public ImageReassembler() {
+        this(UdpConstants.IMAGE_REASSEMBLY_SLOTS, UdpConstants.IMAGE_REASSEMBLY_TIMEOUT_NS);
+    }
+
+    /**
+     * Creates a reassembler that tracks up to the specified number of images.
+     *
+     * @param numSlots the number of images that can be reassembled at once
+     * @param timeoutNs the time after which an incomplete image is dropped
+     */
+    public ImageReassembler(int numSlots, long timeoutNs) {
+        _slots = new Slot[numSlots];
+        for (int i = 0; i < numSlots; ++i) {
+            _slots[i] = new Slot();
+        }
+        _timeoutNs = timeoutNs;
+
+        _finishedSeqs = new int[2 * numSlots];
+        Arrays.fill(_finishedSeqs, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Adds a fragment to the image that it belongs to, reading its payload
+     * directly from the provided input.
+     *
+     * @param imageSeq the sequence number of the image
+     * @param totalIdx the total number of fragments in the image
+     * @param pieceIdx the index of this fragment within the image
+     * @param pieceLen the length of the fragment payload
+     * @param in an input positioned at the start of the fragment payload
+     * @return the complete image if this fragment completed it, otherwise null
+     * @throws IOException if the payload could not be read
+     */
+    public synchronized byte[] receive(int imageSeq, int totalIdx, int pieceIdx,
+            int pieceLen, DataInput in) throws IOException {
+
+        // Ignore malformed fragments
+        if (totalIdx <= 0 || totalIdx > MAX_FRAGMENTS || pieceIdx < 0 || pieceIdx >= totalIdx
+                || pieceLen < 0 || pieceLen > UdpConstants.MAX_PAYLOAD_SIZE)
+            return null;
+
+        boolean isLast = (pieceIdx == totalIdx - 1);
+        Slot slot = findSlot(imageSeq, totalIdx,
+                isLast ? pieceIdx * UdpConstants.MAX_PAYLOAD_SIZE + pieceLen : -1);
+        if (slot == null || slot.received[pieceIdx])
+            return null;
+
+        // Copy the piece directly into its place in the image buffer
+        if (isLast)
+            setLength(slot, pieceIdx * UdpConstants.MAX_PAYLOAD_SIZE + pieceLen);
+        in.readFully(slot.buffer, pieceIdx * UdpConstants.MAX_PAYLOAD_SIZE, pieceLen);
+        markReceived(slot, pieceIdx, pieceLen);
+
+        // See if this piece makes it possible to recover a lost one
+        recover(slot, pieceIdx / UdpConstants.IMAGE_FEC_GROUP_SIZE);
+
+        return (slot.numReceived == slot.totalIdx) ? complete(slot) : null;
+    }
+
+    /**
+     * Adds a parity fragment to the image that it belongs to, reading its
+     * payload directly from the provided input.  The parity is the XOR of the
+     * zero-padded payloads of a group of fragments, and is accompanied by the
+     * XOR of their lengths.
+     *
+     * @param imageSeq the sequence number of the image
+     * @param totalIdx the total number of data fragments in the image
+     * @param groupIdx the index of the group of fragments that is covered
+     * @param lengthXor the XOR of the lengths of the covered fragments
+     * @param parityLen the length of the parity payload
+     * @param in an input positioned at the start of the parity payload
+     * @return the complete image if this parity completed it, otherwise null
+     * @throws IOException if the payload could not be read
+     */
+    public synchronized byte[] receiveParity(int imageSeq, int totalIdx, int groupIdx,
+            int lengthXor, int parityLen, DataInput in) throws IOException {
+
+        // Ignore malformed parity fragments
+        int numGroups = (totalIdx - 1) / UdpConstants.IMAGE_FEC_GROUP_SIZE + 1;
+        if (totalIdx <= 0 || totalIdx > MAX_FRAGMENTS || groupIdx < 0 || groupIdx >= numGroups
+                || parityLen < 0 || parityLen > UdpConstants.MAX_PAYLOAD_SIZE)
+            return null;
+
+        Slot slot = findSlot(imageSeq, totalIdx, -1);
+        if (slot == null)
+            return null;
+
+        // Lazily allocate parity storage for images that use it
+        if (slot.parity == null) {
+            slot.parity = acquireBuffer(numGroups * UdpConstants.MAX_PAYLOAD_SIZE);
+            slot.hasParity = new boolean[numGroups];
+            slot.parityLengths = new int[numGroups];
+        } else if (slot.hasParity[groupIdx]) {
+            return null;
+        }
+
+        // Store the zero-padded parity for this group
+        int offset = groupIdx * UdpConstants.MAX_PAYLOAD_SIZE;
+        in.readFully(slot.parity, offset, parityLen);
+        Arrays.fill(slot.parity, offset + parityLen, offset + UdpConstants.MAX_PAYLOAD_SIZE, (byte)0);
+        slot.hasParity[groupIdx] = true;
+        slot.parityLengths[groupIdx] = lengthXor;
+
+        recover(slot, groupIdx);
+        return (slot.numReceived == slot.totalIdx) ? complete(slot) : null;
+    }
+
+    /**
+     * Records the arrival of a piece of an image.
+     */
+    private void markReceived(Slot slot, int pieceIdx, int pieceLen) {
+        slot.received[pieceIdx] = true;
+        slot.numReceived++;
+    }
+
+    /**
+     * Sets the length of an image once its final piece arrives, and moves
+     * the pieces received so far into a buffer of exactly that length if
+     * they are not already in one.  The pooled buffer that held them is
+     * returned to the pool.
+     */
+    private void setLength(Slot slot, int length) {
+        slot.length = length;
+        if (slot.buffer.length == length)
+            return;
+
+        byte[] buffer = new byte[length];
+        for (int i = 0; i < slot.totalIdx - 1; ++i) {
+            if (slot.received[i]) {
+                int offset = i * UdpConstants.MAX_PAYLOAD_SIZE;
+                System.arraycopy(slot.buffer, offset, buffer, offset, UdpConstants.MAX_PAYLOAD_SIZE);
+            }
+        }
+        releaseBuffer(slot.buffer);
+        slot.buffer = buffer;
+    }
+
+    /**
+     * Rebuilds the missing piece of a group if exactly one piece is missing 
+     * and the parity of the group has been received.
+     */
+    private void recover(Slot slot, int groupIdx) {
+        if (slot.parity == null || !slot.hasParity[groupIdx])
+            return;
+
+        final int maxLen = UdpConstants.MAX_PAYLOAD_SIZE;
+        int first = groupIdx * UdpConstants.IMAGE_FEC_GROUP_SIZE;
+        int last = Math.min(first + UdpConstants.IMAGE_FEC_GROUP_SIZE, slot.totalIdx);
+
+        // Find the missing piece, and the lengths of the ones we have
+        int missing = -1;
+        int missingLen = slot.parityLengths[groupIdx];
+        for (int i = first; i < last; ++i) {
+            if (!slot.received[i]) {
+                if (missing >= 0) return;
+                missing = i;
+            } else {
+                missingLen ^= pieceLength(slot, i);
+            }
+        }
+        if (missing < 0 || missingLen < 0 || missingLen > maxLen)
+            return;
+
+        // XOR the parity with the other pieces to rebuild the missing one
+        if (missing == slot.totalIdx - 1)
+            setLength(slot, missing * maxLen + missingLen);
+        int dst = missing * maxLen;
+        System.arraycopy(slot.parity, groupIdx * maxLen, slot.buffer, dst, missingLen);
+        for (int i = first; i < last; ++i) {
+            if (i == missing) continue;
+            int src = i * maxLen;
+            int len = Math.min(missingLen, pieceLength(slot, i));
+            for (int j = 0; j < len; ++j) {
+                slot.buffer[dst + j] ^= slot.buffer[src + j];
+            }
+        }
+        markReceived(slot, missing, missingLen);
+    }
+
+    /**
+     * Returns the length of a piece that has already been received.
+     */
+    private static int pieceLength(Slot slot, int pieceIdx) {
+        return (pieceIdx == slot.totalIdx - 1)
+                ? slot.length - pieceIdx * UdpConstants.MAX_PAYLOAD_SIZE
+                : UdpConstants.MAX_PAYLOAD_SIZE;
+    }
+
+    /**
+     * Finds the slot that is reassembling the specified image, allocating one
+     * if this is the first fragment of a new image.  New images whose length
+     * is known get an exact buffer, and others get a full-size pooled buffer.
+     *
+     * @param length the length of the image if this is its final fragment,
+     * otherwise -1
+     */
+    private Slot findSlot(int imageSeq, int totalIdx, int length) {
+        long now = System.nanoTime();
+        Slot match = null;
+        Slot free = null;
+        Slot oldest = null;
+
+        for (Slot slot : _slots) {
+            // Drop images that have not completed in time
+            if (slot.isActive() && now - slot.startTime > _timeoutNs)
+                release(slot);
+
+            if (!slot.isActive()) {
+                if (free == null) free = slot;
+            } else if (slot.imageSeq == imageSeq) {
+                match = slot;
+            } else if (oldest == null || slot.startTime < oldest.startTime) {
+                oldest = slot;
+            }
+        }
+
+        if (match != null) {
+            // Ignore fragments that disagree with the rest of the image
+            return (match.totalIdx == totalIdx) ? match : null;
+        }
+
+        // Ignore late fragments of images that were already finished
+        for (int seq : _finishedSeqs) {
+            if (seq == imageSeq) return null;
+        }
+
+        // Evict the oldest incomplete image if there are no free slots
+        if (free == null) {
+            release(oldest);
+            free = oldest;
+        }
+
+        free.imageSeq = imageSeq;
+        free.totalIdx = totalIdx;
+        free.buffer = (length >= 0) ? new byte[length] 
+                : acquireBuffer(totalIdx * UdpConstants.MAX_PAYLOAD_SIZE);
+        free.received = new boolean[totalIdx];
+        free.parity = null;
+        free.numReceived = 0;
+        free.length = -1;
+        free.startTime = now;
+        return free;
+    }
+
+    /**
+     * Hands out the finished image and frees its slot.  The buffer is 
+     * exactly the image by now, so it is given away.
+     */
+    private byte[] complete(Slot slot) {
+        byte[] image = slot.buffer;
+        slot.buffer = null;
+        release(slot);
+        return image;
+    }
+
+    /**
+     * Clears a slot, returning its buffer to the pool.
+     */
+    private void release(Slot slot) {
+        _finishedSeqs[_finishedIdx] = slot.imageSeq;
+        _finishedIdx = (_finishedIdx + 1) % _finishedSeqs.length;
+
+        releaseBuffer(slot.buffer);
+        releaseBuffer(slot.parity);
+        slot.buffer = null;
+        slot.parity = null;
+        slot.received = null;
+        slot.hasParity = null;
+        slot.parityLengths = null;
+    }
+
+    /**
+     * Returns a buffer to the pool, unless the pool is already full.
+     */
+    private void releaseBuffer(byte[] buffer) {
+        if (buffer != null && _bufferPool.size() < 2 * _slots.length)
+            _bufferPool.add(buffer);
+    }
+
+    /**
+     * Retrieves the smallest pooled buffer of at least the specified size, or
+     * allocates a new one if none are available.
+     */
+    private byte[] acquireBuffer(int size) {
+        int best = -1;
+        for (int i = 0; i < _bufferPool.size(); ++i) {
+            int len = _bufferPool.get(i).length;
+            if (len >= size && (best < 0 || len < _bufferPool.get(best).length))
+                best = i;
+        }
+        return (best >= 0) ? _bufferPool.remove(best) : new byte[size];
+    }
+}
@@ -0,0 +1,141 @@
+package com.platypus.crw.udp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Holds the latest value of each key-value pair of a vehicle, so that clients
+ * can set, get and synchronize many keys in a single CMD_*_KEYVALUES packet.
+ *
+ * Each key is tagged with the version at which it last changed, where the
+ * version increases with every change, so that a reconnecting client only
+ * needs the keys that changed since the last version it synchronized.
+ * Versions are only comparable within the same epoch, which changes whenever
+ * the vehicle service is restarted.
+ *
+ * A synchronization is encoded as a long epoch, the long version up to which
+ * the client is now synchronized, a boolean indicating whether more changes
+ * remain, and the changed key-value pairs.
+ */
+class KeyValueStore {
+
+    /**
+     * Pairing of a value and the version at which it last changed.
+     */
+    private static class Entry {
+        final String key;
+        final float value;
+        final long version;
+
+        Entry(String k, float v, long ver) {
+            key = k;
+            value = v;
+            version = ver;
+        }
+    }
+
+    private static final Comparator<Entry> VERSION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return (a.version < b.version) ? -1 : ((a.version == b.version) ? 0 : 1);
+        }
+    };
+
+    private final long _epoch = new Random().nextLong();
+    private long _version = 0;
+    private final Map<String, Entry> _entries = new HashMap<String, Entry>();
+
+    public long getEpoch() {
+        return _epoch;
+    }
+
+    public synchronized long getVersion() {
+        return _version;
+    }
+
+    /**
+     * Records the latest value of a key.  The version only changes if the
+     * value differs from the one that is already stored.
+     *
+     * @param key the name of the key
+     * @param value the latest value of the key
+     */
+    public synchronized void put(String key, float value) {
+        Entry entry = _entries.get(key);
+        if (entry != null && Float.compare(entry.value, value) == 0)
+            return;
+
+        _entries.put(key, new Entry(key, value, ++_version));
+    }
+
+    /**
+     * Returns the latest value of a key.
+     *
+     * @param key the name of the key
+     * @return the latest value, or null if the key was never seen
+     */
+    public synchronized Float get(String key) {
+        Entry entry = _entries.get(key);
+        return (entry == null) ? null : entry.value;
+    }
+
+    /**
+     * Encodes the keys that changed since a previous synchronization, oldest
+     * change first.  If the changes do not fit in the specified number of
+     * bytes, the rest are left for a subsequent synchronization starting at
+     * the version that is written.
+     *
+     * @param out the stream to which the changes are written
+     * @param epoch the epoch of the previous synchronization
+     * @param version the version of the previous synchronization, or zero to
+     * send every key
+     * @param maxBytes the approximate maximum number of bytes of key-value
+     * pairs to write
+     * @throws IOException if the changes could not be written
+     */
+    public synchronized void writeChanges(DataOutputStream out, long epoch, long version, int maxBytes)
+            throws IOException {
+        // Versions from another epoch say nothing about what has changed
+        if (epoch != _epoch) version = 0;
+
+        List<Entry> changes = new ArrayList<Entry>();
+        for (Entry entry : _entries.values()) {
+            if (entry.version > version)
+                changes.add(entry);
+        }
+        Collections.sort(changes, VERSION_ORDER);
+
+        Map<String, Float> values = new LinkedHashMap<String, Float>();
+        long syncedVersion = _version;
+        int size = 0;
+        for (Entry entry : changes) {
+            size += sizeOf(entry.key);
+            if (size > maxBytes && !values.isEmpty()) {
+                syncedVersion = entry.version - 1;
+                break;
+            }
+            values.put(entry.key, entry.value);
+        }
+
+        out.writeLong(_epoch);
+        out.writeLong(syncedVersion);
+        out.writeBoolean(syncedVersion < _version);
+        UdpConstants.writeKeyValues(out, values);
+    }
+
+    /**
+     * Returns the number of bytes used to encode a key-value pair, assuming
+     * the worst case of three bytes per character of the key.
+     */
+    static int sizeOf(String key) {
+        return 2 + 3 * key.length() + 4;
+    }
+}
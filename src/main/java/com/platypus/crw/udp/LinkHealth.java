@@ -0,0 +1,73 @@
+package com.platypus.crw.udp;
+
+/**
+ * Running estimate of the round-trip time and loss rate of the link to a
+ * single destination, learned from the acknowledgements and retransmissions
+ * of reliable responses.
+ *
+ * Round-trip times are only sampled from responses that were acknowledged
+ * without being retransmitted, since an acknowledgement of a retransmitted
+ * response could belong to any of its transmissions.  The loss rate is the
+ * exponentially weighted fraction of transmissions that had to be repeated
+ * or that were never acknowledged.
+ */
+public class LinkHealth {
+
+    // Weight of each new sample in the running averages
+    static final double SAMPLE_WEIGHT = 0.1;
+
+    private long _rtt = -1;
+    private double _loss = 0.0;
+    private long _lastUpdateTime = System.nanoTime();
+
+    /**
+     * Records the acknowledgement of a response.
+     *
+     * @param rtt the time since the response was first sent, in nanoseconds
+     * @param isRetransmitted true if the response was sent more than once
+     */
+    synchronized void acknowledged(long rtt, boolean isRetransmitted) {
+        if (!isRetransmitted) {
+            _rtt = (_rtt < 0) ? rtt : (long)((1.0 - SAMPLE_WEIGHT) * _rtt + SAMPLE_WEIGHT * rtt);
+        }
+        _loss *= (1.0 - SAMPLE_WEIGHT);
+        _lastUpdateTime = System.nanoTime();
+    }
+
+    /**
+     * Records a transmission of a response that was not acknowledged in time,
+     * either because it is being retransmitted or because it timed out.
+     */
+    synchronized void lost() {
+        _loss = (1.0 - SAMPLE_WEIGHT) * _loss + SAMPLE_WEIGHT;
+        _lastUpdateTime = System.nanoTime();
+    }
+
+    /**
+     * Returns the smoothed round-trip time to the destination.
+     *
+     * @return the round-trip time in nanoseconds, or -1 if it is not known
+     */
+    public synchronized long getRoundTripTime() {
+        return _rtt;
+    }
+
+    /**
+     * Returns the estimated fraction of transmissions to the destination
+     * that are lost.
+     *
+     * @return the loss rate, between 0 and 1
+     */
+    public synchronized double getLossRate() {
+        return _loss;
+    }
+
+    /**
+     * Returns the time of the latest acknowledgement or loss.
+     *
+     * @return the time in nanoseconds, as returned by System.nanoTime()
+     */
+    public synchronized long getLastUpdateTime() {
+        return _lastUpdateTime;
+    }
+}
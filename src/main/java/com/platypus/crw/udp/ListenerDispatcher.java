@@ -0,0 +1,211 @@
+package com.platypus.crw.udp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers events to a set of listeners of the same type.
+ *
+ * Unless the policy is SYNCHRONOUS, each listener has its own queue of
+ * pending events that is drained on an executor, so a slow listener neither
+ * delays the thread that dispatches the events nor the other listeners.
+ * Events are always delivered to each listener in order, and events that a
+ * policy discards are counted per listener rather than logged.
+ *
+ * @param <L> the type of listener that receives events
+ */
+public class ListenerDispatcher<L> {
+    private static final Logger logger = Logger.getLogger(ListenerDispatcher.class.getName());
+
+    /**
+     * Policies for handling events that arrive faster than a listener can
+     * process them.
+     */
+    public enum Policy {
+        /** Deliver each event on the dispatching thread. */
+        SYNCHRONOUS,
+        /** Keep only the latest undelivered event for each listener. */
+        CONFLATE,
+        /** Keep every undelivered event, however many there are. */
+        QUEUE,
+        /** Keep undelivered events up to the capacity, then drop the oldest. */
+        DROP_OLDEST
+    }
+
+    /**
+     * An event that can be delivered to a listener.
+     *
+     * @param <L> the type of listener that receives the event
+     */
+    public interface Event<L> {
+        void deliver(L listener);
+    }
+
+    private final Executor _executor;
+    private final int _capacity;
+    private volatile Policy _policy;
+    private final CopyOnWriteArrayList<Mailbox> _mailboxes = new CopyOnWriteArrayList<Mailbox>();
+
+    public ListenerDispatcher(Executor executor, Policy policy) {
+        this(executor, policy, UdpConstants.LISTENER_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates a dispatcher that delivers events on the specified executor.
+     *
+     * @param executor the executor on which listeners are called
+     * @param policy the policy for events that are not yet delivered
+     * @param capacity the maximum number of undelivered events per listener
+     * under the DROP_OLDEST policy
+     */
+    public ListenerDispatcher(Executor executor, Policy policy, int capacity) {
+        _executor = executor;
+        _policy = policy;
+        _capacity = capacity;
+    }
+
+    public void setPolicy(Policy policy) {
+        _policy = policy;
+    }
+
+    public Policy getPolicy() {
+        return _policy;
+    }
+
+    public void add(L listener) {
+        _mailboxes.add(new Mailbox(listener));
+    }
+
+    public void remove(L listener) {
+        for (Mailbox mailbox : _mailboxes) {
+            if (mailbox.listener.equals(listener)) {
+                mailbox.isRemoved = true;
+                _mailboxes.remove(mailbox);
+                return;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return _mailboxes.isEmpty();
+    }
+
+    /**
+     * Returns the number of events that were discarded before they could be
+     * delivered to a listener, either because they were conflated or because
+     * its queue overflowed.
+     *
+     * @param listener the listener whose events were discarded
+     * @return the number of discarded events, or 0 if the listener is unknown
+     */
+    public long getDropped(L listener) {
+        for (Mailbox mailbox : _mailboxes) {
+            if (mailbox.listener.equals(listener))
+                return mailbox.dropped.get();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of events discarded for all current listeners.
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for (Mailbox mailbox : _mailboxes) {
+            dropped += mailbox.dropped.get();
+        }
+        return dropped;
+    }
+
+    /**
+     * Sends an event to every listener according to the current policy.
+     *
+     * @param event the event that should be delivered
+     */
+    public void dispatch(Event<L> event) {
+        for (Mailbox mailbox : _mailboxes) {
+            mailbox.post(event);
+        }
+    }
+
+    /**
+     * Queue of pending events for a single listener.  At most one task per
+     * mailbox runs on the executor at a time, which preserves ordering.
+     */
+    private class Mailbox implements Runnable {
+        final L listener;
+        final ArrayDeque<Event<L>> _pending = new ArrayDeque<Event<L>>();
+        final AtomicLong dropped = new AtomicLong();
+        boolean _isScheduled = false;
+        volatile boolean isRemoved = false;
+
+        Mailbox(L l) {
+            listener = l;
+        }
+
+        void post(Event<L> event) {
+            Policy policy = _policy;
+            if (policy == Policy.SYNCHRONOUS) {
+                deliver(event);
+                return;
+            }
+
+            synchronized (this) {
+                if (policy == Policy.CONFLATE) {
+                    dropped.addAndGet(_pending.size());
+                    _pending.clear();
+                } else if (policy == Policy.DROP_OLDEST) {
+                    // The queue may be over capacity if the policy changed
+                    while (_pending.size() >= _capacity) {
+                        _pending.poll();
+                        dropped.incrementAndGet();
+                    }
+                }
+                _pending.add(event);
+
+                if (_isScheduled) return;
+                _isScheduled = true;
+            }
+
+            try {
+                _executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The executor was shut down, so nothing more will be delivered
+                synchronized (this) {
+                    _isScheduled = false;
+                    dropped.addAndGet(_pending.size());
+                    _pending.clear();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Event<L> event;
+                synchronized (this) {
+                    event = isRemoved ? null : _pending.poll();
+                    if (event == null) {
+                        _pending.clear();
+                        _isScheduled = false;
+                        return;
+                    }
+                }
+                deliver(event);
+            }
+        }
+
+        void deliver(Event<L> event) {
+            try {
+                event.deliver(listener);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Listener " + listener + " failed to handle event", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.udp.UdpConstants.STREAM;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The records of the outbound log that are owed to a single client, and the
+ * state of their replay to that client.
+ *
+ * Each client acknowledges the log on its own, so that a record is only
+ * released once every client that wanted it has received it.  Records that
+ * a client did not want, because of its subscription, sensor filter or
+ * requested rate, are never added to its cursor.  Each record is sent along
+ * with the sequence number of the record before it on the cursor, so that
+ * the client can tell the records that were skipped from those that were
+ * lost.
+ *
+ * Cursors are not thread-safe, and are guarded by the lock of the table in
+ * which they are kept.
+ */
+class LogCursor {
+    final SocketAddress address;
+
+    private Subscriber _subscriber;
+    private long _expiresNs;
+    private long _ackedSeq;
+    private long _routedSeq;
+    private final ArrayDeque<Long> _pending = new ArrayDeque<Long>();
+
+    private long _replayCursor = 0;
+    private long _replayAckedSeq;
+    private long _replayAckTime = 0;
+
+    /**
+     * Creates a cursor for a client, starting after the records that were
+     * already released by the log.
+     *
+     * @param subscriber the subscription of the client
+     * @param ackedSeq the latest sequence number acknowledged by the log
+     * @param now the current time as reported by System.nanoTime()
+     */
+    LogCursor(Subscriber subscriber, long ackedSeq, long now) {
+        address = subscriber.address;
+        _ackedSeq = ackedSeq;
+        _routedSeq = ackedSeq;
+        _replayAckedSeq = ackedSeq;
+        renew(subscriber, now);
+    }
+
+    /**
+     * Updates the subscription of the client, and keeps the cursor for
+     * another LOG_CURSOR_TIMEOUT_NS.
+     *
+     * @param subscriber the latest subscription of the client
+     * @param now the current time as reported by System.nanoTime()
+     */
+    void renew(Subscriber subscriber, long now) {
+        _subscriber = subscriber;
+        _expiresNs = now + UdpConstants.LOG_CURSOR_TIMEOUT_NS;
+    }
+
+    /**
+     * Returns the latest subscription of the client, which may have lapsed.
+     */
+    Subscriber getSubscriber() {
+        return _subscriber;
+    }
+
+    /**
+     * Checks if the client is currently subscribed to either logged stream,
+     * and so can be sent records.
+     */
+    boolean isOnline(long now) {
+        return _subscriber.isSubscribed(STREAM.SENSOR, now)
+                || _subscriber.isSubscribed(STREAM.CRUMB, now);
+    }
+
+    boolean isExpired(long now) {
+        return now - _expiresNs >= 0;
+    }
+
+    long getAcknowledged() {
+        return _ackedSeq;
+    }
+
+    /**
+     * Adds a record that is owed to the client.  Records must be added in
+     * the order of their sequence numbers.
+     *
+     * @param seq the sequence number of the record
+     * @return the sequence number of the previous record owed to the client
+     */
+    long add(long seq) {
+        long prevSeq = _pending.isEmpty() ? _ackedSeq : _pending.peekLast();
+        _pending.addLast(seq);
+        _routedSeq = seq;
+        return prevSeq;
+    }
+
+    /**
+     * Passes over a record that the client does not want.
+     *
+     * @param seq the sequence number of the record
+     */
+    void skip(long seq) {
+        _routedSeq = seq;
+    }
+
+    /**
+     * Acknowledges every record owed to the client up to and including the
+     * specified sequence number.  Acknowledgements of records that were not
+     * yet routed to this cursor are limited to the last one that was.
+     *
+     * @param seq the highest sequence number that the client received
+     */
+    void acknowledge(long seq) {
+        seq = Math.min(seq, _routedSeq);
+        if (seq <= _ackedSeq) return;
+
+        _ackedSeq = seq;
+        while (!_pending.isEmpty() && _pending.peekFirst() <= seq) {
+            _pending.pollFirst();
+        }
+    }
+
+    /**
+     * Returns the sequence number up to which the log no longer needs to
+     * retain records for this client.
+     */
+    long getRetainedSeq() {
+        return _pending.isEmpty() ? _routedSeq : _pending.peekFirst() - 1;
+    }
+
+    /**
+     * Selects the records to resend to the client.  Replay starts from the
+     * first record owed to the client when its acknowledgements stall for
+     * LOG_REPLAY_TIMEOUT_NS, and continues one batch at a time as each batch
+     * is acknowledged, until the client has caught up.  The first record of
+     * the batch follows the latest acknowledged sequence number.
+     *
+     * @param firstSeq the first sequence number that is still in the log,
+     * before which records were dropped and can no longer be sent
+     * @param now the current time as reported by System.nanoTime()
+     * @return the sequence numbers of the records to resend, in order
+     */
+    List<Long> replay(long firstSeq, long now) {
+        while (!_pending.isEmpty() && _pending.peekFirst() < firstSeq) {
+            _pending.pollFirst();
+        }
+
+        if (_ackedSeq != _replayAckedSeq) {
+            _replayAckedSeq = _ackedSeq;
+            _replayAckTime = now;
+        }
+        if (_pending.isEmpty()) {
+            _replayCursor = 0;
+            _replayAckTime = now;
+            return new ArrayList<Long>(0);
+        }
+
+        // Continue a replay once its last batch was acknowledged, otherwise
+        // start over once acknowledgements have stalled
+        if (!(_replayCursor > 0 && _ackedSeq + 1 >= _replayCursor)
+                && _replayAckTime != 0 && now - _replayAckTime < UdpConstants.LOG_REPLAY_TIMEOUT_NS)
+            return new ArrayList<Long>(0);
+
+        List<Long> batch = new ArrayList<Long>(UdpConstants.LOG_REPLAY_BATCH_SIZE);
+        for (Long seq : _pending) {
+            if (batch.size() == UdpConstants.LOG_REPLAY_BATCH_SIZE) break;
+            batch.add(seq);
+        }
+        _replayCursor = (batch.size() < _pending.size()) ? batch.get(batch.size() - 1) + 1 : 0;
+        _replayAckTime = now;
+        return batch;
+    }
+}
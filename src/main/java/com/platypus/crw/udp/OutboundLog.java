@@ -0,0 +1,378 @@
+package com.platypus.crw.udp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only log of outbound records, stored in a memory-mapped file so
+ * that records which have not been acknowledged survive link outages and
+ * restarts of the vehicle.
+ *
+ * Each record is assigned a sequence number in the order in which it was
+ * appended, starting from one.  Acknowledgements are cumulative:
+ * acknowledging a sequence number acknowledges every record up to it.  When
+ * the file fills up, acknowledged records are compacted away, and if that is
+ * not enough, the oldest unacknowledged records are dropped.
+ *
+ * The file consists of a header containing a magic number, the random id of
+ * the log, the latest acknowledged sequence number, and the offsets of the
+ * first record and of the end of the last record.  The header is followed by
+ * a circular buffer of records, each written as an int length, a long
+ * sequence number and that many bytes.  Records that do not fit before the
+ * end of the file wrap around to its start, and a WRAP length marks the end
+ * of the records before it when there is room for one.
+ *
+ * Records are never moved once written, so that every change to the log
+ * reaches a consistent state with a single write to the header: appends
+ * write the record before its end offset, and compaction only advances the
+ * offset of the first record.  When the log is reopened, records are
+ * recovered up to the first one with an invalid length or sequence number.
+ */
+public class OutboundLog implements Closeable {
+    private static final Logger logger = Logger.getLogger(OutboundLog.class.getName());
+
+    static final int MAGIC = 0x504C4F32;
+    static final int ID_OFFSET = 4;
+    static final int ACKED_SEQ_OFFSET = 12;
+    static final int START_OFFSET = 20;
+    static final int END_OFFSET = 24;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final int WRAP = -1;
+
+    private final RandomAccessFile _file;
+    private final MappedByteBuffer _buffer;
+    private final int _capacity;
+
+    private final long _id;
+    private long _firstSeq;
+    private long _ackedSeq;
+    private int _start;
+    private int _end;
+
+    // Offsets of each record in the file, indexed from the first sequence number
+    private final List<Integer> _offsets = new ArrayList<Integer>();
+
+    /**
+     * Opens the log stored in the specified file, creating it if necessary.
+     * Records that were appended to an existing log are recovered.
+     *
+     * @param file the file in which the log is stored
+     * @param capacity the size of the file in bytes
+     * @throws IOException if the file could not be opened or mapped
+     */
+    public OutboundLog(File file, int capacity) throws IOException {
+        boolean isExisting = file.length() >= HEADER_SIZE;
+        _file = new RandomAccessFile(file, "rw");
+        _capacity = (int)Math.max(capacity, _file.length());
+        _buffer = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _capacity);
+
+        if (isExisting && _buffer.getInt(0) == MAGIC) {
+            _id = _buffer.getLong(ID_OFFSET);
+            _ackedSeq = _buffer.getLong(ACKED_SEQ_OFFSET);
+            _start = _buffer.getInt(START_OFFSET);
+            _end = _buffer.getInt(END_OFFSET);
+            recover();
+        } else {
+            _id = new Random().nextLong();
+            _firstSeq = 1;
+            _ackedSeq = 0;
+            _start = HEADER_SIZE;
+            _end = HEADER_SIZE;
+
+            _buffer.putInt(0, MAGIC);
+            _buffer.putLong(ID_OFFSET, _id);
+            _buffer.putLong(ACKED_SEQ_OFFSET, _ackedSeq);
+            _buffer.putInt(START_OFFSET, _start);
+            _buffer.putInt(END_OFFSET, _end);
+        }
+    }
+
+    /**
+     * Walks the records from the start of the log, and truncates the log at
+     * the first record whose length does not fit before the end of the log
+     * or whose sequence number does not follow the previous one.
+     */
+    private void recover() {
+        if (_start < HEADER_SIZE || _start > _capacity || _end < HEADER_SIZE || _end > _capacity) {
+            logger.log(Level.WARNING, "Invalid outbound log offsets {0} to {1}, discarding records",
+                    new Object[] {_start, _end});
+            _start = _end = HEADER_SIZE;
+            _buffer.putInt(START_OFFSET, _start);
+            _buffer.putInt(END_OFFSET, _end);
+        }
+
+        boolean isWrapped = false;
+        long seq = 0;
+        int offset = _start;
+        while (offset != _end) {
+            if (offset + 4 > _capacity || _buffer.getInt(offset) == WRAP) {
+                if (isWrapped || _end >= _start) break;
+                isWrapped = true;
+                offset = HEADER_SIZE;
+                continue;
+            }
+
+            int limit = (!isWrapped && _end < _start) ? _capacity : _end;
+            int length = _buffer.getInt(offset);
+            if (length < 0 || length > limit - offset - RECORD_HEADER_SIZE) break;
+
+            long recordSeq = _buffer.getLong(offset + 4);
+            if (_offsets.isEmpty() ? recordSeq <= 0 : recordSeq != seq + 1) break;
+
+            _offsets.add(offset);
+            seq = recordSeq;
+            offset += RECORD_HEADER_SIZE + length;
+        }
+
+        if (offset != _end) {
+            logger.log(Level.WARNING, "Truncating outbound log at invalid record at offset {0}", offset);
+            _end = offset;
+            _buffer.putInt(END_OFFSET, _end);
+        }
+
+        _firstSeq = _offsets.isEmpty() ? _ackedSeq + 1 : _buffer.getLong(_offsets.get(0) + 4);
+        if (getLastSequence() < _ackedSeq)
+            compact();
+    }
+
+    private ByteBuffer bytesAt(int offset) {
+        ByteBuffer buffer = _buffer.duplicate();
+        buffer.position(offset);
+        return buffer;
+    }
+
+    /**
+     * Returns the random id of this log, which distinguishes its sequence
+     * numbers from those of other logs.
+     */
+    public long getId() {
+        return _id;
+    }
+
+    public synchronized long getFirstSequence() {
+        return _firstSeq;
+    }
+
+    public synchronized long getLastSequence() {
+        return _firstSeq + _offsets.size() - 1;
+    }
+
+    public synchronized long getAcknowledged() {
+        return _ackedSeq;
+    }
+
+    /**
+     * Finds the offset at which a record of the specified size can be
+     * written without overwriting the records in the log.  The end of the
+     * records must never reach their start, so that a full log is not
+     * mistaken for an empty one.
+     *
+     * @param size the size of the record, including its header
+     * @return the offset of the record, or -1 if it does not fit
+     */
+    private int place(int size) {
+        if (_start <= _end) {
+            if (_end + size <= _capacity)
+                return _end;
+            if (HEADER_SIZE + size < _start)
+                return HEADER_SIZE;
+        } else if (_end + size < _start) {
+            return _end;
+        }
+        
+        // An empty log can always start over from the start of the file
+        return _offsets.isEmpty() ? HEADER_SIZE : -1;
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param record the contents of the record
+     * @return the sequence number of the record
+     */
+    public synchronized long append(byte[] record) {
+        int size = RECORD_HEADER_SIZE + record.length;
+        if (size > _capacity - HEADER_SIZE)
+            throw new IllegalArgumentException("Record is larger than log: " + record.length);
+
+        int offset = place(size);
+        if (offset < 0) {
+            compact();
+
+            // If that was not enough, drop the oldest unacknowledged records
+            long ackedSeq = _ackedSeq;
+            while ((offset = place(size)) < 0) {
+                _ackedSeq = _firstSeq;
+                _buffer.putLong(ACKED_SEQ_OFFSET, _ackedSeq);
+                compact();
+            }
+            if (_ackedSeq != ackedSeq) {
+                logger.log(Level.WARNING, "Log is full, dropping unacknowledged records {0} to {1}",
+                        new Object[] {ackedSeq + 1, _ackedSeq});
+            }
+        }
+
+        long seq = getLastSequence() + 1;
+        _buffer.putInt(offset, record.length);
+        _buffer.putLong(offset + 4, seq);
+        bytesAt(offset + RECORD_HEADER_SIZE).put(record);
+
+        if (_offsets.isEmpty()) {
+            _start = offset;
+            _buffer.putInt(START_OFFSET, _start);
+        } else if (offset != _end && _end + 4 <= _capacity) {
+            _buffer.putInt(_end, WRAP);
+        }
+
+        _offsets.add(offset);
+        _end = offset + size;
+        _buffer.putInt(END_OFFSET, _end);
+
+        return seq;
+    }
+
+    /**
+     * Reads the record with the specified sequence number.
+     *
+     * @param seq the sequence number of the record
+     * @return the contents of the record, or null if it is not in the log
+     */
+    public synchronized byte[] read(long seq) {
+        if (seq < _firstSeq || seq > getLastSequence())
+            return null;
+
+        int offset = _offsets.get((int)(seq - _firstSeq));
+        byte[] record = new byte[_buffer.getInt(offset)];
+        bytesAt(offset + RECORD_HEADER_SIZE).get(record);
+        return record;
+    }
+
+    /**
+     * Acknowledges every record up to and including the specified sequence
+     * number.  Acknowledgements of records that were already acknowledged,
+     * or that were never appended, are ignored.
+     *
+     * @param seq the highest sequence number that was received
+     */
+    public synchronized void acknowledge(long seq) {
+        if (seq > _ackedSeq && seq <= getLastSequence()) {
+            _ackedSeq = seq;
+            _buffer.putLong(ACKED_SEQ_OFFSET, _ackedSeq);
+        }
+    }
+
+    /**
+     * Removes the acknowledged records from the start of the log, by 
+     * advancing the offset of its first record past them.
+     */
+    private void compact() {
+        int numAcked = (int)Math.min(_ackedSeq - _firstSeq + 1, _offsets.size());
+        if (numAcked <= 0)
+            return;
+
+        _offsets.subList(0, numAcked).clear();
+        _firstSeq = _offsets.isEmpty() ? _ackedSeq + 1 : _firstSeq + numAcked;
+        _start = _offsets.isEmpty() ? _end : _offsets.get(0);
+        _buffer.putInt(START_OFFSET, _start);
+    }
+
+    /**
+     * Writes any changes to the log out to the storage device.
+     */
+    public synchronized void sync() {
+        _buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        _buffer.force();
+        _file.close();
+    }
+
+    /**
+     * Tracks the records of a log that have been received on the other end
+     * of a link, so that they can be acknowledged cumulatively and so that
+     * replayed records are only delivered once.
+     *
+     * A tracker is usually sent only some of the records of the log, so each
+     * record comes with the sequence number of the previous record that was
+     * sent to it.  Records are contiguous when each one follows the previous
+     * record that was sent to the tracker, rather than the previous record 
+     * of the log.
+     */
+    public static class Tracker {
+        private long _id = 0;
+        private long _receivedSeq = 0;
+        private long _ackSentSeq = 0;
+        
+        // Records received out of order, mapped to the record before each one
+        private final TreeMap<Long, Long> _outOfOrder = new TreeMap<Long, Long>();
+
+        /**
+         * Records the receipt of a record.
+         *
+         * @param id the id of the log that sent the record
+         * @param prevSeq the sequence number of the previous record that was 
+         * sent to this tracker, after which the records up to this one will
+         * never be sent to it
+         * @param seq the sequence number of the record
+         * @return true if the record was not received before
+         */
+        public synchronized boolean receive(long id, long prevSeq, long seq) {
+            if (id != _id) {
+                _id = id;
+                _receivedSeq = 0;
+                _ackSentSeq = 0;
+                _outOfOrder.clear();
+            }
+            if (seq <= _receivedSeq)
+                return false;
+            
+            // A replayed record may follow an earlier record than before, if
+            // the records in between were dropped by the log
+            Long knownPrevSeq = _outOfOrder.get(seq);
+            if (knownPrevSeq == null || prevSeq < knownPrevSeq)
+                _outOfOrder.put(seq, prevSeq);
+
+            // Advance past any records that are now contiguous
+            while (!_outOfOrder.isEmpty() && _outOfOrder.firstEntry().getValue() <= _receivedSeq) {
+                _receivedSeq = _outOfOrder.pollFirstEntry().getKey();
+            }
+            return knownPrevSeq == null;
+        }
+
+        public synchronized long getId() {
+            return _id;
+        }
+
+        /**
+         * Returns the number of contiguous records that were received since
+         * the last call to acknowledge().
+         */
+        public synchronized long getUnacknowledged() {
+            return _receivedSeq - _ackSentSeq;
+        }
+
+        /**
+         * Marks the received records as acknowledged.
+         *
+         * @return the sequence number to send in a cumulative acknowledgement
+         */
+        public synchronized long acknowledge() {
+            _ackSentSeq = _receivedSeq;
+            return _receivedSeq;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.platypus.crw.udp;
+
+import java.net.SocketAddress;
+import java.util.EventListener;
+
+/**
+ * Receives notifications pushed by a VehicleRegistryService when vehicles
+ * join, leave or are renamed.
+ */
+public interface RegistryListener extends EventListener {
+    public void vehicleJoined(SocketAddress addr, String name);
+    public void vehicleLeft(SocketAddress addr, String name);
+    public void vehicleRenamed(SocketAddress addr, String name);
+}
@@ -0,0 +1,342 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.AbstractVehicleServer;
+import com.platypus.crw.FlightLogReader;
+import com.platypus.crw.FlightLogReader.Record;
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.UtmPose;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A vehicle server that replays a mission recorded by a FlightRecorder,
+ * emitting each recorded event with its original timing, scaled by a speed
+ * factor, or as fast as possible.  This allows services, consoles and
+ * analytics to be driven by real mission traffic, at many times real time.
+ *
+ * Getters answer from the latest replayed state.  Commands are ignored,
+ * since the vehicle can only follow the recording.
+ */
+public class ReplayVehicleServer extends AbstractVehicleServer {
+    private static final Logger logger = Logger.getLogger(ReplayVehicleServer.class.getName());
+
+    /** Speed factor that replays events as fast as possible. */
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    private final File _directory;
+    private volatile double _speed;
+    private Thread _thread = null;
+    private final CountDownLatch _finished = new CountDownLatch(1);
+
+    // Until the recording provides them, the pose and image are defaults,
+    // since services serialize them without checking for null
+    protected volatile UtmPose _pose = new UtmPose();
+    protected volatile Twist _velocity = new Twist();
+    protected volatile WaypointState _waypointState = WaypointState.UNKNOWN;
+    protected volatile CameraState _cameraState = CameraState.UNKNOWN;
+    protected volatile byte[] _image = new byte[0];
+    protected volatile long _replayTime = -1;
+    protected volatile boolean _isAutonomous = true;
+    protected volatile double[] _home = new double[0];
+    protected final Map<String, Float> _keyValues = new ConcurrentHashMap<String, Float>();
+
+    /**
+     * Creates a server that replays the recording in a directory.  Nothing
+     * is replayed until start() is called.
+     *
+     * @param directory the directory of a FlightRecorder
+     * @param speed the factor by which replay is faster than real time, or
+     * AS_FAST_AS_POSSIBLE
+     */
+    public ReplayVehicleServer(File directory, double speed) {
+        _directory = directory;
+        _speed = speed;
+    }
+
+    public void setSpeed(double speed) {
+        _speed = speed;
+    }
+
+    public double getSpeed() {
+        return _speed;
+    }
+
+    /**
+     * Starts replaying from the beginning of the recording.
+     */
+    public void start() {
+        start(Long.MIN_VALUE);
+    }
+
+    /**
+     * Starts replaying from the first record at or after a time.
+     *
+     * @param time the time in milliseconds since the epoch
+     */
+    public synchronized void start(final long time) {
+        if (_thread != null)
+            throw new IllegalStateException("Replay was already started.");
+
+        _thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay(time);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to read recording", e);
+                } catch (InterruptedException e) {
+                    // Replay was stopped by shutdown()
+                } finally {
+                    _finished.countDown();
+                }
+            }
+        }, "ReplayVehicleServer");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    private void replay(long time) throws IOException, InterruptedException {
+        FlightLogReader reader = new FlightLogReader(_directory);
+        try {
+            if (time != Long.MIN_VALUE) reader.seek(time);
+
+            long startTime = 0;
+            long startNanos = 0;
+            double speed = Double.NaN;
+            for (Record record = reader.next(); record != null; record = reader.next()) {
+
+                // Restart the timing whenever the speed changes
+                if (_speed != speed) {
+                    speed = _speed;
+                    startTime = record.time;
+                    startNanos = System.nanoTime();
+                }
+
+                if (speed > 0 && !Double.isInfinite(speed)) {
+                    long delay = startNanos + (long)((record.time - startTime) * 1000000 / speed) - System.nanoTime();
+                    if (delay > 0) TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                _replayTime = record.time;
+                emit(record);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Applies a recorded event to the replayed state and sends it to the
+     * listeners of its type.
+     */
+    protected void emit(Record record) {
+        switch (record.type) {
+            case POSE:
+                _pose = (UtmPose)record.value;
+                sendState(_pose.clone());
+                break;
+            case VELOCITY:
+                _velocity = (Twist)record.value;
+                sendVelocity(_velocity.clone());
+                break;
+            case SENSOR:
+                sendSensor((SensorData)record.value, record.index);
+                break;
+            case CRUMB:
+                sendCrumb((double[])record.value, record.index);
+                break;
+            case WAYPOINT:
+                _waypointState = (WaypointState)record.value;
+                sendWaypointUpdate(_waypointState);
+                break;
+            case CAMERA:
+                _cameraState = (CameraState)record.value;
+                sendCameraUpdate(_cameraState);
+                break;
+            case RC_OVERRIDE:
+                sendRCOverride((Boolean)record.value);
+                break;
+            case KEYVALUE:
+                _keyValues.put(record.key, (Float)record.value);
+                sendKeyValue(record.key, (Float)record.value);
+                break;
+            case IMAGE:
+                _image = (byte[])record.value;
+                sendImage(_image);
+                break;
+        }
+    }
+
+    /**
+     * Returns the recorded time of the latest replayed event.
+     *
+     * @return the time in milliseconds since the epoch, or -1 if no event
+     * was replayed yet
+     */
+    public long getReplayTime() {
+        return _replayTime;
+    }
+
+    /**
+     * Waits for the end of the recording to be replayed.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the replay finished
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return _finished.await(timeout, unit);
+    }
+
+    public boolean isFinished() {
+        return _finished.getCount() == 0;
+    }
+
+    /**
+     * Stops replaying.
+     */
+    public synchronized void shutdown() {
+        if (_thread != null) _thread.interrupt();
+        disableEventBus();
+    }
+
+    @Override
+    public UtmPose getPose() {
+        return _pose.clone();
+    }
+
+    @Override
+    public void setPose(UtmPose pose) {
+    }
+
+    @Override
+    public byte[] captureImage(int width, int height) {
+        return _image;
+    }
+
+    @Override
+    public void startCamera(int numFrames, double interval, int width, int height) {
+    }
+
+    @Override
+    public void stopCamera() {
+    }
+
+    @Override
+    public CameraState getCameraStatus() {
+        return _cameraState;
+    }
+
+    @Override
+    public void acknowledgeSensorData(long id) {
+    }
+
+    @Override
+    public void setVelocity(Twist velocity) {
+    }
+
+    @Override
+    public Twist getVelocity() {
+        return _velocity.clone();
+    }
+
+    @Override
+    public void startWaypoints(double[][] waypoints) {
+    }
+
+    @Override
+    public void stopWaypoints() {
+    }
+
+    @Override
+    public double[][] getWaypoints() {
+        return new double[0][0];
+    }
+
+    @Override
+    public WaypointState getWaypointStatus() {
+        return _waypointState;
+    }
+
+    @Override
+    public int getWaypointsIndex() {
+        return 0;
+    }
+
+    @Override
+    public void acknowledgeCrumb(long id) {
+    }
+
+    @Override
+    public void setKeyValue(String key, float value) {
+    }
+
+    @Override
+    public void getKeyValue(String key) {
+        Float value = _keyValues.get(key);
+        if (value != null) sendKeyValue(key, value);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !isFinished();
+    }
+
+    @Override
+    public boolean isAutonomous() {
+        return _isAutonomous;
+    }
+
+    @Override
+    public void setAutonomous(boolean auto) {
+        _isAutonomous = auto;
+    }
+
+    @Override
+    public void setHome(double[] home) {
+        _home = home.clone();
+    }
+
+    @Override
+    public double[] getHome() {
+        return _home.clone();
+    }
+
+    @Override
+    public void startGoHome() {
+    }
+
+    @Override
+    public void newAutonomousPredicateMessage(String apm) {
+    }
+
+    /**
+     * Serves a recorded mission over UDP, so that clients can be tested 
+     * against real mission traffic.
+     * 
+     * @param args the recording directory, an optional speed factor, where 
+     * zero replays as fast as possible, and an optional udp port
+     */
+    public static void main(String args[]) throws InterruptedException {
+        double speed = (args.length > 1) ? Double.parseDouble(args[1]) : 1.0;
+        int port = (args.length > 2) ? Integer.parseInt(args[2]) : 11411;
+        
+        ReplayVehicleServer server = new ReplayVehicleServer(new File(args[0]), 
+                (speed > 0) ? speed : AS_FAST_AS_POSSIBLE);
+        UdpVehicleService service = new UdpVehicleService(port, server);
+        server.start();
+        server.awaitFinished(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        
+        service.shutdown();
+        server.shutdown();
+    }
+}
@@ -0,0 +1,137 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.VehicleServer.WaypointState;
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.SensorFilter;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.UtmPose;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the latest pose, velocity, waypoint state and reading of each sensor
+ * channel of a vehicle, so that bursts of events can be conflated into a
+ * single periodic CMD_SEND_STATE packet.
+ *
+ * Each value is tagged with a sequence number that increases with every
+ * update, so that receivers can tell which values changed since the last
+ * snapshot they processed.  Sequence numbers are only comparable between
+ * snapshots with the same epoch, which changes whenever the vehicle service
+ * is restarted.
+ *
+ * A snapshot is encoded as a long epoch, a byte of flags indicating which of
+ * the pose, velocity and waypoint state are present, a (long sequence, value)
+ * pair for each one that is present, and an int count followed by a (long
+ * sequence, sensor data, long index) triple for each sensor reading.
+ *
+ * All methods are thread-safe: each value is published atomically as an
+ * immutable entry.
+ */
+class StateSnapshot {
+    static final int HAS_POSE = 0x1;
+    static final int HAS_VELOCITY = 0x2;
+    static final int HAS_WAYPOINT_STATE = 0x4;
+
+    /**
+     * Immutable pairing of a value, its sequence number and, for sensor
+     * readings, the index reported by the vehicle.
+     */
+    private static class Entry<V> {
+        final long seq;
+        final V value;
+        final long index;
+
+        Entry(long s, V v, long i) {
+            seq = s;
+            value = v;
+            index = i;
+        }
+    }
+
+    private final long _epoch = new Random().nextLong();
+    private final AtomicLong _seq = new AtomicLong();
+
+    private volatile Entry<UtmPose> _pose;
+    private volatile Entry<Twist> _velocity;
+    private volatile Entry<WaypointState> _waypointState;
+    private final Map<Integer, Entry<SensorData>> _sensors = new ConcurrentSkipListMap<Integer, Entry<SensorData>>();
+
+    public void updatePose(UtmPose pose) {
+        _pose = new Entry<UtmPose>(_seq.incrementAndGet(), pose.clone(), 0);
+    }
+
+    public void updateVelocity(Twist velocity) {
+        _velocity = new Entry<Twist>(_seq.incrementAndGet(), velocity.clone(), 0);
+    }
+
+    public void updateWaypointState(WaypointState state) {
+        _waypointState = new Entry<WaypointState>(_seq.incrementAndGet(), state, 0);
+    }
+
+    public void updateSensor(SensorData sensor, long index) {
+        _sensors.put(sensor.channel, new Entry<SensorData>(_seq.incrementAndGet(), sensor, index));
+    }
+
+    /**
+     * Returns the sequence number of the latest update, which can be used to
+     * check whether anything has changed since a previous call.
+     *
+     * @return the latest sequence number, or zero if nothing was received
+     */
+    public long getSequence() {
+        return _seq.get();
+    }
+
+    /**
+     * Encodes the latest values into a CMD_SEND_STATE packet.
+     *
+     * @param out the stream to which the snapshot is written
+     * @param filter the sensor readings that should be included
+     * @throws IOException if the snapshot could not be written
+     */
+    public void write(DataOutputStream out, SensorFilter filter) throws IOException {
+        Entry<UtmPose> pose = _pose;
+        Entry<Twist> velocity = _velocity;
+        Entry<WaypointState> waypointState = _waypointState;
+
+        int flags = 0;
+        if (pose != null) flags |= HAS_POSE;
+        if (velocity != null) flags |= HAS_VELOCITY;
+        if (waypointState != null) flags |= HAS_WAYPOINT_STATE;
+
+        out.writeLong(_epoch);
+        out.writeByte(flags);
+        if (pose != null) {
+            out.writeLong(pose.seq);
+            UdpConstants.writePose(out, pose.value);
+        }
+        if (velocity != null) {
+            out.writeLong(velocity.seq);
+            UdpConstants.writeTwist(out, velocity.value);
+        }
+        if (waypointState != null) {
+            out.writeLong(waypointState.seq);
+            out.writeByte(waypointState.value.ordinal());
+        }
+
+        // Take a copy of the matching readings so that the count is accurate
+        List<Entry<SensorData>> sensors = new ArrayList<Entry<SensorData>>(_sensors.size());
+        for (Entry<SensorData> sensor : _sensors.values()) {
+            if (filter.accepts(sensor.value))
+                sensors.add(sensor);
+        }
+
+        out.writeInt(sensors.size());
+        for (Entry<SensorData> sensor : sensors) {
+            out.writeLong(sensor.seq);
+            UdpConstants.writeSensorData(out, sensor.value);
+            out.writeLong(sensor.index);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.SensorFilter;
+import com.platypus.crw.udp.UdpConstants.STREAM;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The set of event streams that a single client is subscribed to, along with
+ * the rate at which each stream should be delivered to it and the sensor
+ * readings it is interested in.
+ *
+ * Each stream has its own registration deadline, which is extended whenever
+ * the client renews its subscription to that stream.  This allows legacy 
+ * clients that register one stream at a time to share the same record as 
+ * clients that send a single subscription mask.
+ *
+ * Subscriptions are immutable: changes return a new record, so that records
+ * can be published to the stream threads and read without locking.  The only
+ * mutable state is the time at which each stream, and each sensor channel,
+ * was last sent, which is shared between all the versions of a client's
+ * record.
+ */
+class Subscriber {
+    final SocketAddress address;
+
+    private final int _mask;
+    private final SensorFilter _sensorFilter;
+    private final long[] _expiresNs;
+    private final long[] _intervalNs;
+    private final AtomicLongArray _lastSentNs;
+    
+    // Sensor readings are limited per channel, so that a fast sensor does 
+    // not starve the others
+    private final ConcurrentMap<Integer, AtomicLong> _lastSensorSentNs;
+
+    Subscriber(SocketAddress addr) {
+        this(addr, 0, SensorFilter.ALL, new long[STREAM.values().length], 
+                new long[STREAM.values().length], new AtomicLongArray(STREAM.values().length),
+                new ConcurrentHashMap<Integer, AtomicLong>());
+    }
+    
+    private Subscriber(SocketAddress addr, int mask, SensorFilter sensorFilter, 
+            long[] expiresNs, long[] intervalNs, AtomicLongArray lastSentNs,
+            ConcurrentMap<Integer, AtomicLong> lastSensorSentNs) {
+        address = addr;
+        _mask = mask;
+        _sensorFilter = sensorFilter;
+        _expiresNs = expiresNs;
+        _intervalNs = intervalNs;
+        _lastSentNs = lastSentNs;
+        _lastSensorSentNs = lastSensorSentNs;
+    }
+
+    /**
+     * Replaces the subscription with the specified streams.  Streams that are
+     * not in the mask are dropped immediately.
+     *
+     * @param mask the bitmask of requested streams
+     * @param intervalsNs the minimum interval between events for each stream,
+     * indexed by stream ordinal
+     * @param sensorFilter the sensor readings that should be sent
+     * @param now the current time as reported by System.nanoTime()
+     * @return the updated subscription
+     */
+    Subscriber subscribe(int mask, long[] intervalsNs, SensorFilter sensorFilter, long now) {
+        long[] expiresNs = new long[_expiresNs.length];
+        long[] intervalNs = new long[_intervalNs.length];
+        for (STREAM stream : STREAM.values()) {
+            if ((mask & stream.mask) != 0) {
+                expiresNs[stream.ordinal()] = now + UdpConstants.REGISTRATION_TIMEOUT_NS;
+                intervalNs[stream.ordinal()] = intervalsNs[stream.ordinal()];
+            }
+        }
+        return new Subscriber(address, mask, sensorFilter, expiresNs, intervalNs, 
+                _lastSentNs, _lastSensorSentNs);
+    }
+
+    /**
+     * Adds or renews a single stream at its full rate, as requested by a
+     * legacy listener registration.
+     *
+     * @param stream the requested stream
+     * @param now the current time as reported by System.nanoTime()
+     * @return the updated subscription
+     */
+    Subscriber register(STREAM stream, long now) {
+        long[] expiresNs = _expiresNs.clone();
+        long[] intervalNs = _intervalNs.clone();
+        expiresNs[stream.ordinal()] = now + UdpConstants.REGISTRATION_TIMEOUT_NS;
+        intervalNs[stream.ordinal()] = 0;
+        
+        SensorFilter sensorFilter = (stream == STREAM.SENSOR) ? SensorFilter.ALL : _sensorFilter;
+        return new Subscriber(address, _mask | stream.mask, sensorFilter, expiresNs, intervalNs, 
+                _lastSentNs, _lastSensorSentNs);
+    }
+
+    boolean isSubscribed(STREAM stream, long now) {
+        return (_mask & stream.mask) != 0 && now - _expiresNs[stream.ordinal()] < 0;
+    }
+
+    /**
+     * Checks if the client asked for the specified stream, regardless of its
+     * rate or whether its subscription has lapsed.
+     *
+     * @param stream the stream to check
+     * @return true if the stream is in the subscription
+     */
+    boolean wants(STREAM stream) {
+        return (_mask & stream.mask) != 0;
+    }
+
+    /**
+     * Checks if the client asked for a sensor reading, regardless of its 
+     * rate or whether its subscription has lapsed.
+     *
+     * @param sensor the sensor reading to check
+     * @return true if the reading passes the sensor filter of the client
+     */
+    boolean wants(SensorData sensor) {
+        return wants(STREAM.SENSOR) && _sensorFilter.accepts(sensor);
+    }
+
+    SensorFilter getSensorFilter() {
+        return _sensorFilter;
+    }
+
+    boolean isEmpty() {
+        return _mask == 0;
+    }
+
+    /**
+     * Checks if every stream of this subscription has passed its deadline
+     * without being renewed.
+     *
+     * @param now the current time as reported by System.nanoTime()
+     * @return true if the client is no longer subscribed to any streams
+     */
+    boolean isExpired(long now) {
+        for (STREAM stream : STREAM.values()) {
+            if (isSubscribed(stream, now))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if an event on the specified stream should be sent to this
+     * client now, and if so, records it as sent.
+     *
+     * @param stream the stream on which an event is being sent
+     * @param now the current time as reported by System.nanoTime()
+     * @return true if the event should be sent to this client
+     */
+    boolean accept(STREAM stream, long now) {
+        if (!isSubscribed(stream, now))
+            return false;
+
+        int i = stream.ordinal();
+        if (_intervalNs[i] > 0) {
+            long lastSentNs = _lastSentNs.get(i);
+            if (lastSentNs != 0 && now - lastSentNs < _intervalNs[i])
+                return false;
+            
+            // If another thread sent an event in the meantime, skip this one
+            return _lastSentNs.compareAndSet(i, lastSentNs, now);
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a sensor reading passes the sensor filter of this client and
+     * should be sent now, and if so, records it as sent.  The rate of the 
+     * sensor stream applies to each channel separately.
+     *
+     * @param sensor the sensor reading that is being sent
+     * @param now the current time as reported by System.nanoTime()
+     * @return true if the reading should be sent to this client
+     */
+    boolean accept(SensorData sensor, long now) {
+        if (!isSubscribed(STREAM.SENSOR, now) || !_sensorFilter.accepts(sensor))
+            return false;
+
+        long intervalNs = _intervalNs[STREAM.SENSOR.ordinal()];
+        if (intervalNs > 0) {
+            AtomicLong channelSentNs = _lastSensorSentNs.get(sensor.channel);
+            if (channelSentNs == null) {
+                channelSentNs = new AtomicLong();
+                AtomicLong existing = _lastSensorSentNs.putIfAbsent(sensor.channel, channelSentNs);
+                if (existing != null) channelSentNs = existing;
+            }
+            
+            long lastSentNs = channelSentNs.get();
+            if (lastSentNs != 0 && now - lastSentNs < intervalNs)
+                return false;
+            
+            // If another thread sent a reading in the meantime, skip this one
+            return channelSentNs.compareAndSet(lastSentNs, now);
+        }
+        return true;
+    }
+}
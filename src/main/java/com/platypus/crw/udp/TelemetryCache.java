@@ -0,0 +1,95 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.VehicleServer.WaypointState;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.UtmPose;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the most recent values received on the pose, velocity and waypoint
+ * streams of a vehicle, along with the time at which each one arrived.  This
+ * allows a proxy to answer getter calls locally when it already has a value
+ * that is recent enough for the caller.
+ *
+ * All methods are thread-safe: each entry is published atomically as an
+ * immutable (value, timestamp) pair.
+ */
+public class TelemetryCache {
+
+    /**
+     * Immutable pairing of a cached value and its arrival time.
+     */
+    private static class Entry<V> {
+        final V value;
+        final long timestamp = System.nanoTime();
+
+        Entry(V v) {
+            value = v;
+        }
+
+        boolean isFresherThan(long maxAge, TimeUnit unit) {
+            return (System.nanoTime() - timestamp) <= unit.toNanos(maxAge);
+        }
+    }
+
+    private volatile Entry<UtmPose> _pose;
+    private volatile Entry<Twist> _velocity;
+    private volatile Entry<WaypointState> _waypointStatus;
+
+    public void updatePose(UtmPose pose) {
+        _pose = new Entry<UtmPose>(pose.clone());
+    }
+
+    public void updateVelocity(Twist velocity) {
+        _velocity = new Entry<Twist>(velocity.clone());
+    }
+
+    public void updateWaypointStatus(WaypointState status) {
+        _waypointStatus = new Entry<WaypointState>(status);
+    }
+
+    /**
+     * Returns the cached pose if it arrived within the specified age.
+     *
+     * @param maxAge the maximum acceptable age of the value
+     * @param unit the time unit of the maxAge argument
+     * @return a copy of the cached pose, or null if there is no fresh value
+     */
+    public UtmPose getPose(long maxAge, TimeUnit unit) {
+        Entry<UtmPose> e = _pose;
+        return (e != null && e.isFresherThan(maxAge, unit)) ? e.value.clone() : null;
+    }
+
+    /**
+     * Returns the cached velocity if it arrived within the specified age.
+     *
+     * @param maxAge the maximum acceptable age of the value
+     * @param unit the time unit of the maxAge argument
+     * @return a copy of the cached velocity, or null if there is no fresh value
+     */
+    public Twist getVelocity(long maxAge, TimeUnit unit) {
+        Entry<Twist> e = _velocity;
+        return (e != null && e.isFresherThan(maxAge, unit)) ? e.value.clone() : null;
+    }
+
+    /**
+     * Returns the cached waypoint status if it arrived within the specified age.
+     *
+     * @param maxAge the maximum acceptable age of the value
+     * @param unit the time unit of the maxAge argument
+     * @return the cached waypoint status, or null if there is no fresh value
+     */
+    public WaypointState getWaypointStatus(long maxAge, TimeUnit unit) {
+        Entry<WaypointState> e = _waypointStatus;
+        return (e != null && e.isFresherThan(maxAge, unit)) ? e.value : null;
+    }
+
+    /**
+     * Discards all cached values.
+     */
+    public void clear() {
+        _pose = null;
+        _velocity = null;
+        _waypointStatus = null;
+    }
+}
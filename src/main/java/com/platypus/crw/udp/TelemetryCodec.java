@@ -0,0 +1,244 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compact encoding for streams of slowly changing telemetry vectors, such as
+ * the pose and velocity of a vehicle.
+ *
+ * Every few samples, the encoder sends a keyframe containing the full value
+ * of each component, along with the precision to which that component is
+ * quantized.  The samples in between are sent as the difference from the
+ * latest keyframe, quantized to the precision of each component and written
+ * as zigzag varints, so that small changes take a single byte.  Since each
+ * delta only depends on its keyframe, a lost delta does not affect any other
+ * sample, and a lost keyframe only drops samples until the next one.
+ *
+ * Each sample starts with a header byte containing the 7-bit id of its
+ * keyframe, with the high bit set if the sample is itself a keyframe.  A
+ * keyframe continues with a byte count of components, and a double value and
+ * double precision for each one.  A delta continues with one varint for each
+ * component of its keyframe.
+ */
+public class TelemetryCodec {
+
+    static final int KEYFRAME_FLAG = 0x80;
+    static final int KEYFRAME_ID_MASK = 0x7F;
+
+    // Deltas beyond this many steps are sent as a new keyframe instead
+    static final long MAX_DELTA_STEPS = 1L << 24;
+
+    /**
+     * Encodes a stream of vectors of a fixed length.
+     */
+    public static class Encoder {
+        private final double[] _precision;
+        private final int _keyframeInterval;
+        private final long[] _steps;
+
+        private double[] _key = null;
+        private int _keyId = new Random().nextInt() & KEYFRAME_ID_MASK;
+        private int _numDeltas = 0;
+
+        /**
+         * Creates an encoder for vectors with the specified precisions.
+         *
+         * @param precision the quantization step of each component
+         * @param keyframeInterval the maximum number of deltas between keyframes
+         */
+        public Encoder(double[] precision, int keyframeInterval) {
+            _precision = precision.clone();
+            _keyframeInterval = keyframeInterval;
+            _steps = new long[precision.length];
+        }
+
+        /**
+         * Writes the next sample of the stream, either as a keyframe or as a
+         * delta from the latest keyframe.
+         *
+         * @param out the output to which the sample is written
+         * @param values the components of the sample
+         * @return true if the sample was written as a keyframe
+         * @throws IOException if the sample could not be written
+         */
+        public synchronized boolean write(DataOutput out, double[] values) throws IOException {
+            boolean isKeyframe = (_key == null || _numDeltas >= _keyframeInterval);
+            for (int i = 0; i < _precision.length && !isKeyframe; ++i) {
+                double steps = (values[i] - _key[i]) / _precision[i];
+                if (Double.isNaN(steps) || Math.abs(steps) > MAX_DELTA_STEPS) {
+                    isKeyframe = true;
+                } else {
+                    _steps[i] = Math.round(steps);
+                }
+            }
+
+            if (isKeyframe) {
+                _key = values.clone();
+                _keyId = (_keyId + 1) & KEYFRAME_ID_MASK;
+                _numDeltas = 0;
+
+                out.writeByte(_keyId | KEYFRAME_FLAG);
+                out.writeByte(_precision.length);
+                for (int i = 0; i < _precision.length; ++i) {
+                    out.writeDouble(_key[i]);
+                    out.writeDouble(_precision[i]);
+                }
+            } else {
+                _numDeltas++;
+
+                out.writeByte(_keyId);
+                for (int i = 0; i < _precision.length; ++i) {
+                    writeVarLong(out, _steps[i]);
+                }
+            }
+            return isKeyframe;
+        }
+
+        /**
+         * Forces the next sample to be sent as a keyframe.
+         */
+        public synchronized void reset() {
+            _key = null;
+        }
+    }
+
+    /**
+     * Decodes a stream of vectors written by an Encoder.  Decoders are not
+     * thread-safe, as samples are expected to arrive on a single thread.
+     */
+    public static class Decoder {
+        private double[] _key = null;
+        private double[] _precision = null;
+        private int _keyId = -1;
+
+        /**
+         * Reads the next sample of the stream.  If the sample cannot be
+         * decoded, the rest of it is left unread, so each sample should be
+         * sent at the end of its own packet.
+         *
+         * @param in the input from which the sample is read
+         * @return the components of the sample, or null if it is a delta from
+         * a keyframe that was not received
+         * @throws IOException if the sample could not be read
+         */
+        public double[] read(DataInput in) throws IOException {
+            int header = in.readUnsignedByte();
+            int keyId = header & KEYFRAME_ID_MASK;
+
+            if ((header & KEYFRAME_FLAG) != 0) {
+                int length = in.readUnsignedByte();
+                _key = new double[length];
+                _precision = new double[length];
+                for (int i = 0; i < length; ++i) {
+                    _key[i] = in.readDouble();
+                    _precision[i] = in.readDouble();
+                }
+                _keyId = keyId;
+                return _key.clone();
+            }
+
+            // Without the keyframe, the length of the delta is unknown
+            if (keyId != _keyId)
+                return null;
+
+            double[] values = new double[_key.length];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = _key[i] + readVarLong(in) * _precision[i];
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Creates an encoder for UtmPose samples.
+     *
+     * @param linearPrecision the precision of the position, in meters
+     * @param angularPrecision the precision of each quaternion component
+     * @param keyframeInterval the maximum number of deltas between keyframes
+     * @return an encoder for vectors created by fromPose()
+     */
+    public static Encoder createPoseEncoder(double linearPrecision, double angularPrecision, int keyframeInterval) {
+        return new Encoder(new double[] {
+            linearPrecision, linearPrecision, linearPrecision,
+            angularPrecision, angularPrecision, angularPrecision, angularPrecision,
+            1.0
+        }, keyframeInterval);
+    }
+
+    /**
+     * Creates an encoder for Twist samples.
+     *
+     * @param linearPrecision the precision of the linear velocity, in m/s
+     * @param angularPrecision the precision of the angular velocity, in rad/s
+     * @param keyframeInterval the maximum number of deltas between keyframes
+     * @return an encoder for vectors created by fromTwist()
+     */
+    public static Encoder createTwistEncoder(double linearPrecision, double angularPrecision, int keyframeInterval) {
+        return new Encoder(new double[] {
+            linearPrecision, linearPrecision, linearPrecision,
+            angularPrecision, angularPrecision, angularPrecision
+        }, keyframeInterval);
+    }
+
+    public static double[] fromPose(UtmPose utmPose) {
+        return new double[] {
+            utmPose.pose.getX(), utmPose.pose.getY(), utmPose.pose.getZ(),
+            utmPose.pose.getRotation().getW(), utmPose.pose.getRotation().getX(),
+            utmPose.pose.getRotation().getY(), utmPose.pose.getRotation().getZ(),
+            2 * utmPose.origin.zone + (utmPose.origin.isNorth ? 1 : 0)
+        };
+    }
+
+    public static UtmPose toPose(double[] v) {
+        int zoneCode = (int)Math.round(v[7]);
+        Pose3D pose = new Pose3D(v[0], v[1], v[2], v[3], v[4], v[5], v[6]);
+        Utm utm = new Utm(zoneCode >> 1, (zoneCode & 1) != 0);
+        return new UtmPose(pose, utm);
+    }
+
+    public static double[] fromTwist(Twist twist) {
+        return new double[] {
+            twist.dx(), twist.dy(), twist.dz(),
+            twist.drx(), twist.dry(), twist.drz()
+        };
+    }
+
+    public static Twist toTwist(double[] v) {
+        return new Twist(v);
+    }
+
+    /**
+     * Writes a signed value as a zigzag varint, which takes one byte for
+     * values between -64 and 63, and one more byte for every further 7 bits.
+     *
+     * @param out the output to which the value is written
+     * @param value the value to write
+     * @throws IOException if the value could not be written
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int)((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int)zigzag);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Malformed varint.");
+    }
+}
@@ -2,12 +2,15 @@ package com.platypus.crw.udp;
 
 import com.platypus.crw.VehicleServer.DataType;
 import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.SensorFilter;
 import com.platypus.crw.data.Twist;
 import com.platypus.crw.data.Utm;
 import com.platypus.crw.data.UtmPose;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import com.platypus.crw.data.Pose3D;
@@ -22,6 +25,8 @@ public class UdpConstants {
 
     public static final int REGISTRATION_RATE_MS = 1000;
     public static final int REGISTRATION_TIMEOUT_COUNT = 5;
+    public static final long REGISTRATION_TIMEOUT_NS = TimeUnit.NANOSECONDS.convert(
+            REGISTRATION_RATE_MS * REGISTRATION_TIMEOUT_COUNT, TimeUnit.MILLISECONDS);
 
     public static final long INITIAL_RETRY_RATE_NS = TimeUnit.NANOSECONDS.convert(200, TimeUnit.MILLISECONDS);
     public static final long RETRANSMISSION_DELAY_NS = TimeUnit.NANOSECONDS.convert(100, TimeUnit.MILLISECONDS);
@@ -33,6 +38,36 @@ public class UdpConstants {
     public static final int INITIAL_PACKET_SIZE = 512;
     public static final int MAX_PACKET_SIZE = 4096;
     public static final int MAX_PAYLOAD_SIZE = 512;
+    public static final int IMAGE_REASSEMBLY_SLOTS = 4;
+    public static final int IMAGE_MAX_SIZE = 16 << 20;
+    public static final long IMAGE_REASSEMBLY_TIMEOUT_NS = TimeUnit.NANOSECONDS.convert(5, TimeUnit.SECONDS);
+    public static final int IMAGE_FEC_GROUP_SIZE = 4;
+    public static final int IMAGE_STREAM_BURST_SIZE = 32;
+    public static final long IMAGE_STREAM_BURST_INTERVAL_NS = TimeUnit.NANOSECONDS.convert(1, TimeUnit.MILLISECONDS);
+    public static final int LISTENER_QUEUE_SIZE = 1024;
+    public static final int STATE_INTERVAL_MS = 100;
+    public static final int STATE_TICK_MS = 20;
+    public static final double TELEMETRY_LINEAR_PRECISION = 0.01;
+    public static final double TELEMETRY_ANGULAR_PRECISION = 0.001;
+    public static final int TELEMETRY_KEYFRAME_INTERVAL = 20;
+    public static final int LOG_REPLAY_TICK_MS = 100;
+    public static final long LOG_REPLAY_TIMEOUT_NS = TimeUnit.NANOSECONDS.convert(3, TimeUnit.SECONDS);
+    public static final int LOG_REPLAY_BATCH_SIZE = 32;
+    public static final int LOG_ACK_BATCH_SIZE = 16;
+    public static final long LOG_CURSOR_TIMEOUT_NS = TimeUnit.NANOSECONDS.convert(5, TimeUnit.MINUTES);
+    public static final int KEYVALUE_SYNC_SIZE = 3072;
+    public static final int IMAGE_ADAPT_INTERVAL_MS = 1000;
+    public static final double IMAGE_LOSS_THRESHOLD = 0.1;
+    public static final long IMAGE_RTT_THRESHOLD_NS = TimeUnit.NANOSECONDS.convert(500, TimeUnit.MILLISECONDS);
+    public static final int IMAGE_MAX_INTERVAL_MS = 2000;
+    public static final int REGISTRY_PAGE_SIZE = 3072;
+    public static final long REGISTRY_REMOVAL_TIMEOUT_NS = TimeUnit.NANOSECONDS.convert(60, TimeUnit.SECONDS);
+    public static final int REGISTRY_SHARD_COUNT = 64;
+    public static final int RELAY_MAX_SESSIONS = 1024;
+    public static final int RELAY_TICK_MS = 100;
+    public static final int RELAY_BATCH_SIZE = 16;
+    public static final long RELAY_IDLE_TIMEOUT_NS = TimeUnit.NANOSECONDS.convert(30, TimeUnit.SECONDS);
+    public static final long LINK_HEALTH_TIMEOUT_NS = TimeUnit.NANOSECONDS.convert(10, TimeUnit.SECONDS);
     public static final String CMD_ACKNOWLEDGE = "OK";
 
     /**
@@ -43,13 +78,22 @@ public class UdpConstants {
         UNKNOWN(""),
         CMD_REGISTER("HI"),
         CMD_LIST("HL"),
+        CMD_LIST_CHANGES("HLC"),
+        CMD_WATCH_REGISTRY("HW"),
+        CMD_GOSSIP_REGISTRY("HG"),
+        CMD_SEND_REGISTRY_CHANGE("_H"),
         CMD_CONNECT("CC"),
+        CMD_CONNECT_RELAY("CR"),
+        CMD_SUBSCRIBE("SUB"),
         CMD_REGISTER_POSE_LISTENER("RPL"),
         CMD_SEND_POSE("_P"),
+        CMD_SEND_POSE_DELTA("_PD"),
         CMD_SET_POSE("SP"),
         CMD_GET_POSE("GP"),
         CMD_REGISTER_IMAGE_LISTENER("RIL"),
         CMD_SEND_IMAGE("_I"),
+        CMD_REGISTER_IMAGE_STREAM_LISTENER("RIS"),
+        CMD_SEND_IMAGE_PARITY("_IP"),
         CMD_CAPTURE_IMAGE("CI"),
         CMD_REGISTER_CAMERA_LISTENER("CIL"),
         CMD_SEND_CAMERA("_C"),
@@ -59,12 +103,16 @@ public class UdpConstants {
         CMD_REGISTER_SENSOR_LISTENER("RSL"),
         CMD_SEND_SENSOR("_S"),
         CMD_ACK_SENSORDATA("ASD"),
+        CMD_SEND_LOG_RECORD("_LR"),
+        CMD_ACK_LOG("ALR"),
         CMD_REGISTER_VELOCITY_LISTENER("RVL"),
         CMD_SEND_VELOCITY("_V"),
+        CMD_SEND_VELOCITY_DELTA("_VD"),
         CMD_SET_VELOCITY("SV"),
         CMD_GET_VELOCITY("GV"),
         CMD_REGISTER_WAYPOINT_LISTENER("RWL"),
         CMD_SEND_WAYPOINT("_W"),
+        CMD_SEND_STATE("_ST"),
         CMD_START_WAYPOINTS("STW"),
         CMD_STOP_WAYPOINTS("SPW"),
         CMD_GET_WAYPOINTS("GW"),
@@ -87,6 +135,9 @@ public class UdpConstants {
         CMD_SEND_KEYVALUE("_KV"),
         CMD_SET_KEYVALUE("SKV"),
         CMD_GET_KEYVALUE("GKV"),
+        CMD_SET_KEYVALUES("SKVS"),
+        CMD_GET_KEYVALUES("GKVS"),
+        CMD_SYNC_KEYVALUES("YKV"),
         CMD_NEW_AUTONOMOUS_PREDICATE_MSG("APM");
 
         COMMAND(String s) {
@@ -108,6 +159,67 @@ public class UdpConstants {
         }
     }
 
+    /**
+     * Enumeration of the event streams that a client can subscribe to, along 
+     * with the bit used to represent each one in a subscription mask and the
+     * legacy command that registers for it individually.
+     * 
+     * A CMD_SUBSCRIBE message contains an int mask of the requested streams, 
+     * followed by an int minimum interval in milliseconds for each stream in 
+     * the mask, in order of increasing bit.  An interval of zero requests 
+     * every event on that stream.  If the SENSOR or STATE stream is 
+     * requested, the intervals are followed by a sensor filter.
+     * 
+     * The STATE stream has no legacy command.  Instead of the individual 
+     * pose, velocity, waypoint and sensor events, it delivers periodic 
+     * CMD_SEND_STATE snapshots containing the latest value of each, at the
+     * requested interval or every STATE_INTERVAL_MS if none is given.
+     * 
+     * The POSE_DELTA and VELOCITY_DELTA streams also have no legacy command.
+     * They deliver the same events as the POSE and VELOCITY streams, encoded
+     * using a TelemetryCodec.  Since each delta depends on its keyframe, 
+     * keyframes are sent to every subscriber of these streams, regardless of
+     * the interval that it requested.
+     */
+    public enum STREAM {
+        POSE(0, COMMAND.CMD_REGISTER_POSE_LISTENER),
+        VELOCITY(1, COMMAND.CMD_REGISTER_VELOCITY_LISTENER),
+        WAYPOINT(2, COMMAND.CMD_REGISTER_WAYPOINT_LISTENER),
+        CAMERA(3, COMMAND.CMD_REGISTER_CAMERA_LISTENER),
+        IMAGE(4, COMMAND.CMD_REGISTER_IMAGE_LISTENER),
+        IMAGE_STREAM(5, COMMAND.CMD_REGISTER_IMAGE_STREAM_LISTENER),
+        SENSOR(6, COMMAND.CMD_REGISTER_SENSOR_LISTENER),
+        CRUMB(7, COMMAND.CMD_REGISTER_CRUMB_LISTENER),
+        RCOVER(8, COMMAND.CMD_REGISTER_RCOVER_LISTENER),
+        KEYVALUE(9, COMMAND.CMD_REGISTER_KEYVALUE_LISTENER),
+        STATE(10, null),
+        POSE_DELTA(11, null),
+        VELOCITY_DELTA(12, null);
+
+        STREAM(int b, COMMAND cmd) {
+            bit = b;
+            mask = 1 << b;
+            registerCommand = cmd;
+        }
+
+        public final int bit;
+        public final int mask;
+        public final COMMAND registerCommand;
+
+        /**
+         * Finds the stream that is registered by a legacy listener command.
+         * 
+         * @param cmd a CMD_REGISTER_*_LISTENER command
+         * @return the corresponding stream, or null if there is none
+         */
+        public static STREAM fromRegisterCommand(COMMAND cmd) {
+            for (STREAM stream : STREAM.values()) {
+                if (stream.registerCommand == cmd) return stream;
+            }
+            return null;
+        }
+    }
+
     public static void writeTwist(DataOutputStream out, Twist twist) throws IOException {
         out.writeDouble(twist.dx());
         out.writeDouble(twist.dy());
@@ -192,4 +304,48 @@ public class UdpConstants {
         sensor.latlng = new double[]{in.readDouble(), in.readDouble()};
         return sensor;
     }
+    
+    public static void writeSensorFilter(DataOutputStream out, SensorFilter filter) throws IOException {
+        int[] channels = filter.getChannels();
+        out.writeInt(channels.length);
+        for (int channel : channels) {
+            out.writeInt(channel);
+        }
+        
+        out.writeByte(filter.getTypes().size());
+        for (DataType type : filter.getTypes()) {
+            out.writeByte(type.ordinal());
+        }
+    }
+    
+    public static SensorFilter readSensorFilter(DataInputStream in) throws IOException {
+        int[] channels = new int[in.readInt()];
+        for (int i = 0; i < channels.length; ++i) {
+            channels[i] = in.readInt();
+        }
+        
+        DataType[] types = new DataType[in.readUnsignedByte()];
+        for (int i = 0; i < types.length; ++i) {
+            types[i] = DataType.values()[in.readUnsignedByte()];
+        }
+        return new SensorFilter(channels, types);
+    }
+    
+    public static void writeKeyValues(DataOutputStream out, Map<String, Float> values) throws IOException {
+        out.writeInt(values.size());
+        for (Map.Entry<String, Float> entry : values.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeFloat(entry.getValue());
+        }
+    }
+    
+    public static Map<String, Float> readKeyValues(DataInputStream in) throws IOException {
+        int numValues = in.readInt();
+        Map<String, Float> values = new LinkedHashMap<String, Float>();
+        for (int i = 0; i < numValues; ++i) {
+            String key = in.readUTF();
+            values.put(key, in.readFloat());
+        }
+        return values;
+    }
 }
@@ -0,0 +1,224 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.AsyncVehicleServer;
+import com.platypus.crw.FunctionObserver;
+import com.platypus.crw.udp.UdpServer.Request;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client for controlling many vehicles from a single process.
+ *
+ * Rather than each vehicle proxy opening its own socket, ticket table,
+ * registration timer and listener threads, every vehicle proxy created by
+ * this client shares a single set of each.  Received packets are routed to
+ * the proxy of the vehicle that sent them by source address, and packets
+ * from other sources (such as a registry) are handled by a proxy that is not
+ * bound to any vehicle.
+ */
+public class UdpFleetClient implements UdpServer.RequestHandler {
+
+    protected final UdpServer _udpServer;
+    protected SocketAddress _registryServer;
+
+    final Timer _timer = new Timer(true);
+    final AtomicLong _ticketCounter = new AtomicLong(new Random().nextLong() << 32);
+    final TimeoutMap _ticketMap = new TimeoutMap();
+    final ExecutorService _listenerExecutor = UdpVehicleServer.createListenerExecutor();
+
+    // Proxies indexed by the address of their vehicle, used to route packets
+    final Map<SocketAddress, FleetVehicle> _routes = new ConcurrentHashMap<SocketAddress, FleetVehicle>();
+    final CopyOnWriteArrayList<FleetVehicle> _vehicles = new CopyOnWriteArrayList<FleetVehicle>();
+
+    // Handles responses that do not come from a known vehicle
+    final FleetVehicle _defaultVehicle;
+
+    public UdpFleetClient() {
+        this(-1);
+    }
+
+    public UdpFleetClient(int port) {
+        _udpServer = (port > 0) ? new UdpServer(port) : new UdpServer();
+        _defaultVehicle = new FleetVehicle();
+        _udpServer.setHandler(this);
+        _udpServer.start();
+
+        // Start a single task to register all vehicles for stream updates
+        _timer.scheduleAtFixedRate(new RegistrationTask(), 0, UdpConstants.REGISTRATION_RATE_MS);
+    }
+
+    public SocketAddress getSocketAddress() {
+        return _udpServer.getSocketAddress();
+    }
+
+    /**
+     * Creates a proxy for the vehicle at the specified address.  The proxy
+     * can be used like any other UdpVehicleServer, but shares its resources
+     * with the other proxies of this client.  Calling shutdown() on the proxy
+     * removes it from this client.
+     *
+     * @param addr the address of the vehicle service, or null if unknown
+     * @return a proxy for the vehicle
+     */
+    public UdpVehicleServer addVehicle(SocketAddress addr) {
+        FleetVehicle vehicle = new FleetVehicle();
+        _vehicles.add(vehicle);
+        vehicle.setVehicleService(addr);
+        return vehicle;
+    }
+
+    /**
+     * Removes a proxy that was created by this client.  The proxy will no
+     * longer receive events or responses.
+     *
+     * @param vehicle a proxy created by addVehicle()
+     */
+    public void removeVehicle(AsyncVehicleServer vehicle) {
+        if (vehicle instanceof FleetVehicle && _vehicles.remove(vehicle))
+            ((FleetVehicle)vehicle).unroute();
+    }
+
+    public AsyncVehicleServer[] getVehicles() {
+        return _vehicles.toArray(new AsyncVehicleServer[0]);
+    }
+
+    /**
+     * Sets the registry used by this client and all of its vehicles.
+     *
+     * @param addr the address of the registry service
+     */
+    public void setRegistryService(SocketAddress addr) {
+        _registryServer = addr;
+        _defaultVehicle.setRegistryService(addr);
+        for (FleetVehicle vehicle : _vehicles) {
+            vehicle.setRegistryService(addr);
+        }
+    }
+
+    public SocketAddress getRegistryService() {
+        return _registryServer;
+    }
+
+    /**
+     * Lists the vehicles known to the registry service.
+     *
+     * @param obs an observer that receives the map of vehicle addresses to names
+     */
+    public void getVehicleServices(FunctionObserver<Map<SocketAddress, String>> obs) {
+        _defaultVehicle.getVehicleServices(obs);
+    }
+
+    /**
+     * Updates a local copy of the vehicles known to the registry service,
+     * transferring only the vehicles that were added or removed since the
+     * last call.
+     *
+     * @param obs an observer that receives the map of vehicle addresses to names
+     */
+    public void syncVehicleServices(FunctionObserver<Map<SocketAddress, String>> obs) {
+        _defaultVehicle.syncVehicleServices(obs);
+    }
+
+    /**
+     * Registers a listener for vehicles joining, leaving or being renamed in
+     * the registry service.
+     *
+     * @param l the listener to register
+     * @param prefix only vehicles whose names start with this prefix are
+     * reported, or an empty string for every vehicle
+     */
+    public void addRegistryListener(RegistryListener l, String prefix) {
+        _defaultVehicle.addRegistryListener(l, prefix);
+    }
+
+    public void removeRegistryListener(RegistryListener l) {
+        _defaultVehicle.removeRegistryListener(l);
+    }
+
+    /**
+     * Terminates the shared socket and threads of this client, and with it
+     * all of the vehicle proxies that were created by it.
+     */
+    public void shutdown() {
+        _timer.cancel();
+        _timer.purge();
+        _ticketMap.shutdown();
+        _udpServer.stop();
+        _listenerExecutor.shutdown();
+
+        _vehicles.clear();
+        _routes.clear();
+    }
+
+    public void received(Request req) {
+        FleetVehicle vehicle = _routes.get(req.source);
+        if (vehicle == null) vehicle = _defaultVehicle;
+        vehicle.received(req);
+    }
+
+    public void timeout(long ticket, SocketAddress destination) {
+        // Tickets are shared, so any vehicle can handle the timeout
+        _defaultVehicle.timeout(ticket, destination);
+    }
+
+    /**
+     * A vehicle proxy that uses the shared resources of this client, and
+     * keeps the routing table up to date when its vehicle changes.
+     */
+    private class FleetVehicle extends UdpVehicleServer {
+
+        FleetVehicle() {
+            super(UdpFleetClient.this._udpServer, UdpFleetClient.this._ticketCounter, 
+                    UdpFleetClient.this._ticketMap, UdpFleetClient.this._listenerExecutor);
+            setRegistryService(UdpFleetClient.this._registryServer);
+        }
+
+        @Override
+        public void setVehicleService(SocketAddress addr) {
+            synchronized (_routes) {
+                unroute();
+                if (addr != null)
+                    _routes.put(addr, this);
+                super.setVehicleService(addr);
+            }
+        }
+
+        /**
+         * Stops routing packets from the current vehicle to this proxy.
+         */
+        void unroute() {
+            synchronized (_routes) {
+                SocketAddress addr = getVehicleService();
+                if (addr != null && _routes.get(addr) == this)
+                    _routes.remove(addr);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            removeVehicle(this);
+        }
+    }
+
+    private class RegistrationTask extends TimerTask {
+        @Override
+        public void run() {
+            _defaultVehicle.watchRegistry();
+
+            // Send one subscription on behalf of each vehicle that is known
+            for (FleetVehicle vehicle : _vehicles) {
+                if (vehicle.getVehicleService() != null) {
+                    vehicle.subscribe();
+                    vehicle.acknowledgeLog();
+                }
+            }
+        }
+    }
+}
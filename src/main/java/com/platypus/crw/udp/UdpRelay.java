@@ -0,0 +1,318 @@
+package com.platypus.crw.udp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Forwards datagrams between clients and vehicles that cannot reach each
+ * other directly, such as vehicles behind carrier-grade NAT.
+ *
+ * Each session is allocated a pair of UDP ports: the client sends to the
+ * client port and the vehicle sends to the vehicle port, and each datagram is
+ * forwarded unchanged out of the opposite port, so that both ends see the
+ * relay as an ordinary peer.  The client end of a session only accepts the
+ * address of the client for which the session was opened, so that the
+ * session cannot be taken over by another host that learns its port.  The
+ * vehicle end accepts any port on the host of the vehicle, since its NAT may
+ * map each destination to a different port.  Datagrams are dropped until the
+ * vehicle end is known.
+ *
+ * All sessions are served by a single selector thread, which receives into
+ * one reused direct buffer, so forwarding does not allocate.  At most
+ * RELAY_BATCH_SIZE datagrams are forwarded from each port per select, so
+ * that a busy session cannot starve the others.  Sessions that carry no
+ * traffic for RELAY_IDLE_TIMEOUT_NS are closed.
+ */
+public class UdpRelay implements Closeable {
+    private static final Logger logger = Logger.getLogger(UdpRelay.class.getName());
+
+    /**
+     * A pair of relayed endpoints, along with counts of the traffic that was
+     * forwarded in each direction.
+     */
+    public class Session {
+        final DatagramChannel _clientChannel;
+        final DatagramChannel _vehicleChannel;
+        final InetAddress _vehicleHost;
+        final SocketAddress _clientAddr;
+
+        volatile SocketAddress _vehicleAddr = null;
+        volatile long _lastActivity = System.nanoTime();
+
+        final AtomicLong _clientBytes = new AtomicLong();
+        final AtomicLong _clientPackets = new AtomicLong();
+        final AtomicLong _vehicleBytes = new AtomicLong();
+        final AtomicLong _vehiclePackets = new AtomicLong();
+        final AtomicLong _droppedPackets = new AtomicLong();
+
+        Session(InetAddress vehicleHost, SocketAddress clientAddr) throws IOException {
+            _vehicleHost = vehicleHost;
+            _clientAddr = clientAddr;
+            _clientChannel = openChannel();
+            try {
+                _vehicleChannel = openChannel();
+            } catch (IOException e) {
+                _clientChannel.close();
+                throw e;
+            }
+        }
+
+        public int getClientPort() {
+            return _clientChannel.socket().getLocalPort();
+        }
+
+        public int getVehiclePort() {
+            return _vehicleChannel.socket().getLocalPort();
+        }
+
+        public SocketAddress getClientAddress() {
+            return _clientAddr;
+        }
+
+        public SocketAddress getVehicleAddress() {
+            return _vehicleAddr;
+        }
+
+        /**
+         * Returns the number of bytes forwarded from the client to the vehicle.
+         */
+        public long getClientBytes() {
+            return _clientBytes.get();
+        }
+
+        public long getClientPackets() {
+            return _clientPackets.get();
+        }
+
+        /**
+         * Returns the number of bytes forwarded from the vehicle to the client.
+         */
+        public long getVehicleBytes() {
+            return _vehicleBytes.get();
+        }
+
+        public long getVehiclePackets() {
+            return _vehiclePackets.get();
+        }
+
+        /**
+         * Returns the number of datagrams that were dropped, because they
+         * came from an unexpected address or the other end was not yet known.
+         */
+        public long getDroppedPackets() {
+            return _droppedPackets.get();
+        }
+
+        void close() {
+            try {
+                _clientChannel.close();
+                _vehicleChannel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to close relay session", e);
+            }
+        }
+    }
+
+    private final Selector _selector;
+    private final Map<Integer, Session> _sessions = new ConcurrentHashMap<Integer, Session>();
+    private final AtomicInteger _sessionCount = new AtomicInteger();
+    private final Queue<Session> _newSessions = new ConcurrentLinkedQueue<Session>();
+    private final ByteBuffer _buffer = ByteBuffer.allocateDirect(UdpConstants.MAX_PACKET_SIZE);
+    private final int _maxSessions;
+
+    /**
+     * Starts a relay that serves up to the specified number of sessions.
+     *
+     * @param maxSessions the maximum number of concurrent sessions
+     * @throws IOException if the selector could not be opened
+     */
+    public UdpRelay(int maxSessions) throws IOException {
+        _maxSessions = maxSessions;
+        _selector = Selector.open();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "UdpRelay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(0));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Allocates a new session for relaying between a client and a vehicle.
+     * This may be called from several threads at once.
+     *
+     * @param vehicleHost the public address of the vehicle
+     * @param clientAddr the public address of the client, which is the only
+     * address from which the client port accepts datagrams
+     * @return the new session, or null if the relay is full
+     * @throws IOException if the ports of the session could not be opened
+     */
+    public Session openSession(InetAddress vehicleHost, SocketAddress clientAddr) throws IOException {
+        // Reserve a session before opening it, so concurrent requests cannot
+        // exceed the limit
+        if (_sessionCount.incrementAndGet() > _maxSessions) {
+            _sessionCount.decrementAndGet();
+            return null;
+        }
+
+        Session session;
+        try {
+            session = new Session(vehicleHost, clientAddr);
+        } catch (IOException e) {
+            _sessionCount.decrementAndGet();
+            throw e;
+        }
+        _sessions.put(session.getClientPort(), session);
+        _newSessions.add(session);
+        _selector.wakeup();
+        return session;
+    }
+
+    /**
+     * Lists the currently open sessions.
+     */
+    public List<Session> getSessions() {
+        return new ArrayList<Session>(_sessions.values());
+    }
+
+    private void serve() {
+        long lastExpiry = System.nanoTime();
+
+        while (_selector.isOpen()) {
+            try {
+                _selector.select(UdpConstants.RELAY_TICK_MS);
+
+                // Register the channels of new sessions from this thread
+                Session session;
+                while ((session = _newSessions.poll()) != null) {
+                    session._clientChannel.register(_selector, SelectionKey.OP_READ, session);
+                    session._vehicleChannel.register(_selector, SelectionKey.OP_READ, session);
+                }
+
+                for (Iterator<SelectionKey> it = _selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable())
+                        forward((DatagramChannel)key.channel(), (Session)key.attachment());
+                }
+
+                long now = System.nanoTime();
+                if (now - lastExpiry > UdpConstants.RELAY_IDLE_TIMEOUT_NS / 10) {
+                    expireSessions(now);
+                    lastExpiry = now;
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Relay failed to forward datagram", e);
+            }
+        }
+    }
+
+    /**
+     * Forwards up to RELAY_BATCH_SIZE datagrams waiting on one side of a 
+     * session to the other.  Any remaining datagrams are forwarded after the
+     * other sessions have been served.
+     */
+    private void forward(DatagramChannel channel, Session session) throws IOException {
+        boolean isFromClient = (channel == session._clientChannel);
+
+        for (int i = 0; i < UdpConstants.RELAY_BATCH_SIZE; ++i) {
+            _buffer.clear();
+            SocketAddress source = channel.receive(_buffer);
+            if (source == null) return;
+            _buffer.flip();
+            int length = _buffer.remaining();
+
+            SocketAddress destination;
+            if (isFromClient) {
+                if (!source.equals(session._clientAddr)) {
+                    session._droppedPackets.incrementAndGet();
+                    continue;
+                }
+                destination = session._vehicleAddr;
+            } else {
+                if (!((InetSocketAddress)source).getAddress().equals(session._vehicleHost)) {
+                    session._droppedPackets.incrementAndGet();
+                    continue;
+                }
+                session._vehicleAddr = source;
+                destination = session._clientAddr;
+            }
+            session._lastActivity = System.nanoTime();
+
+            if (destination == null) {
+                session._droppedPackets.incrementAndGet();
+                continue;
+            }
+
+            // If the send buffer is full, the datagram is dropped like any
+            // other datagram lost by the network
+            DatagramChannel output = isFromClient ? session._vehicleChannel : session._clientChannel;
+            if (output.send(_buffer, destination) == 0) {
+                session._droppedPackets.incrementAndGet();
+            } else if (isFromClient) {
+                session._clientBytes.addAndGet(length);
+                session._clientPackets.incrementAndGet();
+            } else {
+                session._vehicleBytes.addAndGet(length);
+                session._vehiclePackets.incrementAndGet();
+            }
+        }
+    }
+
+    private void expireSessions(long now) {
+        for (Iterator<Session> it = _sessions.values().iterator(); it.hasNext();) {
+            Session session = it.next();
+            if (now - session._lastActivity > UdpConstants.RELAY_IDLE_TIMEOUT_NS) {
+                it.remove();
+                session.close();
+                _sessionCount.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _selector.close();
+        for (Session session : _sessions.values()) {
+            session.close();
+        }
+        _sessions.clear();
+        _sessionCount.set(0);
+    }
+}
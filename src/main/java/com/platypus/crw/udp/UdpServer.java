@@ -11,11 +11,18 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
@@ -55,12 +62,16 @@ public class UdpServer {
     private static final int IPTOS_LOWDELAY = 0x10;
 
     final DatagramSocket _socket;
+    final DatagramSocket[] _receiveSockets;
     final DelayQueue<QueuedResponse> _responses = new DelayQueue<QueuedResponse>();
     final List<Long> _oldTickets = new ArrayList<Long>(UdpConstants.TICKET_CACHE_SIZE);
     
     final Object _retransmissionLock = new Object();
     long _retransmissionTimeout = UdpConstants.INITIAL_RETRY_RATE_NS;
     
+    // Health of the link to each destination of reliable responses
+    final ConcurrentHashMap<SocketAddress, LinkHealth> _linkHealth = new ConcurrentHashMap<SocketAddress, LinkHealth>();
+    
     RequestHandler _handler;
     
     public UdpServer() {
@@ -75,6 +86,7 @@ public class UdpServer {
             throw new RuntimeException("Unable to open desired UDP socket.", e);
         }
         _socket = socket;
+        _receiveSockets = new DatagramSocket[] { _socket };
     }
     
     public UdpServer(int port) {
@@ -87,16 +99,92 @@ public class UdpServer {
             throw new RuntimeException("Unable to open desired UDP socket.", e);
         }
         _socket = socket;
+        _receiveSockets = new DatagramSocket[] { _socket };
+    }
+    
+    /**
+     * Opens several sockets on the same port with SO_REUSEPORT, each served 
+     * by its own receiver thread, so that a server with many clients is not
+     * limited to a single core.  The kernel distributes datagrams between 
+     * the sockets by source address, so the requests of each client are 
+     * still received in order by a single thread, and the request handler
+     * must be safe to call from several threads at once.  Responses are all
+     * sent from the first socket.
+     * 
+     * If SO_REUSEPORT is not supported by the platform, a single socket is
+     * opened instead.
+     * 
+     * Since the sockets allow the port to be shared, the port is first bound
+     * by a plain socket that is closed again, so that a port which is already
+     * in use, including by another server sharing its own port, still fails
+     * to open rather than silently splitting its traffic.
+     * 
+     * @param port the port on which to listen, or zero for any free port
+     * @param numReceivers the number of sockets and receiver threads
+     */
+    public UdpServer(int port, int numReceivers) {
+        
+        SocketOption<Boolean> reusePort = (numReceivers > 1) ? getReusePortOption() : null;
+        if (reusePort == null) numReceivers = 1;
+        
+        DatagramSocket[] sockets = new DatagramSocket[numReceivers];
+        try {
+            if (reusePort != null && port != 0)
+                new DatagramSocket(port).close();
+            
+            for (int i = 0; i < numReceivers; ++i) {
+                DatagramChannel channel = DatagramChannel.open();
+                if (reusePort != null) channel.setOption(reusePort, true);
+                
+                // Bind the other sockets to the same port as the first one,
+                // in case it was chosen by the system
+                channel.bind(new InetSocketAddress((i == 0) ? port : sockets[0].getLocalPort()));
+                sockets[i] = channel.socket();
+            }
+        } catch (IOException e) {
+            for (DatagramSocket socket : sockets) {
+                if (socket != null) socket.close();
+            }
+            logger.severe("Unable to open desired UDP socket.");
+            throw new RuntimeException("Unable to open desired UDP socket.", e);
+        }
+        _socket = sockets[0];
+        _receiveSockets = sockets;
+    }
+    
+    /**
+     * Looks up the SO_REUSEPORT socket option, which is only defined from 
+     * Java 9 onwards.
+     * 
+     * @return the option, or null if it is not supported
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> getReusePortOption() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                return channel.supportedOptions().contains(option) ? option : null;
+            } finally {
+                channel.close();
+            }
+        } catch (Exception e) {
+            logger.info("SO_REUSEPORT is not supported, using a single receiver.");
+            return null;
+        }
     }
     
     public void start() {
         new Thread(new Responder()).start();
-        new Thread(new Receiver()).start();
+        for (DatagramSocket socket : _receiveSockets) {
+            new Thread(new Receiver(socket)).start();
+        }
     }
     
     public void stop() {
-        if (_socket != null) {
-            _socket.close();
+        for (DatagramSocket socket : _receiveSockets) {
+            socket.close();
         }
     }
     
@@ -222,13 +310,69 @@ public class UdpServer {
         private int ttl = UdpConstants.RETRY_COUNT;
         private long timeout;
         
+        // Destinations that have not yet acknowledged a shared response
+        private final Set<SocketAddress> _pending;
+        private boolean _isAcknowledged = false;
+        
         public QueuedResponse(Response resp, long delay) {
             destination = resp.destination;
             bytes = resp.getBytes();
             ticket = resp.ticket;
+            _pending = null;
+            
+            resetDelay(delay);
+        }
+        
+        /**
+         * Creates a single response that is shared by several destinations,
+         * so that its contents are only encoded and stored once.  The 
+         * SocketAddress specified in the Response object is not used.
+         * 
+         * @param resp the response to be sent
+         * @param destinations the addresses to which it is sent
+         * @param delay the delay before the first retransmission
+         */
+        public QueuedResponse(Response resp, Collection<SocketAddress> destinations, long delay) {
+            destination = null;
+            bytes = resp.getBytes();
+            ticket = resp.ticket;
+            _pending = new LinkedHashSet<SocketAddress>(destinations);
             
             resetDelay(delay);
         }
+        
+        /**
+         * Records an acknowledgement of this response.  Responses to a single
+         * destination are acknowledged by their ticket alone.
+         * 
+         * @param source the address from which the acknowledgement came
+         * @return true if the source had yet to acknowledge the response
+         */
+        synchronized boolean acknowledge(SocketAddress source) {
+            if (_pending == null) {
+                boolean isPending = !_isAcknowledged;
+                _isAcknowledged = true;
+                return isPending;
+            }
+            return _pending.remove(source);
+        }
+        
+        /**
+         * Checks if every destination has acknowledged this response.
+         */
+        synchronized boolean isAcknowledged() {
+            return (_pending == null) ? _isAcknowledged : _pending.isEmpty();
+        }
+        
+        /**
+         * Lists the destinations that have yet to acknowledge this response.
+         * 
+         * @return the destinations to which the response should be sent
+         */
+        synchronized List<SocketAddress> getPendingDestinations() {
+            if (_pending == null) return Collections.singletonList(destination);
+            return new ArrayList<SocketAddress>(_pending);
+        }
 
         public final void resetDelay(long delay) {
             timeout = System.nanoTime() + delay;
@@ -246,6 +390,13 @@ public class UdpServer {
             }
         }
 
+        /**
+         * Returns true if this response has been sent more than once.
+         */
+        boolean isRetransmitted() {
+            return ttl < UdpConstants.RETRY_COUNT;
+        }
+
         public DatagramPacket toPacket() throws SocketException {
             return new DatagramPacket(bytes, bytes.length, destination);
         }
@@ -253,8 +404,13 @@ public class UdpServer {
     
     class Receiver implements Runnable {
 
+        final DatagramSocket _socket;
         byte[] _buffer = new byte[UdpConstants.MAX_PACKET_SIZE];
         DatagramPacket _packet = new DatagramPacket(_buffer, _buffer.length);
+        
+        Receiver(DatagramSocket socket) {
+            _socket = socket;
+        }
 
         public void run() {
             while(_socket.isBound() && !_socket.isClosed()) {
@@ -267,11 +423,12 @@ public class UdpServer {
                     
                     _socket.receive(_packet);
                 } catch (SocketException e) {
-                    if (!e.getMessage().equalsIgnoreCase("Socket closed"))
+                    if (!_socket.isClosed())
                         logger.log(Level.WARNING, "Failed to receive packet, exiting receiver", e);
                     return;
                 } catch (IOException e) {
-                    logger.log(Level.WARNING, "Failed to receive packet, exiting receiver", e);
+                    if (!_socket.isClosed())
+                        logger.log(Level.WARNING, "Failed to receive packet, exiting receiver", e);
                     return;
                 }
                 
@@ -292,7 +449,7 @@ public class UdpServer {
                 // otherwise, send out an ACK and handle the message
                 //System.out.println("GOT PACKET " + _socket.getLocalSocketAddress() + " CMD " + cmd);
                 if (cmd.equals(UdpConstants.CMD_ACKNOWLEDGE)) {
-                    acknowledge(request.ticket);
+                    acknowledge(request.ticket, request.source);
                 } else {
                     // Construct an ack and send it out if there was a valid ticket
                     if (request.ticket != UdpConstants.NO_TICKET) {
@@ -307,12 +464,14 @@ public class UdpServer {
                         }
                         
                         // If we have seen this ticket before, ignore it
-                        if (_oldTickets.contains(request.ticket)) {
-                            continue;
-                        } else {            
-                            if (_oldTickets.size() >= UdpConstants.TICKET_CACHE_SIZE) 
-                                _oldTickets.remove(0);
-                            _oldTickets.add(request.ticket);
+                        synchronized(_oldTickets) {
+                            if (_oldTickets.contains(request.ticket)) {
+                                continue;
+                            } else {            
+                                if (_oldTickets.size() >= UdpConstants.TICKET_CACHE_SIZE) 
+                                    _oldTickets.remove(0);
+                                _oldTickets.add(request.ticket);
+                            }
                         }
                     }
                     
@@ -329,6 +488,7 @@ public class UdpServer {
     class Responder implements Runnable {
         public void run() {
             QueuedResponse response;
+            long lastExpiration = System.nanoTime();
 
             while(_socket.isBound() && !_socket.isClosed()) {
                 // Wait for next response that has timed out or requires transmission
@@ -340,13 +500,30 @@ public class UdpServer {
                     // TODO: some logger thing here
                     return;
                 }
+                
+                // Periodically forget links that are no longer used, since 
+                // every reliable destination gets an entry
+                long now = System.nanoTime();
+                if (now - lastExpiration > UdpConstants.LINK_HEALTH_TIMEOUT_NS) {
+                    expireLinkHealth(now);
+                    lastExpiration = now;
+                }
 
-                // Send the response to the requestor
+                // Send the response to the requestor, and record that the
+                // previous transmission to each destination went unanswered
+                List<SocketAddress> destinations = response.getPendingDestinations();
+                for (SocketAddress dest : destinations) {
+                    getOrCreateLinkHealth(dest).lost();
+                }
                 try {
                     //System.out.println("RESENDING [" + response.ttl + "]: " + response.ticket + " to " + response.destination);
-                    _socket.send(response.toPacket());
+                    DatagramPacket packet = new DatagramPacket(response.bytes, response.bytes.length);
+                    for (SocketAddress dest : destinations) {
+                        packet.setSocketAddress(dest);
+                        _socket.send(packet);
+                    }
                 } catch(SocketException e) { 
-                    if (e.getMessage().equalsIgnoreCase("Socket is closed")) {
+                    if (_socket.isClosed()) {
                         logger.log(Level.WARNING, "Message dropped, server was shutdown.");
                     } else {
                         logger.log(Level.WARNING, "Failed to respond.", e);
@@ -365,13 +542,62 @@ public class UdpServer {
                 } else {
                     // If the TTL is at zero, report a transmission loss
                     if (_handler != null) {
-                        _handler.timeout(response.ticket, response.destination);
+                        for (SocketAddress dest : destinations) {
+                            _handler.timeout(response.ticket, dest);
+                        }
                     }
                 }
             }
         }
     }
     
+    private LinkHealth getOrCreateLinkHealth(SocketAddress destination) {
+        LinkHealth health = _linkHealth.get(destination);
+        if (health == null) {
+            LinkHealth newHealth = new LinkHealth();
+            health = _linkHealth.putIfAbsent(destination, newHealth);
+            if (health == null) health = newHealth;
+        }
+        return health;
+    }
+    
+    /**
+     * Retrieves the estimated health of the link to a destination, which is
+     * learned from the reliable responses that are sent to it.
+     * 
+     * @param destination the address to which responses are sent
+     * @return the health of the link, or null if no reliable response has
+     * been acknowledged by or lost to the destination
+     */
+    public LinkHealth getLinkHealth(SocketAddress destination) {
+        return _linkHealth.get(destination);
+    }
+    
+    /**
+     * Stops tracking the health of the link to a destination, such as when
+     * it is no longer subscribed to any responses.
+     * 
+     * @param destination the address to which responses were sent
+     */
+    public void forgetLinkHealth(SocketAddress destination) {
+        _linkHealth.remove(destination);
+    }
+    
+    /**
+     * Forgets the health of links that have not acknowledged or lost a 
+     * response within the link health timeout.  The responder calls this
+     * periodically, so that the table does not grow with every destination
+     * that was ever sent a reliable response.
+     * 
+     * @param now the current time in nanoseconds
+     */
+    void expireLinkHealth(long now) {
+        for (Iterator<LinkHealth> it = _linkHealth.values().iterator(); it.hasNext();) {
+            if (now - it.next().getLastUpdateTime() > UdpConstants.LINK_HEALTH_TIMEOUT_NS)
+                it.remove();
+        }
+    }
+    
     /**
      * Retrieves the current retransmission timeout, which is based on a 
      * round-trip time average plus a retransmission delay.
@@ -415,7 +641,43 @@ public class UdpServer {
             _socket.send(qr.toPacket());
             //System.out.println("RESPOND " + qr.ticket + " FROM " + _socket.getLocalSocketAddress() + " TO " + qr.destination);
         } catch (SocketException e) {
-            if (e.getMessage().equalsIgnoreCase("Socket is closed")) {
+            if (_socket.isClosed()) {
+                logger.log(Level.WARNING, "Message dropped, server was shutdown.");
+            } else {
+                logger.log(Level.WARNING, "Failed to respond.", e);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to respond.", e);
+        }
+    }
+
+    /**
+     * Send out a function response to a list of addresses, with automatic
+     * retransmission and acknowledgement.  The response is encoded once and 
+     * shared by all the destinations, and is retransmitted only to those that
+     * have not yet acknowledged it.  The SocketAddress specified in the 
+     * Response object is not used in this case.
+     * 
+     * @param response the response to be sent
+     * @param destinations the destination addresses to which it will be sent
+     */
+    public void respond(Response response, Collection<SocketAddress> destinations) {
+        
+        // Trivially ignore blank requests;
+        if (response == null || destinations.isEmpty())
+            return;
+        
+        try {
+            QueuedResponse qr = new QueuedResponse(response, destinations, getRetransmissionTimeout());
+            _responses.add(qr);
+            
+            DatagramPacket packet = new DatagramPacket(qr.bytes, qr.bytes.length);
+            for (SocketAddress dest : destinations) {
+                packet.setSocketAddress(dest);
+                _socket.send(packet);
+            }
+        } catch (SocketException e) {
+            if (_socket.isClosed()) {
                 logger.log(Level.WARNING, "Message dropped, server was shutdown.");
             } else {
                 logger.log(Level.WARNING, "Failed to respond.", e);
@@ -450,7 +712,7 @@ public class UdpServer {
             
             //System.out.println("BCAST " + response.ticket + " FROM " + _socket.getLocalSocketAddress() + " TO " + packet.getSocketAddress());
         } catch (SocketException e) {
-            if (e.getMessage().equalsIgnoreCase("Socket is closed")) {
+            if (_socket.isClosed()) {
                 logger.log(Level.WARNING, "Message dropped, server was shutdown.");
             } else {
                 logger.log(Level.WARNING, "Failed to respond.", e);
@@ -479,7 +741,7 @@ public class UdpServer {
             
             //System.out.println("SEND " + response.ticket + " FROM " + _socket.getLocalSocketAddress() + " TO " + packet.getSocketAddress());
         } catch (SocketException e) {
-            if (e.getMessage().equalsIgnoreCase("Socket is closed")) {
+            if (_socket.isClosed()) {
                 logger.log(Level.WARNING, "Message dropped, server was shutdown.");
             } else {
                 logger.log(Level.WARNING, "Failed to respond.", e);
@@ -496,16 +758,41 @@ public class UdpServer {
      * @param ticket the ticket number that will be acknowledged
      */
     public void acknowledge(long ticket) {
+        acknowledge(ticket, null);
+    }
+
+    /**
+     * Removes the specified source from the responses that have the 
+     * corresponding ticket.  Responses are removed entirely once all of their
+     * destinations have acknowledged them.
+     *
+     * @param ticket the ticket number that will be acknowledged
+     * @param source the address that acknowledged the ticket, or null to 
+     * acknowledge the ticket for all destinations
+     */
+    public void acknowledge(long ticket, SocketAddress source) {
         Iterator<QueuedResponse> itr = _responses.iterator();
 
         while(itr.hasNext()) {
             QueuedResponse resp = itr.next();
             if (resp.ticket == ticket) {
                  // TODO: should this stop after the first one?
-                itr.remove();
+                if (source == null) {
+                    itr.remove();
+                } else if (resp.acknowledge(source)) {
+                    if (resp.isAcknowledged())
+                        itr.remove();
+                } else {
+                    // Only learn from the first acknowledgement of each 
+                    // destination that the response was sent to
+                    continue;
+                }
                 
                 // Learn the new retransmission rate
-                learnRetransmissionTimeout(System.nanoTime() - resp.sentTime);
+                long rtt = System.nanoTime() - resp.sentTime;
+                learnRetransmissionTimeout(rtt);
+                if (source != null)
+                    getOrCreateLinkHealth(source).acknowledged(rtt, resp.isRetransmitted());
             }
         }
     }
@@ -14,20 +14,31 @@ import com.platypus.crw.VehicleServer.WaypointState;
 import com.platypus.crw.VelocityListener;
 import com.platypus.crw.WaypointListener;
 import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.SensorFilter;
 import com.platypus.crw.data.Twist;
 import com.platypus.crw.data.UtmPose;
+import com.platypus.crw.udp.ListenerDispatcher.Policy;
+import com.platypus.crw.udp.UdpConstants.STREAM;
 import com.platypus.crw.udp.UdpServer.Request;
 import com.platypus.crw.udp.UdpServer.Response;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -56,30 +67,65 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     protected SocketAddress _vehicleServer;
     protected SocketAddress _registryServer;
 
-    final Timer _timer = new Timer(true);
+    final Timer _timer;
     
      // Start ticket with random offset to prevent collisions across multiple clients
-    final AtomicLong _ticketCounter = new AtomicLong(new Random().nextLong() << 32);
-    final TimeoutMap _ticketMap = new TimeoutMap();
+    final AtomicLong _ticketCounter;
+    final TimeoutMap _ticketMap;
     
-    final Object _imageReassemblyLock = new Object();
-    int _imageReassemblyTicket;
-    byte[][] _imageReassemblyTable;
+    final TelemetryCache _telemetryCache = new TelemetryCache();
+    volatile boolean _isTelemetryCacheEnabled = false;
     
-    //protected final Map<Integer, List<SensorListener>> _sensorListeners = new TreeMap<Integer, List<SensorListener>>();
-    protected final List<SensorListener> _sensorListeners = new ArrayList<SensorListener>();
-    protected final List<ImageListener> _imageListeners = new ArrayList<ImageListener>();
-    protected final List<VelocityListener> _velocityListeners = new ArrayList<VelocityListener>();
-    protected final List<PoseListener> _poseListeners = new ArrayList<PoseListener>();
-    protected final List<CameraListener> _cameraListeners = new ArrayList<CameraListener>();
-    protected final List<WaypointListener> _waypointListeners = new ArrayList<WaypointListener>();
-    protected final List<CrumbListener> _crumbListeners = new ArrayList<CrumbListener>();
-    protected final List<RCOverrideListener> _rcListeners = new ArrayList<RCOverrideListener>();
-    protected final List<KeyValueListener> _keyValueListeners = new ArrayList<KeyValueListener>();
+    final ImageReassembler _imageReassembler = new ImageReassembler();
+    volatile boolean _isImageStreamReliable = true;
+    
+    // Requested minimum interval between events on each stream
+    final AtomicIntegerArray _streamIntervalsMs = new AtomicIntegerArray(STREAM.values().length);
+    volatile int _lastSubscriptionMask = 0;
+    
+    // Telemetry can be received as periodic snapshots instead of events
+    volatile boolean _isStateSnapshotEnabled = false;
+    long _stateEpoch = 0;
+    long _stateSeq = 0;
+    
+    // Pose and velocity can be received using a compact encoding
+    volatile boolean _isTelemetryCompressed = false;
+    final TelemetryCodec.Decoder _poseDecoder = new TelemetryCodec.Decoder();
+    final TelemetryCodec.Decoder _velocityDecoder = new TelemetryCodec.Decoder();
+    
+    // Records received from the durable log of the vehicle, if it has one
+    final OutboundLog.Tracker _logTracker = new OutboundLog.Tracker();
+    
+    // Latest key-value pairs, and the version up to which they are synchronized
+    final Map<String, Float> _keyValues = new HashMap<String, Float>();
+    long _keyValueEpoch = 0;
+    long _keyValueVersion = 0;
+    
+    // Vehicles known to the registry, and the version up to which they are listed
+    final Map<SocketAddress, String> _services = new LinkedHashMap<SocketAddress, String>();
+    long _servicesEpoch = 0;
+    long _servicesVersion = 0;
+    
+    // Listeners are called from this pool rather than the UDP receive thread
+    final ExecutorService _listenerExecutor;
+    
+    protected final ListenerDispatcher<SensorListener> _sensorListeners;
+    protected final Map<SensorListener, SensorFilter> _sensorFilters = new ConcurrentHashMap<SensorListener, SensorFilter>();
+    protected final ListenerDispatcher<ImageListener> _imageListeners;
+    protected final ListenerDispatcher<VelocityListener> _velocityListeners;
+    protected final ListenerDispatcher<PoseListener> _poseListeners;
+    protected final ListenerDispatcher<CameraListener> _cameraListeners;
+    protected final ListenerDispatcher<WaypointListener> _waypointListeners;
+    protected final ListenerDispatcher<CrumbListener> _crumbListeners;
+    protected final ListenerDispatcher<RCOverrideListener> _rcListeners;
+    protected final ListenerDispatcher<KeyValueListener> _keyValueListeners;
+    protected final ListenerDispatcher<RegistryListener> _registryListeners;
+    protected final Map<RegistryListener, String> _registryPrefixes = new ConcurrentHashMap<RegistryListener, String>();
 
     public UdpVehicleServer() {
         // Create a UDP server that will handle RPC
-        _udpServer = new UdpServer();
+        this(new UdpServer(), new AtomicLong(new Random().nextLong() << 32),
+                new TimeoutMap(), createListenerExecutor(), new Timer(true));
         _udpServer.setHandler(this);
         _udpServer.start();
         
@@ -87,6 +133,53 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
         _timer.scheduleAtFixedRate(new RegistrationTask(), 0, UdpConstants.REGISTRATION_RATE_MS);
     }
     
+    /**
+     * Creates a proxy that shares its socket, tickets and listener threads
+     * with other proxies.  The owner of the shared resources is responsible 
+     * for routing received packets to this proxy, periodically calling 
+     * subscribe(), and shutting the resources down.
+     * 
+     * @see UdpFleetClient
+     */
+    UdpVehicleServer(UdpServer udpServer, AtomicLong ticketCounter, 
+            TimeoutMap ticketMap, ExecutorService listenerExecutor) {
+        this(udpServer, ticketCounter, ticketMap, listenerExecutor, null);
+    }
+    
+    private UdpVehicleServer(UdpServer udpServer, AtomicLong ticketCounter, 
+            TimeoutMap ticketMap, ExecutorService listenerExecutor, Timer timer) {
+        _udpServer = udpServer;
+        _ticketCounter = ticketCounter;
+        _ticketMap = ticketMap;
+        _listenerExecutor = listenerExecutor;
+        _timer = timer;
+        
+        _sensorListeners = new ListenerDispatcher<SensorListener>(_listenerExecutor, Policy.QUEUE);
+        _imageListeners = new ListenerDispatcher<ImageListener>(_listenerExecutor, Policy.CONFLATE);
+        _velocityListeners = new ListenerDispatcher<VelocityListener>(_listenerExecutor, Policy.CONFLATE);
+        _poseListeners = new ListenerDispatcher<PoseListener>(_listenerExecutor, Policy.CONFLATE);
+        _cameraListeners = new ListenerDispatcher<CameraListener>(_listenerExecutor, Policy.QUEUE);
+        _waypointListeners = new ListenerDispatcher<WaypointListener>(_listenerExecutor, Policy.QUEUE);
+        _crumbListeners = new ListenerDispatcher<CrumbListener>(_listenerExecutor, Policy.QUEUE);
+        _rcListeners = new ListenerDispatcher<RCOverrideListener>(_listenerExecutor, Policy.QUEUE);
+        _keyValueListeners = new ListenerDispatcher<KeyValueListener>(_listenerExecutor, Policy.QUEUE);
+        _registryListeners = new ListenerDispatcher<RegistryListener>(_listenerExecutor, Policy.QUEUE);
+    }
+    
+    /**
+     * Creates a pool of daemon threads on which listeners are called.
+     */
+    static ExecutorService createListenerExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UdpVehicleServer listener");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
     public UdpVehicleServer(SocketAddress addr) {
         this();
         _vehicleServer = addr;
@@ -97,10 +190,12 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
         _timer.purge();
         _ticketMap.shutdown();
         _udpServer.stop();
+        _listenerExecutor.shutdown();
     }
     
     public void setVehicleService(SocketAddress addr) {
         _vehicleServer = addr;
+        _telemetryCache.clear();
         
         // Check if there is currently a registry server
         // TODO: better synchronization here
@@ -119,6 +214,62 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
         }
     }
     
+    /**
+     * Connects to a vehicle through the relay of the already-set registry, 
+     * for vehicles that cannot be reached directly, such as vehicles behind 
+     * carrier-grade NAT.  Once the registry has opened a relay session, the 
+     * relay port is used as the vehicle service.
+     * 
+     * @param addr the address of the vehicle, as listed by the registry
+     * @param obs an observer which will be called with the relay address that
+     * is now used as the vehicle service, or null
+     */
+    public void connectViaRelay(SocketAddress addr, final FunctionObserver<SocketAddress> obs) {
+        final SocketAddress registry = _registryServer;
+        if (registry == null) {
+            if (obs != null) {
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+            }
+            return;
+        }
+        
+        long ticket = _ticketCounter.incrementAndGet();
+        
+        try {
+            Response response = new Response(ticket, registry);
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_CONNECT_RELAY.str);
+            response.stream.writeUTF(((InetSocketAddress)addr).getAddress().getHostAddress());
+            response.stream.writeInt(((InetSocketAddress)addr).getPort());
+            _ticketMap.put(ticket, new FunctionObserver<Integer>() {
+                @Override
+                public void completed(Integer port) {
+                    if (port <= 0) {
+                        if (obs != null) obs.failed(FunctionObserver.FunctionError.ERROR);
+                        return;
+                    }
+                    
+                    // The relay forwards to the vehicle on its own, so this
+                    // does not make a connection request like setVehicleService
+                    SocketAddress relay = new InetSocketAddress(
+                            ((InetSocketAddress)registry).getAddress(), port);
+                    _vehicleServer = relay;
+                    _telemetryCache.clear();
+                    if (obs != null) obs.completed(relay);
+                }
+
+                @Override
+                public void failed(FunctionObserver.FunctionError cause) {
+                    if (obs != null) obs.failed(cause);
+                }
+            });
+            _udpServer.respond(response);
+        } catch (IOException e) {
+            if (obs != null) {
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+            }
+        }
+    }
+    
     public SocketAddress getVehicleService() {
         return _vehicleServer;
     }
@@ -130,19 +281,197 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     public SocketAddress getRegistryService() {
         return _registryServer;
     }
+    
+    /**
+     * Enables or disables the local telemetry cache.  When enabled, this 
+     * server subscribes to the pose, velocity and waypoint streams of the 
+     * vehicle even if no listeners are registered, and keeps the latest value
+     * of each.  The getter variants that accept a staleness bound are then
+     * answered locally whenever the cached value is recent enough.
+     * 
+     * @param enabled true to start caching streamed telemetry
+     */
+    public void setTelemetryCacheEnabled(boolean enabled) {
+        _isTelemetryCacheEnabled = enabled;
+        if (!enabled) _telemetryCache.clear();
+    }
+    
+    public boolean isTelemetryCacheEnabled() {
+        return _isTelemetryCacheEnabled;
+    }
 
-    private void registerListener(List listenerList, UdpConstants.COMMAND registerCommand) {
-        synchronized(listenerList) {
-            if (!listenerList.isEmpty()) {
-                try {
-                    Response response = new Response(UdpConstants.NO_TICKET, _vehicleServer);
-                    response.stream.writeUTF(registerCommand.str);
-                    _udpServer.send(response);
-                } catch (IOException e) {
-                    // TODO: should probably change state or something
-                    logger.log(Level.WARNING, "Failed to transmit listener registration: {0}", registerCommand);
-                }
+    /**
+     * Enables or disables snapshot mode.  In snapshot mode, the pose, 
+     * velocity, waypoint and sensor streams are replaced by a single STATE 
+     * stream, on which the vehicle periodically sends one packet containing
+     * the latest value of each.  Bursts of events are conflated on the 
+     * vehicle instead of being sent individually, and listeners are only 
+     * called for values that changed since the previous snapshot.  The rate
+     * of snapshots can be set using setStreamRate(STREAM.STATE, rateHz).
+     * 
+     * @param enabled true to receive telemetry as periodic snapshots
+     */
+    public void setStateSnapshotEnabled(boolean enabled) {
+        _isStateSnapshotEnabled = enabled;
+    }
+    
+    public boolean isStateSnapshotEnabled() {
+        return _isStateSnapshotEnabled;
+    }
+
+    /**
+     * Selects how pose and velocity are streamed from the vehicle.  When 
+     * compressed, the POSE_DELTA and VELOCITY_DELTA streams are requested 
+     * instead of the POSE and VELOCITY streams, which send each sample as a 
+     * small quantized delta from a periodic keyframe.  The precision of the 
+     * received values is chosen by the vehicle, and stream rates must be set
+     * on the compact streams themselves.
+     * 
+     * @param compressed true to request compact pose and velocity streams
+     * @see TelemetryCodec
+     */
+    public void setTelemetryCompressed(boolean compressed) {
+        _isTelemetryCompressed = compressed;
+    }
+    
+    public boolean isTelemetryCompressed() {
+        return _isTelemetryCompressed;
+    }
+
+    /**
+     * Selects how images are streamed from the vehicle.  Reliable streams 
+     * acknowledge and retransmit every fragment.  Unreliable streams are sent
+     * once, along with parity fragments that allow a single lost fragment 
+     * per group to be rebuilt, which avoids acknowledgement and 
+     * retransmission traffic for frames that are quickly stale.
+     * 
+     * @param reliable true to request a reliable image stream
+     */
+    public void setImageStreamReliable(boolean reliable) {
+        _isImageStreamReliable = reliable;
+    }
+    
+    public boolean isImageStreamReliable() {
+        return _isImageStreamReliable;
+    }
+    
+    /**
+     * Selects how events are delivered to listeners of the specified type.
+     * By default, pose, velocity and image events are conflated so that slow 
+     * listeners only see the latest value, while all other events are queued
+     * without loss.  Use DROP_OLDEST to bound the memory used by the queues
+     * of listeners that may fall far behind.
+     * 
+     * @param listenerType the listener interface, e.g. PoseListener.class
+     * @param policy the delivery policy for listeners of that type
+     */
+    public void setDispatchPolicy(Class<?> listenerType, Policy policy) {
+        getDispatcher(listenerType).setPolicy(policy);
+    }
+    
+    public Policy getDispatchPolicy(Class<?> listenerType) {
+        return getDispatcher(listenerType).getPolicy();
+    }
+    
+    /**
+     * Returns the number of events that were discarded by the dispatch policy
+     * before they were delivered to the current listeners of a type.
+     * 
+     * @param listenerType the listener interface, e.g. PoseListener.class
+     * @return the number of discarded events
+     */
+    public long getDroppedEvents(Class<?> listenerType) {
+        return getDispatcher(listenerType).getDropped();
+    }
+    
+    private ListenerDispatcher<?> getDispatcher(Class<?> listenerType) {
+        if (listenerType == PoseListener.class) return _poseListeners;
+        if (listenerType == ImageListener.class) return _imageListeners;
+        if (listenerType == CameraListener.class) return _cameraListeners;
+        if (listenerType == SensorListener.class) return _sensorListeners;
+        if (listenerType == VelocityListener.class) return _velocityListeners;
+        if (listenerType == WaypointListener.class) return _waypointListeners;
+        if (listenerType == CrumbListener.class) return _crumbListeners;
+        if (listenerType == RCOverrideListener.class) return _rcListeners;
+        if (listenerType == KeyValueListener.class) return _keyValueListeners;
+        throw new IllegalArgumentException("Unknown listener type: " + listenerType);
+    }
+
+    /**
+     * Requests that the vehicle send events on the specified stream no faster
+     * than the given rate.  This allows, for example, a display to receive 
+     * pose updates at a low rate while a controller on another proxy receives
+     * them at full rate.  The rate is applied per proxy, so it limits the
+     * events delivered to all the listeners of this server.
+     * 
+     * @param stream the stream to limit
+     * @param rateHz the maximum rate of events, or zero to receive every event
+     */
+    public void setStreamRate(STREAM stream, double rateHz) {
+        _streamIntervalsMs.set(stream.ordinal(), (rateHz > 0.0) ? (int)Math.ceil(1000.0 / rateHz) : 0);
+    }
+    
+    public double getStreamRate(STREAM stream) {
+        int intervalMs = _streamIntervalsMs.get(stream.ordinal());
+        return (intervalMs > 0) ? 1000.0 / intervalMs : 0.0;
+    }
+    
+    private int subscriptionMask(ListenerDispatcher<?> listeners, STREAM stream, boolean isRequired) {
+        return (isRequired || !listeners.isEmpty()) ? stream.mask : 0;
+    }
+
+    /**
+     * Combines the filters of all the sensor listeners into a single filter
+     * that accepts every reading that any of them is interested in.
+     */
+    private SensorFilter getSensorFilter() {
+        SensorFilter union = null;
+        for (SensorFilter filter : _sensorFilters.values()) {
+            union = (union == null) ? filter : union.union(filter);
+        }
+        return (union == null) ? SensorFilter.ALL : union;
+    }
+    
+    /**
+     * Sends a single subscription message covering every stream that has 
+     * listeners, along with the requested rate of each stream.
+     */
+    void subscribe() {
+        int mask = 0;
+        mask |= subscriptionMask(_imageListeners, _isImageStreamReliable ? STREAM.IMAGE : STREAM.IMAGE_STREAM, false);
+        mask |= subscriptionMask(_velocityListeners, _isTelemetryCompressed ? STREAM.VELOCITY_DELTA : STREAM.VELOCITY, _isTelemetryCacheEnabled);
+        mask |= subscriptionMask(_poseListeners, _isTelemetryCompressed ? STREAM.POSE_DELTA : STREAM.POSE, _isTelemetryCacheEnabled);
+        mask |= subscriptionMask(_cameraListeners, STREAM.CAMERA, false);
+        mask |= subscriptionMask(_waypointListeners, STREAM.WAYPOINT, _isTelemetryCacheEnabled);
+        mask |= subscriptionMask(_crumbListeners, STREAM.CRUMB, false);
+        mask |= subscriptionMask(_sensorListeners, STREAM.SENSOR, false);
+        mask |= subscriptionMask(_rcListeners, STREAM.RCOVER, false);
+        mask |= subscriptionMask(_keyValueListeners, STREAM.KEYVALUE, false);
+        
+        // In snapshot mode, the telemetry streams are combined into one
+        int telemetryMask = STREAM.POSE.mask | STREAM.VELOCITY.mask | STREAM.WAYPOINT.mask | STREAM.SENSOR.mask
+                | STREAM.POSE_DELTA.mask | STREAM.VELOCITY_DELTA.mask;
+        if (_isStateSnapshotEnabled && (mask & telemetryMask) != 0)
+            mask = (mask & ~telemetryMask) | STREAM.STATE.mask;
+        
+        // Once there is nothing left to cancel, there is no need to send anything
+        if (mask == 0 && _lastSubscriptionMask == 0) return;
+        _lastSubscriptionMask = mask;
+        
+        try {
+            Response response = new Response(UdpConstants.NO_TICKET, _vehicleServer);
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_SUBSCRIBE.str);
+            response.stream.writeInt(mask);
+            for (STREAM stream : STREAM.values()) {
+                if ((mask & stream.mask) != 0)
+                    response.stream.writeInt(_streamIntervalsMs.get(stream.ordinal()));
             }
+            if ((mask & (STREAM.SENSOR.mask | STREAM.STATE.mask)) != 0)
+                UdpConstants.writeSensorFilter(response.stream, getSensorFilter());
+            _udpServer.send(response);
+        } catch (IOException e) {
+            // TODO: should probably change state or something
+            logger.log(Level.WARNING, "Failed to transmit subscription: {0}", mask);
         }
     }
 
@@ -155,83 +484,229 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
      * @throws IOException 
      */
     private byte[] reconstructImage(Request req) throws IOException {
-        synchronized(_imageReassemblyLock) {
-            
-            // Reconstruct all the data from the request
-            int imageSeq = req.stream.readInt();
-            int totalIdx = req.stream.readInt();
-            int pieceIdx = req.stream.readInt();
-            
-            // If this is a new image, reset the table
-            if (_imageReassemblyTicket != imageSeq) {
-                _imageReassemblyTicket = imageSeq;
-                _imageReassemblyTable = new byte[totalIdx][];
-            }
-            
-            // Put the piece in the corresponding slot if we don't have it
-            if (_imageReassemblyTable[pieceIdx] == null) {
-                byte[] image = new byte[req.stream.readInt()];
-                req.stream.readFully(image);
-                _imageReassemblyTable[pieceIdx] = image;
-            } else {
-                return null;
+        int imageSeq = req.stream.readInt();
+        int totalIdx = req.stream.readInt();
+        int pieceIdx = req.stream.readInt();
+        int pieceLen = req.stream.readInt();
+        return _imageReassembler.receive(imageSeq, totalIdx, pieceIdx, pieceLen, req.stream);
+    }
+    
+    /**
+     * This function attempts to reconstruct an image using a parity fragment
+     * from an unreliable image stream.
+     * 
+     * @param req a request containing a parity fragment
+     * @return byte array containing compressed image, or null if not complete
+     * @throws IOException 
+     */
+    private byte[] recoverImage(Request req) throws IOException {
+        int imageSeq = req.stream.readInt();
+        int totalIdx = req.stream.readInt();
+        int groupIdx = req.stream.readInt();
+        int lengthXor = req.stream.readInt();
+        int parityLen = req.stream.readInt();
+        return _imageReassembler.receiveParity(imageSeq, totalIdx, groupIdx, lengthXor, parityLen, req.stream);
+    }
+
+    /**
+     * Sends a cumulative acknowledgement of the records that were received
+     * from the durable log of the vehicle.  This is sent periodically even 
+     * if nothing new was received, in case the previous one was lost.
+     */
+    void acknowledgeLog() {
+        if (_logTracker.getId() == 0) return;
+        
+        try {
+            Response response = new Response(UdpConstants.NO_TICKET, _vehicleServer);
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_ACK_LOG.str);
+            response.stream.writeLong(_logTracker.getId());
+            response.stream.writeLong(_logTracker.acknowledge());
+            _udpServer.send(response);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to transmit log acknowledgement.");
+        }
+    }
+
+    /**
+     * Asks the registry to push changes to the vehicles whose names match 
+     * the prefix of any registry listener.  This is sent periodically to keep
+     * the subscription alive, and once with no prefixes when the last 
+     * listener is removed.
+     */
+    void watchRegistry() {
+        if (_registryServer == null || _registryListeners.isEmpty()) return;
+        sendRegistryWatch(new LinkedHashSet<String>(_registryPrefixes.values()));
+    }
+    
+    private void sendRegistryWatch(Collection<String> prefixes) {
+        try {
+            Response response = new Response(UdpConstants.NO_TICKET, _registryServer);
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_WATCH_REGISTRY.str);
+            response.stream.writeInt(prefixes.size());
+            for (String prefix : prefixes) {
+                response.stream.writeUTF(prefix);
             }
-            
-            // Get total image length.  If the pieces aren't done, return null
-            int totalLength = 0;
-            for (byte[] piece : _imageReassemblyTable) {
-                if (piece == null) {
-                    return null;
-                } else {
-                    totalLength += piece.length;
+            _udpServer.send(response);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to transmit registry subscription.");
+        }
+    }
+    
+    /**
+     * Registers a listener for vehicles joining, leaving or being renamed in
+     * the registry.  Changes are pushed by the registry as they happen, so
+     * there is no need to poll getVehicleServices().
+     * 
+     * @param l the listener to register
+     * @param prefix only vehicles whose names start with this prefix are 
+     * reported, or an empty string for every vehicle
+     */
+    public void addRegistryListener(RegistryListener l, String prefix) {
+        _registryPrefixes.put(l, prefix);
+        _registryListeners.add(l);
+        watchRegistry();
+    }
+    
+    public void removeRegistryListener(RegistryListener l) {
+        _registryListeners.remove(l);
+        _registryPrefixes.remove(l);
+        if (_registryServer != null && _registryListeners.isEmpty())
+            sendRegistryWatch(Collections.<String>emptyList());
+    }
+    
+    private void dispatchRegistryChange(final VehicleRegistryService.RegistryEvent event, 
+            final SocketAddress addr, final String name) {
+        _registryListeners.dispatch(new ListenerDispatcher.Event<RegistryListener>() {
+            @Override
+            public void deliver(RegistryListener l) {
+                String prefix = _registryPrefixes.get(l);
+                if (prefix != null && !name.startsWith(prefix)) return;
+                
+                switch (event) {
+                    case JOINED:
+                        l.vehicleJoined(addr, name);
+                        break;
+                    case LEFT:
+                        l.vehicleLeft(addr, name);
+                        break;
+                    case RENAMED:
+                        l.vehicleRenamed(addr, name);
+                        break;
                 }
             }
-            
-            // Reconstruct the image by copying together the pieces
-            byte[] totalImage = new byte[totalLength];
-            int offset = 0;
-            for (byte[] piece : _imageReassemblyTable) {
-                System.arraycopy(piece, 0, totalImage, offset, piece.length);
-                offset += piece.length;
-            }
-            return totalImage;
-        }
+        });
     }
-
+    
     private class RegistrationTask extends TimerTask {
         @Override
         public void run() {
+            watchRegistry();
+            
             // Don't need to register if we don't know the server
             if (_vehicleServer == null)
                 return;
             
-            // Check the lists for listeners, register if there are any
-            registerListener(_imageListeners, UdpConstants.COMMAND.CMD_REGISTER_IMAGE_LISTENER);
-            registerListener(_velocityListeners, UdpConstants.COMMAND.CMD_REGISTER_VELOCITY_LISTENER);
-            registerListener(_poseListeners, UdpConstants.COMMAND.CMD_REGISTER_POSE_LISTENER);
-            registerListener(_cameraListeners, UdpConstants.COMMAND.CMD_REGISTER_CAMERA_LISTENER);
-            registerListener(_waypointListeners, UdpConstants.COMMAND.CMD_REGISTER_WAYPOINT_LISTENER);
-            registerListener(_crumbListeners, UdpConstants.COMMAND.CMD_REGISTER_CRUMB_LISTENER);
-            registerListener(_sensorListeners, UdpConstants.COMMAND.CMD_REGISTER_SENSOR_LISTENER);
-            registerListener(_rcListeners, UdpConstants.COMMAND.CMD_REGISTER_RCOVER_LISTENER);
-            registerListener(_keyValueListeners, UdpConstants.COMMAND.CMD_REGISTER_KEYVALUE_LISTENER);
-            /*
-            // Special case to handle sensor listener channels
-            synchronized (_sensorListeners) {
-                for (Integer i : _sensorListeners.keySet()) {
-                    try {
-                        Response response = new Response(UdpConstants.NO_TICKET, _vehicleServer);
-                        response.stream.writeUTF(UdpConstants.COMMAND.CMD_REGISTER_SENSOR_LISTENER.str);
-                        response.stream.writeInt(i);
-                        _udpServer.send(response);
-                    } catch (IOException e) {
-                        // TODO: should probably change state or something
-                        logger.log(Level.WARNING, "Failed to transmit listener registration: {0}", 
-                                UdpConstants.COMMAND.CMD_REGISTER_SENSOR_LISTENER.str);
-                    }
-                }
+            // Check the lists for listeners, subscribe to those that have any
+            subscribe();
+            acknowledgeLog();
+        }
+    }
+
+    private void dispatchPose(final UtmPose pose) {
+        if (_isTelemetryCacheEnabled) _telemetryCache.updatePose(pose);
+        _poseListeners.dispatch(new ListenerDispatcher.Event<PoseListener>() {
+            @Override
+            public void deliver(PoseListener l) {
+                l.receivedPose(pose);
+            }
+        });
+    }
+    
+    private void dispatchVelocity(final Twist twist) {
+        if (_isTelemetryCacheEnabled) _telemetryCache.updateVelocity(twist);
+        _velocityListeners.dispatch(new ListenerDispatcher.Event<VelocityListener>() {
+            @Override
+            public void deliver(VelocityListener l) {
+                l.receivedVelocity(twist);
+            }
+        });
+    }
+    
+    private void dispatchWaypointState(final WaypointState wState) {
+        if (_isTelemetryCacheEnabled) _telemetryCache.updateWaypointStatus(wState);
+        _waypointListeners.dispatch(new ListenerDispatcher.Event<WaypointListener>() {
+            @Override
+            public void deliver(WaypointListener l) {
+                l.waypointUpdate(wState);
+            }
+        });
+    }
+    
+    private void dispatchSensor(final SensorData data, final long index) {
+        _sensorListeners.dispatch(new ListenerDispatcher.Event<SensorListener>() {
+            @Override
+            public void deliver(SensorListener l) {
+                SensorFilter filter = _sensorFilters.get(l);
+                if (filter == null || filter.accepts(data))
+                    l.receivedSensor(data, index);
+            }
+        });
+    }
+    
+    private void dispatchKeyValue(final String key, final float value) {
+        _keyValueListeners.dispatch(new ListenerDispatcher.Event<KeyValueListener>() {
+            @Override
+            public void deliver(KeyValueListener l) {
+                l.keyValueUpdate(key, value);
             }
-            */
+        });
+    }
+    
+    /**
+     * Decodes a snapshot of vehicle state, and dispatches the values that 
+     * have changed since the last snapshot to the corresponding listeners.
+     * This is only called from the receive thread, so the sequence numbers
+     * need no further synchronization.
+     * 
+     * @param req a request containing a CMD_SEND_STATE snapshot
+     * @throws IOException 
+     * @see StateSnapshot
+     */
+    private void receivedState(Request req) throws IOException {
+        long epoch = req.stream.readLong();
+        if (epoch != _stateEpoch) {
+            _stateEpoch = epoch;
+            _stateSeq = 0;
+        }
+        long lastSeq = _stateSeq;
+        
+        int flags = req.stream.readUnsignedByte();
+        if ((flags & StateSnapshot.HAS_POSE) != 0) {
+            long seq = req.stream.readLong();
+            UtmPose pose = UdpConstants.readPose(req.stream);
+            if (seq > lastSeq) dispatchPose(pose);
+            _stateSeq = Math.max(_stateSeq, seq);
+        }
+        if ((flags & StateSnapshot.HAS_VELOCITY) != 0) {
+            long seq = req.stream.readLong();
+            Twist twist = UdpConstants.readTwist(req.stream);
+            if (seq > lastSeq) dispatchVelocity(twist);
+            _stateSeq = Math.max(_stateSeq, seq);
+        }
+        if ((flags & StateSnapshot.HAS_WAYPOINT_STATE) != 0) {
+            long seq = req.stream.readLong();
+            WaypointState wState = WaypointState.values()[req.stream.readByte()];
+            if (seq > lastSeq) dispatchWaypointState(wState);
+            _stateSeq = Math.max(_stateSeq, seq);
+        }
+        
+        int numSensors = req.stream.readInt();
+        for (int i = 0; i < numSensors; ++i) {
+            long seq = req.stream.readLong();
+            SensorData data = UdpConstants.readSensorData(req.stream);
+            long index = req.stream.readLong();
+            if (seq > lastSeq) dispatchSensor(data, index);
+            _stateSeq = Math.max(_stateSeq, seq);
         }
     }
 
@@ -246,97 +721,133 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
             // Handle one-way commands (asynchronous events)
             switch (cmd) {
                 case CMD_SEND_CAMERA:
-                    CameraState cState = CameraState.values()[req.stream.readByte()];
-                    synchronized (_cameraListeners) {
-                        for (CameraListener l : _cameraListeners) {
+                {
+                    final CameraState cState = CameraState.values()[req.stream.readByte()];
+                    _cameraListeners.dispatch(new ListenerDispatcher.Event<CameraListener>() {
+                        @Override
+                        public void deliver(CameraListener l) {
                             l.imagingUpdate(cState);
                         }
-                    }
+                    });
                     return;
+                }
                 case CMD_SEND_IMAGE:
-                    byte[] image = reconstructImage(req);
+                case CMD_SEND_IMAGE_PARITY:
+                {
+                    final byte[] image = (cmd == UdpConstants.COMMAND.CMD_SEND_IMAGE) 
+                            ? reconstructImage(req) : recoverImage(req);
                     if (image != null) {
-                        synchronized (_imageListeners) {
-                            for (ImageListener l : _imageListeners) {
+                        _imageListeners.dispatch(new ListenerDispatcher.Event<ImageListener>() {
+                            @Override
+                            public void deliver(ImageListener l) {
                                 l.receivedImage(image);
                             }
-                        }
+                        });
                     }
                     return;
+                }
                 case CMD_SEND_POSE:
-                    UtmPose pose = UdpConstants.readPose(req.stream);
-                    synchronized (_poseListeners) {
-                        for (PoseListener l : _poseListeners) {
-                            l.receivedPose(pose);
-                        }
-                    }
+                    dispatchPose(UdpConstants.readPose(req.stream));
+                    return;
+                case CMD_SEND_POSE_DELTA:
+                {
+                    double[] values = _poseDecoder.read(req.stream);
+                    if (values != null) dispatchPose(TelemetryCodec.toPose(values));
                     return;
+                }
                 case CMD_SEND_CRUMB:
                 {
-                    double[] crumb = UdpConstants.readLatLng(req.stream);
-                    long index = req.stream.readLong();                    
-                    synchronized (_crumbListeners) {
-                        for (CrumbListener l : _crumbListeners) {
+                    final double[] crumb = UdpConstants.readLatLng(req.stream);
+                    final long index = req.stream.readLong();
+                    _crumbListeners.dispatch(new ListenerDispatcher.Event<CrumbListener>() {
+                        @Override
+                        public void deliver(CrumbListener l) {
                             l.receivedCrumb(crumb, index);
                         }
-                    }
+                    });
                     return;
                 }
                 case CMD_SEND_SENSOR:
                 {
                     SensorData data = UdpConstants.readSensorData(req.stream);
-                    long index = req.stream.readLong();
-                    synchronized (_sensorListeners) {
-                        // If there is no list of listeners, there is nothing to notify
-                        if (_sensorListeners.isEmpty()) return;
-
-                        // Notify each listener in the appropriate list
-                        for (SensorListener l : _sensorListeners) {
-                            l.receivedSensor(data, index);
-                        }
-                    }
+                    dispatchSensor(data, req.stream.readLong());
                     return;
                 }
                 case CMD_SEND_RCOVER:
                 {
-                    boolean isRCOverrideOn = req.stream.readBoolean();
-                    synchronized (_rcListeners) {
-                        if (_rcListeners.isEmpty()) return;
-                        
-                        for (RCOverrideListener l : _rcListeners) {
+                    final boolean isRCOverrideOn = req.stream.readBoolean();
+                    _rcListeners.dispatch(new ListenerDispatcher.Event<RCOverrideListener>() {
+                        @Override
+                        public void deliver(RCOverrideListener l) {
                             l.rcOverrideUpdate(isRCOverrideOn);
                         }
+                    });
+                    return;
+                }
+                case CMD_SEND_REGISTRY_CHANGE:
+                {
+                    long epoch = req.stream.readLong();
+                    long version = req.stream.readLong();
+                    VehicleRegistryService.RegistryEvent event = 
+                            VehicleRegistryService.RegistryEvent.values()[req.stream.readByte()];
+                    String name = req.stream.readUTF();
+                    String hostname = req.stream.readUTF();
+                    int port = req.stream.readInt();
+                    InetSocketAddress addr = new InetSocketAddress(hostname, port);
+                    
+                    // Keep the synchronized registry up to date, as long as
+                    // no change was missed since it was last synchronized
+                    synchronized (_services) {
+                        if (epoch == _servicesEpoch && version == _servicesVersion + 1) {
+                            if (event == VehicleRegistryService.RegistryEvent.LEFT) {
+                                _services.remove(addr);
+                            } else {
+                                _services.put(addr, name);
+                            }
+                            _servicesVersion = version;
+                        }
                     }
+                    dispatchRegistryChange(event, addr, name);
                     return;
                 }
                 case CMD_SEND_KEYVALUE:
                 {
                     String key = req.stream.readUTF();
                     float value = req.stream.readFloat();
-                    synchronized (_keyValueListeners) {
-                        if (_keyValueListeners.isEmpty()) return;
-                        for (KeyValueListener l : _keyValueListeners) {
-                            l.keyValueUpdate(key, value);
-                        }
+                    synchronized (_keyValues) {
+                        _keyValues.put(key, value);
                     }
+                    dispatchKeyValue(key, value);
                     return;
                 }
                 case CMD_SEND_VELOCITY:
-                    Twist twist = UdpConstants.readTwist(req.stream);
-                    synchronized (_velocityListeners) {
-                        for (VelocityListener l : _velocityListeners) {
-                            l.receivedVelocity(twist);
-                        }
-                    }
+                    dispatchVelocity(UdpConstants.readTwist(req.stream));
+                    return;
+                case CMD_SEND_VELOCITY_DELTA:
+                {
+                    double[] values = _velocityDecoder.read(req.stream);
+                    if (values != null) dispatchVelocity(TelemetryCodec.toTwist(values));
                     return;
+                }
                 case CMD_SEND_WAYPOINT:
-                    WaypointState wState = WaypointState.values()[req.stream.readByte()];
-                    synchronized (_waypointListeners) {
-                        for (WaypointListener l : _waypointListeners) {
-                            l.waypointUpdate(wState);
-                        }
-                    }
-                    return;          
+                    dispatchWaypointState(WaypointState.values()[req.stream.readByte()]);
+                    return;
+                case CMD_SEND_STATE:
+                    receivedState(req);
+                    return;
+                case CMD_SEND_LOG_RECORD:
+                {
+                    long logId = req.stream.readLong();
+                    long prevSeq = req.stream.readLong();
+                    long seq = req.stream.readLong();
+                    boolean isNew = _logTracker.receive(logId, prevSeq, seq);
+                    if (_logTracker.getUnacknowledged() >= UdpConstants.LOG_ACK_BATCH_SIZE)
+                        acknowledgeLog();
+                    
+                    // The record is a complete one-way message, minus its ticket
+                    if (isNew) received(req);
+                    return;
+                }
             }
             
             // For two-way commands (functions), check for a ticket
@@ -346,8 +857,12 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
             // If one exists, dispatch the command
             switch (cmd) {
                 case CMD_GET_POSE:
-                    obs.completed(UdpConstants.readPose(req.stream));
+                {
+                    UtmPose pose = UdpConstants.readPose(req.stream);
+                    if (_isTelemetryCacheEnabled) _telemetryCache.updatePose(pose);
+                    obs.completed(pose);
                     return;
+                }
                 case CMD_CAPTURE_IMAGE:
                     byte[] image = new byte[req.stream.readInt()];
                     req.stream.readFully(image);
@@ -357,8 +872,12 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
                     obs.completed(CameraState.values()[req.stream.readByte()]);
                     return;
                 case CMD_GET_VELOCITY:
-                    obs.completed(UdpConstants.readTwist(req.stream));
+                {
+                    Twist twist = UdpConstants.readTwist(req.stream);
+                    if (_isTelemetryCacheEnabled) _telemetryCache.updateVelocity(twist);
+                    obs.completed(twist);
                     return;
+                }
                 case CMD_GET_WAYPOINTS:
                     double[][] poses = new double[req.stream.readInt()][2];
                     for (int i = 0; i < poses.length; i++) {
@@ -367,8 +886,12 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
                     obs.completed(poses);
                     return;
                 case CMD_GET_WAYPOINT_STATUS:
-                    obs.completed(WaypointState.values()[req.stream.readByte()]);
+                {
+                    WaypointState wState = WaypointState.values()[req.stream.readByte()];
+                    if (_isTelemetryCacheEnabled) _telemetryCache.updateWaypointStatus(wState);
+                    obs.completed(wState);
                     return;
+                }
                 case CMD_GET_WAYPOINTS_INDEX:
                     obs.completed(req.stream.readInt());
                     return;
@@ -391,6 +914,32 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
                 case CMD_GET_KEYVALUE:
                     obs.completed(req.stream.readFloat());
                     return;
+                case CMD_GET_KEYVALUES:
+                {
+                    Map<String, Float> values = UdpConstants.readKeyValues(req.stream);
+                    synchronized (_keyValues) {
+                        _keyValues.putAll(values);
+                    }
+                    obs.completed(values);
+                    return;
+                }
+                case CMD_SYNC_KEYVALUES:
+                {
+                    long epoch = req.stream.readLong();
+                    long version = req.stream.readLong();
+                    boolean hasMore = req.stream.readBoolean();
+                    Map<String, Float> values = UdpConstants.readKeyValues(req.stream);
+                    synchronized (_keyValues) {
+                        if (epoch != _keyValueEpoch) {
+                            _keyValues.clear();
+                            _keyValueEpoch = epoch;
+                        }
+                        _keyValues.putAll(values);
+                        _keyValueVersion = version;
+                    }
+                    obs.completed(new KeyValueChanges(values, hasMore));
+                    return;
+                }
                 case CMD_LIST:
                     Map<SocketAddress, String> clients = new HashMap<SocketAddress, String>();
                     int numClients = req.stream.readInt();
@@ -403,6 +952,40 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
                     }
                     obs.completed(clients);
                     return;                
+                case CMD_CONNECT_RELAY:
+                    obs.completed(req.stream.readInt());
+                    return;
+                case CMD_LIST_CHANGES:
+                {
+                    long epoch = req.stream.readLong();
+                    boolean isReset = req.stream.readBoolean();
+                    long version = req.stream.readLong();
+                    boolean hasMore = req.stream.readBoolean();
+                    int numChanges = req.stream.readInt();
+                    
+                    synchronized (_services) {
+                        if (isReset || epoch != _servicesEpoch) {
+                            _services.clear();
+                            _servicesEpoch = epoch;
+                        }
+                        for (int i = 0; i < numChanges; ++i) {
+                            boolean isRemoved = req.stream.readBoolean();
+                            String name = isRemoved ? null : req.stream.readUTF();
+                            String hostname = req.stream.readUTF();
+                            int port = req.stream.readInt();
+                            
+                            InetSocketAddress addr = new InetSocketAddress(hostname, port);
+                            if (isRemoved) {
+                                _services.remove(addr);
+                            } else {
+                                _services.put(addr, name);
+                            }
+                        }
+                        _servicesVersion = version;
+                    }
+                    obs.completed(hasMore);
+                    return;
+                }
                 case CMD_SET_POSE:
                 case CMD_SET_VELOCITY:
                 case CMD_SET_AUTONOMOUS:
@@ -417,6 +1000,7 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
                 case CMD_ACK_CRUMB:
                 case CMD_ACK_SENSORDATA:
                 case CMD_SET_KEYVALUE:
+                case CMD_SET_KEYVALUES:
                     obs.completed(null);
                     return;
                 default:
@@ -435,36 +1019,28 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     }
 
     public void addPoseListener(PoseListener l, FunctionObserver<Void> obs) {
-        synchronized (_poseListeners) {
-            _poseListeners.add(l);
-        }
+        _poseListeners.add(l);
         if (obs != null) {
             obs.completed(null);
         }
     }
 
     public void removePoseListener(PoseListener l, FunctionObserver<Void> obs) {
-        synchronized (_poseListeners) {
-            _poseListeners.remove(l);
-        }
+        _poseListeners.remove(l);
         if (obs != null) {
             obs.completed(null);
         }
     }
 
     public void addCrumbListener(CrumbListener l, FunctionObserver<Void> obs) {
-        synchronized (_crumbListeners) {
-            _crumbListeners.add(l);
-        }
+        _crumbListeners.add(l);
         if (obs != null) {
             obs.completed(null);
         }
     }
 
     public void removeCrumbListener(CrumbListener l, FunctionObserver<Void> obs) {
-        synchronized (_crumbListeners) {
-            _crumbListeners.remove(l);
-        }
+        _crumbListeners.remove(l);
         if (obs != null) {
             obs.completed(null);
         }
@@ -499,9 +1075,7 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     }
     
     public void addRCOverrideListener(RCOverrideListener l, FunctionObserver<Void> obs) {
-        synchronized (_rcListeners) {
-            _rcListeners.add(l);
-        }
+        _rcListeners.add(l);
         
         if (obs != null) {
             obs.completed(null);
@@ -509,9 +1083,7 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     }
 
     public void removeRCOverrideListener(RCOverrideListener l, FunctionObserver<Void> obs) {
-        synchronized (_rcListeners) {
-            _rcListeners.remove(l);
-        }
+        _rcListeners.remove(l);
         
         if (obs != null) {
             obs.completed(null);
@@ -519,9 +1091,7 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     }
     
     public void addKeyValueListener(KeyValueListener l, FunctionObserver<Void> obs) {
-        synchronized (_keyValueListeners) {
-            _keyValueListeners.add(l);
-        }
+        _keyValueListeners.add(l);
         
         if (obs != null) {
             obs.completed(null);
@@ -529,9 +1099,7 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     }
     
     public void removeKeyValueListener(KeyValueListener l, FunctionObserver<Void> obs) {
-        synchronized (_keyValueListeners) {
-            _keyValueListeners.remove(l);
-        }
+        _keyValueListeners.remove(l);
         
         if (obs != null) {
             obs.completed(null);
@@ -587,19 +1155,37 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
         }
     }
 
-    public void addImageListener(ImageListener l, FunctionObserver<Void> obs) {
-        synchronized (_imageListeners) {
-            _imageListeners.add(l);
+    /**
+     * Retrieves the pose of the vehicle, answering from the telemetry cache if
+     * it holds a value that arrived within the specified age, and otherwise 
+     * querying the vehicle over the network.
+     * 
+     * @param maxAge the maximum acceptable age of a cached pose
+     * @param unit the time unit of the maxAge argument
+     * @param obs an observer which will be called with the pose
+     * @see #setTelemetryCacheEnabled(boolean) 
+     */
+    public void getPose(long maxAge, TimeUnit unit, FunctionObserver<UtmPose> obs) {
+        // This is a pure getter function, just do nothing if there is no one listening.
+        if (obs == null) return;
+        
+        UtmPose pose = _telemetryCache.getPose(maxAge, unit);
+        if (pose != null) {
+            obs.completed(pose);
+        } else {
+            getPose(obs);
         }
+    }
+
+    public void addImageListener(ImageListener l, FunctionObserver<Void> obs) {
+        _imageListeners.add(l);
         if (obs != null) {
             obs.completed(null);
         }
     }
 
     public void removeImageListener(ImageListener l, FunctionObserver<Void> obs) {
-        synchronized (_imageListeners) {
-            _imageListeners.remove(l);
-        }
+        _imageListeners.remove(l);
         if (obs != null) {
             obs.completed(null);
         }
@@ -631,18 +1217,14 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     }
 
     public void addCameraListener(CameraListener l, FunctionObserver<Void> obs) {
-        synchronized (_cameraListeners) {
-            _cameraListeners.add(l);
-        }
+        _cameraListeners.add(l);
         if (obs != null) {
             obs.completed(null);
         }
     }
 
     public void removeCameraListener(CameraListener l, FunctionObserver<Void> obs) {
-        synchronized (_cameraListeners) {
-            _cameraListeners.remove(l);
-        }
+        _cameraListeners.remove(l);
         if (obs != null) {
             obs.completed(null);
         }
@@ -720,22 +1302,30 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     }
 
     public void addSensorListener(SensorListener l, FunctionObserver<Void> obs) {
-        synchronized (_sensorListeners) {
-            _sensorListeners.add(l);
-        }
+        addSensorListener(l, SensorFilter.ALL, obs);
+    }
+
+    /**
+     * Registers a listener that only receives sensor readings that match the
+     * specified filter.  The vehicle is asked to send only readings that
+     * match the filter of at least one listener, so that readings that no
+     * one is interested in are not transmitted.
+     * 
+     * @param l the listener that receives matching sensor readings
+     * @param filter the channels and data types of interest
+     * @param obs an observer that is completed when the listener is added
+     */
+    public void addSensorListener(SensorListener l, SensorFilter filter, FunctionObserver<Void> obs) {
+        _sensorFilters.put(l, filter);
+        _sensorListeners.add(l);
         if (obs != null) {
             obs.completed(null);
         }
     }
 
     public void removeSensorListener(SensorListener l, FunctionObserver<Void> obs) {
-        synchronized (_sensorListeners) {
-            // If there is no list of listeners, there is nothing to remove
-            if (_sensorListeners.isEmpty()) return;
-
-            // Remove the listener from the appropriate list
-            _sensorListeners.remove(l);
-        }
+        _sensorListeners.remove(l);
+        _sensorFilters.remove(l);
         if (obs != null) {
             obs.completed(null);
         }
@@ -770,18 +1360,14 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
     }
 
     public void addVelocityListener(VelocityListener l, FunctionObserver<Void> obs) {
-        synchronized (_velocityListeners) {
-            _velocityListeners.add(l);
-        }
+        _velocityListeners.add(l);
         if (obs != null) {
             obs.completed(null);
         }
     }
 
     public void removeVelocityListener(VelocityListener l, FunctionObserver<Void> obs) {
-        synchronized (_velocityListeners) {
-            _velocityListeners.remove(l);
-        }
+        _velocityListeners.remove(l);
         if (obs != null) {
             obs.completed(null);
         }
@@ -836,19 +1422,37 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
         }
     }
 
-    public void addWaypointListener(WaypointListener l, FunctionObserver<Void> obs) {
-        synchronized (_waypointListeners) {
-            _waypointListeners.add(l);
+    /**
+     * Retrieves the velocity of the vehicle, answering from the telemetry 
+     * cache if it holds a value that arrived within the specified age, and 
+     * otherwise querying the vehicle over the network.
+     * 
+     * @param maxAge the maximum acceptable age of a cached velocity
+     * @param unit the time unit of the maxAge argument
+     * @param obs an observer which will be called with the velocity
+     * @see #setTelemetryCacheEnabled(boolean) 
+     */
+    public void getVelocity(long maxAge, TimeUnit unit, FunctionObserver<Twist> obs) {
+        // This is a pure getter function, just do nothing if there is no one listening.
+        if (obs == null) return;
+        
+        Twist velocity = _telemetryCache.getVelocity(maxAge, unit);
+        if (velocity != null) {
+            obs.completed(velocity);
+        } else {
+            getVelocity(obs);
         }
+    }
+
+    public void addWaypointListener(WaypointListener l, FunctionObserver<Void> obs) {
+        _waypointListeners.add(l);
         if (obs != null) {
             obs.completed(null);
         }
     }
 
     public void removeWaypointListener(WaypointListener l, FunctionObserver<Void> obs) {
-        synchronized (_waypointListeners) {
-            _waypointListeners.remove(l);
-        }
+        _waypointListeners.remove(l);
         if (obs != null) {
             obs.completed(null);
         }
@@ -946,6 +1550,28 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
         }
     }
 
+    /**
+     * Retrieves the waypoint status of the vehicle, answering from the 
+     * telemetry cache if it holds a value that arrived within the specified 
+     * age, and otherwise querying the vehicle over the network.
+     * 
+     * @param maxAge the maximum acceptable age of a cached status
+     * @param unit the time unit of the maxAge argument
+     * @param obs an observer which will be called with the waypoint status
+     * @see #setTelemetryCacheEnabled(boolean) 
+     */
+    public void getWaypointStatus(long maxAge, TimeUnit unit, FunctionObserver<WaypointState> obs) {
+        // This is a pure getter function, just do nothing if there is no one listening.
+        if (obs == null) return;
+        
+        WaypointState status = _telemetryCache.getWaypointStatus(maxAge, unit);
+        if (status != null) {
+            obs.completed(status);
+        } else {
+            getWaypointStatus(obs);
+        }
+    }
+
     public void getWaypointsIndex(FunctionObserver<Integer> obs) {
         // This is a pure getter function, just do nothing if there is no one listening.
         if (obs == null) return;
@@ -1197,6 +1823,169 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
         }
     }
     
+    /**
+     * Sets many key-value pairs of the vehicle in a single round trip.  The
+     * pairs must fit in a single packet, which holds about a hundred keys of
+     * typical length.
+     * 
+     * @param values the key-value pairs to set, in the order they are set
+     * @param obs observer that is notified once every pair has been set
+     */
+    public void setKeyValues(Map<String, Float> values, FunctionObserver<Void> obs) {
+        if (_vehicleServer == null) {
+            if (obs != null) {
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+            }
+            return;
+        }
+        
+        long ticket = (obs == null) ? UdpConstants.NO_TICKET : _ticketCounter.incrementAndGet();
+        
+        try {
+            Response response = new Response(ticket, _vehicleServer);
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_SET_KEYVALUES.str);
+            UdpConstants.writeKeyValues(response.stream, values);
+            if (response.stream.size() > UdpConstants.MAX_PACKET_SIZE) {
+                logger.log(Level.WARNING, "Too many key-value pairs for a single packet: {0}", values.size());
+                if (obs != null) {
+                    obs.failed(FunctionObserver.FunctionError.ERROR);
+                }
+                return;
+            }
+            if (obs != null) _ticketMap.put(ticket, obs);
+            _udpServer.respond(response);
+        } catch (IOException e) {
+            if (obs != null) {
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+            }
+        }
+    }
+    
+    /**
+     * Gets many key-value pairs of the vehicle in a single round trip.  Keys 
+     * whose values are not yet known to the vehicle service, or that do not
+     * fit in a single response, are left out of the result, and are 
+     * requested from the vehicle so that they are later delivered to any 
+     * KeyValueListeners.  Like setKeyValues(), the keys must fit in a single
+     * packet.
+     * 
+     * @param keys the keys to get
+     * @param obs observer that receives the known key-value pairs
+     */
+    public void getKeyValues(Collection<String> keys, FunctionObserver<Map<String, Float>> obs) {
+        // This is a pure getter function, just do nothing if there is no one listening.
+        if (obs == null) return;
+
+        if (_vehicleServer == null) {
+            obs.failed(FunctionObserver.FunctionError.ERROR);
+            return;
+        }
+        
+        long ticket = _ticketCounter.incrementAndGet();
+        
+        try {
+            Response response = new Response(ticket, _vehicleServer);
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_GET_KEYVALUES.str);
+            response.stream.writeInt(keys.size());
+            for (String key : keys) {
+                response.stream.writeUTF(key);
+            }
+            if (response.stream.size() > UdpConstants.MAX_PACKET_SIZE) {
+                logger.log(Level.WARNING, "Too many keys for a single packet: {0}", keys.size());
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+                return;
+            }
+            _ticketMap.put(ticket, obs);
+            _udpServer.respond(response);
+        } catch (IOException e) {
+            obs.failed(FunctionObserver.FunctionError.ERROR);
+        }
+    }
+    
+    /**
+     * Fetches the key-value pairs that changed on the vehicle since the last
+     * synchronization, or every pair on the first synchronization and after
+     * the vehicle service restarts.  Large sets of changes are fetched over 
+     * several round trips.  Each changed pair is also delivered to any 
+     * KeyValueListeners.
+     * 
+     * @param obs observer that receives the changed key-value pairs, or null
+     * @see #getSyncedKeyValues() 
+     */
+    public void syncKeyValues(FunctionObserver<Map<String, Float>> obs) {
+        if (_vehicleServer == null) {
+            if (obs != null) {
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+            }
+            return;
+        }
+        requestKeyValueChanges(new LinkedHashMap<String, Float>(), obs);
+    }
+    
+    /**
+     * Returns a copy of the key-value pairs that were received from the 
+     * vehicle, either through synchronization or from individual updates.
+     * 
+     * @return the latest known value of each key
+     */
+    public Map<String, Float> getSyncedKeyValues() {
+        synchronized (_keyValues) {
+            return new HashMap<String, Float>(_keyValues);
+        }
+    }
+    
+    /**
+     * Result of a single CMD_SYNC_KEYVALUES round trip.
+     */
+    private static class KeyValueChanges {
+        final Map<String, Float> values;
+        final boolean hasMore;
+        
+        KeyValueChanges(Map<String, Float> v, boolean m) {
+            values = v;
+            hasMore = m;
+        }
+    }
+    
+    private void requestKeyValueChanges(final Map<String, Float> changes, 
+            final FunctionObserver<Map<String, Float>> obs) {
+        long ticket = _ticketCounter.incrementAndGet();
+        
+        try {
+            Response response = new Response(ticket, _vehicleServer);
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_SYNC_KEYVALUES.str);
+            synchronized (_keyValues) {
+                response.stream.writeLong(_keyValueEpoch);
+                response.stream.writeLong(_keyValueVersion);
+            }
+            _ticketMap.put(ticket, new FunctionObserver<KeyValueChanges>() {
+                @Override
+                public void completed(KeyValueChanges result) {
+                    changes.putAll(result.values);
+                    for (Map.Entry<String, Float> entry : result.values.entrySet()) {
+                        dispatchKeyValue(entry.getKey(), entry.getValue());
+                    }
+                    
+                    if (result.hasMore) {
+                        requestKeyValueChanges(changes, obs);
+                    } else if (obs != null) {
+                        obs.completed(changes);
+                    }
+                }
+
+                @Override
+                public void failed(FunctionObserver.FunctionError cause) {
+                    if (obs != null) obs.failed(cause);
+                }
+            });
+            _udpServer.respond(response);
+        } catch (IOException e) {
+            if (obs != null) {
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+            }
+        }
+    }
+    
     public void newAutonomousPredicateMessage(String apm, FunctionObserver<Void> obs)
     {
         if (_vehicleServer == null) {
@@ -1221,6 +2010,57 @@ public class UdpVehicleServer implements AsyncVehicleServer, UdpServer.RequestHa
         }         
     }
     
+    /**
+     * Queries the already-set registry for the clients that were added or 
+     * removed since the last call, and applies them to a local copy of the
+     * registry.  Only the changes are transferred, over as many round trips
+     * as needed, so this is suitable for polling large registries.
+     * 
+     * @param obs an observer which will be called with the updated list of
+     * current clients, or null
+     */
+    public void syncVehicleServices(final FunctionObserver<Map<SocketAddress, String>> obs) {
+        if (_registryServer == null) {
+            if (obs != null) {
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+            }
+            return;
+        }
+        
+        long ticket = _ticketCounter.incrementAndGet();
+        
+        try {
+            Response response = new Response(ticket, _registryServer);
+            response.stream.writeUTF(UdpConstants.COMMAND.CMD_LIST_CHANGES.str);
+            synchronized (_services) {
+                response.stream.writeLong(_servicesEpoch);
+                response.stream.writeLong(_servicesVersion);
+            }
+            _ticketMap.put(ticket, new FunctionObserver<Boolean>() {
+                @Override
+                public void completed(Boolean hasMore) {
+                    if (hasMore) {
+                        syncVehicleServices(obs);
+                    } else if (obs != null) {
+                        synchronized (_services) {
+                            obs.completed(new LinkedHashMap<SocketAddress, String>(_services));
+                        }
+                    }
+                }
+
+                @Override
+                public void failed(FunctionObserver.FunctionError cause) {
+                    if (obs != null) obs.failed(cause);
+                }
+            });
+            _udpServer.respond(response);
+        } catch (IOException e) {
+            if (obs != null) {
+                obs.failed(FunctionObserver.FunctionError.ERROR);
+            }
+        }
+    }
+    
     /**
      * Special function that queries the already-set registry to find the list
      * of current clients.
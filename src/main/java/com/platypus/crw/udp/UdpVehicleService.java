@@ -2,6 +2,8 @@ package com.platypus.crw.udp;
 
 // TODO: finish this class!
 
+import com.platypus.crw.AbstractVehicleServer;
+import com.platypus.crw.AdaptiveImageSource;
 import com.platypus.crw.CameraListener;
 import com.platypus.crw.ImageListener;
 import com.platypus.crw.PoseListener;
@@ -15,23 +17,41 @@ import com.platypus.crw.VehicleServer.WaypointState;
 import com.platypus.crw.VelocityListener;
 import com.platypus.crw.WaypointListener;
 import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.SensorFilter;
 import com.platypus.crw.data.Twist;
 import com.platypus.crw.data.UtmPose;
+import com.platypus.crw.udp.UdpConstants.STREAM;
 import com.platypus.crw.udp.UdpServer.Request;
 import com.platypus.crw.udp.UdpServer.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,23 +76,80 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
     protected final UdpServer _udpServer;
 
     protected final List<SocketAddress> _registries = new ArrayList<SocketAddress>();
-    protected final Map<SocketAddress, Integer> _poseListeners = new LinkedHashMap<SocketAddress, Integer>();
-    protected final Map<SocketAddress, Integer> _imageListeners = new LinkedHashMap<SocketAddress, Integer>();
-    protected final Map<SocketAddress, Integer> _cameraListeners = new LinkedHashMap<SocketAddress, Integer>();
-    protected final Map<SocketAddress, Integer> _sensorListeners = new LinkedHashMap<SocketAddress, Integer>();
-    protected final Map<SocketAddress, Integer> _velocityListeners = new LinkedHashMap<SocketAddress, Integer>();
-    protected final Map<SocketAddress, Integer> _waypointListeners = new LinkedHashMap<SocketAddress, Integer>();
-    protected final Map<SocketAddress, Integer> _crumbListeners = new LinkedHashMap<SocketAddress, Integer>();
-    protected final Map<SocketAddress, Integer> _rcListeners = new LinkedHashMap<SocketAddress, Integer>();
-    protected final Map<SocketAddress, Integer> _keyValueListeners = new LinkedHashMap<SocketAddress, Integer>();
+    protected final Map<SocketAddress, Subscriber> _subscribers = new LinkedHashMap<SocketAddress, Subscriber>();
+    
+    // Snapshot of the subscriber table, which is republished whenever the
+    // table changes so that events can be sent out without locking it
+    protected volatile Subscriber[] _subscriberSnapshot = new Subscriber[0];
+    
+    // Latest telemetry, which is sent out periodically to STATE subscribers
+    protected final StateSnapshot _state = new StateSnapshot();
+    
+    // Latest key-value pairs reported by the vehicle, which clients can
+    // synchronize in bulk
+    protected final KeyValueStore _keyValues = new KeyValueStore();
+    
+    // Encoders for the compact pose and velocity streams
+    protected volatile TelemetryCodec.Encoder _poseEncoder = TelemetryCodec.createPoseEncoder(
+            UdpConstants.TELEMETRY_LINEAR_PRECISION, UdpConstants.TELEMETRY_ANGULAR_PRECISION, 
+            UdpConstants.TELEMETRY_KEYFRAME_INTERVAL);
+    protected volatile TelemetryCodec.Encoder _velocityEncoder = TelemetryCodec.createTwistEncoder(
+            UdpConstants.TELEMETRY_LINEAR_PRECISION, UdpConstants.TELEMETRY_ANGULAR_PRECISION, 
+            UdpConstants.TELEMETRY_KEYFRAME_INTERVAL);
+    
+    // Durable log of crumbs and sensor data, and the records owed to each client
+    protected volatile OutboundLog _outboundLog = null;
+    protected final Map<SocketAddress, LogCursor> _logCursors = new LinkedHashMap<SocketAddress, LogCursor>();
+    private OutboundLog _cursorLog = null;
+    
+    // Limits on the camera stream, chosen from the health of image links
+    protected final ImageRateController _imageRate = new ImageRateController();
+    protected volatile boolean _isImageAdaptive = true;
+    
+    // Relay sessions, and the time at which traffic was last received on each
+    protected final Map<SocketAddress, Long> _relays = new ConcurrentHashMap<SocketAddress, Long>();
     protected final Timer _registrationTimer = new Timer();
+    
+    /**
+     * Commands that can be run on the command thread instead of inline.
+     */
+    public static final Set<UdpConstants.COMMAND> DEFERRABLE_COMMANDS = Collections.unmodifiableSet(EnumSet.of(
+            UdpConstants.COMMAND.CMD_GET_POSE,
+            UdpConstants.COMMAND.CMD_CAPTURE_IMAGE,
+            UdpConstants.COMMAND.CMD_START_CAMERA,
+            UdpConstants.COMMAND.CMD_STOP_CAMERA,
+            UdpConstants.COMMAND.CMD_START_WAYPOINTS,
+            UdpConstants.COMMAND.CMD_STOP_WAYPOINTS,
+            UdpConstants.COMMAND.CMD_START_GO_HOME));
+    
+    protected final Set<UdpConstants.COMMAND> _deferredCommands = Collections.synchronizedSet(EnumSet.of(
+            UdpConstants.COMMAND.CMD_CAPTURE_IMAGE,
+            UdpConstants.COMMAND.CMD_START_CAMERA,
+            UdpConstants.COMMAND.CMD_STOP_CAMERA,
+            UdpConstants.COMMAND.CMD_START_WAYPOINTS,
+            UdpConstants.COMMAND.CMD_STOP_WAYPOINTS,
+            UdpConstants.COMMAND.CMD_START_GO_HOME));
+    
+    // Deferred commands are run in order on this thread
+    protected final ExecutorService _commandExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "UdpVehicleService commands");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public UdpVehicleService(int port) {
         _udpServer = (port > 0) ? new UdpServer(port) : new UdpServer();
         _udpServer.setHandler(this);
         _udpServer.start();
         
+        // The tasks share one timer thread, so each one catches its own failures
         _registrationTimer.scheduleAtFixedRate(_registrationTask, 0, UdpConstants.REGISTRATION_RATE_MS);
+        _registrationTimer.scheduleAtFixedRate(_stateTask, 0, UdpConstants.STATE_TICK_MS);
+        _registrationTimer.scheduleAtFixedRate(_logTask, 0, UdpConstants.LOG_REPLAY_TICK_MS);
+        _registrationTimer.scheduleAtFixedRate(_imageTask, 0, UdpConstants.IMAGE_ADAPT_INTERVAL_MS);
     }
     
     public UdpVehicleService() {
@@ -150,6 +227,10 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
     }
 
     public void received(Request req) {
+        
+        // Keep relay sessions open while clients are using them
+        if (!_relays.isEmpty() && _relays.containsKey(req.source))
+            _relays.put(req.source, System.nanoTime());
 
         try {
             final String command = req.stream.readUTF();
@@ -159,15 +240,58 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
             // TODO: remove me
             //logger.log(Level.INFO, "Received command " + req.ticket + ": " + command + ", " + UdpConstants.COMMAND.fromStr(command));
 
-            switch (UdpConstants.COMMAND.fromStr(command)) {
-                case CMD_REGISTER_POSE_LISTENER:
-                    synchronized(_poseListeners) {
-                        _poseListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
+            UdpConstants.COMMAND cmd = UdpConstants.COMMAND.fromStr(command);
+            switch (cmd) {
+                case CMD_SUBSCRIBE:
+                {
+                    int mask = req.stream.readInt();
+                    long[] intervalsNs = new long[STREAM.values().length];
+                    for (STREAM stream : STREAM.values()) {
+                        if ((mask & stream.mask) != 0) {
+                            intervalsNs[stream.ordinal()] = TimeUnit.NANOSECONDS.convert(
+                                    req.stream.readInt(), TimeUnit.MILLISECONDS);
+                        }
+                    }
+                    if (intervalsNs[STREAM.STATE.ordinal()] == 0) {
+                        intervalsNs[STREAM.STATE.ordinal()] = TimeUnit.NANOSECONDS.convert(
+                                UdpConstants.STATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    }
+                    SensorFilter sensorFilter = ((mask & (STREAM.SENSOR.mask | STREAM.STATE.mask)) != 0) 
+                            ? UdpConstants.readSensorFilter(req.stream) : SensorFilter.ALL;
+                    synchronized(_subscribers) {
+                        Subscriber subscriber = _subscribers.get(req.source);
+                        if (subscriber == null) {
+                            if (mask == 0) break;
+                            subscriber = new Subscriber(req.source);
+                        }
+                        subscriber = subscriber.subscribe(mask, intervalsNs, sensorFilter, System.nanoTime());
+                        if (subscriber.isEmpty()) {
+                            _subscribers.remove(req.source);
+                        } else {
+                            _subscribers.put(req.source, subscriber);
+                        }
+                        publishSubscribers();
                     }
                     break;
+                }
+                case CMD_REGISTER_POSE_LISTENER:
+                case CMD_REGISTER_VELOCITY_LISTENER:
+                case CMD_REGISTER_WAYPOINT_LISTENER:
+                case CMD_REGISTER_CAMERA_LISTENER:
+                case CMD_REGISTER_IMAGE_LISTENER:
+                case CMD_REGISTER_IMAGE_STREAM_LISTENER:
+                case CMD_REGISTER_SENSOR_LISTENER:
                 case CMD_REGISTER_CRUMB_LISTENER:
-                    synchronized (_crumbListeners) {
-                        _crumbListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
+                case CMD_REGISTER_RCOVER_LISTENER:
+                case CMD_REGISTER_KEYVALUE_LISTENER:
+                    synchronized(_subscribers) {
+                        Subscriber subscriber = _subscribers.get(req.source);
+                        if (subscriber == null) {
+                            subscriber = new Subscriber(req.source);
+                        }
+                        subscriber = subscriber.register(STREAM.fromRegisterCommand(cmd), System.nanoTime());
+                        _subscribers.put(req.source, subscriber);
+                        publishSubscribers();
                     }
                     break;
                 case CMD_SET_POSE:
@@ -176,64 +300,50 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                         _udpServer.respond(resp); // Send void response
                     break;
                 case CMD_GET_POSE:
-                    UdpConstants.writePose(resp.stream, _vehicleServer.getPose());
-                    if (resp.ticket != UdpConstants.NO_TICKET)
-                        _udpServer.respond(resp);
-                    break;
-                case CMD_REGISTER_IMAGE_LISTENER:
-                    synchronized(_imageListeners) {
-                        _imageListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
-                    }
+                    execute(cmd, resp, new Command() {
+                        public void run(Response resp) throws IOException {
+                            UdpConstants.writePose(resp.stream, _vehicleServer.getPose());
+                        }
+                    });
                     break;
                 case CMD_CAPTURE_IMAGE:
-                    byte[] image = _vehicleServer.captureImage(req.stream.readInt(), req.stream.readInt());
-                    resp.stream.writeInt(image.length);
-                    resp.stream.write(image);
-                    if (resp.ticket != UdpConstants.NO_TICKET)
-                        _udpServer.respond(resp);
-                    break;
-                case CMD_REGISTER_CAMERA_LISTENER:
-                    synchronized(_cameraListeners) {
-                        _cameraListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
-                    }
+                {
+                    final int width = req.stream.readInt();
+                    final int height = req.stream.readInt();
+                    execute(cmd, resp, new Command() {
+                        public void run(Response resp) throws IOException {
+                            byte[] image = _vehicleServer.captureImage(width, height);
+                            resp.stream.writeInt(image.length);
+                            resp.stream.write(image);
+                        }
+                    });
                     break;
+                }
                 case CMD_START_CAMERA:
-                    _vehicleServer.startCamera(
-                            req.stream.readInt(), req.stream.readDouble(),
-                            req.stream.readInt(), req.stream.readInt());
-                    if (resp.ticket != UdpConstants.NO_TICKET)
-                        _udpServer.respond(resp); // Send void response
+                {
+                    final int numFrames = req.stream.readInt();
+                    final double interval = req.stream.readDouble();
+                    final int width = req.stream.readInt();
+                    final int height = req.stream.readInt();
+                    execute(cmd, resp, new Command() {
+                        public void run(Response resp) {
+                            _vehicleServer.startCamera(numFrames, interval, width, height);
+                        }
+                    });
                     break;
+                }
                 case CMD_STOP_CAMERA:
-                    _vehicleServer.stopCamera();
-                    if (resp.ticket != UdpConstants.NO_TICKET)
-                        _udpServer.respond(resp); // Send void response
+                    execute(cmd, resp, new Command() {
+                        public void run(Response resp) {
+                            _vehicleServer.stopCamera();
+                        }
+                    });
                     break;
                 case CMD_GET_CAMERA_STATUS:
                     resp.stream.writeByte(_vehicleServer.getCameraStatus().ordinal());
                     if (resp.ticket != UdpConstants.NO_TICKET)
                         _udpServer.respond(resp); 
                     break;
-                case CMD_REGISTER_SENSOR_LISTENER:
-                    synchronized(_sensorListeners) {
-                        _sensorListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
-                    }
-                    break;
-                case CMD_REGISTER_RCOVER_LISTENER:
-                    synchronized(_rcListeners) {
-                        _rcListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
-                    }
-                    break;
-                case CMD_REGISTER_KEYVALUE_LISTENER:
-                    synchronized (_keyValueListeners) {
-                        _keyValueListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
-                    }
-                    break;
-                case CMD_REGISTER_VELOCITY_LISTENER:
-                    synchronized(_velocityListeners) {
-                        _velocityListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
-                    }
-                    break;
                 case CMD_SET_VELOCITY:
                     _vehicleServer.setVelocity(UdpConstants.readTwist(req.stream));
                     if (resp.ticket != UdpConstants.NO_TICKET)
@@ -244,26 +354,25 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                     if (resp.ticket != UdpConstants.NO_TICKET)
                         _udpServer.respond(resp);
                     break;
-                case CMD_REGISTER_WAYPOINT_LISTENER:
-                    synchronized(_waypointListeners) {
-                        _waypointListeners.put(req.source, UdpConstants.REGISTRATION_TIMEOUT_COUNT);
-                    }
-                    break;
                 case CMD_START_WAYPOINTS:
                 {
-                    double[][] poses = new double[req.stream.readInt()][2];
+                    final double[][] poses = new double[req.stream.readInt()][2];
                     for (int i = 0; i < poses.length; i++) {
                         poses[i] = UdpConstants.readLatLng(req.stream);
                     }
-                    _vehicleServer.startWaypoints(poses);
-                    if (resp.ticket != UdpConstants.NO_TICKET)
-                        _udpServer.respond(resp);
+                    execute(cmd, resp, new Command() {
+                        public void run(Response resp) {
+                            _vehicleServer.startWaypoints(poses);
+                        }
+                    });
                     break;
                 }
                 case CMD_STOP_WAYPOINTS:
-                    _vehicleServer.stopWaypoints();
-                    if (resp.ticket != UdpConstants.NO_TICKET)
-                        _udpServer.respond(resp); // Send void response
+                    execute(cmd, resp, new Command() {
+                        public void run(Response resp) {
+                            _vehicleServer.stopWaypoints();
+                        }
+                    });
                     break;
                 case CMD_GET_WAYPOINTS:
                 {
@@ -332,6 +441,16 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                     if (resp.ticket != UdpConstants.NO_TICKET)
                         _udpServer.respond(r);
                     break;
+                case CMD_CONNECT_RELAY:
+                {
+                    // Open a session on the relay of the requesting registry
+                    int relayPort = req.stream.readInt();
+                    SocketAddress relay = new InetSocketAddress(
+                            ((InetSocketAddress)req.source).getAddress(), relayPort);
+                    _relays.put(relay, System.nanoTime());
+                    punchRelay(relay);
+                    break;
+                }
                 case CMD_SET_HOME:
                     double[] home = UdpConstants.readLatLng(req.stream);
                     _vehicleServer.setHome(home);
@@ -345,9 +464,11 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                         _udpServer.respond(resp);                    
                     break;
                 case CMD_START_GO_HOME:
-                    _vehicleServer.startGoHome();
-                    if (resp.ticket != UdpConstants.NO_TICKET)
-                        _udpServer.respond(resp); // Send void response
+                    execute(cmd, resp, new Command() {
+                        public void run(Response resp) {
+                            _vehicleServer.startGoHome();
+                        }
+                    });
                     break;
                 case CMD_SET_KEYVALUE:
                 {
@@ -366,6 +487,48 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                         _udpServer.respond(resp);                    
                     break;
                 }
+                case CMD_SET_KEYVALUES:
+                {
+                    Map<String, Float> values = UdpConstants.readKeyValues(req.stream);
+                    for (Map.Entry<String, Float> entry : values.entrySet()) {
+                        _vehicleServer.setKeyValue(entry.getKey(), entry.getValue());
+                    }
+                    if (resp.ticket != UdpConstants.NO_TICKET)
+                        _udpServer.respond(resp);
+                    break;
+                }
+                case CMD_GET_KEYVALUES:
+                {
+                    // Keys that have not been seen yet, or that do not fit in
+                    // the response, are requested from the vehicle, and 
+                    // arrive later as CMD_SEND_KEYVALUE updates
+                    int numKeys = req.stream.readInt();
+                    Map<String, Float> values = new LinkedHashMap<String, Float>();
+                    int size = 0;
+                    for (int i = 0; i < numKeys; ++i) {
+                        String key = req.stream.readUTF();
+                        Float value = _keyValues.get(key);
+                        if (value != null && size + KeyValueStore.sizeOf(key) <= UdpConstants.KEYVALUE_SYNC_SIZE) {
+                            values.put(key, value);
+                            size += KeyValueStore.sizeOf(key);
+                        } else {
+                            _vehicleServer.getKeyValue(key);
+                        }
+                    }
+                    UdpConstants.writeKeyValues(resp.stream, values);
+                    if (resp.ticket != UdpConstants.NO_TICKET)
+                        _udpServer.respond(resp);
+                    break;
+                }
+                case CMD_SYNC_KEYVALUES:
+                {
+                    long epoch = req.stream.readLong();
+                    long version = req.stream.readLong();
+                    _keyValues.writeChanges(resp.stream, epoch, version, UdpConstants.KEYVALUE_SYNC_SIZE);
+                    if (resp.ticket != UdpConstants.NO_TICKET)
+                        _udpServer.respond(resp);
+                    break;
+                }
                 case CMD_NEW_AUTONOMOUS_PREDICATE_MSG:
                     String apm = req.stream.readUTF();
                     _vehicleServer.newAutonomousPredicateMessage(apm);
@@ -388,6 +551,15 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                         _udpServer.respond(resp); // Send void response
                     break;
                 }
+                case CMD_ACK_LOG:
+                {
+                    long logId = req.stream.readLong();
+                    long seq = req.stream.readLong();
+                    OutboundLog log = _outboundLog;
+                    if (log != null && log.getId() == logId)
+                        acknowledgeLog(log, req.source, seq);
+                    break;
+                }
                 default:
                     String warning = "Ignoring unknown command: " + command;
                     logger.log(Level.WARNING, warning);
@@ -399,6 +571,80 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
 
     }
 
+    /**
+     * A call to the vehicle server that fills in the response to a command.
+     */
+    protected interface Command {
+        void run(Response resp) throws IOException;
+    }
+    
+    /**
+     * Runs a command and sends its response.  Deferred commands are run in 
+     * order on a separate thread, so that they do not delay the handling of
+     * other commands, and their response is sent when they complete.  All 
+     * arguments must be read from the request before calling this method,
+     * since the request buffer is reused once this handler returns.
+     * 
+     * @param cmd the command that is being run
+     * @param resp the response that should be filled in and sent
+     * @param command the call to the vehicle server
+     * @throws IOException if an inline command fails to serialize its result
+     */
+    protected void execute(UdpConstants.COMMAND cmd, final Response resp, final Command command) throws IOException {
+        if (!_deferredCommands.contains(cmd)) {
+            command.run(resp);
+            if (resp.ticket != UdpConstants.NO_TICKET)
+                _udpServer.respond(resp);
+            return;
+        }
+        
+        try {
+            _commandExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run(resp);
+                        if (resp.ticket != UdpConstants.NO_TICKET)
+                            _udpServer.respond(resp);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Failed to serialize response: " + resp.ticket, e);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Failed to execute command: " + resp.ticket, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.WARNING, "Service is shut down, dropping command: " + resp.ticket);
+        }
+    }
+    
+    /**
+     * Selects whether a command is run on the command thread rather than the
+     * thread that receives requests.  By default, commands that may take a 
+     * long time to complete, such as capturing an image or starting a path, 
+     * are deferred.  Simulators with slow getters may also defer CMD_GET_POSE.
+     * 
+     * Note that deferred commands may complete after commands that were
+     * received later but run inline.
+     * 
+     * @param cmd one of the DEFERRABLE_COMMANDS
+     * @param deferred true if the command should run on the command thread
+     */
+    public void setDeferred(UdpConstants.COMMAND cmd, boolean deferred) {
+        if (!DEFERRABLE_COMMANDS.contains(cmd))
+            throw new IllegalArgumentException("Command cannot be deferred: " + cmd);
+        
+        if (deferred) {
+            _deferredCommands.add(cmd);
+        } else {
+            _deferredCommands.remove(cmd);
+        }
+    }
+    
+    public boolean isDeferred(UdpConstants.COMMAND cmd) {
+        return _deferredCommands.contains(cmd);
+    }
+    
     public void timeout(long ticket, SocketAddress destination) {
         String warning = "No response for: " + ticket + " @ " + destination;
         logger.warning(warning);
@@ -410,6 +656,7 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
      */
     public void shutdown() {
         _udpServer.stop();
+        _commandExecutor.shutdownNow();
         _registrationTimer.cancel();
         _registrationTimer.purge();
     }
@@ -419,11 +666,38 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
     
     private class StreamHandler implements PoseListener, ImageListener, CameraListener, SensorListener, VelocityListener, WaypointListener, CrumbListener, RCOverrideListener, KeyValueListener {
 
-        public void receivedPose(UtmPose pose) {
+        /**
+         * Sends a sample on one of the compact telemetry streams.  Keyframes
+         * are sent to every subscriber, since the deltas that follow them
+         * cannot be decoded without them.
+         */
+        private void sendDelta(STREAM stream, UdpConstants.COMMAND cmd, 
+                TelemetryCodec.Encoder encoder, double[] values) {
             // Quickly check if anyone is listening
-            synchronized(_poseListeners) {
-                if (_poseListeners.isEmpty()) return;
+            List<SocketAddress> subscribers = getSubscribers(stream);
+            if (subscribers.isEmpty()) return;
+            
+            try {
+                // Construct message
+                Response resp = new Response(UdpConstants.NO_TICKET, DUMMY_ADDRESS);
+                resp.stream.writeUTF(cmd.str);
+                boolean isKeyframe = encoder.write(resp.stream, values);
+                
+                // Send to all listeners
+                _udpServer.bcast(resp, isKeyframe ? subscribers : getDestinations(stream));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to serialize " + stream);
             }
+        }
+
+        public void receivedPose(UtmPose pose) {
+            _state.updatePose(pose);
+            sendDelta(STREAM.POSE_DELTA, UdpConstants.COMMAND.CMD_SEND_POSE_DELTA, 
+                    _poseEncoder, TelemetryCodec.fromPose(pose));
+            
+            // Quickly check if anyone is listening
+            List<SocketAddress> destinations = getDestinations(STREAM.POSE);
+            if (destinations.isEmpty()) return;
             
             try {
                 // Construct message
@@ -432,18 +706,32 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                 UdpConstants.writePose(resp.stream, pose);
             
                 // Send to all listeners
-                synchronized(_poseListeners) {
-                    _udpServer.bcast(resp, _poseListeners.keySet());
-                }
+                _udpServer.bcast(resp, destinations);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize pose");
             }
         }
 
         public void receivedCrumb(double[] crumb, long index) {
-            synchronized (_crumbListeners) {
-                if (_crumbListeners.isEmpty()) return;
+            // Logged crumbs are sent with the records owed to each client
+            OutboundLog log = _outboundLog;
+            if (log != null) {
+                try {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    DataOutputStream record = new DataOutputStream(buffer);
+                    record.writeUTF(UdpConstants.COMMAND.CMD_SEND_CRUMB.str);
+                    UdpConstants.writeLatLng(record, crumb);
+                    record.writeLong(index);
+                    appendLog(log, buffer.toByteArray(), null);
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to serialize crumb");
+                }
+                return;
             }
+            
+            // Quickly check if anyone is listening
+            List<SocketAddress> destinations = getDestinations(STREAM.CRUMB);
+            if (destinations.isEmpty()) return;
 
             try {
                 // Construct message
@@ -453,9 +741,7 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                 resp.stream.writeLong(index);
 
                 // Send to all listeners
-                synchronized (_crumbListeners) {
-                    _udpServer.bcast(resp, _crumbListeners.keySet());
-                }                
+                _udpServer.bcast(resp, destinations);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize crumb");
             }
@@ -463,27 +749,27 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
         
         public void rcOverrideUpdate(boolean isRCOverrideOn)
         {
-            synchronized (_rcListeners) {
-                if (_rcListeners.isEmpty()) return;
-            }
+            // Quickly check if anyone is listening
+            List<SocketAddress> destinations = getDestinations(STREAM.RCOVER);
+            if (destinations.isEmpty()) return;
             
             try {
                 Response resp = new Response(UdpConstants.NO_TICKET, DUMMY_ADDRESS);
                 resp.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_RCOVER.str);
                 resp.stream.writeBoolean(isRCOverrideOn);
 
-                synchronized (_rcListeners) {
-                    _udpServer.bcast(resp, _rcListeners.keySet());
-                }                    
+                _udpServer.bcast(resp, destinations);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize rc override update");
             }            
         }
         
         public void keyValueUpdate(String key, float value) {
-            synchronized (_keyValueListeners) {
-                if (_keyValueListeners.isEmpty()) return;                
-            }
+            _keyValues.put(key, value);
+            
+            // Quickly check if anyone is listening
+            List<SocketAddress> destinations = getDestinations(STREAM.KEYVALUE);
+            if (destinations.isEmpty()) return;
             
             try {
                 Response resp = new Response(UdpConstants.NO_TICKET, DUMMY_ADDRESS);
@@ -491,9 +777,7 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                 resp.stream.writeUTF(key);
                 resp.stream.writeFloat(value);
                 
-                synchronized (_keyValueListeners) {
-                    _udpServer.bcast(resp, _keyValueListeners.keySet());
-                }
+                _udpServer.bcast(resp, destinations);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize key-value update");
             }
@@ -501,50 +785,139 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
 
         public void receivedImage(byte[] image) {
             // Quickly check if anyone is listening
-            synchronized(_imageListeners) {
-                if (_imageListeners.isEmpty()) return;
-            }
+            List<SocketAddress> reliableDestinations = getDestinations(STREAM.IMAGE);
+            List<SocketAddress> streamDestinations = getDestinations(STREAM.IMAGE_STREAM);
+            if (reliableDestinations.isEmpty() && streamDestinations.isEmpty()) return;
+            
+            final int imageSeq = _imageSeq.incrementAndGet();
+            if (!streamDestinations.isEmpty()) streamImage(imageSeq, image, streamDestinations);
+            if (reliableDestinations.isEmpty()) return;
             
             try {
-                final int imageSeq = _imageSeq.incrementAndGet();
-                
                 // Figure out how many pieces into which to fragment the image
                 final int totalIdx = (image.length - 1) / UdpConstants.MAX_PAYLOAD_SIZE + 1;
                 
-                // Transmit each piece in a separate packet
-                for (int pieceIdx = 0; pieceIdx < totalIdx; ++pieceIdx) {
+                // Transmit each piece in a separate packet, starting with the
+                // short final piece so that receivers learn the image length
+                for (int i = 0; i < totalIdx; ++i) {
+                    int pieceIdx = (i == 0) ? totalIdx - 1 : i - 1;
                     
                     // Compute the length of this piece
                     int pieceLen = (pieceIdx + 1 < totalIdx) ? UdpConstants.MAX_PAYLOAD_SIZE : image.length - pieceIdx*UdpConstants.MAX_PAYLOAD_SIZE;
                     
-                    // Send to all listeners
-                    synchronized(_imageListeners) {
-                        for (SocketAddress il : _imageListeners.keySet()) {
-                            // Construct message
-                            // TODO: find a more efficient way to handle this serialization
-                            Response resp = new Response(_ticketCounter.incrementAndGet(), il);
-                            resp.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_IMAGE.str);
-                            resp.stream.writeInt(imageSeq);
-                            resp.stream.writeInt(totalIdx);
-                            resp.stream.writeInt(pieceIdx);
+                    // Construct message once, and share it between all listeners
+                    Response resp = new Response(_ticketCounter.incrementAndGet(), DUMMY_ADDRESS);
+                    resp.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_IMAGE.str);
+                    resp.stream.writeInt(imageSeq);
+                    resp.stream.writeInt(totalIdx);
+                    resp.stream.writeInt(pieceIdx);
 
-                            resp.stream.writeInt(pieceLen);
-                            resp.stream.write(image, pieceIdx*UdpConstants.MAX_PAYLOAD_SIZE, pieceLen);
+                    resp.stream.writeInt(pieceLen);
+                    resp.stream.write(image, pieceIdx*UdpConstants.MAX_PAYLOAD_SIZE, pieceLen);
 
-                            _udpServer.respond(resp);
-                        }
-                    }
+                    _udpServer.respond(resp, reliableDestinations);
                 }
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize image");
             }
         }
+        
+        /**
+         * Sends an image to the unreliable stream listeners.  Fragments are
+         * not acknowledged or retransmitted.  Instead, after each group of 
+         * IMAGE_FEC_GROUP_SIZE fragments, a parity fragment containing the
+         * XOR of the group is sent, from which a receiver can rebuild any
+         * single lost fragment of that group.  The short final fragment is
+         * sent first, so that receivers learn the length of the image.
+         * 
+         * Since parity can only rebuild one fragment per group, the frame is
+         * paced out in bursts of IMAGE_STREAM_BURST_SIZE packets, so that it
+         * does not overflow the socket buffers along the way and lose many
+         * consecutive fragments at once.
+         */
+        private void streamImage(int imageSeq, byte[] image, List<SocketAddress> destinations) {
+            try {
+                final int totalIdx = (image.length - 1) / UdpConstants.MAX_PAYLOAD_SIZE + 1;
+                final byte[] parity = new byte[UdpConstants.MAX_PAYLOAD_SIZE];
+                int parityLen = 0;
+                int lengthXor = 0;
+                
+                int numSent = 0;
+                sendImagePiece(imageSeq, image, totalIdx - 1, destinations);
+                pace(++numSent);
+                for (int pieceIdx = 0; pieceIdx < totalIdx; ++pieceIdx) {
+                    int offset = pieceIdx*UdpConstants.MAX_PAYLOAD_SIZE;
+                    int pieceLen = (pieceIdx + 1 < totalIdx) ? UdpConstants.MAX_PAYLOAD_SIZE : image.length - offset;
+                    
+                    // Send the fragment itself, unless it was sent already
+                    if (pieceIdx + 1 < totalIdx) {
+                        sendImagePiece(imageSeq, image, pieceIdx, destinations);
+                        pace(++numSent);
+                    }
+                    
+                    // Accumulate it into the parity of its group
+                    for (int i = 0; i < pieceLen; ++i) {
+                        parity[i] ^= image[offset + i];
+                    }
+                    parityLen = Math.max(parityLen, pieceLen);
+                    lengthXor ^= pieceLen;
+                    
+                    // At the end of each group, send out the parity
+                    int groupIdx = pieceIdx / UdpConstants.IMAGE_FEC_GROUP_SIZE;
+                    if ((pieceIdx + 1) % UdpConstants.IMAGE_FEC_GROUP_SIZE == 0 || pieceIdx + 1 == totalIdx) {
+                        Response presp = new Response(UdpConstants.NO_TICKET, DUMMY_ADDRESS);
+                        presp.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_IMAGE_PARITY.str);
+                        presp.stream.writeInt(imageSeq);
+                        presp.stream.writeInt(totalIdx);
+                        presp.stream.writeInt(groupIdx);
+                        presp.stream.writeInt(lengthXor);
+                        presp.stream.writeInt(parityLen);
+                        presp.stream.write(parity, 0, parityLen);
+                        _udpServer.bcast(presp, destinations);
+                        pace(++numSent);
+                        
+                        Arrays.fill(parity, (byte)0);
+                        parityLen = 0;
+                        lengthXor = 0;
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to serialize image stream");
+            }
+        }
+        
+        /**
+         * Pauses the stream after each full burst of packets.
+         */
+        private void pace(int numSent) {
+            if (numSent % UdpConstants.IMAGE_STREAM_BURST_SIZE == 0)
+                LockSupport.parkNanos(UdpConstants.IMAGE_STREAM_BURST_INTERVAL_NS);
+        }
+        
+        /**
+         * Sends a single fragment of an image to the unreliable stream 
+         * listeners.
+         */
+        private void sendImagePiece(int imageSeq, byte[] image, int pieceIdx, 
+                List<SocketAddress> destinations) throws IOException {
+            final int totalIdx = (image.length - 1) / UdpConstants.MAX_PAYLOAD_SIZE + 1;
+            int offset = pieceIdx*UdpConstants.MAX_PAYLOAD_SIZE;
+            int pieceLen = (pieceIdx + 1 < totalIdx) ? UdpConstants.MAX_PAYLOAD_SIZE : image.length - offset;
+            
+            Response resp = new Response(UdpConstants.NO_TICKET, DUMMY_ADDRESS);
+            resp.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_IMAGE.str);
+            resp.stream.writeInt(imageSeq);
+            resp.stream.writeInt(totalIdx);
+            resp.stream.writeInt(pieceIdx);
+            resp.stream.writeInt(pieceLen);
+            resp.stream.write(image, offset, pieceLen);
+            _udpServer.bcast(resp, destinations);
+        }
 
         public void imagingUpdate(CameraState status) {
             // Quickly check if anyone is listening
-            synchronized(_cameraListeners) {
-                if (_cameraListeners.isEmpty()) return;
-            }
+            List<SocketAddress> destinations = getDestinations(STREAM.CAMERA);
+            if (destinations.isEmpty()) return;
             
             try {
                 // Construct message
@@ -553,20 +926,35 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                 resp.stream.writeByte(status.ordinal());
             
                 // Send to all listeners
-                synchronized(_cameraListeners) {
-                    _udpServer.bcast(resp, _cameraListeners.keySet());
-                }
+                _udpServer.bcast(resp, destinations);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize camera");
             }
         }
 
         public void receivedSensor(SensorData sensor, long index) {
-            // Quickly check if anyone is listening
-            synchronized(_sensorListeners) {
-                if (_sensorListeners.isEmpty()) return;
+            _state.updateSensor(sensor, index);
+            
+            // Logged readings are sent with the records owed to each client
+            OutboundLog log = _outboundLog;
+            if (log != null) {
+                try {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    DataOutputStream record = new DataOutputStream(buffer);
+                    record.writeUTF(UdpConstants.COMMAND.CMD_SEND_SENSOR.str);
+                    UdpConstants.writeSensorData(record, sensor);
+                    record.writeLong(index);
+                    appendLog(log, buffer.toByteArray(), sensor);
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to serialize sensor " + sensor.channel);
+                }
+                return;
             }
             
+            // Quickly check if anyone is listening
+            List<SocketAddress> destinations = getDestinations(sensor);
+            if (destinations.isEmpty()) return;
+            
             try {
                 // Construct message
                 Response resp = new Response(UdpConstants.NO_TICKET, DUMMY_ADDRESS);
@@ -575,19 +963,20 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                 resp.stream.writeLong(index);
             
                 // Send to all listeners
-                synchronized(_sensorListeners) {
-                    _udpServer.bcast(resp, _sensorListeners.keySet());
-                }
+                _udpServer.bcast(resp, destinations);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize sensor " + sensor.channel);
             }
         }
 
         public void receivedVelocity(Twist velocity) {
+            _state.updateVelocity(velocity);
+            sendDelta(STREAM.VELOCITY_DELTA, UdpConstants.COMMAND.CMD_SEND_VELOCITY_DELTA, 
+                    _velocityEncoder, TelemetryCodec.fromTwist(velocity));
+            
             // Quickly check if anyone is listening
-            synchronized(_velocityListeners) {
-                if (_velocityListeners.isEmpty()) return;
-            }
+            List<SocketAddress> destinations = getDestinations(STREAM.VELOCITY);
+            if (destinations.isEmpty()) return;
             
             try {
                 // Construct message
@@ -596,19 +985,18 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                 UdpConstants.writeTwist(resp.stream, velocity);
             
                 // Send to all listeners
-                synchronized(_velocityListeners) {
-                    _udpServer.bcast(resp, _velocityListeners.keySet());
-                }
+                _udpServer.bcast(resp, destinations);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize camera");
             }
         }
 
         public void waypointUpdate(WaypointState status) {
+            _state.updateWaypointState(status);
+            
             // Quickly check if anyone is listening
-            synchronized(_waypointListeners) {
-                if (_waypointListeners.isEmpty()) return;
-            }
+            List<SocketAddress> destinations = getDestinations(STREAM.WAYPOINT);
+            if (destinations.isEmpty()) return;
             
             try {
                 // Construct message
@@ -617,9 +1005,7 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
                 resp.stream.writeByte(status.ordinal());
             
                 // Send to all listeners
-                synchronized(_waypointListeners) {
-                    _udpServer.bcast(resp, _waypointListeners.keySet());
-                }
+                _udpServer.bcast(resp, destinations);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to serialize camera");
             }
@@ -627,21 +1013,495 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
     }
     
     /**
-     * Takes a list of registered listeners and their timeout counts, and 
-     * decrements the timeouts.  If a listener count hits zero, it is removed.
+     * Sets a durable log for crumbs and sensor data.  Once set, each crumb 
+     * and sensor reading is appended to the log before it is sent, and is 
+     * replayed until it is acknowledged, so that no data is lost if the link
+     * to the clients drops out.  Each client acknowledges the log on its own,
+     * and only receives the records that match its subscription, sensor 
+     * filter and rate.  A record is retained until every client that wanted
+     * it has acknowledged it, including clients whose subscription lapsed in
+     * the last LOG_CURSOR_TIMEOUT_NS.  Records logged while no client is 
+     * known are retained for the first clients to subscribe.
      * 
-     * @param registrationList the list that should be updated
+     * @param log the log to use, or null to send data without logging it
      */
-    protected void updateRegistrations(Map<SocketAddress, Integer> registrationList) {
-        synchronized(registrationList) {
-            for (Iterator<Map.Entry<SocketAddress, Integer>> it = registrationList.entrySet().iterator(); it.hasNext();) {
-                Map.Entry<SocketAddress, Integer> e = it.next();
-                if (e.getValue() == 0) {
-                    it.remove();
+    public void setOutboundLog(OutboundLog log) {
+        _outboundLog = log;
+    }
+    
+    public OutboundLog getOutboundLog() {
+        return _outboundLog;
+    }
+    
+    /**
+     * Brings the cursors up to date with the subscriber table.  A cursor is
+     * created for each new subscriber to either logged stream, owing it the
+     * records that the log still retains and that match its subscription.
+     * The cursors of clients that have not subscribed for 
+     * LOG_CURSOR_TIMEOUT_NS are dropped.  This must be called while holding
+     * the lock of the cursor table.
+     * 
+     * @param log the current outbound log
+     * @param now the current time as reported by System.nanoTime()
+     */
+    private void updateLogCursors(OutboundLog log, long now) {
+        if (log != _cursorLog) {
+            _cursorLog = log;
+            _logCursors.clear();
+        }
+        if (log == null) return;
+        
+        for (Subscriber subscriber : _subscriberSnapshot) {
+            if (!subscriber.isSubscribed(STREAM.SENSOR, now) && !subscriber.isSubscribed(STREAM.CRUMB, now))
+                continue;
+            
+            LogCursor cursor = _logCursors.get(subscriber.address);
+            if (cursor == null) {
+                cursor = new LogCursor(subscriber, log.getAcknowledged(), now);
+                for (long seq = log.getAcknowledged() + 1; seq <= log.getLastSequence(); ++seq) {
+                    if (isWanted(subscriber, log.read(seq))) {
+                        cursor.add(seq);
+                    } else {
+                        cursor.skip(seq);
+                    }
+                }
+                _logCursors.put(subscriber.address, cursor);
+            }
+            cursor.renew(subscriber, now);
+        }
+        
+        for (Iterator<LogCursor> it = _logCursors.values().iterator(); it.hasNext();) {
+            if (it.next().isExpired(now))
+                it.remove();
+        }
+    }
+    
+    /**
+     * Releases the records of the log up to the oldest one that is still
+     * owed to a client.  If no client is known, every record is retained.
+     * This must be called while holding the lock of the cursor table.
+     */
+    private void retainLog(OutboundLog log) {
+        if (_logCursors.isEmpty()) return;
+        
+        long retainedSeq = Long.MAX_VALUE;
+        for (LogCursor cursor : _logCursors.values()) {
+            retainedSeq = Math.min(retainedSeq, cursor.getRetainedSeq());
+        }
+        log.acknowledge(retainedSeq);
+    }
+    
+    /**
+     * Checks if a client asked for a logged record, regardless of its rate 
+     * or whether its subscription has lapsed.
+     */
+    private static boolean isWanted(Subscriber subscriber, byte[] record) {
+        if (record == null) return false;
+        
+        try {
+            DataInputStream stream = new DataInputStream(new ByteArrayInputStream(record));
+            String command = stream.readUTF();
+            if (command.equals(UdpConstants.COMMAND.CMD_SEND_SENSOR.str)) {
+                return subscriber.wants(UdpConstants.readSensorData(stream));
+            } else if (command.equals(UdpConstants.COMMAND.CMD_SEND_CRUMB.str)) {
+                return subscriber.wants(STREAM.CRUMB);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to parse log record", e);
+        }
+        return false;
+    }
+    
+    /**
+     * Appends a record to the outbound log and sends it to each client that
+     * should receive it now, according to its subscription, sensor filter 
+     * and rate.  Clients whose subscription has lapsed are owed the record 
+     * if it matches their subscription, and receive it once they return.
+     * 
+     * @param log the log to which the record is appended
+     * @param record a one-way message without its ticket
+     * @param sensor the sensor reading in the record, or null for a crumb
+     */
+    protected void appendLog(OutboundLog log, byte[] record, SensorData sensor) {
+        long now = System.nanoTime();
+        List<Response> responses = new ArrayList<Response>();
+        
+        synchronized(_logCursors) {
+            updateLogCursors(log, now);
+            long seq = log.append(record);
+            
+            for (LogCursor cursor : _logCursors.values()) {
+                Subscriber subscriber = cursor.getSubscriber();
+                if (!cursor.isOnline(now)) {
+                    boolean isWanted = (sensor != null) ? subscriber.wants(sensor) : subscriber.wants(STREAM.CRUMB);
+                    if (isWanted) {
+                        cursor.add(seq);
+                    } else {
+                        cursor.skip(seq);
+                    }
+                } else if ((sensor != null) ? subscriber.accept(sensor, now) : subscriber.accept(STREAM.CRUMB, now)) {
+                    Response resp = createLogRecord(log, cursor.add(seq), seq, record, cursor.address);
+                    if (resp != null) responses.add(resp);
                 } else {
-                    e.setValue(e.getValue() - 1);
+                    cursor.skip(seq);
+                }
+            }
+        }
+        
+        for (Response resp : responses) {
+            _udpServer.send(resp);
+        }
+    }
+    
+    /**
+     * Handles an acknowledgement of the outbound log from a client, and 
+     * releases the records that are no longer owed to any client.
+     * 
+     * @param log the log that was acknowledged
+     * @param source the address of the client
+     * @param seq the highest sequence number that the client received
+     */
+    protected void acknowledgeLog(OutboundLog log, SocketAddress source, long seq) {
+        synchronized(_logCursors) {
+            if (log != _cursorLog) return;
+            
+            LogCursor cursor = _logCursors.get(source);
+            if (cursor == null) return;
+            
+            cursor.acknowledge(seq);
+            retainLog(log);
+        }
+    }
+    
+    /**
+     * Creates a message containing a single record of the outbound log.  The
+     * record is preceded by the id of the log, the sequence number of the 
+     * previous record sent to the same client, and the sequence number of 
+     * the record.  The records in between were not wanted by the client, and
+     * will never be sent to it.
+     */
+    protected Response createLogRecord(OutboundLog log, long prevSeq, long seq, byte[] record, SocketAddress destination) {
+        try {
+            Response resp = new Response(UdpConstants.NO_TICKET, destination);
+            resp.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_LOG_RECORD.str);
+            resp.stream.writeLong(log.getId());
+            resp.stream.writeLong(prevSeq);
+            resp.stream.writeLong(seq);
+            resp.stream.write(record);
+            return resp;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to serialize log record", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Resends the records that are owed to each client that is subscribed,
+     * and releases the records that are no longer owed to any client.
+     * 
+     * @see LogCursor#replay(long, long)
+     */
+    protected void replayLog() {
+        OutboundLog log = _outboundLog;
+        long now = System.nanoTime();
+        List<Response> responses = new ArrayList<Response>();
+        
+        synchronized(_logCursors) {
+            updateLogCursors(log, now);
+            if (log == null) return;
+            
+            long firstSeq = log.getFirstSequence();
+            for (LogCursor cursor : _logCursors.values()) {
+                if (!cursor.isOnline(now)) continue;
+                
+                long prevSeq = cursor.getAcknowledged();
+                for (long seq : cursor.replay(firstSeq, now)) {
+                    byte[] record = log.read(seq);
+                    if (record == null) continue;
+                    
+                    Response resp = createLogRecord(log, prevSeq, seq, record, cursor.address);
+                    if (resp != null) responses.add(resp);
+                    prevSeq = seq;
                 }
             }
+            retainLog(log);
+        }
+        
+        for (Response resp : responses) {
+            _udpServer.send(resp);
+        }
+    }
+    
+    protected TimerTask _logTask = new TimerTask() {
+        @Override
+        public void run() {
+            try {
+                replayLog();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to replay outbound log", e);
+            }
+        }
+    };
+    
+    /**
+     * Selects whether the camera stream adapts to the health of the links 
+     * to its subscribers.  This only has an effect if the vehicle server is
+     * an AdaptiveImageSource.  When disabled, the camera returns to full 
+     * quality.
+     * 
+     * @param adaptive true to adapt the camera stream to link health
+     */
+    public void setImageAdaptive(boolean adaptive) {
+        _isImageAdaptive = adaptive;
+        if (!adaptive) {
+            VehicleServer server = _vehicleServer;
+            if (server instanceof AdaptiveImageSource)
+                ((AdaptiveImageSource)server).setImageQuality(AbstractVehicleServer.DEFAULT_IMAGE_QUALITY, 1.0, 0.0);
+        }
+    }
+    
+    public boolean isImageAdaptive() {
+        return _isImageAdaptive;
+    }
+    
+    /**
+     * Updates the limits on the camera stream from the loss rate and 
+     * round-trip time of the worst link to an image subscriber.  Links whose 
+     * health has not been updated recently are ignored, since their estimates 
+     * no longer reflect the link.
+     * 
+     * Link health is only learned from acknowledgements of reliable 
+     * responses, and frames of the unreliable IMAGE_STREAM are never 
+     * acknowledged.  Losses to a subscriber of IMAGE_STREAM are therefore 
+     * only seen if it also receives reliable responses, such as another 
+     * reliable stream, and are otherwise not adapted to.
+     */
+    protected void adaptImages() {
+        VehicleServer server = _vehicleServer;
+        if (!_isImageAdaptive || !(server instanceof AdaptiveImageSource)) return;
+        
+        Set<SocketAddress> destinations = new LinkedHashSet<SocketAddress>(getSubscribers(STREAM.IMAGE));
+        destinations.addAll(getSubscribers(STREAM.IMAGE_STREAM));
+        if (destinations.isEmpty()) return;
+        
+        long now = System.nanoTime();
+        double loss = 0.0;
+        long rtt = -1;
+        for (SocketAddress destination : destinations) {
+            LinkHealth health = _udpServer.getLinkHealth(destination);
+            if (health == null || now - health.getLastUpdateTime() > UdpConstants.LINK_HEALTH_TIMEOUT_NS) 
+                continue;
+            loss = Math.max(loss, health.getLossRate());
+            rtt = Math.max(rtt, health.getRoundTripTime());
+        }
+        
+        if (_imageRate.update(loss, rtt)) {
+            logger.log(Level.FINE, "Adapting camera stream to level {0} (loss {1}, rtt {2}ns)", 
+                    new Object[]{_imageRate.getLevel(), loss, rtt});
+            ((AdaptiveImageSource)server).setImageQuality(
+                    _imageRate.getQuality(), _imageRate.getScale(), _imageRate.getMinInterval());
+        }
+    }
+    
+    protected TimerTask _imageTask = new TimerTask() {
+        @Override
+        public void run() {
+            try {
+                adaptImages();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to adapt camera stream", e);
+            }
+        }
+    };
+    
+    /**
+     * Sets the precision to which the compact pose and velocity streams are
+     * quantized.  Coarser precision reduces the size of each delta.
+     * 
+     * @param linearPrecision the precision of positions and linear 
+     * velocities, in meters and meters per second
+     * @param angularPrecision the precision of the components of orientation
+     * quaternions, and of angular velocities in radians per second
+     */
+    public void setTelemetryPrecision(double linearPrecision, double angularPrecision) {
+        _poseEncoder = TelemetryCodec.createPoseEncoder(
+                linearPrecision, angularPrecision, UdpConstants.TELEMETRY_KEYFRAME_INTERVAL);
+        _velocityEncoder = TelemetryCodec.createTwistEncoder(
+                linearPrecision, angularPrecision, UdpConstants.TELEMETRY_KEYFRAME_INTERVAL);
+    }
+    
+    /**
+     * Lists every subscriber of the specified stream, regardless of the rate
+     * that each one requested.
+     * 
+     * @param stream the stream to check
+     * @return the addresses of the subscribers
+     */
+    protected List<SocketAddress> getSubscribers(STREAM stream) {
+        Subscriber[] subscribers = _subscriberSnapshot;
+        if (subscribers.length == 0) return Collections.emptyList();
+        
+        long now = System.nanoTime();
+        List<SocketAddress> destinations = new ArrayList<SocketAddress>(subscribers.length);
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.isSubscribed(stream, now))
+                destinations.add(subscriber.address);
+        }
+        return destinations;
+    }
+    
+    /**
+     * Selects the subscribers that should receive an event on the specified
+     * stream right now, taking into account the rate each one requested.
+     * 
+     * @param stream the stream on which an event is being sent
+     * @return the addresses to which the event should be sent
+     */
+    protected List<SocketAddress> getDestinations(STREAM stream) {
+        Subscriber[] subscribers = _subscriberSnapshot;
+        if (subscribers.length == 0) return Collections.emptyList();
+        
+        long now = System.nanoTime();
+        List<SocketAddress> destinations = new ArrayList<SocketAddress>(subscribers.length);
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.accept(stream, now))
+                destinations.add(subscriber.address);
+        }
+        return destinations;
+    }
+    
+    /**
+     * Selects the subscribers that should receive a sensor reading right now,
+     * taking into account the sensor filter and rate each one requested.  
+     * This allows readings to be discarded before they are serialized.
+     * 
+     * @param sensor the sensor reading that is being sent
+     * @return the addresses to which the reading should be sent
+     */
+    protected List<SocketAddress> getDestinations(SensorData sensor) {
+        Subscriber[] subscribers = _subscriberSnapshot;
+        if (subscribers.length == 0) return Collections.emptyList();
+        
+        long now = System.nanoTime();
+        List<SocketAddress> destinations = new ArrayList<SocketAddress>(subscribers.length);
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.accept(sensor, now))
+                destinations.add(subscriber.address);
+        }
+        return destinations;
+    }
+    
+    /**
+     * Republishes the snapshot of the subscriber table.  This must be called
+     * while holding the lock of the table, after every change to it.
+     */
+    protected void publishSubscribers() {
+        _subscriberSnapshot = _subscribers.values().toArray(new Subscriber[0]);
+    }
+    
+    /**
+     * Removes subscribers that no longer have any streams that have not 
+     * timed out.  Streams that time out are already ignored when sending, so
+     * the table is only locked if there is a subscriber to remove.
+     */
+    protected void updateRegistrations() {
+        long now = System.nanoTime();
+        boolean isExpired = false;
+        for (Subscriber subscriber : _subscriberSnapshot) {
+            isExpired |= subscriber.isExpired(now);
+        }
+        if (!isExpired) return;
+        
+        synchronized(_subscribers) {
+            for (Iterator<Subscriber> it = _subscribers.values().iterator(); it.hasNext();) {
+                Subscriber subscriber = it.next();
+                if (subscriber.isExpired(now)) {
+                    it.remove();
+                    _udpServer.forgetLinkHealth(subscriber.address);
+                }
+            }
+            publishSubscribers();
+        }
+    }
+    
+    /**
+     * Sends a snapshot of the latest telemetry to each STATE subscriber whose
+     * interval has elapsed.  Subscribers with the same sensor filter share a
+     * single encoded packet.
+     */
+    protected void sendState() {
+        Subscriber[] subscribers = _subscriberSnapshot;
+        if (subscribers.length == 0 || _state.getSequence() == 0) return;
+        
+        long now = System.nanoTime();
+        Map<SensorFilter, List<SocketAddress>> groups = new LinkedHashMap<SensorFilter, List<SocketAddress>>();
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.accept(STREAM.STATE, now)) continue;
+            
+            List<SocketAddress> destinations = groups.get(subscriber.getSensorFilter());
+            if (destinations == null) {
+                destinations = new ArrayList<SocketAddress>();
+                groups.put(subscriber.getSensorFilter(), destinations);
+            }
+            destinations.add(subscriber.address);
+        }
+        
+        for (Map.Entry<SensorFilter, List<SocketAddress>> group : groups.entrySet()) {
+            try {
+                Response resp = new Response(UdpConstants.NO_TICKET, DUMMY_ADDRESS);
+                resp.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_STATE.str);
+                _state.write(resp.stream, group.getKey());
+                
+                _udpServer.bcast(resp, group.getValue());
+            } catch (IOException e) {
+                // Don't throw here, as that would also cancel the registration task
+                logger.log(Level.WARNING, "Failed to serialize state", e);
+            }
+        }
+    }
+    
+    protected TimerTask _stateTask = new TimerTask() {
+        @Override
+        public void run() {
+            try {
+                sendState();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to send state", e);
+            }
+        }
+    };
+    
+    /**
+     * Sends an empty acknowledgement to a relay, which opens or refreshes the
+     * mapping through the NAT of the vehicle, and tells the relay where to 
+     * forward traffic for this vehicle.  Clients ignore it, since it does not
+     * acknowledge any ticket.
+     * 
+     * @param relay the vehicle port of a relay session
+     */
+    protected void punchRelay(SocketAddress relay) {
+        try {
+            Response resp = new Response(UdpConstants.NO_TICKET, relay);
+            resp.stream.writeUTF(UdpConstants.CMD_ACKNOWLEDGE);
+            _udpServer.send(resp);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to contact relay", e);
+        }
+    }
+    
+    /**
+     * Refreshes the relay sessions that are still in use, and forgets the
+     * ones that have carried no traffic for the relay idle timeout.
+     */
+    protected void updateRelays() {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<SocketAddress, Long>> it = _relays.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<SocketAddress, Long> relay = it.next();
+            if (now - relay.getValue() > UdpConstants.RELAY_IDLE_TIMEOUT_NS) {
+                it.remove();
+            } else {
+                punchRelay(relay.getKey());
+            }
         }
     }
     
@@ -658,21 +1518,18 @@ public class UdpVehicleService implements UdpServer.RequestHandler {
         
         @Override
         public void run() {
-            // Send registration commands to all the specified registries
-            synchronized(_registries) {
-                _udpServer.bcast(resp, _registries);
-            }
+            try {
+                // Send registration commands to all the specified registries
+                synchronized(_registries) {
+                    _udpServer.bcast(resp, _registries);
+                }
 
-            // Update each of the registration lists to remove outdated listeners
-            updateRegistrations(_poseListeners);
-            updateRegistrations(_imageListeners);
-            updateRegistrations(_cameraListeners);
-            updateRegistrations(_velocityListeners);
-            updateRegistrations(_waypointListeners);
-            updateRegistrations(_crumbListeners);
-            updateRegistrations(_sensorListeners);
-            updateRegistrations(_rcListeners);
-            updateRegistrations(_keyValueListeners);
+                // Update the subscriptions to remove outdated listeners
+                updateRegistrations();
+                updateRelays();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to update registrations", e);
+            }
         }
     };
 }
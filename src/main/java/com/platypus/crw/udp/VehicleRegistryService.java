@@ -1,16 +1,26 @@
 package com.platypus.crw.udp;
 
 import com.platypus.crw.udp.UdpServer.Request;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,12 +38,191 @@ public class VehicleRegistryService {
     
     protected final UdpServer _udpServer;
     protected final Timer _registrationTimer = new Timer();
-    protected final Map<SocketAddress, Client> _clients = new LinkedHashMap<SocketAddress, Client>();
+    
+    // Clients are spread over shards by address, so that registrations
+    // arriving on different receiver threads rarely contend for a lock.
+    // Renewals of existing clients only look up their own entry without
+    // locking, but any other change to a shard must hold its lock.
+    protected final Shard[] _shards;
+    
+    // Log of every addition, rename and removal of a client, in version 
+    // order.  Every change increments the version, which is only comparable 
+    // between listings with the same epoch.  The log is only appended to,
+    // and is compacted once most of its entries are superseded.  It must 
+    // only be changed while holding its lock, which may be taken while 
+    // holding the lock of a shard, but not the other way around.
+    protected final Object _logLock = new Object();
+    protected final long _epoch = new Random().nextLong();
+    protected Entry[] _log = new Entry[64];
+    protected int _logSize = 0;
+    protected int _logGarbage = 0;
+    protected long _version = 0;
+    protected long _horizon = 0;
+    
+    // The latest entry in the log for each address, and the removals that 
+    // have not yet been forgotten, oldest first
+    protected final Map<SocketAddress, Entry> _latest = new HashMap<SocketAddress, Entry>();
+    protected final Deque<Entry> _removals = new ArrayDeque<Entry>();
+    
+    // Other registry instances with which the table of clients is replicated
+    protected final List<SocketAddress> _peers = new ArrayList<SocketAddress>();
+    
+    // Optional data plane for vehicles that clients cannot reach directly
+    protected volatile UdpRelay _relay = null;
+    
+    // Clients that are watching for changes, and the name prefixes they watch
+    protected final Map<SocketAddress, Watcher> _watchers = new LinkedHashMap<SocketAddress, Watcher>();
+    protected final AtomicLong _ticketCounter = new AtomicLong(new Random().nextLong() << 32);
+    
+    // Snapshot of the log, which is republished after every change so that
+    // listings can be serialized without locking
+    protected volatile Listing _listing = new Listing(0, 0, new Entry[0], 0);
     
     protected static class Client {
-        int ttl;
-        String name;
+        static final int EXPIRED = -1;
+        
+        // Remaining registration periods, or EXPIRED once the timer has
+        // decided to remove the client, after which it cannot be renewed
+        final AtomicInteger ttl = new AtomicInteger();
+        
+        // Remaining registration periods of the registration of the client
+        // with this instance, rather than with a peer
+        final AtomicInteger localTtl = new AtomicInteger();
+        volatile String name;
         SocketAddress addr;
+        
+        /**
+         * Returns true if the client has registered with this instance 
+         * within the registration timeout.  A client that moves to a peer
+         * instance stops being local once its local registration expires.
+         */
+        boolean isLocal() {
+            return localTtl.get() > 0;
+        }
+        
+        /**
+         * Renews the registration of the client, unless it has expired.
+         * 
+         * @return false if the client expired and must be registered again
+         */
+        boolean renew(int periods, boolean isLocal) {
+            while (true) {
+                int current = ttl.get();
+                if (current == EXPIRED) return false;
+                int next = isLocal ? periods : Math.max(current, periods);
+                if (ttl.compareAndSet(current, next)) {
+                    if (isLocal) localTtl.set(periods);
+                    return true;
+                }
+            }
+        }
+        
+        /**
+         * Counts down a registration period.
+         * 
+         * @return true if the client has expired
+         */
+        boolean countDown() {
+            int local = localTtl.get();
+            while (local > 0 && !localTtl.compareAndSet(local, local - 1)) {
+                local = localTtl.get();
+            }
+            
+            while (true) {
+                int current = ttl.get();
+                if (current == EXPIRED) return true;
+                int next = (current == 0) ? EXPIRED : current - 1;
+                if (ttl.compareAndSet(current, next)) return (next == EXPIRED);
+            }
+        }
+    }
+    
+    protected static class Shard {
+        final Map<SocketAddress, Client> clients = new ConcurrentHashMap<SocketAddress, Client>();
+    }
+    
+    protected static class Watcher {
+        final String[] prefixes;
+        final long expiration;
+        
+        Watcher(String[] p, long e) {
+            prefixes = p;
+            expiration = e;
+        }
+        
+        boolean accepts(String name) {
+            for (String prefix : prefixes) {
+                if (name.startsWith(prefix)) return true;
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Record of a client, or of its removal if the name is null.  Once a 
+     * later entry is logged for the same client, this entry is marked with
+     * the version of the entry that superseded it.
+     */
+    protected static class Entry {
+        final SocketAddress addr;
+        final String name;
+        final long version;
+        final long time;
+        volatile long supersededBy = 0;
+        
+        Entry(SocketAddress a, String n, long v, long t) {
+            addr = a;
+            name = n;
+            version = v;
+            time = t;
+        }
+        
+        /**
+         * Returns true if this entry is still the latest for its client as
+         * of the version of a listing.
+         */
+        boolean isCurrent(Listing listing) {
+            long superseded = supersededBy;
+            return superseded == 0 || superseded > listing.version;
+        }
+    }
+    
+    /**
+     * Snapshot of the log of the registry.  The first count entries of the 
+     * array are sorted by version, and are never changed once they are 
+     * published, although the log may append entries after them.  Removals 
+     * with versions up to the horizon have been forgotten.
+     */
+    protected static class Listing {
+        final long version;
+        final long horizon;
+        final Entry[] entries;
+        final int count;
+        
+        Listing(long v, long h, Entry[] e, int c) {
+            version = v;
+            horizon = h;
+            entries = e;
+            count = c;
+        }
+        
+        /**
+         * Returns the index of the first entry with a version later than the 
+         * specified version.
+         */
+        int indexAfter(long version) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries[mid].version <= version) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
     }
     
     public VehicleRegistryService() {
@@ -41,7 +230,25 @@ public class VehicleRegistryService {
     }
     
     public VehicleRegistryService(int udpPort) {
-        _udpServer = new UdpServer(udpPort);
+        this(udpPort, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Starts a registry that receives on several sockets sharing the same 
+     * port, so that the registrations of many vehicles are spread across
+     * cores.
+     * 
+     * @param udpPort the port on which to listen
+     * @param numReceivers the number of receiver threads
+     * @see UdpServer#UdpServer(int, int) 
+     */
+    public VehicleRegistryService(int udpPort, int numReceivers) {
+        _shards = new Shard[UdpConstants.REGISTRY_SHARD_COUNT];
+        for (int i = 0; i < _shards.length; ++i) {
+            _shards[i] = new Shard();
+        }
+        
+        _udpServer = new UdpServer(udpPort, numReceivers);
         _udpServer.setHandler(_handler);
         _udpServer.start();
         
@@ -49,7 +256,44 @@ public class VehicleRegistryService {
     }
     
     public void shutdown() {
+        _registrationTimer.cancel();
         _udpServer.stop();
+        disableRelay();
+    }
+    
+    /**
+     * Starts relaying traffic between clients and registered vehicles that 
+     * cannot reach each other directly.  Clients request a relay session with
+     * CMD_CONNECT_RELAY, and are sent the port of the relay to use in place
+     * of the address of the vehicle.
+     * 
+     * @param maxSessions the maximum number of concurrent relay sessions
+     * @throws IOException if the relay could not be started
+     */
+    public synchronized void enableRelay(int maxSessions) throws IOException {
+        if (_relay == null)
+            _relay = new UdpRelay(maxSessions);
+    }
+    
+    public synchronized void disableRelay() {
+        if (_relay == null) return;
+        
+        try {
+            _relay.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to close relay", e);
+        }
+        _relay = null;
+    }
+    
+    /**
+     * Returns the relay used for relayed sessions, which provides the 
+     * traffic statistics of each session.
+     * 
+     * @return the relay, or null if relaying is not enabled
+     */
+    public UdpRelay getRelay() {
+        return _relay;
     }
 
     private final UdpServer.RequestHandler _handler = new UdpServer.RequestHandler() {
@@ -61,22 +305,7 @@ public class VehicleRegistryService {
                 
                 switch (UdpConstants.COMMAND.fromStr(command)) {
                 case CMD_REGISTER:
-                    
-                    synchronized(_clients) {    
-                        // Look for client in table
-                        Client c = _clients.get(req.source);
-
-                        // If not found, create a new entry
-                        if (c == null) {
-                            c = new Client();
-                            c.addr = req.source;
-                            c.name = req.stream.readUTF();
-                            _clients.put(req.source, c);
-                        }
-
-                        // Update the registration count for this client
-                        c.ttl = UdpConstants.REGISTRATION_TIMEOUT_COUNT;
-                    }
+                    register(req.source, req.stream.readUTF());
                     break;
                 case CMD_CONNECT:
                     
@@ -92,23 +321,102 @@ public class VehicleRegistryService {
                     respCon.stream.writeInt(((InetSocketAddress)req.source).getPort());
                     _udpServer.respond(respCon);
                     break;
-                case CMD_LIST:
+                case CMD_CONNECT_RELAY:
+                {
+                    InetSocketAddress vehicle = new InetSocketAddress(req.stream.readUTF(), req.stream.readInt());
                     
+                    // Only relay to registered vehicles, so that the relay
+                    // cannot be used to reach arbitrary hosts
+                    UdpRelay relay = _relay;
+                    UdpRelay.Session session = (relay != null && isRegistered(vehicle)) 
+                            ? relay.openSession(vehicle.getAddress(), req.source) : null;
+                    
+                    // Ask the vehicle to open its end of the session, which 
+                    // also opens a mapping to the relay through its NAT
+                    if (session != null) {
+                        UdpServer.Response respVehicle = new UdpServer.Response(_ticketCounter.incrementAndGet(), vehicle);
+                        respVehicle.stream.writeUTF(command);
+                        respVehicle.stream.writeInt(session.getVehiclePort());
+                        _udpServer.respond(respVehicle);
+                    }
+                    
+                    // Send the client the port to use, or zero if there is none
+                    UdpServer.Response respRelay = new UdpServer.Response(req);
+                    respRelay.stream.writeUTF(command);
+                    respRelay.stream.writeInt((session != null) ? session.getClientPort() : 0);
+                    _udpServer.respond(respRelay);
+                    break;
+                }
+                case CMD_GOSSIP_REGISTRY:
+                {
+                    // Only replicate the tables of known peers
+                    synchronized(_peers) {
+                        if (!_peers.contains(req.source)) {
+                            logger.log(Level.WARNING, "Ignoring gossip from unknown peer: {0}", req.source);
+                            break;
+                        }
+                    }
+                    
+                    int numClients = req.stream.readInt();
+                    for (int i = 0; i < numClients; ++i) {
+                        String name = req.stream.readUTF();
+                        String clientHost = req.stream.readUTF();
+                        int clientPort = req.stream.readInt();
+                        int ttl = req.stream.readUnsignedByte();
+                        register(new InetSocketAddress(clientHost, clientPort), name, ttl, false);
+                    }
+                    break;
+                }
+                case CMD_WATCH_REGISTRY:
+                {
+                    String[] prefixes = new String[req.stream.readInt()];
+                    for (int i = 0; i < prefixes.length; ++i) {
+                        prefixes[i] = req.stream.readUTF();
+                    }
+                    watch(req.source, prefixes);
+                    break;
+                }
+                case CMD_LIST:
+                {
                     // Create a response to the same client
                     UdpServer.Response respList = new UdpServer.Response(req);
                     respList.stream.writeUTF(command);
                     
-                    // List all of the clients
-                    synchronized(_clients) {
-                        respList.stream.writeInt(_clients.size());
-                        for (Map.Entry<SocketAddress, Client> e : _clients.entrySet()) {
-                            respList.stream.writeUTF(e.getValue().name);
-                            respList.stream.writeUTF(((InetSocketAddress)e.getKey()).getAddress().getHostAddress());
-                            respList.stream.writeInt(((InetSocketAddress)e.getKey()).getPort());
+                    // List as many of the clients as fit in a single packet
+                    Listing listing = _listing;
+                    List<Entry> entries = new ArrayList<Entry>();
+                    int size = 0;
+                    for (int i = 0; i < listing.count; ++i) {
+                        Entry entry = listing.entries[i];
+                        if (entry.name == null || !entry.isCurrent(listing)) continue;
+                        size += sizeOf(entry);
+                        if (size > UdpConstants.REGISTRY_PAGE_SIZE) {
+                            logger.log(Level.WARNING, "Too many clients for CMD_LIST, use CMD_LIST_CHANGES instead.");
+                            break;
                         }
+                        entries.add(entry);
+                    }
+                    
+                    respList.stream.writeInt(entries.size());
+                    for (Entry entry : entries) {
+                        respList.stream.writeUTF(entry.name);
+                        respList.stream.writeUTF(((InetSocketAddress)entry.addr).getAddress().getHostAddress());
+                        respList.stream.writeInt(((InetSocketAddress)entry.addr).getPort());
                     }
                     _udpServer.respond(respList);
                     break;
+                }
+                case CMD_LIST_CHANGES:
+                {
+                    long epoch = req.stream.readLong();
+                    long version = req.stream.readLong();
+                    
+                    UdpServer.Response respList = new UdpServer.Response(req);
+                    respList.stream.writeUTF(command);
+                    writeChanges(respList.stream, _listing, epoch, version);
+                    _udpServer.respond(respList);
+                    break;
+                }
                 default:
                     logger.log(Level.WARNING, "Ignoring unknown command: {0}", command);
                 }
@@ -119,24 +427,454 @@ public class VehicleRegistryService {
 
         @Override
         public void timeout(long ticket, SocketAddress destination) {
-            throw new UnsupportedOperationException("Registry should not receive timeouts.");
+            // Only change notifications are sent reliably, so stop notifying
+            // watchers that have stopped acknowledging them
+            synchronized(_watchers) {
+                _watchers.remove(destination);
+            }
         }
     };
     
-    // Removes outdated registrations from client list
+    /**
+     * Adds a client to the registry, or renews its registration if it is 
+     * already registered.
+     * 
+     * @param addr the address of the client
+     * @param name the text name of the client
+     */
+    protected void register(SocketAddress addr, String name) {
+        register(addr, name, UdpConstants.REGISTRATION_TIMEOUT_COUNT, true);
+    }
+    
+    /**
+     * Adds or renews a client, either from its own registration or from the
+     * replicated table of a peer.  The name of a client that registered with
+     * this instance is not overridden by peers until its local registration
+     * expires.
+     * 
+     * @param addr the address of the client
+     * @param name the text name of the client
+     * @param ttl the number of registration periods before the client expires
+     * @param isLocal true if the client registered with this instance
+     */
+    protected void register(SocketAddress addr, String name, int ttl, boolean isLocal) {
+        
+        // Renew existing clients without taking the lock, since this is by
+        // far the most common request.  A renewal that loses the race with 
+        // the timer finds the client expired, and registers it again.
+        Shard shard = shard(addr);
+        Client c = shard.clients.get(addr);
+        if (c != null && c.name.equals(name) && (c.isLocal() || !isLocal) && c.renew(ttl, isLocal)) {
+            return;
+        }
+        
+        Change change = null;
+        synchronized(shard) {    
+            // Look for client in table
+            c = shard.clients.get(addr);
+
+            // If not found, create a new entry
+            if (c == null) {
+                c = new Client();
+                c.addr = addr;
+                c.name = name;
+                shard.clients.put(addr, c);
+                change = new Change(RegistryEvent.JOINED, addr, name, log(addr, name));
+            } else if (!c.name.equals(name) && (isLocal || !c.isLocal())) {
+                c.name = name;
+                change = new Change(RegistryEvent.RENAMED, addr, name, log(addr, name));
+            }
+
+            // Update the registration count for this client, which cannot
+            // have expired since the timer removes clients under this lock
+            c.renew(ttl, isLocal);
+        }
+        
+        if (change != null) notifyWatchers(change);
+    }
+    
+    /**
+     * Returns the shard of the client table that holds an address.
+     */
+    protected Shard shard(SocketAddress addr) {
+        return _shards[(addr.hashCode() & Integer.MAX_VALUE) % _shards.length];
+    }
+    
+    /**
+     * Returns true if a client is currently registered at an address.
+     */
+    protected boolean isRegistered(SocketAddress addr) {
+        return shard(addr).clients.containsKey(addr);
+    }
+    
+    /**
+     * Adds another registry instance with which the table of clients is 
+     * replicated.  Each instance periodically sends the clients that 
+     * registered with it directly to all of its peers, which list them until 
+     * they expire, so peers should be added in both directions between every
+     * pair of instances.  Replication is full-mesh only: tables are not 
+     * forwarded between peers, and there is no anti-entropy digest, so each
+     * instance resends its whole local table every period.
+     * 
+     * @param addr the UDP address of the other registry instance
+     */
+    public void addPeer(SocketAddress addr) {
+        synchronized(_peers) {
+            if (!_peers.contains(addr)) _peers.add(addr);
+        }
+    }
+    
+    public void removePeer(SocketAddress addr) {
+        synchronized(_peers) {
+            _peers.remove(addr);
+        }
+    }
+    
+    public List<SocketAddress> getPeers() {
+        synchronized(_peers) {
+            return new ArrayList<SocketAddress>(_peers);
+        }
+    }
+    
+    /**
+     * Sends the clients that registered with this instance to every peer.  
+     * The clients are split into pages that each fit in a packet, and each
+     * page is encoded as an int count followed by the UTF name, UTF host, int
+     * port and byte remaining registration count of each client.  Since the 
+     * table is resent every period, pages are sent without retransmission.
+     */
+    protected void gossip() {
+        List<SocketAddress> peers = getPeers();
+        if (peers.isEmpty()) return;
+        
+        List<Client> clients = new ArrayList<Client>();
+        for (Shard shard : _shards) {
+            synchronized(shard) {
+                for (Client c : shard.clients.values()) {
+                    if (!c.isLocal()) continue;
+                    Client copy = new Client();
+                    copy.addr = c.addr;
+                    copy.name = c.name;
+                    copy.ttl.set(c.ttl.get());
+                    clients.add(copy);
+                }
+            }
+        }
+        
+        int start = 0;
+        while (start < clients.size()) {
+            int end = start;
+            int size = 0;
+            while (end < clients.size()) {
+                size += sizeOf(clients.get(end).addr, clients.get(end).name) + 1;
+                if (size > UdpConstants.REGISTRY_PAGE_SIZE && end > start) break;
+                end++;
+            }
+            
+            try {
+                UdpServer.Response resp = new UdpServer.Response(UdpConstants.NO_TICKET, peers.get(0));
+                resp.stream.writeUTF(UdpConstants.COMMAND.CMD_GOSSIP_REGISTRY.str);
+                resp.stream.writeInt(end - start);
+                for (Client c : clients.subList(start, end)) {
+                    resp.stream.writeUTF(c.name);
+                    resp.stream.writeUTF(((InetSocketAddress)c.addr).getAddress().getHostAddress());
+                    resp.stream.writeInt(((InetSocketAddress)c.addr).getPort());
+                    resp.stream.writeByte(c.ttl.get());
+                }
+                _udpServer.bcast(resp, peers);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to serialize registry gossip", e);
+            }
+            start = end;
+        }
+    }
+    
+    /**
+     * Removes a client from the registry, recording its removal so that 
+     * incremental listings can report it.
+     * 
+     * @param addr the address of the client
+     */
+    protected void unregister(SocketAddress addr) {
+        Shard shard = shard(addr);
+        Change change;
+        synchronized(shard) {
+            change = remove(shard, addr);
+        }
+        if (change != null) notifyWatchers(change);
+    }
+    
+    /**
+     * Removes a client from a shard and logs its removal.  This must be 
+     * called while holding the lock of the shard.
+     * 
+     * @return the removal that should be pushed to watchers, or null if the
+     * client was not registered
+     */
+    private Change remove(Shard shard, SocketAddress addr) {
+        Client c = shard.clients.remove(addr);
+        return (c == null) ? null : new Change(RegistryEvent.LEFT, addr, c.name, log(addr, null));
+    }
+    
+    /**
+     * Kinds of change that are pushed to watchers.
+     */
+    public enum RegistryEvent {
+        JOINED, LEFT, RENAMED
+    }
+    
+    /**
+     * A change to a client that has yet to be pushed to watchers.
+     */
+    protected static class Change {
+        final RegistryEvent event;
+        final SocketAddress addr;
+        final String name;
+        final long version;
+        
+        Change(RegistryEvent e, SocketAddress a, String n, long v) {
+            event = e;
+            addr = a;
+            name = n;
+            version = v;
+        }
+    }
+    
+    /**
+     * Adds, renews or removes a watcher of registry changes.  Watchers that
+     * are not renewed within the registration timeout are removed.
+     * 
+     * @param addr the address to which changes are pushed
+     * @param prefixes the name prefixes of the clients to watch, or an empty
+     * array to stop watching
+     */
+    protected void watch(SocketAddress addr, String[] prefixes) {
+        synchronized(_watchers) {
+            if (prefixes.length == 0) {
+                _watchers.remove(addr);
+            } else {
+                _watchers.put(addr, new Watcher(prefixes, 
+                        System.nanoTime() + UdpConstants.REGISTRATION_TIMEOUT_NS));
+            }
+        }
+    }
+    
+    /**
+     * Pushes a change to every watcher of the name of the changed client.  
+     * The notification is encoded as a long epoch, the long version of the 
+     * change, a byte RegistryEvent, and the UTF name, UTF host and int port
+     * of the client.  Since the change is sent reliably to every watcher, 
+     * this must not be called while holding the lock of a shard.  Changes
+     * may therefore be pushed out of order, which watchers detect from the
+     * version.
+     */
+    protected void notifyWatchers(Change change) {
+        List<SocketAddress> destinations = new ArrayList<SocketAddress>();
+        long now = System.nanoTime();
+        synchronized(_watchers) {
+            for (Map.Entry<SocketAddress, Watcher> e : _watchers.entrySet()) {
+                if (e.getValue().expiration > now && e.getValue().accepts(change.name))
+                    destinations.add(e.getKey());
+            }
+        }
+        if (destinations.isEmpty()) return;
+        
+        try {
+            UdpServer.Response resp = new UdpServer.Response(_ticketCounter.incrementAndGet(), change.addr);
+            resp.stream.writeUTF(UdpConstants.COMMAND.CMD_SEND_REGISTRY_CHANGE.str);
+            resp.stream.writeLong(_epoch);
+            resp.stream.writeLong(change.version);
+            resp.stream.writeByte(change.event.ordinal());
+            resp.stream.writeUTF(change.name);
+            resp.stream.writeUTF(((InetSocketAddress)change.addr).getAddress().getHostAddress());
+            resp.stream.writeInt(((InetSocketAddress)change.addr).getPort());
+            _udpServer.respond(resp, destinations);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to serialize registry change", e);
+        }
+    }
+    
+    /**
+     * Appends a change to the log and republishes the snapshot of the 
+     * registry.  This must be called while holding the lock of the shard of 
+     * the client, so that the changes to each client are logged in order.
+     * 
+     * @param addr the address of the client
+     * @param name the new name of the client, or null if it was removed
+     * @return the version of the change
+     */
+    protected long log(SocketAddress addr, String name) {
+        synchronized(_logLock) {
+            Entry entry = new Entry(addr, name, ++_version, System.nanoTime());
+            Entry previous = _latest.put(addr, entry);
+            if (previous != null) {
+                previous.supersededBy = entry.version;
+                _logGarbage++;
+            }
+            if (name == null) _removals.add(entry);
+            
+            if (_logSize == _log.length) {
+                _log = Arrays.copyOf(_log, 2 * _log.length);
+            }
+            _log[_logSize++] = entry;
+            
+            compactLog();
+            _listing = new Listing(_version, _horizon, _log, _logSize);
+            return entry.version;
+        }
+    }
+    
+    /**
+     * Forgets the removals that are old enough that incremental listings no 
+     * longer need them.  Listings from before the latest forgotten removal
+     * are restarted from scratch.
+     * 
+     * @param now the current time in nanoseconds
+     */
+    protected void forgetRemovals(long now) {
+        synchronized(_logLock) {
+            boolean isChanged = false;
+            while (!_removals.isEmpty() 
+                    && now - _removals.peekFirst().time > UdpConstants.REGISTRY_REMOVAL_TIMEOUT_NS) {
+                Entry removal = _removals.pollFirst();
+                if (_latest.get(removal.addr) == removal) _latest.remove(removal.addr);
+                if (removal.supersededBy == 0) _logGarbage++;
+                _horizon = removal.version;
+                isChanged = true;
+            }
+            
+            if (isChanged) {
+                compactLog();
+                _listing = new Listing(_version, _horizon, _log, _logSize);
+            }
+        }
+    }
+    
+    /**
+     * Copies the live entries of the log into a new array once most of them
+     * are superseded or forgotten, which keeps the cost of compaction 
+     * proportional to the number of changes.  Listings that were already 
+     * published keep the old array.  This must be called while holding the 
+     * lock of the log.
+     */
+    private void compactLog() {
+        if (_logGarbage * 2 <= _logSize) return;
+        
+        Entry[] log = new Entry[Math.max(64, 2 * (_logSize - _logGarbage))];
+        int size = 0;
+        for (int i = 0; i < _logSize; ++i) {
+            Entry entry = _log[i];
+            if (entry.supersededBy != 0) continue;
+            if (entry.name == null && entry.version <= _horizon) continue;
+            log[size++] = entry;
+        }
+        _log = log;
+        _logSize = size;
+        _logGarbage = 0;
+    }
+    
+    /**
+     * Returns the number of bytes used to encode an entry in a listing, 
+     * assuming the worst case of three bytes per character of the name.
+     */
+    static int sizeOf(Entry entry) {
+        return sizeOf(entry.addr, entry.name);
+    }
+    
+    static int sizeOf(SocketAddress addr, String name) {
+        int nameSize = (name == null) ? 0 : 2 + 3 * name.length();
+        String host = ((InetSocketAddress)addr).getAddress().getHostAddress();
+        return 1 + nameSize + 2 + host.length() + 4;
+    }
+    
+    /**
+     * Encodes the clients that were added or removed since a previous 
+     * listing, oldest change first.  If the previous listing is from another
+     * epoch, or is so old that some removals since then were forgotten, the 
+     * whole registry is listed instead and the reset flag is set.  If the 
+     * changes do not fit in a single page, the rest are left for a subsequent
+     * listing starting at the version that is written.
+     * 
+     * The changes are encoded as a long epoch, a boolean reset flag, the long
+     * version up to which the listing is now complete, a boolean indicating 
+     * whether more changes remain, an int count, and for each change a 
+     * boolean that is true for removals, the UTF name of added clients, and 
+     * the UTF host and int port of the client.
+     * 
+     * @param out the stream to which the changes are written
+     * @param listing the snapshot of the registry to list
+     * @param epoch the epoch of the previous listing
+     * @param version the version of the previous listing, or zero to list 
+     * every client
+     * @throws IOException if the changes could not be written
+     */
+    protected void writeChanges(DataOutputStream out, Listing listing, long epoch, long version) 
+            throws IOException {
+        boolean isReset = (epoch != _epoch || version < listing.horizon || version > listing.version);
+        if (isReset) version = 0;
+        
+        List<Entry> changes = new ArrayList<Entry>();
+        long listedVersion = listing.version;
+        int size = 0;
+        for (int i = listing.indexAfter(version); i < listing.count; ++i) {
+            Entry entry = listing.entries[i];
+            if (!entry.isCurrent(listing)) continue;
+            if (isReset && entry.name == null) continue;
+            
+            size += sizeOf(entry);
+            if (size > UdpConstants.REGISTRY_PAGE_SIZE && !changes.isEmpty()) {
+                listedVersion = entry.version - 1;
+                break;
+            }
+            changes.add(entry);
+        }
+        
+        out.writeLong(_epoch);
+        out.writeBoolean(isReset);
+        out.writeLong(listedVersion);
+        out.writeBoolean(listedVersion < listing.version);
+        out.writeInt(changes.size());
+        for (Entry entry : changes) {
+            out.writeBoolean(entry.name == null);
+            if (entry.name != null) out.writeUTF(entry.name);
+            out.writeUTF(((InetSocketAddress)entry.addr).getAddress().getHostAddress());
+            out.writeInt(((InetSocketAddress)entry.addr).getPort());
+        }
+    }
+    
+    // Removes outdated registrations from client list, and forgets removals 
+    // that are old enough that incremental listings no longer need them
     protected TimerTask _registrationTask = new TimerTask() {
         @Override
         public void run() {
-            synchronized(_clients) {
-                for (Iterator<Map.Entry<SocketAddress, Client>> it = _clients.entrySet().iterator(); it.hasNext();) {
-                    Map.Entry<SocketAddress, Client> client = it.next();
-                    if (client.getValue().ttl == 0) {
-                        it.remove();
-                    } else {
-                        client.getValue().ttl--;
+            long now = System.nanoTime();
+            
+            List<Change> changes = new ArrayList<Change>();
+            for (Shard shard : _shards) {
+                synchronized(shard) {
+                    List<SocketAddress> expired = new ArrayList<SocketAddress>();
+                    for (Client client : shard.clients.values()) {
+                        if (client.countDown()) expired.add(client.addr);
                     }
+                    for (SocketAddress addr : expired) {
+                        changes.add(remove(shard, addr));
+                    }
+                }
+            }
+            forgetRemovals(now);
+            
+            // Push removals once the shards are no longer locked
+            for (Change change : changes) {
+                notifyWatchers(change);
+            }
+            
+            synchronized(_watchers) {
+                for (Iterator<Watcher> it = _watchers.values().iterator(); it.hasNext();) {
+                    if (it.next().expiration <= now) it.remove();
                 }
-            }            
+            }
+            
+            gossip();
         }
     };
     
@@ -148,23 +886,30 @@ public class VehicleRegistryService {
     public Map<SocketAddress, String> getClients() {
         HashMap<SocketAddress, String> map = new LinkedHashMap<SocketAddress, String>();
         
-        synchronized(_clients) {
-            for (Client client : _clients.values()) {
-                map.put(client.addr, client.name);
-            }
+        Listing listing = _listing;
+        for (int i = 0; i < listing.count; ++i) {
+            Entry entry = listing.entries[i];
+            if (entry.name != null && entry.isCurrent(listing))
+                map.put(entry.addr, entry.name);
         }
         
         return map;
     }
     
     /**
-     * Simple startup script that runs the VehicleRegistryService using the
-     * default udp port and prints a list of connected clients.
+     * Simple startup script that runs the VehicleRegistryService and prints a
+     * list of connected clients.
      * 
-     * @param args these arguments will be ignored
+     * @param args an optional udp port, followed by the host:port addresses 
+     * of any peer registry instances
      */
     public static void main(String args[]) {
-        final VehicleRegistryService service = new VehicleRegistryService();
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_UDP_PORT;
+        final VehicleRegistryService service = new VehicleRegistryService(port);
+        for (int i = 1; i < args.length; ++i) {
+            String[] peer = args[i].split(":");
+            service.addPeer(new InetSocketAddress(peer[0], Integer.parseInt(peer[1])));
+        }
         
         // Periodically print the registered clients
         Timer printer = new Timer();
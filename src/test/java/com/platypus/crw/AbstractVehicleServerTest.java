@@ -0,0 +1,89 @@
+package com.platypus.crw;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a failing listener is isolated from the other listeners and
+ * from the thread that sends the event.
+ */
+public class AbstractVehicleServerTest {
+
+    static final String KEY = "test";
+
+    SimpleBoatSimulator server;
+    final List<Object> failed = new CopyOnWriteArrayList<Object>();
+    final CountDownLatch received = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        server = new SimpleBoatSimulator() {
+            @Override
+            protected void listenerFailed(Object listener, RuntimeException e) {
+                failed.add(listener);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        server.disableEventBus();
+        server.shutdown();
+    }
+
+    KeyValueListener addListeners() {
+        KeyValueListener failing = new KeyValueListener() {
+            @Override
+            public void keyValueUpdate(String key, float value) {
+                if (KEY.equals(key))
+                    throw new IllegalStateException("Expected failure");
+            }
+        };
+        server.addKeyValueListener(failing);
+        server.addKeyValueListener(new KeyValueListener() {
+            @Override
+            public void keyValueUpdate(String key, float value) {
+                if (KEY.equals(key) && value == 1.5f)
+                    received.countDown();
+            }
+        });
+        return failing;
+    }
+
+    /**
+     * Test that a listener that throws does not prevent the other listeners
+     * from being called, and that its exception is reported instead of
+     * being propagated to the sender.
+     */
+    @Test
+    public void testFailingListener() {
+        KeyValueListener failing = addListeners();
+
+        server.sendKeyValue(KEY, 1.5f);
+        assertEquals("Listener after the failing one was not called.", 0, received.getCount());
+        assertEquals("Failure was not reported.", failing, failed.get(0));
+    }
+
+    /**
+     * Test that a listener that throws on the event bus is isolated in the
+     * same way, and is reported through the same hook.
+     */
+    @Test
+    public void testFailingListenerOnEventBus() throws InterruptedException {
+        server.enableEventBus(16);
+        KeyValueListener failing = addListeners();
+
+        server.sendKeyValue(KEY, 1.5f);
+        assertTrue("Other listener was not called.", received.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 50 && failed.isEmpty(); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals("Failure was not reported.", failing, failed.get(0));
+    }
+}
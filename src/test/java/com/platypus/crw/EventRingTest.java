@@ -0,0 +1,160 @@
+package com.platypus.crw;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the delivery of events through a ring buffer to listeners that
+ * consume at different rates.
+ */
+public class EventRingTest {
+
+    interface Counter {
+        void count(int value);
+    }
+
+    static final EventRing.Delivery<Counter, Void> COUNT = new EventRing.Delivery<Counter, Void>() {
+        @Override
+        public void deliver(Counter listener, Void unused, long value) {
+            listener.count((int)value);
+        }
+    };
+
+    /**
+     * Test that a listener that keeps up receives every event in order, even
+     * while another listener is blocked.
+     */
+    @Test
+    public void testSlowListener() throws InterruptedException {
+        final List<Integer> received = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Counter fast = new Counter() {
+            @Override
+            public void count(int value) {
+                received.add(value);
+                if (value == 99) done.countDown();
+            }
+        };
+        Counter slow = new Counter() {
+            @Override
+            public void count(int value) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        EventRing<Counter, Void> ring = new EventRing<Counter, Void>("Test", 16, COUNT);
+        try {
+            ring.add(fast);
+            ring.add(slow);
+            for (int i = 0; i < 100; ++i) {
+                ring.publish(null, i);
+                if (i % 8 == 7) Thread.sleep(5);
+            }
+
+            assertTrue("Events were not delivered.", done.await(5, TimeUnit.SECONDS));
+            assertEquals("Fast listener missed events.", 100, received.size());
+            for (int i = 0; i < 100; ++i) {
+                assertEquals("Events were out of order.", i, (int)received.get(i));
+            }
+
+            // The cursor only advances once the listener returns
+            for (int i = 0; i < 50 && ring.getLag(fast) > 0; ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals("Fast listener was not caught up.", 0, ring.getLag(fast));
+            assertTrue("Slow listener lag was not measured.", ring.getLag(slow) > 0);
+        } finally {
+            release.countDown();
+            ring.shutdown();
+        }
+    }
+
+    /**
+     * Test that a listener that falls more than a full ring behind skips to
+     * the oldest buffered event and counts the rest as dropped.
+     */
+    @Test
+    public void testOverrun() throws InterruptedException {
+        final List<Integer> received = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Counter blocked = new Counter() {
+            @Override
+            public void count(int value) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(value);
+                if (value == 99) done.countDown();
+            }
+        };
+
+        EventRing<Counter, Void> ring = new EventRing<Counter, Void>("Test", 16, COUNT);
+        try {
+            ring.add(blocked);
+            ring.publish(null, 0);
+            Thread.sleep(100);
+            for (int i = 1; i < 100; ++i) {
+                ring.publish(null, i);
+            }
+            release.countDown();
+
+            assertTrue("Events were not delivered.", done.await(5, TimeUnit.SECONDS));
+            assertEquals("Wrong first event.", 0, (int)received.get(0));
+            assertEquals("Wrong event after overrun.", 100 - ring.getCapacity(), (int)received.get(1));
+            assertEquals("Wrong number of received events.", ring.getCapacity() + 1, received.size());
+            assertEquals("Wrong number of dropped events.",
+                    99 - ring.getCapacity(), ring.getDropped(blocked));
+        } finally {
+            release.countDown();
+            ring.shutdown();
+        }
+    }
+
+    /**
+     * Test that a listener that throws does not stop later events, and that
+     * its failures are passed to the failure handler of the ring.
+     */
+    @Test
+    public void testFailingListener() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Object> failed = new CopyOnWriteArrayList<Object>();
+        Counter failing = new Counter() {
+            @Override
+            public void count(int value) {
+                throw new IllegalStateException("Expected failure");
+            }
+        };
+
+        EventRing<Counter, Void> ring = new EventRing<Counter, Void>("Test", 4, COUNT,
+                new EventRing.FailureHandler<Object>() {
+                    @Override
+                    public void failed(Object listener, RuntimeException e) {
+                        failed.add(listener);
+                        done.countDown();
+                    }
+                });
+        try {
+            ring.add(failing);
+            ring.publish(null, 0);
+            ring.publish(null, 1);
+            assertTrue("Events after a failure were not delivered.", done.await(5, TimeUnit.SECONDS));
+            assertEquals("Failure was not reported for the listener.", failing, failed.get(0));
+        } finally {
+            ring.shutdown();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.platypus.crw;
+
+import com.platypus.crw.FlightLogReader.Record;
+import com.platypus.crw.FlightRecorder.RecordType;
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.VehicleServer.WaypointState;
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the recording of vehicle events into rotating segments, and reading
+ * them back from a given time.
+ */
+public class FlightRecorderTest {
+
+    File directory;
+    long time;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("flight").toFile();
+        time = 1000000;
+    }
+
+    @After
+    public void tearDown() {
+        for (File segment : FlightRecorder.listSegments(directory)) {
+            segment.delete();
+        }
+        directory.delete();
+    }
+
+    FlightRecorder recorder(int segmentSize, int maxSegments) throws IOException {
+        return new FlightRecorder(directory, segmentSize, maxSegments) {
+            @Override
+            protected long now() {
+                return time;
+            }
+        };
+    }
+
+    /**
+     * Test that each kind of event is read back as it was recorded.
+     */
+    @Test
+    public void testRecordAndRead() throws IOException {
+        FlightRecorder recorder = recorder(FlightRecorder.DEFAULT_SEGMENT_SIZE, 2);
+        UtmPose pose = new UtmPose(new Pose3D(1, 2, 3, 0.5, 0.5, 0.5, 0.5), new Utm(17, false));
+        SensorData sensor = new SensorData();
+        sensor.channel = 3;
+        sensor.type = DataType.values()[DataType.values().length - 1];
+        sensor.value = 7.5;
+        sensor.latlng = new double[] { 40.4, -79.9 };
+
+        recorder.receivedPose(pose);
+        time += 10;
+        recorder.receivedSensor(sensor, 42);
+        recorder.receivedCrumb(new double[] { 4, 5 }, 9);
+        recorder.keyValueUpdate("depth", 2.5f);
+        recorder.waypointUpdate(WaypointState.GOING);
+        recorder.rcOverrideUpdate(true);
+        recorder.receivedImage(new byte[16]);
+        recorder.close();
+
+        FlightLogReader reader = new FlightLogReader(directory);
+        Record record = reader.next();
+        assertEquals("Wrong record type.", RecordType.POSE, record.type);
+        assertEquals("Wrong record time.", 1000000, record.time);
+        UtmPose readPose = (UtmPose)record.value;
+        assertEquals("Wrong pose.", 2.0, readPose.pose.getY(), 0.0);
+        assertEquals("Wrong pose zone.", 17, readPose.origin.zone);
+        assertFalse("Wrong pose hemisphere.", readPose.origin.isNorth);
+
+        record = reader.next();
+        assertEquals("Wrong record type.", RecordType.SENSOR, record.type);
+        assertEquals("Wrong record time.", 1000010, record.time);
+        assertEquals("Wrong sensor index.", 42, record.index);
+        assertEquals("Wrong sensor type.", sensor.type, ((SensorData)record.value).type);
+        assertEquals("Wrong sensor value.", 7.5, ((SensorData)record.value).value, 0.0);
+
+        record = reader.next();
+        assertEquals("Wrong record type.", RecordType.CRUMB, record.type);
+        assertArrayEquals("Wrong crumb.", new double[] { 4, 5 }, (double[])record.value, 0.0);
+
+        record = reader.next();
+        assertEquals("Wrong record type.", RecordType.KEYVALUE, record.type);
+        assertEquals("Wrong key.", "depth", record.key);
+        assertEquals("Wrong value.", 2.5f, (Float)record.value, 0.0f);
+
+        assertEquals("Wrong waypoint state.", WaypointState.GOING, reader.next().value);
+        assertEquals("Wrong RC override.", Boolean.TRUE, reader.next().value);
+        assertNull("Image was recorded without being enabled.", reader.next());
+        reader.close();
+    }
+
+    /**
+     * Test that segments are rotated and deleted when full, and that seeking
+     * finds the first record at a time in the retained segments.
+     */
+    @Test
+    public void testRotationAndSeek() throws IOException {
+        FlightRecorder recorder = recorder(FlightRecorder.DATA_OFFSET + 4096, 3);
+        for (int i = 0; i < 1000; ++i) {
+            recorder.receivedVelocity(new Twist(i, 0, 0, 0, 0, 0));
+            time += 100;
+        }
+        recorder.close();
+        assertEquals("Old segments were not deleted.", 3, FlightRecorder.listSegments(directory).length);
+
+        FlightLogReader reader = new FlightLogReader(directory);
+        long start = reader.getStartTime();
+        assertTrue("Oldest segment was not deleted.", start > 1000000);
+
+        int count = 0;
+        double previous = -1;
+        for (Record record = reader.next(); record != null; record = reader.next()) {
+            double dx = ((Twist)record.value).dx();
+            assertEquals("Records were not contiguous.", previous < 0 ? dx : previous + 1, dx, 0.0);
+            previous = dx;
+            count++;
+        }
+        assertEquals("Wrong last record.", 999, previous, 0.0);
+        assertEquals("Wrong number of retained records.", (1000000 + 100000 - start) / 100, count);
+
+        long target = 1000000 + 950 * 100 + 50;
+        reader.seek(target);
+        Record record = reader.next();
+        assertEquals("Seek found the wrong record.", 951, ((Twist)record.value).dx(), 0.0);
+
+        reader.seek(0);
+        assertEquals("Seek before the start did not find the oldest record.", start, reader.next().time);
+        reader.close();
+    }
+}
@@ -0,0 +1,66 @@
+package com.platypus.crw;
+
+import com.platypus.crw.JpegEncoderPool.Subsampling;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the compression of frames by pooled JPEG encoders.
+ */
+public class JpegEncoderPoolTest {
+
+    static BufferedImage noise(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(0);
+        int[] data = new int[width * height * 3];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = random.nextInt(256);
+        }
+        image.getRaster().setPixels(0, 0, width, height, data);
+        return image;
+    }
+
+    /**
+     * Test that encoded frames decode to the original size, and that
+     * repeated encodes with a reused encoder produce the same frame.
+     */
+    @Test
+    public void testEncode() throws IOException {
+        JpegEncoderPool pool = new JpegEncoderPool(Subsampling.YUV420);
+        BufferedImage image = noise(64, 48);
+
+        byte[] first = pool.encode(image, 0.75f);
+        assertNotNull("Image was not encoded.", first);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(first));
+        assertNotNull("Encoded image could not be decoded.", decoded);
+        assertEquals("Wrong decoded width.", 64, decoded.getWidth());
+        assertEquals("Wrong decoded height.", 48, decoded.getHeight());
+
+        byte[] second = pool.encode(image, 0.75f);
+        assertArrayEquals("Reused encoder produced a different image.", first, second);
+
+        // A smaller frame must not include stale bytes of the last one
+        byte[] small = pool.encode(noise(8, 8), 0.75f);
+        assertEquals("Wrong decoded width.", 8, ImageIO.read(new ByteArrayInputStream(small)).getWidth());
+    }
+
+    /**
+     * Test that quality and subsampling change the size of encoded frames.
+     */
+    @Test
+    public void testQualityAndSubsampling() {
+        BufferedImage image = noise(64, 64);
+        JpegEncoderPool yuv420 = new JpegEncoderPool(Subsampling.YUV420);
+        JpegEncoderPool yuv444 = new JpegEncoderPool(Subsampling.YUV444);
+
+        assertTrue("Lower quality did not produce a smaller image.",
+                yuv420.encode(image, 0.2f).length < yuv420.encode(image, 0.9f).length);
+        assertTrue("Subsampling did not produce a smaller image.",
+                yuv420.encode(image, 0.75f).length < yuv444.encode(image, 0.75f).length);
+    }
+}
@@ -0,0 +1,58 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.AbstractVehicleServer;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the adaptation of the camera stream to the health of its links.
+ */
+public class ImageRateControllerTest {
+
+    static final long FAST_RTT = TimeUnit.NANOSECONDS.convert(20, TimeUnit.MILLISECONDS);
+
+    /**
+     * Test that a healthy link keeps the camera stream at full quality.
+     */
+    @Test
+    public void testHealthyLink() {
+        ImageRateController controller = new ImageRateController();
+        assertFalse("Level changed on a healthy link.", controller.update(0.0, FAST_RTT));
+        assertFalse("Level changed on an unknown link.", controller.update(0.0, -1));
+
+        assertEquals("Quality was reduced.", AbstractVehicleServer.DEFAULT_IMAGE_QUALITY,
+                controller.getQuality(), 1e-6);
+        assertEquals("Resolution was reduced.", 1.0, controller.getScale(), 0.0);
+        assertEquals("Frame rate was reduced.", 0.0, controller.getMinInterval(), 0.0);
+    }
+
+    /**
+     * Test that a degraded link quickly reduces the camera stream down to its
+     * minimum, and that it recovers gradually once the link is healthy.
+     */
+    @Test
+    public void testDegradedLink() {
+        ImageRateController controller = new ImageRateController();
+
+        assertTrue("Level did not drop on a lossy link.", controller.update(0.5, FAST_RTT));
+        assertEquals("Level was not halved.", 0.5, controller.getLevel(), 1e-9);
+        assertTrue("Level did not drop on a slow link.",
+                controller.update(0.0, UdpConstants.IMAGE_RTT_THRESHOLD_NS * 2));
+
+        for (int i = 0; i < 10; ++i) {
+            controller.update(0.5, FAST_RTT);
+        }
+        assertEquals("Level did not stop at its minimum.", ImageRateController.MIN_LEVEL,
+                controller.getLevel(), 1e-9);
+        assertTrue("Quality was not reduced.",
+                controller.getQuality() < AbstractVehicleServer.DEFAULT_IMAGE_QUALITY);
+        assertTrue("Resolution was not reduced.", controller.getScale() < 1.0);
+        assertTrue("Frame rate was not reduced.", controller.getMinInterval() > 0.0);
+
+        assertTrue("Level did not rise on a healthy link.", controller.update(0.0, FAST_RTT));
+        assertEquals("Level did not rise by a single step.",
+                ImageRateController.MIN_LEVEL + ImageRateController.INCREASE_STEP,
+                controller.getLevel(), 1e-9);
+    }
+}
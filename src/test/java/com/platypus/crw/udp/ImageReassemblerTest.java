@@ -0,0 +1,179 @@
+package com.platypus.crw.udp;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the reassembly of fragmented images, including fragments that arrive
+ * out of order and interleaved between images.
+ */
+public class ImageReassemblerTest {
+
+    Random rnd;
+
+    @Before
+    public void setUp() {
+        rnd = new Random();
+    }
+
+    byte[] randomImage(int length) {
+        byte[] image = new byte[length];
+        rnd.nextBytes(image);
+        return image;
+    }
+
+    int numPieces(byte[] image) {
+        return (image.length - 1) / UdpConstants.MAX_PAYLOAD_SIZE + 1;
+    }
+
+    byte[] send(ImageReassembler reassembler, int seq, byte[] image, int pieceIdx) throws IOException {
+        int offset = pieceIdx * UdpConstants.MAX_PAYLOAD_SIZE;
+        int len = Math.min(UdpConstants.MAX_PAYLOAD_SIZE, image.length - offset);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(image, offset, len));
+        return reassembler.receive(seq, numPieces(image), pieceIdx, len, in);
+    }
+
+    /**
+     * Test that an image is reassembled from fragments in reverse order.
+     */
+    @Test
+    public void testOutOfOrder() throws IOException {
+        ImageReassembler reassembler = new ImageReassembler();
+        byte[] image = randomImage(5 * UdpConstants.MAX_PAYLOAD_SIZE + 17);
+
+        byte[] result = null;
+        for (int i = numPieces(image) - 1; i >= 0; --i) {
+            assertNull("Image completed early.", result);
+            result = send(reassembler, 1, image, i);
+        }
+        assertArrayEquals("Image was not reassembled correctly.", image, result);
+
+        // Late duplicates of a finished image must be ignored
+        assertNull("Duplicate fragment restarted image.", send(reassembler, 1, image, 0));
+    }
+
+    /**
+     * Test that interleaved fragments of two images are both reassembled.
+     */
+    @Test
+    public void testInterleaved() throws IOException {
+        ImageReassembler reassembler = new ImageReassembler();
+        byte[] first = randomImage(3 * UdpConstants.MAX_PAYLOAD_SIZE);
+        byte[] second = randomImage(2 * UdpConstants.MAX_PAYLOAD_SIZE + 1);
+
+        assertNull(send(reassembler, 1, first, 0));
+        assertNull(send(reassembler, 2, second, 0));
+        assertNull(send(reassembler, 1, first, 1));
+        assertNull(send(reassembler, 2, second, 2));
+        assertArrayEquals("Newer image was not reassembled.", second, send(reassembler, 2, second, 1));
+        assertArrayEquals("Older image was discarded.", first, send(reassembler, 1, first, 2));
+    }
+
+    byte[] sendParity(ImageReassembler reassembler, int seq, byte[] image, int groupIdx) throws IOException {
+        int first = groupIdx * UdpConstants.IMAGE_FEC_GROUP_SIZE;
+        int last = Math.min(first + UdpConstants.IMAGE_FEC_GROUP_SIZE, numPieces(image));
+        byte[] parity = new byte[UdpConstants.MAX_PAYLOAD_SIZE];
+        int parityLen = 0;
+        int lengthXor = 0;
+        for (int i = first; i < last; ++i) {
+            int offset = i * UdpConstants.MAX_PAYLOAD_SIZE;
+            int len = Math.min(UdpConstants.MAX_PAYLOAD_SIZE, image.length - offset);
+            for (int j = 0; j < len; ++j) {
+                parity[j] ^= image[offset + j];
+            }
+            parityLen = Math.max(parityLen, len);
+            lengthXor ^= len;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(parity, 0, parityLen));
+        return reassembler.receiveParity(seq, numPieces(image), groupIdx, lengthXor, parityLen, in);
+    }
+
+    /**
+     * Test that one lost fragment per group is rebuilt from parity.
+     */
+    @Test
+    public void testParityRecovery() throws IOException {
+        ImageReassembler reassembler = new ImageReassembler();
+        byte[] image = randomImage(6 * UdpConstants.MAX_PAYLOAD_SIZE + 100);
+
+        // Drop the first fragment of the first group and the short final
+        // fragment of the second group
+        int lastIdx = numPieces(image) - 1;
+        for (int i = 1; i < lastIdx; ++i) {
+            assertNull(send(reassembler, 7, image, i));
+        }
+        assertNull("Image completed with missing fragment.", sendParity(reassembler, 7, image, 1));
+        assertArrayEquals("Image was not recovered from parity.", image, sendParity(reassembler, 7, image, 0));
+    }
+
+    /**
+     * Test that an image is reassembled when its short final fragment is
+     * sent first, as senders do, and when it arrives after other fragments.
+     * Lost fragments of images that start with the final one are also 
+     * rebuilt from parity.
+     */
+    @Test
+    public void testFinalFragmentFirst() throws IOException {
+        ImageReassembler reassembler = new ImageReassembler();
+        byte[] image = randomImage(4 * UdpConstants.MAX_PAYLOAD_SIZE + 33);
+        int lastIdx = numPieces(image) - 1;
+
+        byte[] result = send(reassembler, 1, image, lastIdx);
+        for (int i = 0; i < lastIdx; ++i) {
+            assertNull("Image completed early.", result);
+            result = send(reassembler, 1, image, i);
+        }
+        assertArrayEquals("Image was not reassembled correctly.", image, result);
+
+        assertNull(send(reassembler, 2, image, 0));
+        assertNull(send(reassembler, 2, image, 2));
+        assertNull(send(reassembler, 2, image, lastIdx));
+        assertNull(send(reassembler, 2, image, 1));
+        assertArrayEquals("Fragments were lost when the image was resized.", 
+                image, send(reassembler, 2, image, 3));
+
+        // Parity also rebuilds fragments of images that start with the last
+        assertNull(send(reassembler, 3, image, lastIdx));
+        for (int i = 0; i < lastIdx; ++i) {
+            if (i != 1) assertNull(send(reassembler, 3, image, i));
+        }
+        assertArrayEquals("Image was not recovered from parity.", image, sendParity(reassembler, 3, image, 0));
+    }
+
+    /**
+     * Test that fragments claiming an image too large to allocate are
+     * ignored instead of overflowing the size of its buffer.
+     */
+    @Test
+    public void testMalformedHeader() throws IOException {
+        ImageReassembler reassembler = new ImageReassembler();
+        byte[] piece = randomImage(UdpConstants.MAX_PAYLOAD_SIZE);
+
+        for (int totalIdx : new int[] {ImageReassembler.MAX_FRAGMENTS + 1, 1 << 23, Integer.MAX_VALUE}) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(piece));
+            assertNull("Oversized image was accepted.", 
+                    reassembler.receive(1, totalIdx, 0, piece.length, in));
+            assertNull("Oversized parity was accepted.", 
+                    reassembler.receiveParity(1, totalIdx, 0, 0, piece.length, in));
+        }
+    }
+
+    /**
+     * Test that incomplete images are dropped after their timeout.
+     */
+    @Test
+    public void testTimeout() throws IOException, InterruptedException {
+        ImageReassembler reassembler = new ImageReassembler(2, TimeUnit.MILLISECONDS.toNanos(50));
+        byte[] image = randomImage(2 * UdpConstants.MAX_PAYLOAD_SIZE);
+
+        assertNull(send(reassembler, 1, image, 0));
+        Thread.sleep(100);
+        assertNull("Expired image was completed.", send(reassembler, 1, image, 1));
+    }
+}
@@ -0,0 +1,211 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.udp.ListenerDispatcher.Policy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the delivery of events to listeners under each dispatch policy.
+ */
+public class ListenerDispatcherTest {
+
+    interface Counter {
+        void count(int value);
+    }
+
+    /**
+     * Listener that records the events it receives, and can be blocked on its
+     * first event until it is released.
+     */
+    static class Recorder implements Counter {
+        final List<Integer> received = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        Recorder(boolean isBlocked) {
+            release = new CountDownLatch(isBlocked ? 1 : 0);
+        }
+
+        @Override
+        public void count(int value) {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.add(value);
+        }
+
+        boolean await(int count) throws InterruptedException {
+            for (int i = 0; i < 200 && received.size() < count; ++i) {
+                Thread.sleep(10);
+            }
+            return received.size() == count;
+        }
+    }
+
+    static ListenerDispatcher.Event<Counter> event(final int value) {
+        return new ListenerDispatcher.Event<Counter>() {
+            @Override
+            public void deliver(Counter listener) {
+                listener.count(value);
+            }
+        };
+    }
+
+    static List<Integer> range(int from, int to) {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = from; i < to; ++i) {
+            values.add(i);
+        }
+        return values;
+    }
+
+    ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Test that each listener receives every queued event in order, although
+     * listeners are called concurrently.
+     */
+    @Test
+    public void testOrdering() throws InterruptedException {
+        ListenerDispatcher<Counter> dispatcher = new ListenerDispatcher<Counter>(executor, Policy.QUEUE);
+        Recorder first = new Recorder(false);
+        Recorder second = new Recorder(false);
+        dispatcher.add(first);
+        dispatcher.add(second);
+
+        for (int i = 0; i < 1000; ++i) {
+            dispatcher.dispatch(event(i));
+        }
+        assertTrue("First listener did not receive all events.", first.await(1000));
+        assertTrue("Second listener did not receive all events.", second.await(1000));
+        assertEquals("First listener received events out of order.", range(0, 1000), first.received);
+        assertEquals("Second listener received events out of order.", range(0, 1000), second.received);
+    }
+
+    /**
+     * Test that conflation only keeps the latest event that arrived while
+     * the listener was busy, and counts the others as dropped.
+     */
+    @Test
+    public void testConflate() throws InterruptedException {
+        ListenerDispatcher<Counter> dispatcher = new ListenerDispatcher<Counter>(executor, Policy.CONFLATE);
+        Recorder recorder = new Recorder(true);
+        dispatcher.add(recorder);
+
+        dispatcher.dispatch(event(0));
+        assertTrue("Listener was not called.", recorder.blocked.await(1, TimeUnit.SECONDS));
+        for (int i = 1; i < 10; ++i) {
+            dispatcher.dispatch(event(i));
+        }
+        recorder.release.countDown();
+
+        assertTrue("Listener did not receive the latest event.", recorder.await(2));
+        assertEquals("Conflated listener did not receive only the latest event.",
+                Arrays.asList(0, 9), recorder.received);
+        assertEquals("Wrong number of dropped events.", 8, dispatcher.getDropped(recorder));
+    }
+
+    /**
+     * Test that queued events are never dropped however far the listener
+     * falls behind, while DROP_OLDEST keeps only the latest events up to its
+     * capacity.
+     */
+    @Test
+    public void testOverflow() throws InterruptedException {
+        ListenerDispatcher<Counter> lossless = new ListenerDispatcher<Counter>(executor, Policy.QUEUE, 4);
+        ListenerDispatcher<Counter> lossy = new ListenerDispatcher<Counter>(executor, Policy.DROP_OLDEST, 4);
+        Recorder queued = new Recorder(true);
+        Recorder dropped = new Recorder(true);
+        lossless.add(queued);
+        lossy.add(dropped);
+
+        lossless.dispatch(event(0));
+        lossy.dispatch(event(0));
+        assertTrue("Listener was not called.", queued.blocked.await(1, TimeUnit.SECONDS));
+        assertTrue("Listener was not called.", dropped.blocked.await(1, TimeUnit.SECONDS));
+        for (int i = 1; i < 100; ++i) {
+            lossless.dispatch(event(i));
+            lossy.dispatch(event(i));
+        }
+        queued.release.countDown();
+        dropped.release.countDown();
+
+        assertTrue("Queued listener did not receive every event.", queued.await(100));
+        assertEquals("Queued listener received events out of order.", range(0, 100), queued.received);
+        assertEquals("Queued listener dropped events.", 0, lossless.getDropped(queued));
+
+        assertTrue("Listener did not receive the latest events.", dropped.await(5));
+        assertEquals("Listener did not receive the latest events.", range(96, 100), dropped.received.subList(1, 5));
+        assertEquals("Wrong number of dropped events.", 95, lossy.getDropped(dropped));
+    }
+
+    /**
+     * Test that a listener that is removed while handling an event is not
+     * called with the events that were still queued for it.
+     */
+    @Test
+    public void testRemoveDuringDispatch() throws InterruptedException {
+        final ListenerDispatcher<Counter> dispatcher = new ListenerDispatcher<Counter>(executor, Policy.QUEUE);
+        final Recorder recorder = new Recorder(true);
+        dispatcher.add(recorder);
+
+        dispatcher.dispatch(event(0));
+        assertTrue("Listener was not called.", recorder.blocked.await(1, TimeUnit.SECONDS));
+        for (int i = 1; i < 10; ++i) {
+            dispatcher.dispatch(event(i));
+        }
+        dispatcher.remove(recorder);
+        assertTrue("Removed listener is still registered.", dispatcher.isEmpty());
+        recorder.release.countDown();
+
+        assertTrue("Listener did not finish its current event.", recorder.await(1));
+        Thread.sleep(100);
+        assertEquals("Removed listener received queued events.", range(0, 1), recorder.received);
+    }
+
+    /**
+     * Test that a blocked listener does not delay the dispatching thread or
+     * the other listeners.
+     */
+    @Test
+    public void testSlowListener() throws InterruptedException {
+        ListenerDispatcher<Counter> dispatcher = new ListenerDispatcher<Counter>(executor, Policy.QUEUE);
+        Recorder slow = new Recorder(true);
+        Recorder fast = new Recorder(false);
+        dispatcher.add(slow);
+        dispatcher.add(fast);
+
+        for (int i = 0; i < 100; ++i) {
+            dispatcher.dispatch(event(i));
+        }
+        assertTrue("Fast listener was delayed by the slow listener.", fast.await(100));
+        assertTrue("Slow listener received events while blocked.", slow.received.isEmpty());
+
+        slow.release.countDown();
+        assertTrue("Slow listener did not catch up.", slow.await(100));
+        assertEquals("Slow listener received events out of order.", range(0, 100), slow.received);
+    }
+}
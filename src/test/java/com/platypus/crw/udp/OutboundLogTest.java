@@ -0,0 +1,151 @@
+package com.platypus.crw.udp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the durable outbound log, including recovery after it is reopened
+ * and compaction once it fills up.
+ */
+public class OutboundLogTest {
+
+    File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("outbound", ".log");
+        file.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    byte[] record(int i) {
+        return String.format("record %02d", i).getBytes();
+    }
+
+    /**
+     * Test that records and acknowledgements survive reopening the log.
+     */
+    @Test
+    public void testReopen() throws IOException {
+        OutboundLog log = new OutboundLog(file, 4096);
+        for (int i = 1; i <= 10; ++i) {
+            assertEquals("Wrong sequence number.", i, log.append(record(i)));
+        }
+        log.acknowledge(4);
+        long id = log.getId();
+        log.close();
+
+        log = new OutboundLog(file, 4096);
+        assertEquals("Log id was not recovered.", id, log.getId());
+        assertEquals("Acknowledgement was not recovered.", 4, log.getAcknowledged());
+        assertEquals("Records were not recovered.", 10, log.getLastSequence());
+        assertArrayEquals("Wrong record contents.", record(7), log.read(7));
+        assertEquals("Wrong sequence number after reopening.", 11, log.append(record(11)));
+        log.close();
+    }
+
+    /**
+     * Test that acknowledged records are compacted away when the log fills
+     * up, that the oldest unacknowledged records are dropped only when
+     * compaction is not enough, and that records which wrapped around the
+     * end of the file are recovered.
+     */
+    @Test
+    public void testCompaction() throws IOException {
+        OutboundLog log = new OutboundLog(file, OutboundLog.HEADER_SIZE + 10 * (OutboundLog.RECORD_HEADER_SIZE + record(0).length));
+        for (int i = 1; i <= 10; ++i) {
+            log.append(record(i));
+        }
+
+        log.acknowledge(3);
+        assertEquals("Wrong sequence number.", 11, log.append(record(0)));
+        assertEquals("Acknowledged records were not compacted.", 4, log.getFirstSequence());
+        assertNull("Compacted record is still readable.", log.read(3));
+        assertArrayEquals("Unacknowledged record was lost.", record(4), log.read(4));
+
+        // The end of the records never reaches their start, so the space of 
+        // the three compacted records only holds two more
+        log.append(record(12));
+        log.append(record(13));
+        assertEquals("Oldest record was not dropped.", 5, log.getFirstSequence());
+        assertEquals("Dropped records were not acknowledged.", 4, log.getAcknowledged());
+        assertArrayEquals("Unacknowledged record was lost.", record(5), log.read(5));
+        log.close();
+
+        log = new OutboundLog(file, 0);
+        assertEquals("Wrong first record after reopening.", 5, log.getFirstSequence());
+        assertEquals("Wrapped records were not recovered.", 13, log.getLastSequence());
+        assertArrayEquals("Wrong wrapped record contents.", record(13), log.read(13));
+        log.close();
+    }
+
+    /**
+     * Test that recovery stops at the first record with an invalid length,
+     * and that appends continue from the last valid record.
+     */
+    @Test
+    public void testCorruptRecord() throws IOException {
+        OutboundLog log = new OutboundLog(file, 4096);
+        for (int i = 1; i <= 5; ++i) {
+            log.append(record(i));
+        }
+        log.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(OutboundLog.HEADER_SIZE + 2 * (OutboundLog.RECORD_HEADER_SIZE + record(0).length));
+        raf.writeInt(1 << 20);
+        raf.close();
+
+        log = new OutboundLog(file, 4096);
+        assertEquals("Records after corrupt record were recovered.", 2, log.getLastSequence());
+        assertArrayEquals("Record before corrupt record was lost.", record(2), log.read(2));
+        assertNull("Corrupt record is readable.", log.read(3));
+        assertEquals("Wrong sequence number after truncation.", 3, log.append(record(3)));
+        log.close();
+
+        log = new OutboundLog(file, 4096);
+        assertEquals("Truncation was not persisted.", 3, log.getLastSequence());
+        assertArrayEquals("Wrong record contents.", record(3), log.read(3));
+        log.close();
+    }
+
+    /**
+     * Test that a tracker acknowledges records cumulatively, detects records
+     * that are replayed, and only skips the records that were never sent to
+     * it.
+     */
+    @Test
+    public void testTracker() {
+        OutboundLog.Tracker tracker = new OutboundLog.Tracker();
+
+        assertTrue("Record was not new.", tracker.receive(42, 0, 1));
+        assertTrue("Record was not new.", tracker.receive(42, 2, 3));
+        assertEquals("Acknowledged past missing record.", 1, tracker.acknowledge());
+
+        assertTrue("Record was not new.", tracker.receive(42, 1, 2));
+        assertFalse("Replayed record was new.", tracker.receive(42, 2, 3));
+        assertEquals("Wrong number of unacknowledged records.", 2, tracker.getUnacknowledged());
+        assertEquals("Did not acknowledge contiguous records.", 3, tracker.acknowledge());
+
+        assertTrue("Record was not new.", tracker.receive(42, 3, 8));
+        assertEquals("Did not skip records that were not sent.", 8, tracker.acknowledge());
+        assertFalse("Skipped record was new.", tracker.receive(42, 6, 7));
+
+        assertTrue("Record was not new.", tracker.receive(42, 10, 11));
+        assertEquals("Skipped records that were sent.", 8, tracker.acknowledge());
+        assertFalse("Replayed record was new.", tracker.receive(42, 8, 11));
+        assertEquals("Did not skip records dropped by log.", 11, tracker.acknowledge());
+
+        assertTrue("Record of new log was not new.", tracker.receive(7, 0, 1));
+        assertEquals("Did not reset for new log.", 1, tracker.acknowledge());
+    }
+}
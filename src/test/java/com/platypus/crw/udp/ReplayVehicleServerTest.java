@@ -0,0 +1,139 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.FlightRecorder;
+import com.platypus.crw.PoseListener;
+import com.platypus.crw.VehicleServer.WaypointState;
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the replay of a recorded mission with its original timing, scaled
+ * by a speed factor.
+ */
+public class ReplayVehicleServerTest {
+
+    File directory;
+    long time = 1000000;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("replay").toFile();
+
+        // Record a two second mission
+        FlightRecorder recorder = new FlightRecorder(directory, 256 * 1024, 4) {
+            @Override
+            protected long now() {
+                return time;
+            }
+        };
+        for (int i = 0; i <= 20; ++i) {
+            recorder.receivedPose(new UtmPose(new Pose3D(i, 0, 0, 1, 0, 0, 0), new Utm(17, true)));
+            recorder.receivedVelocity(new Twist(i, 0, 0, 0, 0, 0));
+            time += 100;
+        }
+        recorder.waypointUpdate(WaypointState.DONE);
+        recorder.close();
+    }
+
+    @After
+    public void tearDown() {
+        for (File segment : FlightRecorder.listSegments(directory)) {
+            segment.delete();
+        }
+        directory.delete();
+    }
+
+    List<Double> listen(ReplayVehicleServer server) {
+        final List<Double> poses = new CopyOnWriteArrayList<Double>();
+        server.addPoseListener(new PoseListener() {
+            @Override
+            public void receivedPose(UtmPose pose) {
+                poses.add(pose.pose.getX());
+            }
+        });
+        return poses;
+    }
+
+    /**
+     * Test that events are replayed in order with scaled timing, and that the
+     * getters answer from the replayed state.
+     */
+    @Test
+    public void testScaledReplay() throws InterruptedException {
+        ReplayVehicleServer server = new ReplayVehicleServer(directory, 10.0);
+        List<Double> poses = listen(server);
+
+        long start = System.nanoTime();
+        server.start();
+        assertTrue("Replay did not finish.", server.awaitFinished(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        assertTrue("Replay was faster than the speed factor: " + elapsed + "ms", elapsed >= 190);
+        assertEquals("Wrong number of poses.", 21, poses.size());
+        for (int i = 0; i < poses.size(); ++i) {
+            assertEquals("Poses were out of order.", i, poses.get(i), 0.0);
+        }
+        assertEquals("Wrong replayed pose.", 20, server.getPose().pose.getX(), 0.0);
+        assertEquals("Wrong replayed velocity.", 20, server.getVelocity().dx(), 0.0);
+        assertEquals("Wrong replayed waypoint state.", WaypointState.DONE, server.getWaypointStatus());
+        assertFalse("Finished replay is still connected.", server.isConnected());
+        server.shutdown();
+    }
+
+    /**
+     * Test that replay can start part way through the recording and run as
+     * fast as possible.
+     */
+    @Test
+    public void testFastReplayFromTime() throws InterruptedException {
+        ReplayVehicleServer server = new ReplayVehicleServer(directory, ReplayVehicleServer.AS_FAST_AS_POSSIBLE);
+        List<Double> poses = listen(server);
+
+        server.start(1000000 + 1500);
+        assertTrue("Replay did not finish.", server.awaitFinished(1, TimeUnit.SECONDS));
+        assertEquals("Wrong number of poses.", 6, poses.size());
+        assertEquals("Replay did not start at the time.", 15, poses.get(0), 0.0);
+        server.shutdown();
+    }
+
+    /**
+     * Test that a server replaying a recording without poses or images can
+     * be queried over UDP before and after the replay.
+     */
+    @Test
+    public void testEmptyRecording() throws IOException, InterruptedException {
+        File empty = Files.createTempDirectory("empty").toFile();
+        ReplayVehicleServer server = new ReplayVehicleServer(empty, ReplayVehicleServer.AS_FAST_AS_POSSIBLE);
+        UdpVehicleService service = new UdpVehicleService(server);
+        int port = ((InetSocketAddress)service.getSocketAddress()).getPort();
+        UdpVehicleServer client = new UdpVehicleServer(new InetSocketAddress("127.0.0.1", port));
+        try {
+            assertNotNull("Pose was null before replay.", server.getPose());
+            assertNotNull("Image was null before replay.", server.captureImage(64, 48));
+
+            server.start();
+            assertTrue("Replay did not finish.", server.awaitFinished(1, TimeUnit.SECONDS));
+            UdpVehicleServerTest.Result<UtmPose> pose = new UdpVehicleServerTest.Result<UtmPose>();
+            client.getPose(pose);
+            assertNotNull("Pose was not served without a recorded pose.", pose.get());
+        } finally {
+            client.shutdown();
+            service.shutdown();
+            server.shutdown();
+            empty.delete();
+        }
+    }
+}
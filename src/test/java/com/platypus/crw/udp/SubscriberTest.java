@@ -0,0 +1,49 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.VehicleServer.DataType;
+import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.SensorFilter;
+import com.platypus.crw.udp.UdpConstants.STREAM;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the rate limits and filters of a client subscription.
+ */
+public class SubscriberTest {
+
+    static SensorData sensor(int channel) {
+        SensorData sensor = new SensorData();
+        sensor.channel = channel;
+        sensor.type = DataType.BATTERY;
+        sensor.value = 12.0;
+        sensor.latlng = new double[] {0.0, 0.0};
+        return sensor;
+    }
+
+    /**
+     * Test that the sensor rate applies to each channel separately, so that
+     * a fast channel does not starve a slow one.
+     */
+    @Test
+    public void testSensorRatePerChannel() {
+        long intervalNs = TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS);
+        long[] intervalsNs = new long[STREAM.values().length];
+        intervalsNs[STREAM.SENSOR.ordinal()] = intervalNs;
+
+        long now = System.nanoTime();
+        Subscriber subscriber = new Subscriber(new InetSocketAddress("127.0.0.1", 11411))
+                .subscribe(STREAM.SENSOR.mask, intervalsNs, SensorFilter.ALL, now);
+
+        assertTrue("First reading was not accepted.", subscriber.accept(sensor(0), now));
+        assertFalse("Reading faster than the rate was accepted.", subscriber.accept(sensor(0), now + 1));
+        assertTrue("Reading on another channel was starved.", subscriber.accept(sensor(1), now + 2));
+        assertTrue("Reading after the interval was not accepted.", subscriber.accept(sensor(0), now + intervalNs));
+
+        // The time each channel was sent survives a renewed subscription
+        subscriber = subscriber.subscribe(STREAM.SENSOR.mask, intervalsNs, SensorFilter.ALL, now + intervalNs);
+        assertFalse("Renewal reset the rate of a channel.", subscriber.accept(sensor(0), now + intervalNs + 1));
+    }
+}
@@ -0,0 +1,126 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Quaternion;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the keyframe and delta encoding of telemetry streams.
+ */
+public class TelemetryCodecTest {
+
+    static final double PRECISION = 0.01;
+
+    Random rnd;
+
+    @Before
+    public void setUp() {
+        rnd = new Random();
+    }
+
+    byte[] encode(TelemetryCodec.Encoder encoder, double[] values) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        encoder.write(new DataOutputStream(buffer), values);
+        return buffer.toByteArray();
+    }
+
+    double[] decode(TelemetryCodec.Decoder decoder, byte[] bytes) throws IOException {
+        return decoder.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    UtmPose pose(double x, double y, double yaw) {
+        return new UtmPose(new Pose3D(x, y, 0.0, Quaternion.fromEulerAngles(0, 0, yaw)), new Utm(17, true));
+    }
+
+    /**
+     * Test that a slowly moving pose is decoded to within the precision, and
+     * that deltas are much smaller than keyframes.
+     */
+    @Test
+    public void testPoseRoundTrip() throws IOException {
+        TelemetryCodec.Encoder encoder = TelemetryCodec.createPoseEncoder(PRECISION, PRECISION, 10);
+        TelemetryCodec.Decoder decoder = new TelemetryCodec.Decoder();
+
+        double x = 589000.0, y = 4477000.0, yaw = 0.0;
+        int keyframeSize = 0, maxDeltaSize = 0;
+        for (int i = 0; i < 50; ++i) {
+            x += rnd.nextDouble() * 0.2;
+            y += rnd.nextDouble() * 0.2;
+            yaw += rnd.nextDouble() * 0.01;
+
+            UtmPose expected = pose(x, y, yaw);
+            byte[] bytes = encode(encoder, TelemetryCodec.fromPose(expected));
+            if (i == 0) {
+                keyframeSize = bytes.length;
+            } else if (i % 11 != 0) {
+                maxDeltaSize = Math.max(maxDeltaSize, bytes.length);
+            }
+
+            UtmPose actual = TelemetryCodec.toPose(decode(decoder, bytes));
+            assertEquals("Wrong x position.", expected.pose.getX(), actual.pose.getX(), PRECISION);
+            assertEquals("Wrong y position.", expected.pose.getY(), actual.pose.getY(), PRECISION);
+            assertEquals("Wrong rotation.", expected.pose.getRotation().getZ(),
+                    actual.pose.getRotation().getZ(), PRECISION);
+            assertEquals("Wrong UTM origin.", expected.origin, actual.origin);
+        }
+
+        assertTrue("Deltas are not compact: " + maxDeltaSize + " vs " + keyframeSize,
+                maxDeltaSize * 4 < keyframeSize);
+    }
+
+    /**
+     * Test that deltas are dropped until a keyframe is received.
+     */
+    @Test
+    public void testMissingKeyframe() throws IOException {
+        TelemetryCodec.Encoder encoder = new TelemetryCodec.Encoder(new double[] {PRECISION}, 2);
+        TelemetryCodec.Decoder decoder = new TelemetryCodec.Decoder();
+
+        encode(encoder, new double[] {1.0});
+        assertNull("Delta was decoded without keyframe.", decode(decoder, encode(encoder, new double[] {1.5})));
+        assertNull("Delta was decoded without keyframe.", decode(decoder, encode(encoder, new double[] {2.0})));
+
+        double[] values = decode(decoder, encode(encoder, new double[] {2.5}));
+        assertNotNull("Keyframe was not decoded.", values);
+        assertEquals("Wrong keyframe value.", 2.5, values[0], 0.0);
+
+        values = decode(decoder, encode(encoder, new double[] {3.0}));
+        assertNotNull("Delta was not decoded after keyframe.", values);
+        assertEquals("Wrong delta value.", 3.0, values[0], PRECISION);
+    }
+
+    /**
+     * Test that varints round trip across their range of lengths, and that
+     * small values of either sign take a single byte.
+     */
+    @Test
+    public void testVarLong() throws IOException {
+        long[] values = {0, 1, -1, 63, -64, 64, -65, 1L << 20, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        for (long value : values) {
+            TelemetryCodec.writeVarLong(out, value);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        for (long value : values) {
+            assertEquals("Wrong varint value.", value, TelemetryCodec.readVarLong(in));
+        }
+
+        buffer.reset();
+        TelemetryCodec.writeVarLong(out, 63);
+        TelemetryCodec.writeVarLong(out, -64);
+        assertEquals("Small values were not a single byte.", 2, buffer.size());
+    }
+}
@@ -0,0 +1,129 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.AsyncVehicleServer;
+import com.platypus.crw.FunctionObserver;
+import com.platypus.crw.PoseListener;
+import com.platypus.crw.SimpleBoatSimulator;
+import com.platypus.crw.data.UtmPose;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a single fleet client routes events and responses to the
+ * correct vehicle proxy.
+ */
+public class UdpFleetClientTest {
+
+    static final int NUM_VEHICLES = 3;
+
+    SimpleBoatSimulator[] simulators;
+    UdpVehicleService[] services;
+    InetSocketAddress[] addresses;
+    UdpFleetClient fleet;
+
+    @Before
+    public void setUp() {
+        simulators = new SimpleBoatSimulator[NUM_VEHICLES];
+        services = new UdpVehicleService[NUM_VEHICLES];
+        addresses = new InetSocketAddress[NUM_VEHICLES];
+        for (int i = 0; i < NUM_VEHICLES; ++i) {
+            simulators[i] = new SimpleBoatSimulator();
+            services[i] = new UdpVehicleService(simulators[i]);
+            int port = ((InetSocketAddress)services[i].getSocketAddress()).getPort();
+            addresses[i] = new InetSocketAddress("127.0.0.1", port);
+        }
+        fleet = new UdpFleetClient();
+    }
+
+    @After
+    public void tearDown() {
+        fleet.shutdown();
+        for (int i = 0; i < NUM_VEHICLES; ++i) {
+            services[i].shutdown();
+            simulators[i].shutdown();
+        }
+    }
+
+    /**
+     * Test that each proxy receives the pose stream of its own vehicle.
+     */
+    @Test
+    public void testPoseListeners() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(NUM_VEHICLES);
+
+        for (int i = 0; i < NUM_VEHICLES; ++i) {
+            fleet.addVehicle(addresses[i]).addPoseListener(new PoseListener() {
+                boolean isReceived = false;
+
+                @Override
+                public void receivedPose(UtmPose pose) {
+                    if (!isReceived) {
+                        isReceived = true;
+                        latch.countDown();
+                    }
+                }
+            }, null);
+        }
+
+        assertTrue("Did not receive poses from every vehicle.", latch.await(3, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that function calls on each proxy are answered by its own vehicle.
+     */
+    @Test
+    public void testFunctionCalls() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(NUM_VEHICLES);
+        final double[][] gains = new double[NUM_VEHICLES][];
+
+        for (int i = 0; i < NUM_VEHICLES; ++i) {
+            simulators[i].setGains(0, new double[] {i, i, i});
+
+            final int idx = i;
+            AsyncVehicleServer vehicle = fleet.addVehicle(addresses[i]);
+            vehicle.getGains(0, new FunctionObserver<double[]>() {
+                @Override
+                public void completed(double[] v) {
+                    gains[idx] = v;
+                    latch.countDown();
+                }
+
+                @Override
+                public void failed(FunctionObserver.FunctionError fe) {
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue("Did not receive every response.", latch.await(3, TimeUnit.SECONDS));
+        for (int i = 0; i < NUM_VEHICLES; ++i) {
+            assertNotNull("Call to vehicle " + i + " failed.", gains[i]);
+            assertEquals("Response was routed to the wrong vehicle.", (double)i, gains[i][0], 1e-9);
+        }
+    }
+
+    /**
+     * Test that a removed proxy no longer receives events.
+     */
+    @Test
+    public void testRemoveVehicle() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        AsyncVehicleServer vehicle = fleet.addVehicle(addresses[0]);
+        fleet.removeVehicle(vehicle);
+        vehicle.addPoseListener(new PoseListener() {
+            @Override
+            public void receivedPose(UtmPose pose) {
+                latch.countDown();
+            }
+        }, null);
+
+        assertEquals("Vehicle was not removed.", 0, fleet.getVehicles().length);
+        assertFalse("Removed vehicle received a pose.", latch.await(2, TimeUnit.SECONDS));
+    }
+}
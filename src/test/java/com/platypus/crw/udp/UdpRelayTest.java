@@ -0,0 +1,112 @@
+package com.platypus.crw.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the limits and address checks of relayed sessions.
+ */
+public class UdpRelayTest {
+
+    UdpRelay relay;
+    InetAddress localhost;
+
+    @Before
+    public void setUp() throws IOException {
+        relay = new UdpRelay(4);
+        localhost = InetAddress.getByName("127.0.0.1");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        relay.close();
+    }
+
+    void send(DatagramSocket socket, int port, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        socket.send(new DatagramPacket(bytes, bytes.length, new InetSocketAddress(localhost, port)));
+    }
+
+    String receive(DatagramSocket socket) throws IOException {
+        DatagramPacket packet = new DatagramPacket(new byte[UdpConstants.MAX_PACKET_SIZE], UdpConstants.MAX_PACKET_SIZE);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        return new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+    }
+
+    /**
+     * Test that sessions requested concurrently never exceed the limit.
+     */
+    @Test
+    public void testSessionLimit() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger opened = new AtomicInteger();
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; ++i) {
+            final int port = 10000 + i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (relay.openSession(localhost, new InetSocketAddress(localhost, port)) != null)
+                            opened.incrementAndGet();
+                    } catch (Exception e) {
+                        fail("Failed to open session: " + e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Wrong number of sessions opened.", 4, opened.get());
+        assertEquals("Wrong number of sessions listed.", 4, relay.getSessions().size());
+    }
+
+    /**
+     * Test that only the client for which a session was opened can send
+     * through it.
+     */
+    @Test
+    public void testClientAddress() throws IOException {
+        DatagramSocket client = new DatagramSocket(0, localhost);
+        DatagramSocket intruder = new DatagramSocket(0, localhost);
+        DatagramSocket vehicle = new DatagramSocket(0, localhost);
+        try {
+            client.setSoTimeout(1000);
+            vehicle.setSoTimeout(1000);
+            UdpRelay.Session session = relay.openSession(localhost, client.getLocalSocketAddress());
+
+            // The vehicle opens its end, which is forwarded to the client
+            send(vehicle, session.getVehiclePort(), "hello");
+            assertEquals("Vehicle datagram was not relayed.", "hello", receive(client));
+
+            send(intruder, session.getClientPort(), "intruder");
+            send(client, session.getClientPort(), "client");
+            assertEquals("Datagram was relayed from another address.", "client", receive(vehicle));
+            assertEquals("Intruding datagram was not dropped.", 1, session.getDroppedPackets());
+            assertEquals("Client address was changed.", client.getLocalSocketAddress(), session.getClientAddress());
+        } finally {
+            client.close();
+            intruder.close();
+            vehicle.close();
+        }
+    }
+}
@@ -10,11 +10,17 @@ import com.platypus.crw.udp.UdpServer.QueuedResponse;
 import com.platypus.crw.udp.UdpServer.RequestHandler;
 import com.platypus.crw.udp.UdpServer.Response;
 import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -140,6 +146,193 @@ public class UdpServerTest {
         //fail("The test case is a prototype.");
     }
 
+    /**
+     * Test of respond method with multiple destinations, of class UdpServer.
+     * Each live destination should receive the response once, and only the
+     * destination that never acknowledges it should time out.
+     */
+    @Test
+    public void testRespondShared() throws IOException, InterruptedException {
+        final CountDownLatch received = new CountDownLatch(2);
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        final List<SocketAddress> timeouts = new CopyOnWriteArrayList<SocketAddress>();
+        
+        RequestHandler receiverHandler = new RequestHandler() {
+            public void received(Request req) { received.countDown(); }
+            public void timeout(long ticket, SocketAddress destination) {}
+        };
+        
+        UdpServer sender = new UdpServer();
+        UdpServer receiver1 = new UdpServer();
+        UdpServer receiver2 = new UdpServer();
+        DatagramSocket closed = new DatagramSocket();
+        
+        try {
+            sender.setHandler(new RequestHandler() {
+                public void received(Request req) {}
+                public void timeout(long ticket, SocketAddress destination) {
+                    timeouts.add(destination);
+                    timedOut.countDown();
+                }
+            });
+            receiver1.setHandler(receiverHandler);
+            receiver2.setHandler(receiverHandler);
+            sender.start();
+            receiver1.start();
+            receiver2.start();
+            
+            SocketAddress dead = new InetSocketAddress("127.0.0.1", closed.getLocalPort());
+            closed.close();
+            List<SocketAddress> destinations = Arrays.asList(
+                    localAddress(receiver1), localAddress(receiver2), dead);
+            
+            Response response = new Response(new Random().nextLong(), dead);
+            response.stream.writeUTF(UUID.randomUUID().toString());
+            sender.respond(response, destinations);
+            
+            assertTrue("Response was not received by every destination.", 
+                    received.await(2, TimeUnit.SECONDS));
+            assertTrue("Unacknowledged response did not time out.",
+                    timedOut.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            assertEquals("Acknowledged destinations timed out.", 
+                    Arrays.asList(dead), timeouts);
+        } finally {
+            sender.stop();
+            receiver1.stop();
+            receiver2.stop();
+        }
+    }
+    
+    /**
+     * Test of getLinkHealth method, of class UdpServer.  A destination that
+     * acknowledges responses should have a known round-trip time and no loss,
+     * while one that never does should have a high loss rate.  Both are
+     * forgotten once they are no longer updated.
+     */
+    @Test
+    public void testLinkHealth() throws IOException, InterruptedException {
+        final CountDownLatch timedOut = new CountDownLatch(1);
+        
+        UdpServer sender = new UdpServer();
+        UdpServer receiver = new UdpServer();
+        DatagramSocket closed = new DatagramSocket();
+        
+        try {
+            sender.setHandler(new RequestHandler() {
+                public void received(Request req) {}
+                public void timeout(long ticket, SocketAddress destination) {
+                    timedOut.countDown();
+                }
+            });
+            receiver.setHandler(new RequestHandler() {
+                public void received(Request req) {}
+                public void timeout(long ticket, SocketAddress destination) {}
+            });
+            sender.start();
+            receiver.start();
+            
+            SocketAddress live = localAddress(receiver);
+            SocketAddress dead = new InetSocketAddress("127.0.0.1", closed.getLocalPort());
+            closed.close();
+            
+            Response response = new Response(new Random().nextLong(), dead);
+            response.stream.writeUTF(UUID.randomUUID().toString());
+            sender.respond(response, Arrays.asList(live, dead));
+            
+            assertTrue("Unacknowledged response did not time out.",
+                    timedOut.await(5, TimeUnit.SECONDS));
+            
+            LinkHealth liveHealth = sender.getLinkHealth(live);
+            assertNotNull("Acknowledging destination has no health.", liveHealth);
+            assertTrue("Round-trip time was not learned.", liveHealth.getRoundTripTime() >= 0);
+            assertEquals("Acknowledging destination has losses.", 0.0, liveHealth.getLossRate(), 0.0);
+            
+            LinkHealth deadHealth = sender.getLinkHealth(dead);
+            assertNotNull("Unacknowledging destination has no health.", deadHealth);
+            assertTrue("Losses were not detected.", deadHealth.getLossRate() > 0.2);
+            assertEquals("Round-trip time was learned without a response.", -1, deadHealth.getRoundTripTime());
+            
+            sender.expireLinkHealth(System.nanoTime() + UdpConstants.LINK_HEALTH_TIMEOUT_NS + 1);
+            assertNull("Unused link health was not expired.", sender.getLinkHealth(live));
+            assertNull("Unused link health was not expired.", sender.getLinkHealth(dead));
+        } finally {
+            sender.stop();
+            receiver.stop();
+        }
+    }
+    
+    /**
+     * Test of sharded receive sockets.  Requests from many senders to the 
+     * shared port should all be received exactly once, and acknowledged from
+     * that port, and another server should not be able to open the port.
+     */
+    @Test
+    public void testSharedPort() throws IOException, InterruptedException {
+        final int numSenders = 32;
+        final CountDownLatch received = new CountDownLatch(numSenders);
+        final List<Long> tickets = new CopyOnWriteArrayList<Long>();
+        
+        UdpServer server = new UdpServer(0, 4);
+        UdpServer[] senders = new UdpServer[numSenders];
+        try {
+            if (UdpServer.getReusePortOption() != null)
+                assertEquals("Wrong number of receive sockets.", 4, server._receiveSockets.length);
+            for (DatagramSocket socket : server._receiveSockets) {
+                assertEquals("Receive sockets are on different ports.", 
+                        server._socket.getLocalPort(), socket.getLocalPort());
+            }
+            
+            try {
+                new UdpServer(server._socket.getLocalPort(), 4).stop();
+                fail("Second server opened a port that was in use.");
+            } catch (RuntimeException e) {
+                assertTrue("Wrong failure.", e.getCause() instanceof BindException);
+            }
+            
+            server.setHandler(new RequestHandler() {
+                public void received(Request req) {
+                    tickets.add(req.ticket);
+                    received.countDown();
+                }
+                public void timeout(long ticket, SocketAddress destination) {}
+            });
+            server.start();
+            
+            for (int i = 0; i < numSenders; ++i) {
+                senders[i] = new UdpServer();
+                senders[i].setHandler(new RequestHandler() {
+                    public void received(Request req) {}
+                    public void timeout(long ticket, SocketAddress destination) {}
+                });
+                senders[i].start();
+                
+                Response response = new Response(i + 1, localAddress(server));
+                response.stream.writeUTF(UUID.randomUUID().toString());
+                senders[i].respond(response);
+            }
+            
+            assertTrue("Not every request was received.", received.await(5, TimeUnit.SECONDS));
+            
+            // Wait long enough for any unacknowledged request to be resent
+            Thread.sleep(500);
+            assertEquals("Requests were received more than once.", numSenders, tickets.size());
+            for (UdpServer sender : senders) {
+                assertTrue("Request was not acknowledged.", sender._responses.isEmpty());
+            }
+        } finally {
+            server.stop();
+            for (UdpServer sender : senders) {
+                if (sender != null) sender.stop();
+            }
+        }
+    }
+    
+    private static SocketAddress localAddress(UdpServer server) {
+        int port = ((InetSocketAddress)server.getSocketAddress()).getPort();
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
     /**
      * Test of bcast method, of class UdpServer.
      */
@@ -176,4 +369,41 @@ public class UdpServerTest {
         // TODO review the generated test code and remove the default call to fail.
         //fail("The test case is a prototype.");
     }
+    
+    /**
+     * Test that acknowledgements of a shared response only update the link
+     * health of destinations that had yet to acknowledge it.
+     */
+    @Test
+    public void testAcknowledgeShared() throws IOException, InterruptedException {
+        UdpServer instance = new UdpServer();
+        try {
+            SocketAddress first = new InetSocketAddress("127.0.0.1", 1);
+            SocketAddress second = new InetSocketAddress("127.0.0.1", 2);
+            SocketAddress stranger = new InetSocketAddress("127.0.0.1", 3);
+            
+            long ticket = new Random().nextLong();
+            Response response = new Response(ticket, first);
+            response.stream.writeUTF(UUID.randomUUID().toString());
+            instance.respond(response, Arrays.asList(first, second));
+            
+            instance.acknowledge(ticket, stranger);
+            assertNull("Unknown source has link health.", instance.getLinkHealth(stranger));
+            
+            instance.acknowledge(ticket, first);
+            LinkHealth health = instance.getLinkHealth(first);
+            assertNotNull("Acknowledging destination has no health.", health);
+            long updateTime = health.getLastUpdateTime();
+            long rtt = health.getRoundTripTime();
+            
+            Thread.sleep(10);
+            instance.acknowledge(ticket, first);
+            assertEquals("Repeated acknowledgement updated link health.", 
+                    updateTime, health.getLastUpdateTime());
+            assertEquals("Repeated acknowledgement updated round-trip time.", 
+                    rtt, health.getRoundTripTime());
+        } finally {
+            instance.stop();
+        }
+    }
 }
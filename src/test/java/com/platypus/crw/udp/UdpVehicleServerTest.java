@@ -5,6 +5,7 @@
 package com.platypus.crw.udp;
 
 import com.platypus.crw.data.SensorData;
+import com.platypus.crw.data.SensorFilter;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.util.Random;
@@ -13,28 +14,44 @@ import com.platypus.crw.AsyncVehicleServer;
 import com.platypus.crw.CameraListener;
 import com.platypus.crw.FunctionObserver;
 import com.platypus.crw.ImageListener;
+import com.platypus.crw.KeyValueListener;
 import com.platypus.crw.PoseListener;
 import com.platypus.crw.SensorListener;
 import com.platypus.crw.SimpleBoatSimulator;
 import com.platypus.crw.VehicleServer.CameraState;
+import com.platypus.crw.VehicleServer.DataType;
 import com.platypus.crw.VehicleServer.WaypointState;
 import com.platypus.crw.VelocityListener;
 import com.platypus.crw.WaypointListener;
 import com.platypus.crw.data.Twist;
 import com.platypus.crw.data.Utm;
 import com.platypus.crw.data.UtmPose;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.udp.UdpServer.Response;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import static org.junit.Assert.*;
 
 /**
@@ -157,6 +174,94 @@ public class UdpVehicleServerTest {
         instance.shutdown();
     }
 
+    /**
+     * Test that two proxies of the same vehicle receive the pose stream at 
+     * different requested rates.
+     */
+    @Test
+    public void testSetStreamRate() throws InterruptedException {
+        final AtomicInteger fastCount = new AtomicInteger();
+        final AtomicInteger slowCount = new AtomicInteger();
+
+        UdpVehicleServer fast = new UdpVehicleServer(serviceAddress);
+        fast.addPoseListener(new PoseListener() {
+            @Override
+            public void receivedPose(UtmPose pose) {
+                fastCount.incrementAndGet();
+            }
+        }, null);
+
+        UdpVehicleServer slow = new UdpVehicleServer(serviceAddress);
+        slow.setStreamRate(UdpConstants.STREAM.POSE, 2.0);
+        slow.addPoseListener(new PoseListener() {
+            @Override
+            public void receivedPose(UtmPose pose) {
+                slowCount.incrementAndGet();
+            }
+        }, null);
+
+        // The simulator updates its pose every 100ms
+        Thread.sleep(3000);
+        fast.shutdown();
+        slow.shutdown();
+
+        assertTrue("Did not receive rate limited poses.", slowCount.get() > 0);
+        assertTrue("Pose rate was not limited: " + slowCount.get() + " vs " + fastCount.get(),
+                slowCount.get() * 2 < fastCount.get());
+    }
+
+    /**
+     * Test of setStateSnapshotEnabled method, of class UdpVehicleServer.
+     */
+    @Test
+    public void testStateSnapshot() throws InterruptedException {
+        final AtomicInteger poseCount = new AtomicInteger();
+
+        UdpVehicleServer instance = new UdpVehicleServer(serviceAddress);
+        instance.setStateSnapshotEnabled(true);
+        instance.setStreamRate(UdpConstants.STREAM.STATE, 2.0);
+        instance.addPoseListener(new PoseListener() {
+            @Override
+            public void receivedPose(UtmPose pose) {
+                poseCount.incrementAndGet();
+            }
+        }, null);
+
+        // The simulator updates its pose every 100ms, so a 2Hz snapshot
+        // stream should conflate about five poses into each packet
+        Thread.sleep(3000);
+        instance.shutdown();
+
+        assertTrue("Did not receive poses from snapshots.", poseCount.get() > 0);
+        assertTrue("Poses were not conflated: " + poseCount.get(), poseCount.get() <= 8);
+    }
+
+    /**
+     * Test of setTelemetryCompressed method, of class UdpVehicleServer.
+     */
+    @Test
+    public void testTelemetryCompressed() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(5);
+        final UtmPose[] lastPose = new UtmPose[1];
+
+        UdpVehicleServer instance = new UdpVehicleServer(serviceAddress);
+        instance.setTelemetryCompressed(true);
+        instance.addPoseListener(new PoseListener() {
+            @Override
+            public void receivedPose(UtmPose pose) {
+                lastPose[0] = pose;
+                latch.countDown();
+            }
+        }, null);
+
+        boolean isReceived = latch.await(5, TimeUnit.SECONDS);
+        instance.shutdown();
+
+        assertTrue("Did not receive compressed poses.", isReceived);
+        assertEquals("Compressed pose has the wrong origin.", 
+                sbs.getPose().origin, lastPose[0].origin);
+    }
+
     /**
      * Test of removePoseListener method, of class UdpVehicleServer.
      */
@@ -194,6 +299,43 @@ public class UdpVehicleServerTest {
         instance.shutdown();
     }
 
+    /**
+     * Test of the telemetry cache of class UdpVehicleServer.
+     */
+    @Test
+    public void testTelemetryCache() throws InterruptedException {
+        UdpVehicleServer instance = new UdpVehicleServer(serviceAddress);
+        instance.setTelemetryCacheEnabled(true);
+
+        // Wait for the pose stream to populate the cache
+        for (int i = 0; i < 20 && instance._telemetryCache.getPose(1, TimeUnit.SECONDS) == null; ++i) {
+            Thread.sleep(100);
+        }
+        assertNotNull("Pose stream did not populate cache.",
+                instance._telemetryCache.getPose(1, TimeUnit.SECONDS));
+
+        // With the vehicle gone, a fresh enough pose must be answered locally
+        service.shutdown();
+        final CountDownLatch latch = new CountDownLatch(1);
+        instance.getPose(5, TimeUnit.SECONDS, new FunctionObserver<UtmPose>() {
+            @Override
+            public void completed(UtmPose result) {
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(FunctionObserver.FunctionError cause) {
+            }
+        });
+        assertTrue("Cached pose was not returned.", latch.await(100, TimeUnit.MILLISECONDS));
+
+        // Disabling the cache must discard the cached values
+        instance.setTelemetryCacheEnabled(false);
+        assertNull("Cache was not cleared.", instance._telemetryCache.getPose(5, TimeUnit.SECONDS));
+
+        instance.shutdown();
+    }
+
     /**
      * Test of addImageListener method, of class UdpVehicleServer.
      */
@@ -222,6 +364,37 @@ public class UdpVehicleServerTest {
         instance.shutdown();
     }
 
+    /**
+     * Test of addImageListener method using an unreliable image stream.
+     */
+    @Test
+    public void testAddImageStreamListener() {
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        // Register a new image listener on an unreliable stream
+        UdpVehicleServer instance = new UdpVehicleServer(serviceAddress);
+        instance.setImageStreamReliable(false);
+        VehicleServer server = AsyncVehicleServer.Util.toSync(instance);
+        server.addImageListener(new ImageListener() {
+            @Override
+            public void receivedImage(byte[] image) {
+                latch.countDown();
+            }
+        });
+        // The first frames may be sent before the subscription is in place,
+        // so keep streaming full-size frames until several arrive
+        server.startCamera(0, 0.5, 640, 480);
+
+        try {
+            assertTrue("Did not receive image updates.", latch.await(5, TimeUnit.SECONDS));
+        } catch(InterruptedException e) {
+            fail("Did not receive image update.");
+        }
+
+        server.stopCamera();
+        instance.shutdown();
+    }
+
     /**
      * Test of removeImageListener method, of class UdpVehicleServer.
      */
@@ -263,6 +436,60 @@ public class UdpVehicleServerTest {
         instance.shutdown();
     }
 
+    /**
+     * Test that a slow image capture does not delay other commands.
+     */
+    @Test
+    public void testDeferredCaptureImage() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        // Replace the vehicle with one that takes a long time to capture
+        SimpleBoatSimulator slowSbs = new SimpleBoatSimulator() {
+            @Override
+            public byte[] captureImage(int width, int height) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    // Return the image early
+                }
+                return super.captureImage(width, height);
+            }
+        };
+        service.setServer(slowSbs);
+
+        UdpVehicleServer instance = new UdpVehicleServer(serviceAddress);
+        instance.captureImage(64, 48, new FunctionObserver<byte[]>() {
+            @Override
+            public void completed(byte[] v) {
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(FunctionObserver.FunctionError fe) {
+            }
+        });
+
+        // A cheap command should complete while the capture is running
+        final CountDownLatch connectedLatch = new CountDownLatch(1);
+        instance.isConnected(new FunctionObserver<Boolean>() {
+            @Override
+            public void completed(Boolean v) {
+                connectedLatch.countDown();
+            }
+
+            @Override
+            public void failed(FunctionObserver.FunctionError fe) {
+            }
+        });
+        assertTrue("Command was delayed by image capture.",
+                connectedLatch.await(500, TimeUnit.MILLISECONDS));
+        assertEquals("Image capture completed too early.", 1, latch.getCount());
+        assertTrue("Did not receive captured image.", latch.await(3, TimeUnit.SECONDS));
+
+        instance.shutdown();
+        slowSbs.shutdown();
+    }
+
     /**
      * Test of addCameraListener method, of class UdpVehicleServer.
      */
@@ -371,6 +598,422 @@ public class UdpVehicleServerTest {
         instance.shutdown();
     }
 
+    /**
+     * Test that sensor listeners only receive readings matching their filter.
+     */
+    @Test
+    public void testAddFilteredSensorListener() throws InterruptedException {
+        final CountDownLatch matchLatch = new CountDownLatch(3);
+        final CountDownLatch mismatchLatch = new CountDownLatch(1);
+
+        UdpVehicleServer instance = new UdpVehicleServer(serviceAddress);
+        instance.addSensorListener(new SensorListener() {
+            @Override
+            public void receivedSensor(SensorData data, long id) {
+                if (data.type == DataType.BATTERY) {
+                    matchLatch.countDown();
+                } else {
+                    mismatchLatch.countDown();
+                }
+            }
+        }, SensorFilter.forTypes(DataType.BATTERY), null);
+        instance.addSensorListener(new SensorListener() {
+            @Override
+            public void receivedSensor(SensorData data, long id) {
+                mismatchLatch.countDown();
+            }
+        }, SensorFilter.forTypes(DataType.DO_ATLAS), null);
+
+        // The simulator only reports its battery voltage
+        assertTrue("Did not receive filtered sensor updates.", matchLatch.await(2, TimeUnit.SECONDS));
+        assertEquals("Received sensor update that did not match filter.", 1, mismatchLatch.getCount());
+
+        instance.shutdown();
+    }
+
+    /**
+     * Test that sensor readings logged while no client was connected are
+     * replayed and acknowledged once one connects.
+     */
+    @Test
+    public void testOutboundLog() throws IOException, InterruptedException {
+        File file = File.createTempFile("outbound", ".log");
+        file.deleteOnExit();
+        OutboundLog log = new OutboundLog(file, 1 << 16);
+        service.setOutboundLog(log);
+
+        // The simulator reports its battery voltage every 100ms
+        Thread.sleep(1000);
+        long loggedSeq = log.getLastSequence();
+        assertTrue("Readings were not logged.", loggedSeq > 0);
+
+        final AtomicInteger count = new AtomicInteger();
+        UdpVehicleServer instance = new UdpVehicleServer(serviceAddress);
+        instance.addSensorListener(new SensorListener() {
+            @Override
+            public void receivedSensor(SensorData data, long id) {
+                count.incrementAndGet();
+            }
+        }, null);
+
+        for (int i = 0; i < 50 && log.getAcknowledged() < loggedSeq; ++i) {
+            Thread.sleep(100);
+        }
+        instance.shutdown();
+        service.setOutboundLog(null);
+        log.close();
+        file.delete();
+
+        assertTrue("Logged readings were not acknowledged.", log.getAcknowledged() >= loggedSeq);
+        assertTrue("Logged readings were not replayed.", count.get() >= loggedSeq);
+    }
+
+    /**
+     * Test that logged readings are only sent to the clients whose filter
+     * they match, and are retained for a client that stops acknowledging 
+     * them even though another client acknowledges them.
+     */
+    @Test
+    public void testOutboundLogClients() throws IOException, InterruptedException {
+        File file = File.createTempFile("outbound", ".log");
+        file.deleteOnExit();
+        OutboundLog log = new OutboundLog(file, 1 << 16);
+        service.setOutboundLog(log);
+
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        final AtomicInteger filtered = new AtomicInteger();
+        UdpVehicleServer firstInstance = new UdpVehicleServer(serviceAddress);
+        firstInstance.addSensorListener(new SensorListener() {
+            @Override
+            public void receivedSensor(SensorData data, long id) {
+                first.incrementAndGet();
+            }
+        }, null);
+        UdpVehicleServer secondInstance = new UdpVehicleServer(serviceAddress);
+        secondInstance.addSensorListener(new SensorListener() {
+            @Override
+            public void receivedSensor(SensorData data, long id) {
+                second.incrementAndGet();
+            }
+        }, null);
+
+        // The simulator only reports its battery voltage
+        UdpVehicleServer filteredInstance = new UdpVehicleServer(serviceAddress);
+        filteredInstance.addSensorListener(new SensorListener() {
+            @Override
+            public void receivedSensor(SensorData data, long id) {
+                filtered.incrementAndGet();
+            }
+        }, SensorFilter.forTypes(DataType.DO_ATLAS), null);
+
+        for (int i = 0; i < 50 && (log.getAcknowledged() == 0 || second.get() == 0); ++i) {
+            Thread.sleep(100);
+        }
+        assertTrue("Logged readings were not acknowledged.", log.getAcknowledged() > 0);
+
+        // Readings are retained for the second client once it goes away
+        secondInstance.shutdown();
+        long stoppedSeq = log.getLastSequence();
+        int firstCount = first.get();
+        Thread.sleep(2000);
+
+        firstInstance.shutdown();
+        filteredInstance.shutdown();
+        service.setOutboundLog(null);
+        log.close();
+        file.delete();
+
+        assertTrue("Readings were not logged.", log.getLastSequence() > stoppedSeq + 5);
+        assertTrue("First client did not keep receiving readings.", first.get() > firstCount);
+        assertTrue("Readings were released before the second client received them.",
+                log.getAcknowledged() <= stoppedSeq);
+        assertEquals("Received readings that did not match filter.", 0, filtered.get());
+    }
+
+    /**
+     * Test that clients can subscribe, unsubscribe and expire while a stream
+     * is being sent, without the stream threads failing on the subscriber
+     * table, and that a client which stays subscribed keeps receiving the 
+     * stream throughout.
+     */
+    @Test
+    public void testSubscriberChurn() throws IOException, InterruptedException {
+        final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+        Handler failureHandler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                for (Throwable t = record.getThrown(); t != null; t = t.getCause()) {
+                    if (t instanceof ConcurrentModificationException) failures.add(t);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger.getLogger("").addHandler(failureHandler);
+
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger lastValue = new AtomicInteger(-1);
+        UdpVehicleServer steady = new UdpVehicleServer(serviceAddress);
+        steady.addKeyValueListener(new KeyValueListener() {
+            @Override
+            public void keyValueUpdate(String key, float value) {
+                received.incrementAndGet();
+                lastValue.set((int)value);
+            }
+        }, null);
+
+        // Subscriptions come and go over the network as raw requests
+        final UdpServer[] churners = new UdpServer[8];
+        for (int i = 0; i < churners.length; ++i) {
+            churners[i] = new UdpServer();
+            churners[i].setHandler(new UdpServer.RequestHandler() {
+                public void received(UdpServer.Request req) {}
+                public void timeout(long ticket, SocketAddress destination) {}
+            });
+            churners[i].start();
+        }
+
+        final AtomicBoolean isRunning = new AtomicBoolean(true);
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; isRunning.get(); ++i) {
+                    sbs.setKeyValue("churn", i % 1000);
+                    try { Thread.sleep(1); } catch (InterruptedException e) { return; }
+                }
+            }
+        });
+        Thread subscriber = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; isRunning.get(); ++i) {
+                        subscribe(churners[i % churners.length], (i / churners.length) % 2 == 0);
+                        Thread.sleep(1);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+        Thread expirer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; isRunning.get(); ++i) {
+                        long expired = System.nanoTime() - UdpConstants.REGISTRATION_TIMEOUT_NS;
+                        synchronized (service._subscribers) {
+                            SocketAddress address = new InetSocketAddress("127.0.0.1", 1 + i % 16);
+                            service._subscribers.put(address, 
+                                    new Subscriber(address).register(UdpConstants.STREAM.KEYVALUE, expired));
+                            service.publishSubscribers();
+                        }
+                        service.updateRegistrations();
+                        Thread.sleep(1);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+
+        try {
+            publisher.start();
+            for (int i = 0; i < 50 && received.get() == 0; ++i) {
+                Thread.sleep(100);
+            }
+            assertTrue("Stream was not received before churn.", received.get() > 0);
+
+            subscriber.start();
+            expirer.start();
+            Thread.sleep(1000);
+            int receivedBefore = received.get();
+            Thread.sleep(1000);
+            assertTrue("Stream stopped during churn.", received.get() > receivedBefore);
+
+            isRunning.set(false);
+            publisher.join();
+            subscriber.join();
+            expirer.join();
+            assertTrue("Churn failed: " + failures, failures.isEmpty());
+
+            // Only the steady client should remain once the others leave
+            for (int i = 0; i < 50 && service._subscriberSnapshot.length > 1; ++i) {
+                for (UdpServer churner : churners) {
+                    subscribe(churner, false);
+                }
+                service.updateRegistrations();
+                Thread.sleep(100);
+            }
+            Subscriber[] remaining = service._subscriberSnapshot;
+            assertEquals("Departed clients are still subscribed.", 1, remaining.length);
+            assertEquals("Steady client was unsubscribed.", 
+                    ((InetSocketAddress)steady._udpServer.getSocketAddress()).getPort(),
+                    ((InetSocketAddress)remaining[0].address).getPort());
+
+            // Delivery to the steady client continues after the churn
+            for (int i = 0; i < 50 && lastValue.get() != 1000; ++i) {
+                sbs.setKeyValue("churn", 1000);
+                Thread.sleep(100);
+            }
+            assertEquals("Stream was not delivered after churn.", 1000, lastValue.get());
+        } finally {
+            isRunning.set(false);
+            Logger.getLogger("").removeHandler(failureHandler);
+            steady.shutdown();
+            for (UdpServer churner : churners) {
+                churner.stop();
+            }
+        }
+    }
+
+    /**
+     * Sends a raw subscription request for the key-value stream, or an empty
+     * one that unsubscribes the sender.
+     */
+    private void subscribe(UdpServer churner, boolean isSubscribing) throws IOException {
+        Response response = new Response(UdpConstants.NO_TICKET, serviceAddress);
+        response.stream.writeUTF(UdpConstants.COMMAND.CMD_SUBSCRIBE.str);
+        if (isSubscribing) {
+            response.stream.writeInt(UdpConstants.STREAM.KEYVALUE.mask);
+            response.stream.writeInt(0);
+        } else {
+            response.stream.writeInt(0);
+        }
+        churner.send(response);
+    }
+
+    /**
+     * Test that a failing periodic task does not stop the other tasks that
+     * share its timer.
+     */
+    @Test
+    public void testFailingTimerTask() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+        UdpVehicleService failing = new UdpVehicleService() {
+            @Override
+            protected void sendState() {
+                throw new IllegalStateException("Failing state task");
+            }
+
+            @Override
+            protected void updateRegistrations() {
+                latch.countDown();
+                super.updateRegistrations();
+            }
+        };
+
+        try {
+            assertTrue("Registrations stopped after a task failed.", latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            failing.shutdown();
+        }
+    }
+
+    /**
+     * Observer that waits for the result of an asynchronous call.
+     */
+    static class Result<V> implements FunctionObserver<V> {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile V value;
+
+        @Override
+        public void completed(V result) {
+            value = result;
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(FunctionError cause) {
+            fail("Call failed: " + cause);
+        }
+
+        V get() throws InterruptedException {
+            assertTrue("Call did not complete.", latch.await(5, TimeUnit.SECONDS));
+            return value;
+        }
+    }
+
+    /**
+     * Test that key-value pairs can be set and fetched in bulk, and that 
+     * synchronization only fetches the pairs that changed since the last one.
+     * Bulk gets are bounded by the size of a packet, and requests for more
+     * keys than fit in a packet fail.
+     */
+    @Test
+    public void testKeyValueSync() throws InterruptedException {
+        UdpVehicleServer instance = new UdpVehicleServer(serviceAddress);
+
+        // Set enough keys that synchronizing them takes several packets
+        for (int batch = 0; batch < 2; ++batch) {
+            Map<String, Float> values = new LinkedHashMap<String, Float>();
+            for (int i = 0; i < 100; ++i) {
+                values.put(String.format("param%03d", 100 * batch + i), (float)i);
+            }
+            Result<Void> set = new Result<Void>();
+            instance.setKeyValues(values, set);
+            set.get();
+        }
+
+        Result<Map<String, Float>> sync = new Result<Map<String, Float>>();
+        instance.syncKeyValues(sync);
+        assertEquals("Did not synchronize every key.", 200, sync.get().size());
+        assertEquals("Wrong synchronized value.", 42.0f, instance.getSyncedKeyValues().get("param142"), 0.0f);
+
+        Result<Void> set = new Result<Void>();
+        instance.setKeyValue("param007", 7.0f, null);
+        instance.setKeyValue("param008", -1.0f, set);
+        set.get();
+
+        sync = new Result<Map<String, Float>>();
+        instance.syncKeyValues(sync);
+        Map<String, Float> changes = sync.get();
+        assertEquals("Unchanged keys were synchronized.", 1, changes.size());
+        assertEquals("Wrong changed value.", -1.0f, changes.get("param008"), 0.0f);
+
+        Result<Map<String, Float>> get = new Result<Map<String, Float>>();
+        instance.getKeyValues(Arrays.asList("param123", "missing"), get);
+        Map<String, Float> values = get.get();
+        assertEquals("Wrong number of values.", 1, values.size());
+        assertEquals("Wrong value.", 23.0f, values.get("param123"), 0.0f);
+
+        // Getting more keys than fit in a response only returns those that fit
+        get = new Result<Map<String, Float>>();
+        instance.getKeyValues(instance.getSyncedKeyValues().keySet(), get);
+        values = get.get();
+        assertTrue("No values were returned.", values.size() > 0);
+        assertTrue("Response was not bounded.",
+                values.size() * KeyValueStore.sizeOf("param000") <= UdpConstants.KEYVALUE_SYNC_SIZE);
+
+        // Requests for more keys than fit in a packet fail immediately
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < UdpConstants.MAX_PACKET_SIZE / 8; ++i) {
+            keys.add(String.format("param%03d", i));
+        }
+        final CountDownLatch failed = new CountDownLatch(1);
+        instance.getKeyValues(keys, new FunctionObserver<Map<String, Float>>() {
+            @Override
+            public void completed(Map<String, Float> result) {
+                fail("Oversized request completed.");
+            }
+
+            @Override
+            public void failed(FunctionObserver.FunctionError cause) {
+                failed.countDown();
+            }
+        });
+        assertEquals("Oversized request did not fail.", 0, failed.getCount());
+
+        instance.shutdown();
+    }
+
     /**
      * Test of removeSensorListener method, of class UdpVehicleServer.
      */
@@ -0,0 +1,289 @@
+package com.platypus.crw.udp;
+
+import com.platypus.crw.SimpleBoatSimulator;
+import com.platypus.crw.data.UtmPose;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the paginated and incremental listing of registered vehicles, and
+ * the notifications pushed to clients that watch the registry, the
+ * replication of the registry between instances, and relayed connections.
+ */
+public class VehicleRegistryServiceTest {
+
+    VehicleRegistryService registry;
+    UdpVehicleServer client;
+
+    @Before
+    public void setUp() {
+        registry = new VehicleRegistryService(0);
+        int port = ((InetSocketAddress)registry._udpServer.getSocketAddress()).getPort();
+
+        client = new UdpVehicleServer();
+        client.setRegistryService(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        registry.shutdown();
+    }
+
+    SocketAddress vehicle(int i) {
+        return new InetSocketAddress("10.0." + (i / 200) + "." + (i % 200 + 1), 11411);
+    }
+
+    Map<SocketAddress, String> sync() throws InterruptedException {
+        UdpVehicleServerTest.Result<Map<SocketAddress, String>> result =
+                new UdpVehicleServerTest.Result<Map<SocketAddress, String>>();
+        client.syncVehicleServices(result);
+        return result.get();
+    }
+
+    /**
+     * Test that a registry too large for a single packet is listed in full,
+     * and that later listings only apply the vehicles that were added or
+     * removed since.
+     */
+    @Test
+    public void testListChanges() throws InterruptedException {
+        for (int i = 0; i < 300; ++i) {
+            registry.register(vehicle(i), "Vehicle " + i);
+        }
+
+        Map<SocketAddress, String> services = sync();
+        assertEquals("Did not list every vehicle.", 300, services.size());
+        assertEquals("Wrong vehicle name.", "Vehicle 250", services.get(vehicle(250)));
+        long version = client._servicesVersion;
+
+        registry.unregister(vehicle(3));
+        registry.unregister(vehicle(299));
+        registry.register(vehicle(300), "Vehicle 300");
+
+        services = sync();
+        assertEquals("Wrong number of vehicles after changes.", 299, services.size());
+        assertFalse("Removed vehicle was still listed.", services.containsKey(vehicle(3)));
+        assertFalse("Removed vehicle was still listed.", services.containsKey(vehicle(299)));
+        assertEquals("Added vehicle was not listed.", "Vehicle 300", services.get(vehicle(300)));
+        assertEquals("Wrong version after changes.", version + 3, client._servicesVersion);
+    }
+
+    /**
+     * Test that a listing is restarted from scratch once the removals since
+     * the previous listing have been forgotten.
+     */
+    @Test
+    public void testListReset() throws InterruptedException {
+        for (int i = 0; i < 5; ++i) {
+            registry.register(vehicle(i), "Vehicle " + i);
+        }
+        assertEquals("Did not list every vehicle.", 5, sync().size());
+
+        registry.unregister(vehicle(0));
+        registry.forgetRemovals(System.nanoTime() + UdpConstants.REGISTRY_REMOVAL_TIMEOUT_NS + 1);
+
+        Map<SocketAddress, String> services = sync();
+        assertEquals("Wrong number of vehicles after reset.", 4, services.size());
+        assertFalse("Forgotten removal was still listed.", services.containsKey(vehicle(0)));
+    }
+
+    /**
+     * Test that the log of changes stays correct as it is compacted, after
+     * most of its entries have been superseded by renames and removals.
+     */
+    @Test
+    public void testLogCompaction() throws InterruptedException {
+        for (int i = 0; i < 100; ++i) {
+            registry.register(vehicle(i), "Vehicle " + i);
+        }
+        assertEquals("Did not list every vehicle.", 100, sync().size());
+
+        for (int i = 0; i < 100; ++i) {
+            registry.register(vehicle(i), "Renamed " + i);
+            if (i % 10 == 0) registry.unregister(vehicle(i));
+        }
+        for (int i = 0; i < 100; ++i) {
+            registry.register(vehicle(i), "Final " + i);
+        }
+        assertTrue("Log was not compacted.", registry._logSize < 250);
+
+        Map<SocketAddress, String> services = sync();
+        assertEquals("Wrong number of vehicles after changes.", 100, services.size());
+        assertEquals("Wrong vehicle name after changes.", "Final 10", services.get(vehicle(10)));
+        assertEquals("Wrong vehicle name after changes.", "Final 99", services.get(vehicle(99)));
+        assertEquals("Wrong registry listing after changes.", services, registry.getClients());
+    }
+
+    /**
+     * Test that a client that the timer has expired can no longer be renewed
+     * without taking the lock, so that a late renewal registers it again
+     * instead of being lost.
+     */
+    @Test
+    public void testRenewalAfterExpiry() {
+        VehicleRegistryService.Client client = new VehicleRegistryService.Client();
+        assertTrue("New client could not be renewed.", client.renew(1, true));
+        assertFalse("Client expired early.", client.countDown());
+        assertTrue("Client did not expire.", client.countDown());
+        assertFalse("Expired client was renewed.", client.renew(5, true));
+
+        registry.register(vehicle(0), "Vehicle 0");
+        for (int i = 0; i <= UdpConstants.REGISTRATION_TIMEOUT_COUNT; ++i) {
+            registry._registrationTask.run();
+        }
+        assertFalse("Client did not expire.", registry.getClients().containsKey(vehicle(0)));
+        registry.register(vehicle(0), "Vehicle 0");
+        assertTrue("Expired client was not registered again.", registry.getClients().containsKey(vehicle(0)));
+    }
+
+    /**
+     * Test that watchers are pushed the changes to vehicles matching their
+     * prefix, and nothing else.
+     */
+    @Test
+    public void testWatch() throws InterruptedException {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        client.addRegistryListener(new RegistryListener() {
+            @Override
+            public void vehicleJoined(SocketAddress addr, String name) {
+                events.add("joined " + name);
+            }
+
+            @Override
+            public void vehicleLeft(SocketAddress addr, String name) {
+                events.add("left " + name);
+            }
+
+            @Override
+            public void vehicleRenamed(SocketAddress addr, String name) {
+                events.add("renamed " + name);
+            }
+        }, "Boat");
+
+        for (int i = 0; i < 50 && registry._watchers.isEmpty(); ++i) {
+            Thread.sleep(20);
+        }
+        assertFalse("Watch was not received by registry.", registry._watchers.isEmpty());
+
+        registry.register(vehicle(0), "Buoy 0");
+        registry.register(vehicle(1), "Boat 1");
+        registry.register(vehicle(1), "Boat One");
+        registry.unregister(vehicle(0));
+        registry.unregister(vehicle(1));
+
+        assertEquals("Wrong first event.", "joined Boat 1", events.poll(2, TimeUnit.SECONDS));
+        assertEquals("Wrong second event.", "renamed Boat One", events.poll(2, TimeUnit.SECONDS));
+        assertEquals("Wrong third event.", "left Boat One", events.poll(2, TimeUnit.SECONDS));
+        assertNull("Filtered vehicle was reported.", events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    SocketAddress address(VehicleRegistryService service) {
+        int port = ((InetSocketAddress)service._udpServer.getSocketAddress()).getPort();
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
+    boolean awaitClients(VehicleRegistryService service, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && service.getClients().size() < count; ++i) {
+            Thread.sleep(50);
+        }
+        return service.getClients().size() == count;
+    }
+
+    /**
+     * Test that clients registered with either of two peered instances are
+     * listed by both, and that a restarted instance recovers the table of
+     * its peer.
+     */
+    @Test
+    public void testReplication() throws InterruptedException {
+        VehicleRegistryService peer = new VehicleRegistryService(0);
+        try {
+            registry.addPeer(address(peer));
+            peer.addPeer(address(registry));
+
+            for (int i = 0; i < 5; ++i) {
+                registry.register(vehicle(i), "Vehicle " + i);
+                peer.register(vehicle(i + 5), "Vehicle " + (i + 5));
+            }
+            assertTrue("Peer clients were not replicated.", awaitClients(registry, 10));
+            assertTrue("Peer clients were not replicated.", awaitClients(peer, 10));
+            assertEquals("Wrong replicated name.", "Vehicle 2", peer.getClients().get(vehicle(2)));
+
+            // Replace the peer with a fresh instance
+            registry.removePeer(address(peer));
+            peer.shutdown();
+            peer = new VehicleRegistryService(0);
+            registry.addPeer(address(peer));
+            peer.addPeer(address(registry));
+
+            assertTrue("Restarted instance did not recover clients.", awaitClients(peer, 5));
+            client.setRegistryService(address(peer));
+            assertEquals("Restarted instance did not list clients.", 5, sync().size());
+        } finally {
+            peer.shutdown();
+        }
+    }
+
+    /**
+     * Test that a vehicle that moves to a peer instance stops being listed
+     * as local once its local registration expires, so that the name it
+     * registered with the peer is used.
+     */
+    @Test
+    public void testMovedToPeer() {
+        registry.register(vehicle(0), "Vehicle 0");
+        assertTrue("Client was not local.", registry.shard(vehicle(0)).clients.get(vehicle(0)).isLocal());
+
+        // Keep receiving the vehicle from a peer under another name
+        for (int i = 0; i <= UdpConstants.REGISTRATION_TIMEOUT_COUNT; ++i) {
+            registry.register(vehicle(0), "Moved 0", UdpConstants.REGISTRATION_TIMEOUT_COUNT, false);
+            registry._registrationTask.run();
+        }
+        assertFalse("Client was still local.", registry.shard(vehicle(0)).clients.get(vehicle(0)).isLocal());
+
+        registry.register(vehicle(0), "Moved 0", UdpConstants.REGISTRATION_TIMEOUT_COUNT, false);
+        assertEquals("Peer name did not replace expired local name.", "Moved 0", registry.getClients().get(vehicle(0)));
+    }
+
+    /**
+     * Test that a client can reach a registered vehicle through the relay of
+     * the registry, and that the relayed traffic is counted.
+     */
+    @Test
+    public void testRelay() throws IOException, InterruptedException {
+        SimpleBoatSimulator sbs = new SimpleBoatSimulator();
+        UdpVehicleService service = new UdpVehicleService(sbs);
+        try {
+            registry.enableRelay(16);
+            service.addRegistry((InetSocketAddress)address(registry));
+            assertTrue("Vehicle did not register.", awaitClients(registry, 1));
+            SocketAddress vehicle = registry.getClients().keySet().iterator().next();
+
+            UdpVehicleServerTest.Result<SocketAddress> relay = new UdpVehicleServerTest.Result<SocketAddress>();
+            client.connectViaRelay(vehicle, relay);
+            assertEquals("Client is not using the relay.", relay.get(), client.getVehicleService());
+
+            UdpVehicleServerTest.Result<UtmPose> pose = new UdpVehicleServerTest.Result<UtmPose>();
+            client.getPose(pose);
+            assertNotNull("Pose was not relayed.", pose.get());
+
+            assertEquals("Wrong number of sessions.", 1, registry.getRelay().getSessions().size());
+            UdpRelay.Session session = registry.getRelay().getSessions().get(0);
+            assertTrue("Client traffic was not counted.", session.getClientBytes() > 0);
+            assertTrue("Vehicle traffic was not counted.", session.getVehicleBytes() > 0);
+        } finally {
+            service.shutdown();
+            sbs.shutdown();
+        }
+    }
+}